@@ -0,0 +1,151 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * The values and the frames used by the benchmarks and the checks.
+ */
+final class BenchmarkSamples
+{
+    private BenchmarkSamples()
+    {
+    }
+
+    static final byte[] KEY = "benchmark secret".getBytes( StandardCharsets.UTF_8);
+
+    // A random frame of the given size, with a valid frame header.
+    static ByteBuffer randomFrame( int size)
+    {
+        final byte[] content = new byte[size];
+        new Random( size).nextBytes( content);
+
+        final ByteBuffer b = ByteBuffer.allocate( size + 8).order( ByteOrder.LITTLE_ENDIAN);
+        b.put( content);
+        b.putShort( _c.FRAME_SIZE_OFF, (short) size)
+         .put( _c.FRAME_TYPE_OFF, _c.FRAME_TYPE_NORMAL);
+
+        return b;
+    }
+
+    static TableFieldType[] sampleTableFields() throws ConnException
+    {
+        // Keep the fields sorted by name, as the values are using them.
+        return ValueType.create( new TableFieldType[] {
+                    new TableFieldType( "amount", ValueType.realType()),
+                    new TableFieldType( "dates", ValueType.arrayDateType()),
+                    new TableFieldType( "id", ValueType.int32Type()),
+                    new TableFieldType( "name", ValueType.textType())
+                }).getFields();
+    }
+
+    static Value[] sampleTableRow( int row) throws ConnException
+    {
+        final ArrayValue dates = Value.createArray( ValueType.arrayDateType(),
+                                                    "2018/01/" + (1 + row % 28),
+                                                    "2018/02/" + (1 + row % 28),
+                                                    "2018/03/" + (1 + row % 28));
+        return new Value[] {
+            Value.createReal( row + ".25"),
+            dates,
+            Value.createInt32( row),
+            Value.createText( "Customer name number " + row)
+        };
+    }
+
+    static TableValue sampleTable( int rows) throws ConnException
+    {
+        final TableFieldType[] fields = sampleTableFields();
+        final TableValue table = Value.createTable( fields);
+
+        for (int row = 0; row < rows; ++row) {
+            final Value[] cells = sampleTableRow( row);
+            for (int f = 0; f < fields.length; ++f)
+                table.put( cells[f], fields[f].getName(), row);
+        }
+
+        return table;
+    }
+
+    // A table with more fields than a typical caller reads.
+    static TableValue wideTable( int rows) throws ConnException
+    {
+        final TableFieldType[] fields = new TableFieldType[16];
+        for (int f = 0; f < fields.length; ++f) {
+            if (f % 3 == 0)
+                fields[f] = new TableFieldType( "count_" + f / 3, ValueType.int64Type());
+            else if (f % 3 == 1)
+                fields[f] = new TableFieldType( "ratio_" + f / 3, ValueType.richrealType());
+            else
+                fields[f] = new TableFieldType( "label_" + f / 3, ValueType.textType());
+        }
+
+        final TableValue table = Value.createTable( fields);
+        for (int row = 0; row < rows; ++row) {
+            for (int f = 0; f < fields.length; ++f) {
+                final Value v;
+                if (f % 3 == 0)
+                    v = Value.createInt64( row * 1000003L + f);
+                else if (f % 3 == 1)
+                    v = Value.createRichReal( row + f + ".0625");
+                else
+                    v = Value.createText( "Label " + f + " of row " + row);
+
+                table.put( v, fields[f].getName(), row);
+            }
+        }
+
+        return table;
+    }
+
+    // A text of about 100 thousands characters.
+    static String longText()
+    {
+        final StringBuilder text = new StringBuilder();
+        while (text.length() < 100000)
+            text.append( "The quick brown fox jumps over the lazy dog. ");
+
+        return text.toString();
+    }
+
+    /**
+     * Start a stand-in server providing an {@code add_int64} procedure.
+     */
+    static StandInServer addInt64Server( String cipher)
+    {
+        final StandInServer server = new StandInServer( KEY, KEY);
+        server.setCipher( cipher);
+        server.defineProcedure( "add_int64",
+                                ValueType.int64Type(),
+                                new ValueType[] { ValueType.int64Type(), ValueType.int64Type() },
+                                new StandInServer.Procedure() {
+                                    @Override
+                                    public Value execute( Value[] params) throws ConnException
+                                    {
+                                        final long a = ((IntegerValue) params[0]).getLong();
+                                        final long b = ((IntegerValue) params[1]).getLong();
+
+                                        return Value.createInt64( a + b);
+                                    }
+                                });
+        return server;
+    }
+}
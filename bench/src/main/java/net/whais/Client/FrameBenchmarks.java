@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The frame check sum and the ciphers, on frames of several sizes.
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.NANOSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 2)
+public class FrameBenchmarks
+{
+    @State( Scope.Thread)
+    public static class Frame
+    {
+        @Param( { "512", "4096", "65528" })
+        public int size;
+
+        ByteBuffer mBuffer;
+
+        @Setup
+        public void setUp()
+        {
+            mBuffer = BenchmarkSamples.randomFrame( size);
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class FrameCipher
+    {
+        @Param( { "plain", "3k", "des", "3des" })
+        public String cipher;
+
+        Cipher mCipher;
+        Object mKey;
+
+        @Setup
+        public void setUp()
+        {
+            mCipher = StandInSession.selectCipher( StandInServer.cipherType( cipher));
+            mKey = mCipher.prepareKey( BenchmarkSamples.KEY);
+        }
+    }
+
+    @Benchmark
+    public short checkSum( Frame f)
+    {
+        return CommunicationFrame.computeCheckSum( f.mBuffer, _c.FRAME_HDR_SIZE, f.size);
+    }
+
+    @Benchmark
+    public int cipherRoundTrip( Frame f, FrameCipher c)
+    {
+        final int encoded = c.mCipher.encodeFrame( f.mBuffer, f.size, c.mKey);
+
+        return c.mCipher.decodeFrame( f.mBuffer, encoded, c.mKey);
+    }
+
+    @Benchmark
+    public int sealOpen( Frame f, FrameCipher c)
+    {
+        final int encoded = c.mCipher.sealFrame( f.mBuffer, f.size, c.mKey);
+
+        return c.mCipher.openFrame( f.mBuffer, encoded, c.mKey);
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * In memory frame transport connecting a client to a {@link StandInSession}.
+ * <p>
+ * Every frame written by the client is handled synchronously, so the answer
+ * is ready to be read when the client asks for it. This makes it suitable to
+ * measure the connector's costs without any network noise.</p>
+ */
+final class InMemoryServerTransport implements FrameTransport
+{
+    InMemoryServerTransport( StandInSession session)
+    {
+        mSession = session;
+        mOutSize = session.startAuthentication();
+        mOutPosition = 0;
+    }
+
+    @Override
+    public void readFully( ByteBuffer buffer, int from, int to) throws IOException
+    {
+        if (mOutSize - mOutPosition < to - from)
+            throw new ConnException( CmdResult.DROPPED);
+
+        System.arraycopy( mSession.getFrame().array(), mOutPosition, buffer.array(), from, to - from);
+        mOutPosition += to - from;
+    }
+
+    @Override
+    public void writeFully( ByteBuffer buffer, int from, int to) throws IOException
+    {
+        assert from == 0;
+
+        if (mSession.isClosed() || ! mSession.acceptsFrameSize( to - from))
+            throw new ConnException( CmdResult.DROPPED);
+
+        System.arraycopy( buffer.array(), from, mSession.getFrame().array(), 0, to - from);
+
+        mOutSize = mSession.handleFrame( to - from);
+        mOutPosition = 0;
+    }
+
+    @Override
+    public void close()
+    {
+        mSession.close();
+        mOutSize = mOutPosition = 0;
+    }
+
+    private final StandInSession mSession;
+    private int                  mOutSize;
+    private int                  mOutPosition;
+}
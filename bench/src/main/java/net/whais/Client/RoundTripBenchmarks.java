@@ -0,0 +1,227 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Whole requests, answered by a {@link StandInServer} through memory or
+ * through a loopback TCP connection.
+ * <p>
+ * The cipher defaults to the three kings one; pass e.g.
+ * {@code -p cipher=plain,3k,des,3des} to compare them.</p>
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.MICROSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 2)
+public class RoundTripBenchmarks
+{
+    @State( Scope.Thread)
+    public static class Session
+    {
+        @Param( { "memory", "tcp" })
+        public String channel;
+
+        @Param( { "3k" })
+        public String cipher;
+
+        StandInServer mServer;
+        Connection    mConnection;
+        long          mCalls;
+
+        @Setup
+        public void setUp() throws IOException
+        {
+            mServer = BenchmarkSamples.addInt64Server( cipher);
+
+            if (channel.equals( "tcp")) {
+                final int port = mServer.listen( 0);
+                mConnection = new Connection( "127.0.0.1",
+                                              Integer.toString( port),
+                                              "bench",
+                                              BenchmarkSamples.KEY,
+                                              Connection.USER,
+                                              _c.DEFAULT_FRAME_SIZE);
+            } else
+                mConnection = mServer.connect( "bench", BenchmarkSamples.KEY, Connection.USER, _c.DEFAULT_FRAME_SIZE);
+
+            prepare();
+        }
+
+        /**
+         * Called once the connection is up; JMH would run a subclass's own
+         * setup method before this class's one.
+         */
+        void prepare() throws IOException
+        {
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            mConnection.close();
+            mServer.close();
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class PooledBufferSession extends Session
+    {
+        @Override
+        void prepare() throws IOException
+        {
+            mConnection.setFrameBufferPool( new FrameBufferPool());
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class MeasuredSession extends Session
+    {
+        @Override
+        void prepare() throws IOException
+        {
+            mConnection.setMetrics( new ConnectionMetrics());
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class Tables
+    {
+        TableValue       mSmall;
+        TableFieldType[] mCounters;
+
+        @Setup
+        public void setUp() throws ConnException
+        {
+            mSmall = BenchmarkSamples.sampleTable( 100);
+            mCounters = new TableFieldType[] {
+                new TableFieldType( "count", ValueType.int64Type()),
+                new TableFieldType( "id", ValueType.int32Type()),
+                new TableFieldType( "valid", ValueType.boolType())
+            };
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class LargeTableSession extends Session
+    {
+        @Param( { "false", "true" })
+        public boolean readAhead;
+
+        @Override
+        void prepare() throws IOException
+        {
+            mConnection.pushStackValue( BenchmarkSamples.sampleTable( 5000));
+            mConnection.flushStackUpdates();
+        }
+    }
+
+    @Benchmark
+    public void ping( Session s) throws IOException
+    {
+        s.mConnection.pingServer();
+    }
+
+    @Benchmark
+    public void pingPooledBuffer( PooledBufferSession s) throws IOException
+    {
+        s.mConnection.pingServer();
+    }
+
+    @Benchmark
+    public Value callAddInt64( Session s) throws IOException
+    {
+        return s.mConnection.callProcedure( "add_int64", Value.createInt64( s.mCalls++), Value.createInt64( 1));
+    }
+
+    @Benchmark
+    public Value callAddInt64Measured( MeasuredSession s) throws IOException
+    {
+        return s.mConnection.callProcedure( "add_int64", Value.createInt64( s.mCalls++), Value.createInt64( 1));
+    }
+
+    @Benchmark
+    public Value pushRetrieveTable( Session s, Tables t) throws IOException
+    {
+        s.mConnection.pushStackValue( t.mSmall);
+        s.mConnection.flushStackUpdates();
+
+        final Value result = s.mConnection.retrieveStackTop();
+
+        s.mConnection.popStackValues( 1);
+        s.mConnection.flushStackUpdates();
+
+        return result;
+    }
+
+    @Benchmark
+    public void cursorLargeTable( LargeTableSession s, Blackhole bh) throws IOException
+    {
+        final TableCursor cursor = s.mConnection.openTableCursor();
+        cursor.setReadAhead( s.readAhead);
+
+        while (cursor.next())
+            bh.consume( cursor.getValue( 0));
+    }
+
+    @Benchmark
+    public void pushTableValue( Session s, Tables t) throws IOException
+    {
+        final TableValue table = Value.createTable( t.mCounters);
+        for (int row = 0; row < 1000; ++row) {
+            table.put( Value.createInt64( 1000L * row), 0, row);
+            table.put( Value.createInt32( row), 1, row);
+            table.put( Value.createBool( (row & 1) == 0), 2, row);
+        }
+
+        s.mConnection.pushStackValue( table);
+        s.mConnection.popStackValues( 1);
+        s.mConnection.flushStackUpdates();
+    }
+
+    @Benchmark
+    public void pushTableWriter( Session s, Tables t) throws IOException
+    {
+        final TableWriter w = s.mConnection.openTableWriter( t.mCounters);
+        for (int row = 0; row < 1000; ++row) {
+            w.newRow();
+            w.setLong( 0, 1000L * row);
+            w.setLong( 1, row);
+            w.setBoolean( 2, (row & 1) == 0);
+        }
+
+        s.mConnection.popStackValues( 1);
+        s.mConnection.flushStackUpdates();
+    }
+}
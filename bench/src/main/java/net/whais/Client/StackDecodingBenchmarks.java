@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The decoding of stack values, with {@link Connection#retrieveStackTop()}
+ * and {@link TableCursor}. The values are served by a {@link StandInServer}
+ * through memory, so the figures are mostly the client's work.
+ * <p>
+ * The cipher defaults to the three kings one; pass e.g.
+ * {@code -p cipher=plain,3k,des,3des} to compare them.</p>
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.MICROSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 2)
+public class StackDecodingBenchmarks
+{
+    @State( Scope.Thread)
+    public static class StackTop
+    {
+        @Param( { "int64", "text.100k", "array.int32.10000", "table.1000x4", "table.1000x16" })
+        public String value;
+
+        @Param( { "3k" })
+        public String cipher;
+
+        Connection mConnection;
+
+        @Setup
+        public void setUp() throws IOException
+        {
+            mConnection = connect( cipher, sample( value));
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            mConnection.close();
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class TableTop
+    {
+        @Param( { "table.1000x4", "table.1000x16" })
+        public String table;
+
+        @Param( { "3k" })
+        public String cipher;
+
+        Connection mConnection;
+
+        @Setup
+        public void setUp() throws IOException
+        {
+            mConnection = connect( cipher, sample( table));
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            mConnection.close();
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class WideTableTop
+    {
+        @Param( { "3k" })
+        public String cipher;
+
+        Connection mConnection;
+
+        @Setup
+        public void setUp() throws IOException
+        {
+            mConnection = connect( cipher, sample( "table.1000x16"));
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            mConnection.close();
+        }
+    }
+
+    @Benchmark
+    public Value retrieve( StackTop s) throws IOException
+    {
+        return s.mConnection.retrieveStackTop();
+    }
+
+    @Benchmark
+    public void cursor( TableTop t, Blackhole bh) throws IOException
+    {
+        final TableCursor c = t.mConnection.openTableCursor();
+        while (c.next())
+            bh.consume( c.getValue( 0));
+    }
+
+    // A caller that reads 3 of the 16 fields of a wide table.
+    @Benchmark
+    public void cursorReadThree( WideTableTop t, Blackhole bh) throws IOException
+    {
+        final TableCursor c = t.mConnection.openTableCursor();
+        final int count = c.getFieldIndex( "count_0");
+        final int ratio = c.getFieldIndex( "ratio_0");
+        final int label = c.getFieldIndex( "label_0");
+
+        while (c.next()) {
+            bh.consume( c.getLong( count));
+            bh.consume( c.getDouble( ratio));
+            bh.consume( c.getString( label));
+        }
+    }
+
+    static Value sample( String name) throws ConnException
+    {
+        if (name.equals( "int64"))
+            return Value.createInt64( -9000000000000000000L);
+
+        else if (name.equals( "text.100k"))
+            return Value.createText( BenchmarkSamples.longText());
+
+        else if (name.equals( "array.int32.10000")) {
+            final long[] elements = new long[10000];
+            for (int i = 0; i < elements.length; ++i)
+                elements[i] = i * 7919;
+
+            return Value.createArray( ValueType.arrayInt32Type(), elements);
+        }
+
+        else if (name.equals( "table.1000x4"))
+            return BenchmarkSamples.sampleTable( 1000);
+
+        else if (name.equals( "table.1000x16"))
+            return BenchmarkSamples.wideTable( 1000);
+
+        throw new IllegalArgumentException( "Unknown sample value " + name + '.');
+    }
+
+    static Connection connect( String cipher, Value value) throws IOException
+    {
+        final StandInServer server = new StandInServer( BenchmarkSamples.KEY, BenchmarkSamples.KEY);
+        server.setCipher( cipher);
+
+        final Connection c = server.connect( "bench", BenchmarkSamples.KEY, Connection.USER, _c.DEFAULT_FRAME_SIZE);
+        c.pushStackValue( value);
+        c.flushStackUpdates();
+
+        if ( ! c.retrieveStackTop().equals( value))
+            throw new IllegalStateException( "The stack value was not decoded properly.");
+
+        return c;
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Server side encoder of the CMD_GLOBAL_DESC and CMD_READ_STACK responses.
+ * <p>
+ * Given a value and the request's hints, it writes the response payload the
+ * way a WHAIS server does: it starts with the hinted row, field or offset
+ * and fills the frame with as much of the value as fits. An array or a text
+ * that does not fit completely is truncated and ends the frame.</p>
+ */
+final class StackValueEncoder
+{
+    private StackValueEncoder()
+    {
+    }
+
+    /**
+     * Encode the description of a value (as for a global value named
+     * {@code name}) starting with the table field {@code fieldHint}.
+     *
+     * @return
+     *            The position after the last encoded byte.
+     */
+    static int describe( Value value, String name, int fieldHint, ByteBuffer b, int from, int to)
+            throws ConnException
+    {
+        final ValueType type = value.type();
+
+        b.position( from);
+        b.putInt( CmdResult.OK)
+         .put( name.getBytes( StandardCharsets.UTF_8))
+         .put( (byte) 0)
+         .putShort( type.getTypeId());
+
+        if ( ! type.isTable())
+            return b.position();
+
+        final TableFieldType[] fields = type.getFields();
+        if ((fields.length > 0) && (fieldHint >= fields.length))
+            return error( b, from, CmdResult.INVALID_FIELD);
+
+        b.putShort( (short) fields.length)
+         .putShort( (short) fieldHint);
+
+        for (int f = fieldHint; f < fields.length; ++f) {
+            final byte[] n = fields[f].getName().getBytes( StandardCharsets.UTF_8);
+            if (b.position() + n.length + 1 + 2 > to)
+                break;
+
+            b.put( n)
+             .put( (byte) 0)
+             .putShort( fields[f].getType().getTypeId());
+        }
+
+        return b.position();
+    }
+
+    /**
+     * Encode a CMD_READ_STACK response for {@code value}.
+     *
+     * @return
+     *            The position after the last encoded byte.
+     */
+    static int read( Value       value,
+                     String      field,
+                     long        rowHint,
+                     long        arrayOffsetHint,
+                     long        textOffsetHint,
+                     ByteBuffer  b,
+                     int         from,
+                     int         to) throws ConnException
+    {
+        final ValueType type = value.type();
+
+        b.position( from);
+        b.putInt( CmdResult.OK)
+         .putShort( type.getTypeId());
+
+        if (type.isTable())
+            return readTable( (TableValue) value, field, rowHint, arrayOffsetHint, textOffsetHint, b, from, to);
+
+        else if (type.isField())
+            return readField( (FieldValue) value, rowHint, arrayOffsetHint, textOffsetHint, b, from, to);
+
+        final long offset = (arrayOffsetHint >= 0) ? arrayOffsetHint : Math.max( 0, textOffsetHint);
+        if (putCellValue( value, offset, b, to) == NO_ROOM)
+            return error( b, from, CmdResult.GENERAL_ERR);
+
+        return b.position();
+    }
+
+    private static int readTable( TableValue  table,
+                                  String      field,
+                                  long        rowHint,
+                                  long        arrayOffsetHint,
+                                  long        textOffsetHint,
+                                  ByteBuffer  b,
+                                  int         from,
+                                  int         to) throws ConnException
+    {
+        final TableFieldType[] fields = table.getFields();
+        final long rowsCount = table.getRowsCount();
+        final long firstRow = Math.max( 0, rowHint);
+
+        final boolean fieldHinted = (field != null) && (field.length() > 0);
+
+        int firstField = 0;
+        if (fieldHinted) {
+            while ((firstField < fields.length) && ! fields[firstField].getName().equals( field))
+                ++firstField;
+
+            if (firstField >= fields.length)
+                return error( b, from, CmdResult.INVALID_FIELD);
+        }
+
+        if ((rowsCount > 0) && (firstRow >= rowsCount))
+            return error( b, from, CmdResult.INVALID_ROW);
+
+        b.putLong( rowsCount)
+         .putLong( firstRow)
+         .putShort( (short) fields.length);
+
+        for (long row = firstRow; row < rowsCount; ++row) {
+            for (int f = (row == firstRow) ? firstField : 0; f < fields.length; ++f) {
+                final int cellStart = b.position();
+                final byte[] n = fields[f].getName().getBytes( StandardCharsets.UTF_8);
+                if (cellStart + n.length + 1 + 2 >= to)
+                    return cellStart;
+
+                final Value cell = table.get( f, (int) row);
+                b.put( n)
+                 .put( (byte) 0)
+                 .putShort( cellTypeId( cell));
+
+                long offset = 0;
+                if (fieldHinted && (row == firstRow) && (f == firstField))
+                    offset = Math.max( 0, cell.isArray() ? arrayOffsetHint : textOffsetHint);
+
+                final int status = putCellValue( cell, offset, b, to);
+                if (status == NO_ROOM) {
+                    b.position( cellStart);
+                    return cellStart;
+                } else if (status == TRUNCATED)
+                    return b.position();
+            }
+        }
+
+        return b.position();
+    }
+
+    private static int readField( FieldValue  field,
+                                  long        rowHint,
+                                  long        arrayOffsetHint,
+                                  long        textOffsetHint,
+                                  ByteBuffer  b,
+                                  int         from,
+                                  int         to) throws ConnException
+    {
+        final long rowsCount = field.getRowsCount();
+        final long firstRow = Math.max( 0, rowHint);
+
+        if ((rowsCount > 0) && (firstRow >= rowsCount))
+            return error( b, from, CmdResult.INVALID_ROW);
+
+        b.putLong( rowsCount)
+         .putLong( firstRow);
+
+        for (long row = firstRow; row < rowsCount; ++row) {
+            final int cellStart = b.position();
+            final Value cell = field.get( (int) row);
+
+            long offset = 0;
+            if (row == firstRow)
+                offset = Math.max( 0, cell.isArray() ? arrayOffsetHint : textOffsetHint);
+
+            final int status = (cellStart < to) ? putCellValue( cell, offset, b, to) : NO_ROOM;
+            if (status == NO_ROOM) {
+                b.position( cellStart);
+                return cellStart;
+            } else if (status == TRUNCATED)
+                return b.position();
+        }
+
+        return b.position();
+    }
+
+    private static short cellTypeId( Value cell) throws ConnException
+    {
+        final ValueType t = cell.type();
+        if (t.isArray())
+            return (short) (t.getBaseType() | ValueType.ARRAY_MASK);
+
+        return (short) t.getBaseType();
+    }
+
+    // Encode a value (starting with the element or character at offset, if
+    // applicable). Returns NO_ROOM if nothing useful could be written, in
+    // which case the buffer's content after its initial position is garbage.
+    private static int putCellValue( Value v, long offset, ByteBuffer b, int to) throws ConnException
+    {
+        if (v.isArray()) {
+            final ArrayValue array = (ArrayValue) v;
+            final long count = array.isNull() ? 0 : array.size();
+
+            if (b.position() + 8 > to)
+                return NO_ROOM;
+
+            b.putLong( count);
+            if (count == 0)
+                return COMPLETE;
+
+            if (b.position() + 8 >= to)
+                return NO_ROOM;
+
+            b.putLong( offset);
+            long e = offset;
+            for (; e < count; ++e) {
+                final byte[] s = array.get( (int) e).toString().getBytes( StandardCharsets.UTF_8);
+                if (b.position() + s.length + 1 > to)
+                    break;
+
+                b.put( s)
+                 .put( (byte) 0);
+            }
+
+            if (e == offset)
+                return NO_ROOM;
+
+            return (e < count) ? TRUNCATED : COMPLETE;
+
+        } else if (v.type().getBaseType() == ValueType.TEXT) {
+            final String text = v.isNull() ? "" : v.toString();
+            final long count = text.codePointCount( 0, text.length());
+
+            if (b.position() + 8 > to)
+                return NO_ROOM;
+
+            b.putLong( count);
+            if (count == 0)
+                return COMPLETE;
+
+            if (b.position() + 8 + 2 > to)
+                return NO_ROOM;
+
+            b.putLong( offset);
+
+            int i = text.offsetByCodePoints( 0, (int) offset);
+            long c = offset;
+            while (i < text.length()) {
+                final int cp = text.codePointAt( i);
+                final int len = utf8Length( cp);
+                if (b.position() + len + 1 > to)
+                    break;
+
+                b.put( new String( Character.toChars( cp)).getBytes( StandardCharsets.UTF_8));
+                i += Character.charCount( cp);
+                ++c;
+            }
+
+            if (c == offset)
+                return NO_ROOM;
+
+            b.put( (byte) 0);
+
+            return (c < count) ? TRUNCATED : COMPLETE;
+        }
+
+        final byte[] s = v.isNull() ? new byte[0] : v.toString().getBytes( StandardCharsets.UTF_8);
+        if (b.position() + s.length + 1 > to)
+            return NO_ROOM;
+
+        b.put( s)
+         .put( (byte) 0);
+
+        return COMPLETE;
+    }
+
+    private static int utf8Length( int cp)
+    {
+        if (cp < 0x80)
+            return 1;
+        else if (cp < 0x800)
+            return 2;
+        else if (cp < 0x10000)
+            return 3;
+
+        return 4;
+    }
+
+    private static int error( ByteBuffer b, int from, int code)
+    {
+        b.position( from);
+        b.putInt( code);
+
+        return b.position();
+    }
+
+    private static final int NO_ROOM   = 0;
+    private static final int COMPLETE  = 1;
+    private static final int TRUNCATED = 2;
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An embeddable stand in for a WHAIS server.
+ * <p>
+ * It speaks the connector's protocol: the authentication challenge, the
+ * listing and the description of globals and procedures, the stack updates,
+ * the paged stack reads (with their row, array and text offset hints) and
+ * the procedures' execution, using any of the four frame ciphers. Each
+ * connection gets its own stack. The globals are only described, while the
+ * procedures are implemented by the user supplied {@link Procedure}
+ * handlers.</p>
+ * <p>
+ * The clients connect through TCP (see {@link #listen(int)}) or, to keep the
+ * network out of the measurements, through an in memory channel (see
+ * {@link #connect(String, byte[], byte, int)}).</p>
+ * <p>
+ * Usage: {@code java net.whais.Client.StandInServer [-p port] [--fs size]
+ * [--cipher plain|3k|des|3des] [--root-key password] [--user-key password]}
+ * starts a server the {@code ConnectorTest*} stack updates checks may be run
+ * against (their defaults passwords are used by default).</p>
+ */
+public final class StandInServer
+{
+    /**
+     * The implementation of a procedure.
+     */
+    public interface Procedure
+    {
+        /**
+         * Execute the procedure.
+         *
+         * @param params
+         *            The call's arguments, in the order of the procedure's
+         *            parameters (e.g. the first one was the deepest on the
+         *            stack).
+         * @return
+         *            The result, or {@code null} for a null value of the
+         *            procedure's return type.
+         *
+         * @throws ConnException
+         *            The client gets the exception's code as the result of its
+         *            call. Any runtime exception is reported as
+         *            {@link CmdResult#PROC_RUNTIME_ERR}.
+         */
+        Value execute( Value[] params) throws ConnException;
+    }
+
+    public StandInServer( byte[] adminKey, byte[] userKey)
+    {
+        mAdminKey = adminKey.clone();
+        mUserKey = userKey.clone();
+        mCipherType = _c.FRAME_ENCTYPE_3K;
+        mMaxFrameSize = _c.MAX_FRAME_SIZE;
+        mGlobals = new TreeMap<>();
+        mProcedures = new TreeMap<>();
+        mChannels = new HashSet<>();
+    }
+
+    /**
+     * Set the cipher offered to the new connections.
+     *
+     * @param name
+     *            One of {@code plain}, {@code 3k}, {@code des} or {@code 3des}.
+     */
+    public void setCipher( String name)
+    {
+        setCipher( cipherType( name));
+    }
+
+    void setCipher( byte cipherType)
+    {
+        mCipherType = cipherType;
+    }
+
+    /**
+     * Set the maximum frame size offered to the new connections.
+     */
+    public void setMaxFrameSize( int size)
+    {
+        if ((size < _c.MIN_FRAME_SIZE) || (size > _c.MAX_FRAME_SIZE))
+            throw new IllegalArgumentException( "Invalid frame size " + size + '.');
+
+        mMaxFrameSize = size;
+    }
+
+    /**
+     * Define a global value, for the clients to list and describe.
+     */
+    public synchronized void defineGlobal( String name, Value value)
+    {
+        mGlobals.put( name, value);
+    }
+
+    /**
+     * Define a procedure.
+     *
+     * @param name
+     *            The procedure's name.
+     * @param returnType
+     *            The type of the procedure's result.
+     * @param paramTypes
+     *            The types of the procedure's parameters. Use a table type with
+     *            no fields to accept any table.
+     * @param procedure
+     *            The procedure's implementation.
+     */
+    public synchronized void defineProcedure( String       name,
+                                              ValueType    returnType,
+                                              ValueType[]  paramTypes,
+                                              Procedure    procedure)
+    {
+        final ValueType[] signature = new ValueType[paramTypes.length + 1];
+
+        signature[0] = returnType;
+        System.arraycopy( paramTypes, 0, signature, 1, paramTypes.length);
+
+        mProcedures.put( name, new ProcedureEntry( signature, procedure));
+    }
+
+    /**
+     * Start to accept TCP connections.
+     *
+     * @param port
+     *            The port to listen on, or {@code 0} to let the system pick one.
+     * @return
+     *            The port the server listens on.
+     */
+    public synchronized int listen( int port) throws IOException
+    {
+        if (mListener != null)
+            throw new IllegalStateException( "The server is already listening.");
+
+        final ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().setReuseAddress( true);
+        listener.socket().bind( new InetSocketAddress( port));
+
+        final Thread acceptor = new Thread( "stand-in-server-" + listener.socket().getLocalPort()) {
+            @Override
+            public void run()
+            {
+                accept( listener);
+            }
+        };
+        acceptor.setDaemon( true);
+
+        mListener = listener;
+        acceptor.start();
+
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     * Open a connection through an in memory channel. The server's frames
+     * are prepared synchronously, while the client writes its requests.
+     */
+    public Connection connect( String database, byte[] key, byte userId, int maxFrameSize) throws IOException
+    {
+        return new Connection( new InMemoryServerTransport( new StandInSession( this)),
+                               database,
+                               key,
+                               userId,
+                               maxFrameSize);
+    }
+
+    /**
+     * Stop accepting connections and drop the opened TCP connections.
+     */
+    public void close()
+    {
+        final Set<SocketChannel> channels;
+
+        synchronized (this) {
+            if (mListener != null) {
+                try {
+                    mListener.close();
+                } catch (IOException e) {
+                    // Nothing to do about it.
+                }
+                mListener = null;
+            }
+
+            channels = new HashSet<>( mChannels);
+            mChannels.clear();
+        }
+
+        for (SocketChannel c : channels) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing to do about it.
+            }
+        }
+    }
+
+    public static void main( String[] args) throws Exception
+    {
+        int port = 1761;
+        String adminKey = "root_test_password";
+        String userKey = "test_password";
+        String cipher = "3k";
+        int frameSize = _c.MAX_FRAME_SIZE;
+
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals( "-p") && (i + 1 < args.length))
+                port = Integer.parseInt( args[++i]);
+            else if (args[i].equals( "--fs") && (i + 1 < args.length))
+                frameSize = Integer.parseInt( args[++i]);
+            else if (args[i].equals( "--cipher") && (i + 1 < args.length))
+                cipher = args[++i];
+            else if (args[i].equals( "--root-key") && (i + 1 < args.length))
+                adminKey = args[++i];
+            else if (args[i].equals( "--user-key") && (i + 1 < args.length))
+                userKey = args[++i];
+            else {
+                System.err.println( "Unknown argument: " + args[i]);
+                System.err.println( "Usage: StandInServer [-p port] [--fs size] [--cipher plain|3k|des|3des] "
+                                    + "[--root-key password] [--user-key password]");
+                System.exit( 1);
+            }
+        }
+
+        final StandInServer server = new StandInServer( adminKey.getBytes( StandardCharsets.UTF_8),
+                                                         userKey.getBytes( StandardCharsets.UTF_8));
+        server.setCipher( cipher);
+        server.setMaxFrameSize( frameSize);
+
+        System.out.println( "Listening on port " + server.listen( port) + " (cipher " + cipher
+                            + ", frame size " + frameSize + ").");
+
+        while (true)
+            Thread.sleep( Long.MAX_VALUE);
+    }
+
+    static byte cipherType( String name)
+    {
+        switch (name) {
+        case "plain":
+            return _c.FRAME_ENCTYPE_PLAIN;
+
+        case "3k":
+            return _c.FRAME_ENCTYPE_3K;
+
+        case "des":
+            return _c.FRAME_ENCTYPE_DES;
+
+        case "3des":
+            return _c.FRAME_ENCTYPE_3DES;
+        }
+
+        throw new IllegalArgumentException( "Unknown cipher '" + name + "'.");
+    }
+
+    static final class ProcedureEntry
+    {
+        ProcedureEntry( ValueType[] signature, Procedure procedure)
+        {
+            mSignature = signature;
+            mProcedure = procedure;
+        }
+
+        final ValueType[] mSignature;
+        final Procedure   mProcedure;
+    }
+
+    byte getCipherType()
+    {
+        return mCipherType;
+    }
+
+    int getMaxFrameSize()
+    {
+        return mMaxFrameSize;
+    }
+
+    byte[] getKey( byte userId)
+    {
+        if (userId == Connection.ADMIN)
+            return mAdminKey;
+
+        else if (userId == Connection.USER)
+            return mUserKey;
+
+        return null;
+    }
+
+    synchronized String[] getGlobalNames()
+    {
+        return mGlobals.keySet().toArray( new String[mGlobals.size()]);
+    }
+
+    synchronized Value getGlobal( String name)
+    {
+        return mGlobals.get( name);
+    }
+
+    synchronized String[] getProcedureNames()
+    {
+        return mProcedures.keySet().toArray( new String[mProcedures.size()]);
+    }
+
+    synchronized ProcedureEntry findProcedure( String name)
+    {
+        return mProcedures.get( name);
+    }
+
+    private void accept( ServerSocketChannel listener)
+    {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                return; // The server was closed.
+            }
+
+            synchronized (this) {
+                mChannels.add( channel);
+            }
+
+            final Thread t = new Thread( "stand-in-session-" + channel.socket().getPort()) {
+                @Override
+                public void run()
+                {
+                    serve( channel);
+                }
+            };
+            t.setDaemon( true);
+            t.start();
+        }
+    }
+
+    private void serve( SocketChannel channel)
+    {
+        final StandInSession session = new StandInSession( this);
+        final ByteBuffer frame = session.getFrame();
+
+        try {
+            final SocketChannelTransport transport = new SocketChannelTransport( channel);
+
+            transport.writeFully( frame, 0, session.startAuthentication());
+            while ( ! session.isClosed()) {
+                transport.readFully( frame, 0, _c.FRAME_HDR_SIZE);
+
+                final int size = frame.getShort( _c.FRAME_SIZE_OFF) & 0xFFFF;
+                if ( ! session.acceptsFrameSize( size))
+                    break;
+
+                transport.readFully( frame, _c.FRAME_HDR_SIZE, size);
+
+                final int response = session.handleFrame( size);
+                if (response > 0)
+                    transport.writeFully( frame, 0, response);
+            }
+        } catch (IOException e) {
+            // The client has gone away.
+        } finally {
+            session.close();
+
+            synchronized (this) {
+                mChannels.remove( channel);
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do about it.
+            }
+        }
+    }
+
+    private final byte[]                       mAdminKey;
+    private final byte[]                       mUserKey;
+    private final Map<String, Value>           mGlobals;
+    private final Map<String, ProcedureEntry>  mProcedures;
+    private final Set<SocketChannel>           mChannels;
+    private volatile byte                      mCipherType;
+    private volatile int                       mMaxFrameSize;
+    private ServerSocketChannel                mListener;
+}
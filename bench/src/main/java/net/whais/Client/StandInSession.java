@@ -0,0 +1,663 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The server side of a connection to a {@link StandInServer}.
+ * <p>
+ * It authenticates the client, holds the connection's stack and answers the
+ * client's requests the way a WHAIS server does. It does not know about the
+ * channel used to move the frames: the transport loads a received frame in
+ * the session's buffer, calls {@link #handleFrame(int)} and sends back the
+ * response prepared in the same buffer.</p>
+ * <p>
+ * A frame that breaks the protocol (e.g. an unexpected frame id, a bad check
+ * sum or a stale server cookie) is answered with a FRAME_TYPE_COMM_NOSYNC
+ * frame, after which the session ends.</p>
+ */
+final class StandInSession
+{
+    StandInSession( StandInServer server)
+    {
+        mServer = server;
+        mFrame = ByteBuffer.allocate( _c.MAX_FRAME_SIZE).order( ByteOrder.LITTLE_ENDIAN);
+        mRandom = new Random();
+        mStack = new ArrayList<>();
+        mChallenge = new byte[8];
+        mExpectedFrameId = 0;
+        mServerCookie = 0;
+        mClosed = false;
+    }
+
+    /**
+     * The buffer used to receive the client's frames and to prepare the
+     * session's answers.
+     */
+    ByteBuffer getFrame()
+    {
+        return mFrame;
+    }
+
+    boolean isClosed()
+    {
+        return mClosed;
+    }
+
+    void close()
+    {
+        mClosed = true;
+        mStack.clear();
+    }
+
+    /**
+     * Check if a frame with this size (as announced by its header) may be
+     * received by the session.
+     */
+    boolean acceptsFrameSize( int size)
+    {
+        if (size <= _c.FRAME_HDR_SIZE)
+            return false;
+
+        return size <= ((mCipher == null) ? _c.MIN_FRAME_SIZE : mFrameSize);
+    }
+
+    /**
+     * Prepare the authentication frame, the first one sent to the client.
+     *
+     * @return
+     *            The size of the frame.
+     */
+    int startAuthentication()
+    {
+        mRandom.nextBytes( mChallenge);
+
+        mFrame.putShort( _c.FRAME_SIZE_OFF, (short) (_c.FRAME_HDR_SIZE + _c.FRAME_AUTH_SIZE))
+              .put( _c.FRAME_TYPE_OFF, _c.FRAME_TYPE_AUTH_CLNT)
+              .put( _c.FRAME_ENCTYPE_OFF, _c.FRAME_ENCTYPE_PLAIN)
+              .putInt( _c.FRAME_ID_OFF, 0)
+              .putInt( _c.FRAME_HDR_SIZE + _c.FRAME_AUTH_VER_OFF, PROTOCOL_VERSION)
+              .putShort( _c.FRAME_HDR_SIZE + _c.FRAME_AUTH_SIZE_OFF, (short) mServer.getMaxFrameSize())
+              .putShort( _c.FRAME_HDR_SIZE + _c.FRAME_AUTH_SPARE_1_OFF, (short) 0)
+              .put( _c.FRAME_HDR_SIZE + _c.FRAME_AUTH_ENC_OFF, mServer.getCipherType());
+
+        mFrame.position( _c.FRAME_HDR_SIZE + _c.FRAME_AUTH_CHALLENGE_OFF);
+        mFrame.put( mChallenge);
+
+        return _c.FRAME_HDR_SIZE + _c.FRAME_AUTH_SIZE;
+    }
+
+    /**
+     * Handle a frame received from the client.
+     *
+     * @param size
+     *            The size of the received frame, which is already loaded in
+     *            the session's buffer.
+     * @return
+     *            The size of the answer frame prepared in the session's buffer
+     *            or {@code 0} if nothing has to be sent back. Check
+     *            {@link #isClosed()} afterwards to find out if the session has
+     *            ended.
+     */
+    int handleFrame( int size)
+    {
+        if (mClosed)
+            return 0;
+
+        else if (mCipher == null) {
+            authenticate( size);
+            return 0;
+        }
+
+        final int frameId = mFrame.getInt( _c.FRAME_ID_OFF);
+        if ((mFrame.get( _c.FRAME_TYPE_OFF) != _c.FRAME_TYPE_NORMAL)
+                || (mFrame.get( _c.FRAME_ENCTYPE_OFF) != mCipher.type())
+                || (frameId != mExpectedFrameId)) {
+            return outOfSync( frameId);
+        }
+
+        final int metadataSize = mCipher.metadataSize();
+        final int headerOffset = metadataSize - _c.PLAIN_HDR_SIZE;
+        final int plainSize = mCipher.decodeFrame( mFrame, size, mKey);
+
+        if ((plainSize < metadataSize) || (plainSize > size))
+            return outOfSync( frameId);
+
+        else if ((mFrame.getShort( headerOffset + _c.PLAIN_CRC_OFF)
+                        != CommunicationFrame.computeCheckSum( mFrame, metadataSize, plainSize))
+                 || (mFrame.getInt( headerOffset + _c.PLAIN_SERV_COOKIE_OFF) != mServerCookie)) {
+            return outOfSync( frameId);
+        }
+
+        final int clientCookie = mFrame.getInt( headerOffset + _c.PLAIN_CLNT_COOKIE_OFF);
+        final short cmd = mFrame.getShort( headerOffset + _c.PLAIN_TYPE_OFF);
+
+        final ByteBuffer request = mFrame.duplicate().order( ByteOrder.LITTLE_ENDIAN);
+        request.limit( plainSize).position( metadataSize);
+
+        int responseEnd;
+        try {
+            responseEnd = dispatch( cmd, request);
+        } catch (ConnException e) {
+            responseEnd = result( e.getCode());
+        } catch (BufferUnderflowException e) {
+            responseEnd = result( CmdResult.INVALID_ARGS);
+        } catch (RuntimeException e) {
+            responseEnd = result( CmdResult.GENERAL_ERR);
+        }
+
+        if (mClosed)
+            return 0;
+
+        mServerCookie = mRandom.nextInt();
+        mFrame.putInt( headerOffset + _c.PLAIN_CLNT_COOKIE_OFF, clientCookie)
+              .putInt( headerOffset + _c.PLAIN_SERV_COOKIE_OFF, mServerCookie)
+              .putShort( headerOffset + _c.PLAIN_TYPE_OFF, (short) (cmd + 1))
+              .putShort( headerOffset + _c.PLAIN_CRC_OFF,
+                         CommunicationFrame.computeCheckSum( mFrame, metadataSize, responseEnd));
+
+        mExpectedFrameId = frameId + 1;
+        mFrame.putShort( _c.FRAME_SIZE_OFF, (short) responseEnd)
+              .put( _c.FRAME_TYPE_OFF, _c.FRAME_TYPE_NORMAL)
+              .put( _c.FRAME_ENCTYPE_OFF, mCipher.type())
+              .putInt( _c.FRAME_ID_OFF, mExpectedFrameId);
+
+        return mCipher.encodeFrame( mFrame, responseEnd, mKey);
+    }
+
+    static Cipher selectCipher( byte cipherType)
+    {
+        switch (cipherType) {
+        case _c.FRAME_ENCTYPE_3K:
+            return CipherFactory.threeKingsCipher();
+
+        case _c.FRAME_ENCTYPE_DES:
+            return CipherFactory.desCipher();
+
+        case _c.FRAME_ENCTYPE_3DES:
+            return CipherFactory.desedeCipher();
+        }
+
+        return CipherFactory.plainCipher();
+    }
+
+    private void authenticate( int size)
+    {
+        final int base = _c.FRAME_HDR_SIZE;
+
+        if ((mFrame.get( _c.FRAME_TYPE_OFF) != _c.FRAME_TYPE_AUTH_CLNT_RSP)
+                || (size < base + _c.FRAME_AUTH_RSP_FIXED_SIZE)
+                || ((mFrame.getInt( base + _c.FRAME_AUTH_RSP_VER_OFF) & PROTOCOL_VERSION) == 0)) {
+            close();
+            return;
+        }
+
+        final byte userId = mFrame.get( base + _c.FRAME_AUTH_RSP_USR_OFF);
+        final byte cipherType = mFrame.get( base + _c.FRAME_AUTH_RSP_ENC_OFF);
+        final int frameSize = mFrame.getShort( base + _c.FRAME_AUTH_RSP_SIZE_OFF) & 0xFFFF;
+        final byte[] key = mServer.getKey( userId);
+
+        if ((key == null)
+                || (cipherType != mServer.getCipherType())
+                || (frameSize < _c.MIN_FRAME_SIZE)
+                || (frameSize > mServer.getMaxFrameSize())
+                || ((cipherType != _c.FRAME_ENCTYPE_PLAIN) && (frameSize % 8 != 0))) {
+            close();
+            return;
+        }
+
+        final byte[] expected = CipherFactory.desCipher().encode( key, mChallenge, 0, mChallenge.length);
+        final byte[] received = Arrays.copyOfRange( mFrame.array(),
+                                                    base + _c.FRAME_AUTH_RSP_CHALLENGE_OFF,
+                                                    base + _c.FRAME_AUTH_RSP_CHALLENGE_OFF + 8);
+        if ( ! Arrays.equals( expected, received)) {
+            close();
+            return;
+        }
+
+        // The database name is not checked. A stand in server has only one.
+        mUserId = userId;
+        mCipher = selectCipher( cipherType);
+        mKey = mCipher.prepareKey( key);
+        mFrameSize = frameSize;
+    }
+
+    private int outOfSync( int frameId)
+    {
+        mClosed = true;
+
+        mFrame.putShort( _c.FRAME_SIZE_OFF, _c.FRAME_HDR_SIZE)
+              .put( _c.FRAME_TYPE_OFF, _c.FRAME_TYPE_COMM_NOSYNC)
+              .put( _c.FRAME_ENCTYPE_OFF, mCipher.type())
+              .putInt( _c.FRAME_ID_OFF, frameId + 1);
+
+        return _c.FRAME_HDR_SIZE;
+    }
+
+    private int dispatch( short cmd, ByteBuffer request) throws ConnException
+    {
+        switch (cmd) {
+        case _c.CMD_CLOSE_CONN:
+            close();
+            return 0;
+
+        case _c.CMD_PING_SERVER:
+            return result( CmdResult.OK);
+
+        case _c.CMD_LIST_GLOBALS:
+            requireAdmin();
+            return listNames( mServer.getGlobalNames(), request.getInt());
+
+        case _c.CMD_LIST_PROCEDURE:
+            requireAdmin();
+            return listNames( mServer.getProcedureNames(), request.getInt());
+
+        case _c.CMD_DESC_PROC_PARAM: {
+            requireAdmin();
+
+            final int paramHint = request.getShort() & 0xFFFF;
+            request.getShort();
+
+            return describeProcedure( readString( request), paramHint);
+        }
+
+        case _c.CMD_GLOBAL_DESC: {
+            final int fieldHint = request.getShort() & 0xFFFF;
+            request.getShort();
+
+            final String name = readString( request);
+            final Value value = (name.length() == 0) ? stackTop() : mServer.getGlobal( name);
+            if (value == null)
+                throw new ConnException( CmdResult.INVALID_ARGS);
+
+            return StackValueEncoder.describe( value, name, fieldHint, mFrame, mCipher.metadataSize(), mFrameSize);
+        }
+
+        case _c.CMD_READ_STACK: {
+            final String field = readString( request);
+            final long row = request.getLong();
+            final long arrayOffset = request.getLong();
+            final long textOffset = request.getLong();
+
+            return StackValueEncoder.read( stackTop(),
+                                           field,
+                                           row,
+                                           arrayOffset,
+                                           textOffset,
+                                           mFrame,
+                                           mCipher.metadataSize(),
+                                           mFrameSize);
+        }
+
+        case _c.CMD_UPDATE_STACK:
+            while (request.hasRemaining())
+                updateStack( request);
+
+            return result( CmdResult.OK);
+
+        case _c.CMD_EXEC_PROC:
+            executeProcedure( readString( request));
+            return result( CmdResult.OK);
+        }
+
+        return result( CmdResult.OP_NOTSUPP);
+    }
+
+    private void requireAdmin() throws ConnException
+    {
+        if (mUserId != Connection.ADMIN)
+            throw new ConnException( CmdResult.OP_NOTPERMITED);
+    }
+
+    private int listNames( String[] names, int index) throws ConnException
+    {
+        if ((index < 0) || ((index > 0) && (index >= names.length)))
+            throw new ConnException( CmdResult.INVALID_ARGS);
+
+        final ByteBuffer b = responseBuffer();
+        b.putInt( CmdResult.OK)
+         .putInt( names.length)
+         .putInt( index);
+
+        for (int i = index; i < names.length; ++i) {
+            final byte[] n = names[i].getBytes( StandardCharsets.UTF_8);
+            if (b.position() + n.length + 1 > mFrameSize) {
+                if (i == index)
+                    throw new ConnException( CmdResult.LARGE_RESPONSE);
+
+                break;
+            }
+
+            b.put( n)
+             .put( (byte) 0);
+        }
+
+        return b.position();
+    }
+
+    private int describeProcedure( String name, int paramHint) throws ConnException
+    {
+        final StandInServer.ProcedureEntry entry = mServer.findProcedure( name);
+        if (entry == null)
+            throw new ConnException( CmdResult.PROC_NOTFOUND);
+
+        final ValueType[] signature = entry.mSignature;
+        if (paramHint >= signature.length)
+            throw new ConnException( CmdResult.INVALID_ARGS);
+
+        final ByteBuffer b = responseBuffer();
+        b.putInt( CmdResult.OK)
+         .put( name.getBytes( StandardCharsets.UTF_8))
+         .put( (byte) 0)
+         .putShort( (short) signature.length)
+         .putShort( (short) paramHint);
+
+        for (int p = paramHint; p < signature.length; ++p) {
+            final int paramStart = b.position();
+            final TableFieldType[] fields = signature[p].isTable() ? signature[p].getFields() : null;
+
+            int required = 2;
+            if (fields != null) {
+                required += 2;
+                for (TableFieldType f : fields)
+                    required += f.getName().getBytes( StandardCharsets.UTF_8).length + 1 + 2;
+            }
+
+            if (paramStart + required > mFrameSize) {
+                if (p == paramHint)
+                    throw new ConnException( CmdResult.LARGE_RESPONSE);
+
+                break;
+            }
+
+            b.putShort( signature[p].getTypeId());
+            if (fields != null) {
+                b.putShort( (short) fields.length);
+                for (TableFieldType f : fields) {
+                    b.put( f.getName().getBytes( StandardCharsets.UTF_8))
+                     .put( (byte) 0)
+                     .putShort( f.getType().getTypeId());
+                }
+            }
+        }
+
+        return b.position();
+    }
+
+    private void updateStack( ByteBuffer request) throws ConnException
+    {
+        final byte func = request.get();
+
+        switch (func) {
+        case _c.CMD_UPDATE_FUNC_POP: {
+            final int count = request.getInt();
+            if (count < 0) {
+                mStack.clear();
+                return;
+            }
+
+            if (count > mStack.size())
+                throw new ConnException( CmdResult.INVALID_ARGS);
+
+            for (int i = 0; i < count; ++i)
+                mStack.remove( mStack.size() - 1);
+
+            return;
+        }
+
+        case _c.CMD_UPDATE_FUNC_PUSH: {
+            final short type = request.getShort();
+            if (ValueType.isField( type))
+                throw new ConnException( CmdResult.INVALID_ARGS);
+
+            if (ValueType.isTable( type)) {
+                final TableFieldType[] fields = new TableFieldType[request.getShort() & 0xFFFF];
+                for (int f = 0; f < fields.length; ++f) {
+                    final String name = readString( request);
+                    fields[f] = new TableFieldType( name, ValueType.create( request.getShort()));
+                }
+
+                mStack.add( Value.createTable( fields));
+            } else
+                mStack.add( nullValue( ValueType.create( type)));
+
+            return;
+        }
+
+        case _c.CMD_UPDATE_FUNC_TBL_ROWS: {
+            final int count = request.getInt();
+            if (count <= 0)
+                throw new ConnException( CmdResult.INVALID_ARGS);
+
+            stackTopTable().addRows( count);
+            return;
+        }
+
+        case _c.CMD_UPDATE_FUNC_CHTOP:
+            changeStackTop( request);
+            return;
+        }
+
+        throw new ConnException( CmdResult.INVALID_ARGS);
+    }
+
+    private void changeStackTop( ByteBuffer request) throws ConnException
+    {
+        final short type = request.getShort();
+        final ValueType valueType = ValueType.create( type & ~ValueType.FIELD_MASK);
+
+        if (ValueType.isField( type)) {
+            final String field = readString( request);
+            final long row = request.getLong();
+
+            final TableValue table = stackTopTable();
+            final ValueType fieldType = fieldType( table, field);
+
+            if ( ! fieldType.equals( valueType))
+                throw new ConnException( CmdResult.TYPE_MISMATCH);
+
+            else if ((row < 0) || (row >= table.getRowsCount()))
+                throw new ConnException( CmdResult.INVALID_ROW);
+
+            final Value cell = table.get( field, (int) row);
+            table.put( changeValue( cell, valueType, request), field, (int) row);
+
+            return;
+        }
+
+        final Value top = stackTop();
+        if ( ! top.type().equals( valueType))
+            throw new ConnException( CmdResult.TYPE_MISMATCH);
+
+        mStack.set( mStack.size() - 1, changeValue( top, valueType, request));
+    }
+
+    // Decode the new content of a value (as sent with a CHTOP stack update
+    // sub-command) and apply it over the current one.
+    private Value changeValue( Value current, ValueType type, ByteBuffer request) throws ConnException
+    {
+        if (type.isArray()) {
+            final int count = request.getShort() & 0xFFFF;
+            final long offset = request.getLong();
+
+            final ArrayValue array = (ArrayValue) current;
+            if ((offset < 0) || (offset > array.size()))
+                throw new ConnException( CmdResult.INVALID_ARRAY_OFF);
+
+            final ValueType elementType = ValueType.create( type.getBaseType());
+            final ArrayValue result = Value.createArray( type);
+            for (int e = 0; e < offset; ++e)
+                result.add( array.get( e));
+
+            for (int e = 0; e < count; ++e)
+                result.add( Value.createBasic( elementType, readString( request)));
+
+            for (long e = offset + count; e < array.size(); ++e)
+                result.add( array.get( (int) e));
+
+            return result;
+
+        } else if (type.getBaseType() == ValueType.TEXT) {
+            final long offset = request.getLong();
+            final String chunk = readString( request);
+            final String text = current.toString();
+            final int length = text.codePointCount( 0, text.length());
+
+            if ((offset < 0) || (offset > length))
+                throw new ConnException( CmdResult.INVALID_TEXT_OFF);
+
+            final StringBuilder result = new StringBuilder( text.length() + chunk.length());
+            final int prefixEnd = text.offsetByCodePoints( 0, (int) offset);
+            result.append( text, 0, prefixEnd)
+                  .append( chunk);
+
+            final long chunkLength = chunk.codePointCount( 0, chunk.length());
+            if (offset + chunkLength < length)
+                result.append( text, text.offsetByCodePoints( prefixEnd, (int) chunkLength), text.length());
+
+            return Value.createBasic( type, result.toString());
+        }
+
+        return Value.createBasic( type, readString( request));
+    }
+
+    private void executeProcedure( String name) throws ConnException
+    {
+        final StandInServer.ProcedureEntry entry = mServer.findProcedure( name);
+        if (entry == null)
+            throw new ConnException( CmdResult.PROC_NOTFOUND);
+
+        final ValueType[] signature = entry.mSignature;
+
+        final Value[] params = new Value[signature.length - 1];
+        if (params.length > mStack.size())
+            throw new ConnException( CmdResult.INVALID_ARGS);
+
+        final int first = mStack.size() - params.length;
+        for (int p = 0; p < params.length; ++p) {
+            params[p] = mStack.get( first + p);
+
+            final ValueType expected = signature[p + 1];
+            final boolean anyTable = expected.isTable() && (expected.getFields().length == 0);
+            if ( ! (anyTable ? params[p].isTable() : expected.equals( params[p].type())))
+                throw new ConnException( CmdResult.TYPE_MISMATCH);
+        }
+
+        Value result;
+        try {
+            result = entry.mProcedure.execute( params);
+        } catch (ConnException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new ConnException( CmdResult.PROC_RUNTIME_ERR, "Procedure '" + name + "' has failed.", e);
+        }
+
+        if (result == null)
+            result = nullValue( signature[0]);
+
+        while (mStack.size() > first)
+            mStack.remove( mStack.size() - 1);
+
+        mStack.add( result);
+    }
+
+    private Value stackTop() throws ConnException
+    {
+        if (mStack.isEmpty())
+            throw new ConnException( CmdResult.INVALID_ARGS);
+
+        return mStack.get( mStack.size() - 1);
+    }
+
+    private TableValue stackTopTable() throws ConnException
+    {
+        final Value top = stackTop();
+        if ( ! top.isTable())
+            throw new ConnException( CmdResult.TYPE_MISMATCH);
+
+        return (TableValue) top;
+    }
+
+    private static ValueType fieldType( TableValue table, String field) throws ConnException
+    {
+        for (TableFieldType f : table.getFields()) {
+            if (f.getName().equals( field))
+                return f.getType();
+        }
+
+        throw new ConnException( CmdResult.INVALID_FIELD);
+    }
+
+    private static Value nullValue( ValueType type) throws ConnException
+    {
+        if (type.isTable())
+            return Value.createTable( type.getFields());
+
+        else if (type.isArray())
+            return Value.createArray( type);
+
+        return Value.createBasic( type);
+    }
+
+    private ByteBuffer responseBuffer()
+    {
+        mFrame.position( mCipher.metadataSize());
+
+        return mFrame;
+    }
+
+    private int result( int code)
+    {
+        return responseBuffer().putInt( code).position();
+    }
+
+    // Reads a zero terminated UTF-8 string, leaving the position after the
+    // terminating zero.
+    private static String readString( ByteBuffer b)
+    {
+        final int from = b.position();
+
+        int end = from;
+        while (b.get() != 0)
+            ++end;
+
+        return new String( b.array(), b.arrayOffset() + from, end - from, StandardCharsets.UTF_8);
+    }
+
+    private static final int PROTOCOL_VERSION = 1;
+
+    private final StandInServer mServer;
+    private final ByteBuffer    mFrame;
+    private final Random        mRandom;
+    private final List<Value>   mStack;
+    private final byte[]        mChallenge;
+    private Cipher              mCipher;
+    private Object              mKey;
+    private int                 mFrameSize;
+    private byte                mUserId;
+    private int                 mExpectedFrameId;
+    private int                 mServerCookie;
+    private boolean             mClosed;
+}
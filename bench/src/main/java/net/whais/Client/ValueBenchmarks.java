@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The parsing of basic values from their wire representation and the
+ * construction and reading of composite values.
+ */
+@BenchmarkMode( Mode.AverageTime)
+@OutputTimeUnit( TimeUnit.NANOSECONDS)
+@Warmup( iterations = 3, time = 1)
+@Measurement( iterations = 5, time = 1)
+@Fork( 2)
+public class ValueBenchmarks
+{
+    @State( Scope.Thread)
+    public static class Wire
+    {
+        @Param( { "bool", "char", "date", "datetime", "hirestime",
+                  "int8", "int16", "int32", "int64",
+                  "uint8", "uint16", "uint32", "uint64",
+                  "real", "richreal" })
+        public String type;
+
+        ValueType mType;
+        byte[]    mWire;
+
+        @Setup
+        public void setUp()
+        {
+            final Object[][] samples = {
+                { "bool",      ValueType.boolType(),      "1" },
+                { "char",      ValueType.charType(),      "\u20AC" },
+                { "date",      ValueType.dateType(),      "1968/02/26" },
+                { "datetime",  ValueType.datetimeType(),  "1651/10/09 23:59:59" },
+                { "hirestime", ValueType.hirestimeType(), "1651/10/09 23:59:59.696339" },
+                { "int8",      ValueType.int8Type(),      "-100" },
+                { "int16",     ValueType.int16Type(),     "-31000" },
+                { "int32",     ValueType.int32Type(),     "-2000000000" },
+                { "int64",     ValueType.int64Type(),     "-9000000000000000000" },
+                { "uint8",     ValueType.uint8Type(),     "200" },
+                { "uint16",    ValueType.uint16Type(),    "65000" },
+                { "uint32",    ValueType.uint32Type(),    "4000000000" },
+                { "uint64",    ValueType.uint64Type(),    "18000000000000000000" },
+                { "real",      ValueType.realType(),      "-4395.657287" },
+                { "richreal",  ValueType.richrealType(),  "316.17635757123" },
+            };
+
+            for (Object[] sample : samples) {
+                if (sample[0].equals( type)) {
+                    mType = (ValueType) sample[1];
+                    mWire = (sample[2] + "\0").getBytes( StandardCharsets.UTF_8);
+                    return;
+                }
+            }
+
+            throw new IllegalArgumentException( "Unknown basic type " + type + '.');
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class Elements
+    {
+        Value[] mValues;
+        long[]  mLongs;
+
+        @Setup
+        public void setUp() throws ConnException
+        {
+            mValues = new Value[1000];
+            mLongs = new long[mValues.length];
+            for (int i = 0; i < mValues.length; ++i) {
+                mValues[i] = Value.createInt32( i - 500);
+                mLongs[i] = i - 500;
+            }
+        }
+    }
+
+    @State( Scope.Thread)
+    public static class Rows
+    {
+        TableFieldType[] mFields;
+        Value[][]        mCells;
+        TableValue       mTable;
+
+        @Setup
+        public void setUp() throws ConnException
+        {
+            mFields = BenchmarkSamples.sampleTableFields();
+            mCells = new Value[100][];
+            for (int r = 0; r < mCells.length; ++r)
+                mCells[r] = BenchmarkSamples.sampleTableRow( r);
+
+            mTable = BenchmarkSamples.sampleTable( 1000);
+        }
+    }
+
+    @Benchmark
+    public Value parse( Wire w) throws ConnException
+    {
+        return Value.createBasic( w.mType, w.mWire, 0);
+    }
+
+    @Benchmark
+    public ArrayValue buildArrayInt32( Elements e) throws ConnException
+    {
+        final ArrayValue a = Value.createArray( ValueType.arrayInt32Type());
+        for (Value v : e.mValues)
+            a.add( v);
+
+        return a;
+    }
+
+    @Benchmark
+    public ArrayValue buildArrayInt32Typed( Elements e) throws ConnException
+    {
+        return Value.createArray( ValueType.arrayInt32Type(), e.mLongs);
+    }
+
+    @Benchmark
+    public TableValue buildTable( Rows r) throws ConnException
+    {
+        final TableValue t = Value.createTable( r.mFields);
+        for (int row = 0; row < r.mCells.length; ++row) {
+            for (int f = 0; f < r.mFields.length; ++f)
+                t.put( r.mCells[row][f], r.mFields[f].getName(), row);
+        }
+
+        return t;
+    }
+
+    @Benchmark
+    public void readTableByName( Rows r, Blackhole bh) throws ConnException
+    {
+        final TableValue t = r.mTable;
+        for (int row = 0; row < t.getRowsCount(); ++row) {
+            bh.consume( t.get( "id", row));
+            bh.consume( t.get( "amount", row));
+        }
+    }
+
+    @Benchmark
+    public void readTableByIndex( Rows r, Blackhole bh) throws ConnException
+    {
+        final TableValue t = r.mTable;
+        final int id = t.getFieldIndex( "id");
+        final int amount = t.getFieldIndex( "amount");
+
+        for (int row = 0; row < t.getRowsCount(); ++row) {
+            bh.consume( t.getLong( id, row));
+            bh.consume( t.getDouble( amount, row));
+        }
+    }
+}
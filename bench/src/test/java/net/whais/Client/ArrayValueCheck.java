@@ -0,0 +1,406 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the typed {@link ArrayValue} accessors and the {@code Value}
+ * factories built on them, in memory and through a {@link StandInServer},
+ * with arrays spread over several frames: the round trips of the integer,
+ * real, time, boolean and character elements and the rejected values.
+ */
+public class ArrayValueCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final ArrayValueCheck t = new ArrayValueCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        try {
+            testResult &= t.checkIntegers();
+            testResult &= t.checkReals();
+            testResult &= t.checkTimes();
+            testResult &= t.checkBooleansAndCharacters();
+            testResult &= t.checkNullArrays();
+            testResult &= t.checkRejections();
+        } finally {
+            t.mConnection.close();
+        }
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    ArrayValueCheck( long seed) throws IOException
+    {
+        mRandom = new Random( seed);
+
+        final StandInServer server = new StandInServer( KEY, KEY);
+        server.setMaxFrameSize( FRAME_SIZE);
+        mConnection = server.connect( "check", KEY, Connection.USER, FRAME_SIZE);
+    }
+
+    // Push the array and get it back from the server.
+    ArrayValue roundTrip( ArrayValue array) throws IOException
+    {
+        mConnection.pushStackValue( array);
+        mConnection.flushStackUpdates();
+
+        final ArrayValue result = (ArrayValue) mConnection.retrieveStackTop();
+        mConnection.popStackValues( 1);
+
+        return result;
+    }
+
+    static boolean rejects( int code, Callable call)
+    {
+        try {
+            call.call();
+        } catch (ConnException e) {
+            return e.getCode() == code;
+        }
+        return false;
+    }
+
+    interface Callable
+    {
+        void call() throws ConnException;
+    }
+
+    long randomIn( long min, long max)
+    {
+        switch (mRandom.nextInt( 8)) {
+        case 0:
+            return min;
+        case 1:
+            return max;
+        default:
+            final long span = max - min + 1;
+            if (span > 0)
+                return min + (long) (mRandom.nextDouble() * span);
+
+            // The span does not fit in a long.
+            long v;
+            do
+                v = mRandom.nextLong();
+            while ((v < min) || (v > max));
+
+            return v;
+        }
+    }
+
+    boolean checkIntegers() throws IOException
+    {
+        System.out.print( "Checking arrays of integers ... ");
+
+        final ValueType[] types = {
+            ValueType.int8Type(), ValueType.int16Type(), ValueType.int32Type(), ValueType.int64Type(),
+            ValueType.uint8Type(), ValueType.uint16Type(), ValueType.uint32Type(), ValueType.uint64Type()
+        };
+        final long[][] ranges = {
+            { Byte.MIN_VALUE, Byte.MAX_VALUE }, { Short.MIN_VALUE, Short.MAX_VALUE },
+            { Integer.MIN_VALUE, Integer.MAX_VALUE }, { Long.MIN_VALUE, Long.MAX_VALUE },
+            { 0, 0xFFL }, { 0, 0xFFFFL }, { 0, 0xFFFFFFFFL }, { 0, Long.MAX_VALUE }
+        };
+
+        boolean result = true;
+        for (int t = 0; t < types.length; ++t) {
+            final long[] values = new long[ELEMENTS];
+            for (int i = 0; i < values.length; ++i)
+                values[i] = randomIn( ranges[t][0], ranges[t][1]);
+
+            final ArrayValue array = Value.createArray( types[t], values);
+            result &= (array.size() == values.length) && Arrays.equals( values, array.toLongArray());
+
+            final double[] doubles = array.toDoubleArray();
+            for (int i = 0; i < values.length; ++i) {
+                result &= (array.getLong( i) == values[i])
+                          && (doubles[i] == values[i])
+                          && array.get( i).toString().equals( Long.toString( values[i]));
+            }
+
+            result &= Arrays.equals( values, roundTrip( array).toLongArray());
+
+            // The elements built one by one give the same array.
+            final ArrayValue added = Value.createArray( types[t]);
+            for (long v : values)
+                added.add( Value.createBasic( types[t], Long.toString( v)));
+            result &= added.equals( array);
+
+            if ( ! result) {
+                System.out.print( "(" + types[t] + ") ");
+                break;
+            }
+        }
+
+        // The UINT64 elements above Long.MAX_VALUE are kept, but not as longs.
+        final ArrayValue big = Value.createArray( ValueType.uint64Type(), "18446744073709551615", "1");
+        result &= roundTrip( big).get( 0).toString().equals( "18446744073709551615");
+        result &= rejects( CmdResult.VALUE_OUT_OF_RANGE, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                big.toLongArray();
+            }
+        });
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkReals() throws IOException
+    {
+        System.out.print( "Checking arrays of reals ... ");
+
+        boolean result = true;
+        for (ValueType type : new ValueType[] { ValueType.realType(), ValueType.richrealType() }) {
+            // Values a REAL holds exactly: 12 integer and 6 fractional digits.
+            final double[] values = new double[ELEMENTS];
+            for (int i = 0; i < values.length; ++i)
+                values[i] = randomIn( -549755813888999999L, 549755813887999999L) / 1e6;
+
+            final ArrayValue array = Value.createArray( type, values);
+            result &= Arrays.equals( values, array.toDoubleArray());
+            result &= Arrays.equals( values, roundTrip( array).toDoubleArray());
+            for (int i = 0; i < values.length; ++i)
+                result &= array.getDouble( i) == values[i];
+
+            final long[] longs = { 0, -1, 549755813887L, -549755813888L };
+            final ArrayValue integral = Value.createArray( type, longs);
+            result &= Arrays.equals( new double[] { 0, -1, 549755813887d, -549755813888d }, roundTrip( integral).toDoubleArray());
+
+            if ( ! result) {
+                System.out.print( "(" + type + ") ");
+                break;
+            }
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkTimes() throws IOException
+    {
+        System.out.print( "Checking arrays of dates and times ... ");
+
+        final ValueType[] types = { ValueType.dateType(), ValueType.datetimeType(), ValueType.hirestimeType() };
+        final long[] units = { MICROS_PER_DAY, 1000000, 1 };
+
+        boolean result = true;
+        for (int t = 0; t < types.length; ++t) {
+            final long[] micros = new long[ELEMENTS];
+            for (int i = 0; i < micros.length; ++i)
+                micros[i] = randomIn( MIN_EPOCH_MICROS, MAX_EPOCH_MICROS);
+            micros[0] = 0;
+            micros[1] = -1;
+
+            // The parts the type does not hold are dropped, towards the past.
+            final long[] expected = new long[micros.length];
+            for (int i = 0; i < micros.length; ++i)
+                expected[i] = Math.floorDiv( micros[i], units[t]) * units[t];
+
+            final ArrayValue array = Value.createTimeArray( types[t], micros);
+            result &= Arrays.equals( expected, array.toEpochMicrosArray());
+            result &= Arrays.equals( expected, roundTrip( array).toEpochMicrosArray());
+
+            for (int i = 0; i < micros.length; ++i) {
+                final TimeValue v = (TimeValue) array.get( i);
+                result &= (v.toEpochDay() == Math.floorDiv( expected[i], MICROS_PER_DAY))
+                          && (v.getMicrosOfDay() == Math.floorMod( expected[i], MICROS_PER_DAY));
+            }
+
+            if ( ! result) {
+                System.out.print( "(" + types[t] + ") ");
+                break;
+            }
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkBooleansAndCharacters() throws IOException
+    {
+        System.out.print( "Checking arrays of booleans and characters ... ");
+
+        final boolean[] booleans = new boolean[ELEMENTS];
+        for (int i = 0; i < booleans.length; ++i)
+            booleans[i] = mRandom.nextBoolean();
+
+        final ArrayValue bools = Value.createArray( booleans);
+        boolean result = Arrays.equals( booleans, bools.toBooleanArray());
+        result &= Arrays.equals( booleans, roundTrip( bools).toBooleanArray());
+
+        final int[] codePoints = new int[ELEMENTS];
+        for (int i = 0; i < codePoints.length; ++i) {
+            switch (mRandom.nextInt( 3)) {
+            case 0:
+                codePoints[i] = 'a' + mRandom.nextInt( 26);
+                break;
+            case 1:
+                codePoints[i] = 0x4E00 + mRandom.nextInt( 0x1000);
+                break;
+            default:
+                codePoints[i] = 0x1F300 + mRandom.nextInt( 0x0300);
+            }
+        }
+
+        final ArrayValue chars = Value.createCharArray( codePoints);
+        result &= Arrays.equals( codePoints, chars.toCodePointArray());
+        result &= Arrays.equals( codePoints, roundTrip( chars).toCodePointArray());
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkNullArrays() throws ConnException
+    {
+        System.out.print( "Checking the null arrays ... ");
+
+        final ArrayValue[] arrays = {
+            Value.createArray( ValueType.int32Type(), (long[]) null),
+            Value.createArray( ValueType.int32Type(), new long[0]),
+            Value.createArray( ValueType.realType(), (double[]) null),
+            Value.createArray( (boolean[]) null),
+            Value.createCharArray( new int[0]),
+            Value.createTimeArray( ValueType.dateType(), null)
+        };
+
+        boolean result = true;
+        for (ArrayValue a : arrays)
+            result &= a.isNull() && (a.size() == 0);
+
+        result &= (arrays[0].toLongArray().length == 0)
+                  && (arrays[2].toDoubleArray().length == 0)
+                  && (arrays[3].toBooleanArray().length == 0)
+                  && (arrays[4].toCodePointArray().length == 0)
+                  && (arrays[5].toEpochMicrosArray().length == 0);
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkRejections() throws ConnException
+    {
+        System.out.print( "Checking the rejected elements ... ");
+
+        final Object[][] outOfRange = {
+            { ValueType.int8Type(), 128L }, { ValueType.int8Type(), -129L },
+            { ValueType.int16Type(), 32768L }, { ValueType.int16Type(), -32769L },
+            { ValueType.int32Type(), 1L << 31 }, { ValueType.int32Type(), -(1L << 31) - 1 },
+            { ValueType.uint8Type(), 256L }, { ValueType.uint8Type(), -1L },
+            { ValueType.uint16Type(), 65536L }, { ValueType.uint32Type(), 1L << 32 },
+            { ValueType.uint32Type(), -1L }, { ValueType.uint64Type(), -1L }
+        };
+
+        boolean result = true;
+        for (final Object[] o : outOfRange) {
+            final boolean rejected = rejects( CmdResult.VALUE_OUT_OF_RANGE, new Callable() {
+                @Override
+                public void call() throws ConnException
+                {
+                    Value.createArray( (ValueType) o[0], new long[] { 0, (Long) o[1] });
+                }
+            });
+            if ( ! rejected)
+                System.out.print( "(" + o[0] + " " + o[1] + ") ");
+
+            result &= rejected;
+        }
+
+        result &= rejects( CmdResult.INVALID_ARGS, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createArray( ValueType.realType(), new double[] { 1, Double.NaN });
+            }
+        });
+        result &= rejects( CmdResult.INVALID_ARGS, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createArray( ValueType.richrealType(), new double[] { Double.NEGATIVE_INFINITY });
+            }
+        });
+        result &= rejects( CmdResult.INVALID_ARGS, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createCharArray( new int[] { 'a', 0 });
+            }
+        });
+        result &= rejects( CmdResult.INVALID_ARGS, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createCharArray( new int[] { 0x110000 });
+            }
+        });
+        result &= rejects( CmdResult.TYPE_MISMATCH, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createArray( ValueType.int32Type(), new double[] { 1.5 });
+            }
+        });
+        result &= rejects( CmdResult.TYPE_MISMATCH, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createTimeArray( ValueType.int64Type(), new long[] { 0 });
+            }
+        });
+        result &= rejects( CmdResult.TYPE_MISMATCH, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createArray( ValueType.realType(), new double[] { 1.5 }).toLongArray();
+            }
+        });
+        result &= rejects( CmdResult.TYPE_MISMATCH, new Callable() {
+            @Override
+            public void call() throws ConnException
+            {
+                Value.createArray( ValueType.int32Type(), new long[] { 1 }).toEpochMicrosArray();
+            }
+        });
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private final Random     mRandom;
+    private final Connection mConnection;
+
+    private static final int    ELEMENTS         = 2000;
+    private static final int    FRAME_SIZE       = 1024;
+    private static final long   MICROS_PER_DAY   = 24L * 3600 * 1000000;
+    private static final long   MIN_EPOCH_MICROS = -377705116800000000L; // -9999/01/01 00:00:00
+    private static final long   MAX_EPOCH_MICROS = 253402300799999999L;  //  9999/12/31 23:59:59.999999
+    private static final byte[] KEY              = "root".getBytes( StandardCharsets.UTF_8);
+}
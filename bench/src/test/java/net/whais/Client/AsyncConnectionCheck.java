@@ -0,0 +1,455 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks of {@link AsyncConnection} against a {@link StandInServer}: the
+ * requests' order, cancelling a queued request, a callback that throws, an
+ * executor that rejects the requests and closing with requests still
+ * queued.
+ */
+public class AsyncConnectionCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final AsyncConnectionCheck t = new AsyncConnectionCheck();
+
+        boolean testResult = true;
+        try {
+            testResult &= t.checkOrdering();
+            testResult &= t.checkCancelQueued();
+            testResult &= t.checkThrowingCallback();
+            testResult &= t.checkRejectedExecution();
+            testResult &= t.checkCloseWithQueued();
+        } finally {
+            t.mExecutor.shutdownNow();
+            t.mServer.close();
+        }
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    AsyncConnectionCheck()
+    {
+        mServer = new StandInServer( KEY, KEY);
+        mServer.defineProcedure( "add",
+                                 ValueType.int64Type(),
+                                 new ValueType[] { ValueType.int64Type(), ValueType.int64Type() },
+                                 new StandInServer.Procedure() {
+                                     @Override
+                                     public Value execute( Value[] params) throws ConnException
+                                     {
+                                         final long a = ((IntegerValue) params[0]).getLong();
+                                         final long b = ((IntegerValue) params[1]).getLong();
+
+                                         return Value.createInt64( a + b);
+                                     }
+                                 });
+
+        mUncaught = Collections.synchronizedList( new ArrayList<Throwable>());
+        mExecutor = Executors.newFixedThreadPool( 4, new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable r)
+            {
+                final Thread t = new Thread( r, "async-check");
+                t.setDaemon( true);
+                t.setUncaughtExceptionHandler( new Thread.UncaughtExceptionHandler() {
+                    @Override
+                    public void uncaughtException( Thread t, Throwable e)
+                    {
+                        mUncaught.add( e);
+                    }
+                });
+                return t;
+            }
+        });
+    }
+
+    AsyncConnection newConnection( Executor executor) throws IOException
+    {
+        return new AsyncConnection( mServer.connect( "check", KEY, Connection.USER, _c.DEFAULT_FRAME_SIZE),
+                                    executor);
+    }
+
+    /**
+     * A request that holds the connection until the latch opens.
+     */
+    static AsyncConnection.Request<Void> blocker( final CountDownLatch started, final CountDownLatch release)
+    {
+        return new AsyncConnection.Request<Void>() {
+            @Override
+            public Void execute( Connection connection) throws IOException
+            {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        };
+    }
+
+    static long resultOf( Future<Value> f) throws Exception
+    {
+        return ((IntegerValue) f.get( 10, TimeUnit.SECONDS)).getLong();
+    }
+
+    boolean checkOrdering() throws Exception
+    {
+        System.out.print( "Checking the requests are sent in order, one at a time ... ");
+
+        final AsyncConnection[] connections = { newConnection( mExecutor), newConnection( mExecutor) };
+        final List<List<Integer>> executed = new ArrayList<>();
+        final AtomicInteger[] running = { new AtomicInteger(), new AtomicInteger() };
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger callbacks = new AtomicInteger();
+        final List<Future<Value>> results = new ArrayList<>();
+        final int count = 2000;
+
+        // The callbacks run after the futures' waiters are released.
+        final CountDownLatch callbacksDone = new CountDownLatch( count);
+
+        for (int c = 0; c < connections.length; ++c)
+            executed.add( Collections.synchronizedList( new ArrayList<Integer>()));
+
+        for (int i = 0; i < count; ++i) {
+            final int c = i % connections.length;
+            final int index = i;
+            final long expected = 3L * i + 1;
+
+            results.add( connections[c].submit( new AsyncConnection.Request<Value>() {
+                @Override
+                public Value execute( Connection connection) throws IOException
+                {
+                    if (running[c].incrementAndGet() != 1)
+                        overlaps.incrementAndGet();
+
+                    executed.get( c).add( index);
+                    try {
+                        return connection.callProcedure( "add", Value.createInt64( index), Value.createInt64( 2L * index + 1));
+                    } finally {
+                        running[c].decrementAndGet();
+                    }
+                }
+            }, new AsyncConnection.Callback<Value>() {
+                @Override
+                public void completed( Value result)
+                {
+                    try {
+                        if (((IntegerValue) result).getLong() == expected)
+                            callbacks.incrementAndGet();
+                    } catch (ConnException e) {
+                        // Not counted.
+                    }
+                    callbacksDone.countDown();
+                }
+
+                @Override
+                public void failed( Throwable error)
+                {
+                    callbacksDone.countDown();
+                }
+            }));
+        }
+
+        boolean result = true;
+        for (int i = 0; i < count; ++i)
+            result &= resultOf( results.get( i)) == 3L * i + 1;
+
+        for (int c = 0; c < connections.length; ++c) {
+            final List<Integer> order = executed.get( c);
+            result &= order.size() == count / connections.length;
+            for (int i = 0; i < order.size(); ++i)
+                result &= order.get( i) == connections.length * i + c;
+
+            connections[c].close();
+        }
+
+        result &= overlaps.get() == 0;
+        result &= callbacksDone.await( 10, TimeUnit.SECONDS) && (callbacks.get() == count);
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkCancelQueued() throws Exception
+    {
+        System.out.print( "Checking a queued request can be cancelled ... ");
+
+        final AsyncConnection connection = newConnection( mExecutor);
+        final CountDownLatch started = new CountDownLatch( 1);
+        final CountDownLatch release = new CountDownLatch( 1);
+        final AtomicInteger executions = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final Future<Void> first = connection.submit( blocker( started, release), null);
+        started.await();
+
+        final Future<Value> cancelled = connection.submit( new AsyncConnection.Request<Value>() {
+            @Override
+            public Value execute( Connection c) throws IOException
+            {
+                executions.incrementAndGet();
+                return c.callProcedure( "add", Value.createInt64( 1), Value.createInt64( 1));
+            }
+        }, new AsyncConnection.Callback<Value>() {
+            @Override
+            public void completed( Value result)
+            {
+            }
+
+            @Override
+            public void failed( Throwable error)
+            {
+                failure.set( error);
+            }
+        });
+        final Future<Value> last = connection.callProcedure( "add", Value.createInt64( 2), Value.createInt64( 3));
+
+        boolean result = cancelled.cancel( false);
+        result &= cancelled.isCancelled();
+        result &= failure.get() instanceof CancellationException;
+
+        // The request that already runs can not be cancelled this way.
+        release.countDown();
+        first.get( 10, TimeUnit.SECONDS);
+        result &= ! first.isCancelled();
+
+        result &= resultOf( last) == 5;
+        result &= executions.get() == 0;
+
+        try {
+            cancelled.get();
+            result = false;
+        } catch (CancellationException e) {
+            // Expected.
+        }
+
+        connection.close();
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkThrowingCallback() throws Exception
+    {
+        System.out.print( "Checking a callback that throws does not stop the queue ... ");
+
+        final AsyncConnection connection = newConnection( mExecutor);
+        final RuntimeException thrown = new IllegalStateException( "A faulty callback.");
+        mUncaught.clear();
+
+        final Future<Value> faulty = connection.callProcedure( "add",
+                                                               new Value[] { Value.createInt64( 1), Value.createInt64( 1) },
+                                                               new AsyncConnection.Callback<Value>() {
+            @Override
+            public void completed( Value result)
+            {
+                throw thrown;
+            }
+
+            @Override
+            public void failed( Throwable error)
+            {
+                throw thrown;
+            }
+        });
+
+        // A failing request whose failed() throws.
+        final Future<Value> failing = connection.callProcedure( "missing",
+                                                                new Value[0],
+                                                                new AsyncConnection.Callback<Value>() {
+            @Override
+            public void completed( Value result)
+            {
+            }
+
+            @Override
+            public void failed( Throwable error)
+            {
+                throw thrown;
+            }
+        });
+
+        final List<Future<Value>> next = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            next.add( connection.callProcedure( "add", Value.createInt64( i), Value.createInt64( 1)));
+
+        boolean result = resultOf( faulty) == 2;
+        for (int i = 0; i < next.size(); ++i)
+            result &= resultOf( next.get( i)) == i + 1;
+
+        try {
+            failing.get();
+            result = false;
+        } catch (ExecutionException e) {
+            result &= e.getCause() instanceof ConnException;
+        }
+
+        result &= (mUncaught.size() == 2) && (mUncaught.get( 0) == thrown) && (mUncaught.get( 1) == thrown);
+
+        connection.close();
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkRejectedExecution() throws Exception
+    {
+        System.out.print( "Checking the requests fail when the executor rejects them ... ");
+
+        final AtomicInteger rejections = new AtomicInteger( 1);
+        final Executor executor = new Executor() {
+            @Override
+            public void execute( Runnable command)
+            {
+                if (rejections.getAndDecrement() > 0)
+                    throw new RejectedExecutionException( "Refused by the check.");
+
+                mExecutor.execute( command);
+            }
+        };
+
+        final AsyncConnection connection = newConnection( executor);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final RuntimeException thrown = new IllegalStateException( "A faulty callback.");
+        mUncaught.clear();
+
+        // The rejected request fails in this thread, and so does its callback.
+        final Thread current = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler handler = current.getUncaughtExceptionHandler();
+        current.setUncaughtExceptionHandler( new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException( Thread t, Throwable e)
+            {
+                mUncaught.add( e);
+            }
+        });
+
+        final Future<Value> rejected = connection.callProcedure( "add",
+                                                                 new Value[] { Value.createInt64( 1), Value.createInt64( 1) },
+                                                                 new AsyncConnection.Callback<Value>() {
+            @Override
+            public void completed( Value result)
+            {
+            }
+
+            @Override
+            public void failed( Throwable error)
+            {
+                failure.set( error);
+                throw thrown;
+            }
+        });
+        current.setUncaughtExceptionHandler( handler);
+
+        boolean result = rejected.isDone();
+        try {
+            rejected.get();
+            result = false;
+        } catch (ExecutionException e) {
+            result &= (e.getCause() instanceof ConnException)
+                      && (((ConnException) e.getCause()).getCode() == CmdResult.GENERAL_ERR)
+                      && (e.getCause().getCause() instanceof RejectedExecutionException);
+        }
+        result &= failure.get() instanceof ConnException;
+        result &= (mUncaught.size() == 1) && (mUncaught.get( 0) == thrown);
+
+        // Once the executor accepts again, the connection is usable.
+        result &= resultOf( connection.callProcedure( "add", Value.createInt64( 4), Value.createInt64( 5))) == 9;
+
+        connection.close();
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkCloseWithQueued() throws Exception
+    {
+        System.out.print( "Checking close() lets the queued requests complete ... ");
+
+        final AsyncConnection connection = newConnection( mExecutor);
+        final CountDownLatch started = new CountDownLatch( 1);
+        final CountDownLatch release = new CountDownLatch( 1);
+
+        connection.submit( blocker( started, release), null);
+        started.await();
+
+        final List<Future<Value>> queued = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            queued.add( connection.callProcedure( "add", Value.createInt64( i), Value.createInt64( i)));
+
+        connection.close();
+
+        boolean result = true;
+        try {
+            connection.callProcedure( "add", Value.createInt64( 0), Value.createInt64( 0));
+            result = false;
+        } catch (ConnException e) {
+            result &= e.getCode() == CmdResult.OP_NOTPERMITED;
+        }
+
+        // They would fail if the connection was closed under them.
+        release.countDown();
+        for (int i = 0; i < queued.size(); ++i)
+            result &= resultOf( queued.get( i)) == 2L * i;
+
+        // The connection is closed once the queue drains.
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (connection.getConnection().isAlive() && (System.currentTimeMillis() < deadline))
+            Thread.sleep( 10);
+
+        result &= ! connection.getConnection().isAlive();
+
+        // Closing twice is harmless.
+        connection.close();
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private final StandInServer   mServer;
+    private final ExecutorService mExecutor;
+    private final List<Throwable> mUncaught;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+}
@@ -0,0 +1,464 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks of {@link ConnectionCluster} against several {@link StandInServer}
+ * instances: the spread of the leases, the failover and re-admission of a
+ * server, the ejection after consecutive failures, the latency routing and
+ * the behaviour with no reachable server or a request error.
+ */
+public class ConnectionClusterCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final ConnectionClusterCheck t = new ConnectionClusterCheck();
+
+        boolean testResult = true;
+        try {
+            testResult &= t.checkSpread();
+            testResult &= t.checkFailover();
+            testResult &= t.checkReadmission();
+            testResult &= t.checkFailuresThreshold();
+            testResult &= t.checkBusyServerProbe();
+            testResult &= t.checkLatencyRouting();
+            testResult &= t.checkUnmeasuredServer();
+            testResult &= t.checkNoServer();
+            testResult &= t.checkRequestError();
+            testResult &= t.checkClosedCluster();
+        } finally {
+            t.closeServers();
+        }
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    ConnectionClusterCheck() throws IOException
+    {
+        mServers = new StandInServer[SERVERS_COUNT];
+        mPorts = new int[SERVERS_COUNT];
+        for (int i = 0; i < SERVERS_COUNT; ++i) {
+            mServers[i] = newServer( 0);
+            mPorts[i] = mServers[i].listen( 0);
+        }
+    }
+
+    // A server whose "work" procedure takes about delay milliseconds.
+    static StandInServer newServer( final long delay)
+    {
+        final StandInServer server = new StandInServer( KEY, KEY);
+        server.defineProcedure( "work",
+                                ValueType.int64Type(),
+                                new ValueType[] { ValueType.int64Type() },
+                                new StandInServer.Procedure() {
+                                    @Override
+                                    public Value execute( Value[] params) throws ConnException
+                                    {
+                                        if (delay > 0) {
+                                            try {
+                                                Thread.sleep( delay);
+                                            } catch (InterruptedException e) {
+                                                Thread.currentThread().interrupt();
+                                            }
+                                        }
+                                        return params[0];
+                                    }
+                                });
+        return server;
+    }
+
+    static ConnectionPool newPool( int port, int maxSize) throws IOException
+    {
+        final ConnectionPool pool = new ConnectionPool( "127.0.0.1",
+                                                        Integer.toString( port),
+                                                        "check",
+                                                        KEY,
+                                                        Connection.USER,
+                                                        _c.DEFAULT_FRAME_SIZE,
+                                                        0,
+                                                        maxSize,
+                                                        2000,
+                                                        0);
+        // Validate every idle connection, so a stopped server is noticed.
+        pool.setValidationInterval( 0);
+
+        return pool;
+    }
+
+    ConnectionCluster newCluster( int policy, int... servers) throws IOException
+    {
+        final List<ConnectionPool> pools = new ArrayList<>();
+        for (int s : servers)
+            pools.add( newPool( mPorts[s], 8));
+
+        final ConnectionCluster cluster = new ConnectionCluster( pools, policy);
+        cluster.setRetryInterval( RETRY_INTERVAL);
+
+        return cluster;
+    }
+
+    // Stop a server; its channels are dropped in the background.
+    void stopServer( int server) throws InterruptedException
+    {
+        mServers[server].close();
+        Thread.sleep( 200);
+    }
+
+    void startServer( int server, long delay) throws IOException
+    {
+        mServers[server] = newServer( delay);
+        mServers[server].listen( mPorts[server]);
+    }
+
+    void closeServers()
+    {
+        for (StandInServer s : mServers)
+            s.close();
+    }
+
+    // Borrow a connection and tell which of the cluster's servers it is from.
+    static int borrow( ConnectionCluster cluster, List<Connection> held) throws IOException
+    {
+        final int[] before = new int[cluster.getServersCount()];
+        for (int i = 0; i < before.length; ++i)
+            before[i] = cluster.getOutstandingCount( i);
+
+        held.add( cluster.borrow());
+
+        for (int i = 0; i < before.length; ++i) {
+            if (cluster.getOutstandingCount( i) > before[i])
+                return i;
+        }
+        throw new AssertionError( "The lease was not accounted.");
+    }
+
+    static void releaseAll( ConnectionCluster cluster, List<Connection> held)
+    {
+        for (Connection c : held)
+            cluster.release( c);
+
+        held.clear();
+    }
+
+    static boolean report( boolean result)
+    {
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkSpread() throws IOException
+    {
+        System.out.print( "Checking the leases are spread over the servers ... ");
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_OUTSTANDING, 0, 1, 2);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            final int[] counts = new int[SERVERS_COUNT];
+            for (int i = 0; i < 3 * SERVERS_COUNT; ++i) {
+                ++counts[borrow( cluster, held)];
+                held.get( i).pingServer();
+            }
+
+            boolean result = true;
+            for (int i = 0; i < SERVERS_COUNT; ++i)
+                result &= (counts[i] == 3) && (cluster.getPool( i).getLeasedCount() == 3);
+
+            releaseAll( cluster, held);
+            for (int i = 0; i < SERVERS_COUNT; ++i)
+                result &= (cluster.getOutstandingCount( i) == 0);
+
+            return report( result && (cluster.getAvailableCount() == SERVERS_COUNT));
+        } finally {
+            cluster.close();
+        }
+    }
+
+    boolean checkFailover() throws Exception
+    {
+        System.out.print( "Checking the leases fail over from a stopped server ... ");
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_OUTSTANDING, 0, 1, 2);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            // Leave an idle connection in every pool.
+            for (int i = 0; i < SERVERS_COUNT; ++i)
+                borrow( cluster, held);
+            releaseAll( cluster, held);
+
+            stopServer( 1);
+
+            final int[] counts = new int[SERVERS_COUNT];
+            for (int i = 0; i < 2 * SERVERS_COUNT; ++i) {
+                ++counts[borrow( cluster, held)];
+                held.get( i).pingServer();
+            }
+            releaseAll( cluster, held);
+
+            return report( ( ! cluster.isAvailable( 1))
+                           && (cluster.getAvailableCount() == SERVERS_COUNT - 1)
+                           && (counts[0] == 3) && (counts[1] == 0) && (counts[2] == 3));
+        } finally {
+            cluster.close();
+            startServer( 1, 0);
+        }
+    }
+
+    boolean checkReadmission() throws Exception
+    {
+        System.out.print( "Checking a restarted server is admitted again ... ");
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_OUTSTANDING, 0, 1);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            stopServer( 1);
+            for (int i = 0; i < 2; ++i)
+                borrow( cluster, held);
+            releaseAll( cluster, held);
+
+            boolean result = ! cluster.isAvailable( 1);
+
+            // Not probed again before the retry interval passed.
+            startServer( 1, 0);
+            result &= (cluster.checkServers() == 1);
+
+            // The next borrower probes it and shares the leases with it.
+            Thread.sleep( RETRY_INTERVAL + 50);
+
+            final int[] counts = new int[2];
+            for (int i = 0; i < 4; ++i)
+                ++counts[borrow( cluster, held)];
+            releaseAll( cluster, held);
+
+            return report( result && cluster.isAvailable( 1) && (counts[0] == 2) && (counts[1] == 2));
+        } finally {
+            cluster.close();
+        }
+    }
+
+    boolean checkFailuresThreshold() throws IOException
+    {
+        System.out.print( "Checking consecutive invalidated leases eject a server ... ");
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_OUTSTANDING, 0, 1);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            cluster.setFailuresThreshold( 2);
+
+            boolean result = true;
+            int invalidated = 0;
+            for (int i = 0; (i < 20) && cluster.isAvailable( 0); ++i) {
+                final int server = borrow( cluster, held);
+                final Connection c = held.remove( 0);
+
+                if (server == 0) {
+                    cluster.invalidate( c);
+                    ++invalidated;
+                } else
+                    cluster.release( c);
+
+                // A successful lease in between would reset the count.
+                result &= (invalidated >= 2) || cluster.isAvailable( 0);
+            }
+            result &= ( ! cluster.isAvailable( 0)) && (invalidated == 2);
+
+            // The server answers, so it is admitted again when all are probed.
+            result &= (cluster.checkServers( true) == 2) && cluster.isAvailable( 0);
+
+            return report( result);
+        } finally {
+            cluster.close();
+        }
+    }
+
+    boolean checkBusyServerProbe() throws IOException
+    {
+        System.out.print( "Checking a server with all its connections leased is not ejected ... ");
+
+        final List<ConnectionPool> pools = new ArrayList<>();
+        pools.add( newPool( mPorts[0], 1));
+
+        final ConnectionCluster cluster = new ConnectionCluster( pools, ConnectionCluster.ROUTE_LEAST_OUTSTANDING);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            borrow( cluster, held);
+
+            final boolean result = (cluster.checkServers( true) == 1) && cluster.isAvailable( 0);
+            releaseAll( cluster, held);
+
+            return report( result);
+        } finally {
+            cluster.close();
+        }
+    }
+
+    boolean checkLatencyRouting() throws Exception
+    {
+        System.out.print( "Checking the leases are routed to the fastest server ... ");
+
+        stopServer( 1);
+        startServer( 1, 20);
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_LATENCY, 0, 1);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            final int[] counts = new int[2];
+            for (int i = 0; i < 100; ++i) {
+                ++counts[borrow( cluster, held)];
+                held.get( 0).callProcedure( "work", Value.createInt64( i));
+                releaseAll( cluster, held);
+            }
+
+            // The slow server is tried, then avoided. Its delay is well above
+            // the hiccups (e.g. the collections) of the fast one.
+            return report( (counts[1] >= 1) && (counts[1] <= 10)
+                           && (cluster.getLatencyEstimate( 1) > 4 * cluster.getLatencyEstimate( 0)));
+        } finally {
+            cluster.close();
+            stopServer( 1);
+            startServer( 1, 0);
+        }
+    }
+
+    boolean checkUnmeasuredServer() throws Exception
+    {
+        System.out.print( "Checking an unmeasured server does not take all the leases ... ");
+
+        stopServer( 1);
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_LATENCY, 0, 1);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            // Only the first server gets measured.
+            for (int i = 0; i < 10; ++i) {
+                borrow( cluster, held);
+                held.get( 0).callProcedure( "work", Value.createInt64( i));
+                releaseAll( cluster, held);
+            }
+            boolean result = ( ! cluster.isAvailable( 1))
+                             && (cluster.getLatencyEstimate( 0) > 0)
+                             && (cluster.getLatencyEstimate( 1) == 0);
+
+            startServer( 1, 0);
+            Thread.sleep( RETRY_INTERVAL + 50);
+            result &= (cluster.checkServers() == 2);
+
+            // Expected as fast as the first one, the admitted server shares
+            // the concurrent leases with it.
+            final int[] counts = new int[2];
+            for (int i = 0; i < 4; ++i)
+                ++counts[borrow( cluster, held)];
+            releaseAll( cluster, held);
+
+            return report( result && (counts[0] == 2) && (counts[1] == 2));
+        } finally {
+            cluster.close();
+        }
+    }
+
+    boolean checkNoServer() throws Exception
+    {
+        System.out.print( "Checking a cluster with no reachable server ... ");
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_OUTSTANDING, 0, 1);
+        try {
+            stopServer( 0);
+            stopServer( 1);
+
+            // The servers' failure is told along.
+            boolean result = false;
+            try {
+                cluster.borrow();
+            } catch (ConnException e) {
+                result = (e.getCode() == CmdResult.DROPPED) && (e.getCause() instanceof IOException);
+            }
+
+            return report( result && (cluster.getAvailableCount() == 0));
+        } finally {
+            cluster.close();
+            startServer( 0, 0);
+            startServer( 1, 0);
+        }
+    }
+
+    boolean checkRequestError() throws IOException
+    {
+        System.out.print( "Checking a request error does not eject the server ... ");
+
+        // The first server's pool asks for frames too small to be valid.
+        final List<ConnectionPool> pools = new ArrayList<>();
+        pools.add( new ConnectionPool( "127.0.0.1", Integer.toString( mPorts[0]), "check", KEY, Connection.USER, 100, 0, 8, 2000, 0));
+        pools.add( newPool( mPorts[1], 8));
+
+        final ConnectionCluster cluster = new ConnectionCluster( pools, ConnectionCluster.ROUTE_LEAST_OUTSTANDING);
+        final List<Connection> held = new ArrayList<>();
+        try {
+            int rejected = 0;
+            for (int i = 0; i < 4; ++i) {
+                try {
+                    borrow( cluster, held);
+                } catch (ConnException e) {
+                    if (e.getCode() != CmdResult.INVALID_ARGS)
+                        return report( false);
+
+                    ++rejected;
+                }
+            }
+            releaseAll( cluster, held);
+
+            return report( (rejected > 0)
+                           && cluster.isAvailable( 0)
+                           && (cluster.getAvailableCount() == 2)
+                           && (cluster.getOutstandingCount( 0) == 0));
+        } finally {
+            cluster.close();
+        }
+    }
+
+    boolean checkClosedCluster() throws IOException
+    {
+        System.out.print( "Checking a closed cluster ... ");
+
+        final ConnectionCluster cluster = newCluster( ConnectionCluster.ROUTE_LEAST_OUTSTANDING, 0);
+        cluster.close();
+
+        boolean result = false;
+        try {
+            cluster.borrow();
+        } catch (ConnException e) {
+            result = (e.getCode() == CmdResult.OP_NOTPERMITED);
+        }
+
+        return report( result);
+    }
+
+    private final StandInServer[] mServers;
+    private final int[]           mPorts;
+
+    private static final int    SERVERS_COUNT  = 3;
+    private static final long   RETRY_INTERVAL = 200;
+    private static final byte[] KEY            = "root".getBytes( StandardCharsets.UTF_8);
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the locking of a {@link Connection} shared by several threads,
+ * against a {@link StandInServer}: the lock timeout, the interrupted
+ * waiters, the reentrant use and {@code isAlive()} on a held connection.
+ */
+public class ConnectionLockCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final ConnectionLockCheck t = new ConnectionLockCheck();
+
+        boolean testResult = true;
+        testResult &= t.checkTimeout();
+        testResult &= t.checkTryLock();
+        testResult &= t.checkInterruptedWaiter();
+        testResult &= t.checkReentrancy();
+        testResult &= t.checkIsAliveWhileHeld();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    ConnectionLockCheck()
+    {
+        mServer = new StandInServer( KEY, KEY);
+    }
+
+    Connection connect() throws IOException
+    {
+        return mServer.connect( "check", KEY, Connection.USER, _c.DEFAULT_FRAME_SIZE);
+    }
+
+    /**
+     * A thread holding a connection until it is told to let it go.
+     */
+    static final class Holder extends Thread
+    {
+        Holder( Connection connection)
+        {
+            mConnection = connection;
+            mLocked = new CountDownLatch( 1);
+            mRelease = new CountDownLatch( 1);
+            setDaemon( true);
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                mConnection.lock();
+            } catch (ConnException e) {
+                return;
+            }
+
+            try {
+                mLocked.countDown();
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mConnection.unlock();
+            }
+        }
+
+        // Start the thread and wait until it holds the connection.
+        Holder hold() throws InterruptedException
+        {
+            start();
+            mLocked.await();
+
+            return this;
+        }
+
+        void release() throws InterruptedException
+        {
+            mRelease.countDown();
+            join();
+        }
+
+        private final Connection     mConnection;
+        private final CountDownLatch mLocked;
+        private final CountDownLatch mRelease;
+    }
+
+    static boolean timesOut( Connection c)
+    {
+        try {
+            c.pingServer();
+        } catch (ConnException e) {
+            return e.getCode() == CmdResult.CONNECTION_TIMEOUT;
+        } catch (IOException e) {
+            return false;
+        }
+        return false;
+    }
+
+    boolean checkTimeout() throws Exception
+    {
+        System.out.print( "Checking a call times out on a held connection ... ");
+
+        final Connection c = connect();
+        final Holder holder = new Holder( c).hold();
+        try {
+            c.setLockTimeout( 50, TimeUnit.MILLISECONDS);
+
+            final long start = System.nanoTime();
+            boolean result = timesOut( c);
+            result &= System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50);
+
+            try {
+                c.lock();
+                c.unlock();
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.CONNECTION_TIMEOUT;
+            }
+
+            holder.release();
+
+            // Usable again once released.
+            c.pingServer();
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            holder.release();
+            c.close();
+        }
+    }
+
+    boolean checkTryLock() throws Exception
+    {
+        System.out.print( "Checking tryLock() on a held and on a released connection ... ");
+
+        final Connection c = connect();
+        final Holder holder = new Holder( c).hold();
+        try {
+            boolean result = ! c.tryLock( 20, TimeUnit.MILLISECONDS);
+
+            holder.release();
+            if (c.tryLock( 1, TimeUnit.SECONDS)) {
+                try {
+                    c.pushStackValue( Value.createInt32( 7));
+                    c.flushStackUpdates();
+                    result &= c.retrieveStackTop().toString().equals( "7");
+                } finally {
+                    c.unlock();
+                }
+            } else
+                result = false;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            holder.release();
+            c.close();
+        }
+    }
+
+    boolean checkInterruptedWaiter() throws Exception
+    {
+        System.out.print( "Checking an interrupted waiter gives up ... ");
+
+        final Connection c = connect();
+        c.setLockTimeout( 1, TimeUnit.MINUTES);
+
+        final Holder holder = new Holder( c).hold();
+        try {
+            final AtomicInteger code = new AtomicInteger( CmdResult.OK);
+            final AtomicBoolean interrupted = new AtomicBoolean( false);
+            final AtomicBoolean tryLockInterrupted = new AtomicBoolean( false);
+
+            final Thread waiter = new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        c.pingServer();
+                    } catch (ConnException e) {
+                        code.set( e.getCode());
+                    } catch (IOException e) {
+                        code.set( CmdResult.GENERAL_ERR);
+                    }
+
+                    // The interruption is kept for the caller to see.
+                    interrupted.set( Thread.interrupted());
+
+                    Thread.currentThread().interrupt();
+                    try {
+                        c.tryLock( 1, TimeUnit.MINUTES);
+                        c.unlock();
+                    } catch (InterruptedException e) {
+                        tryLockInterrupted.set( true);
+                    }
+                }
+            };
+            waiter.setDaemon( true);
+            waiter.start();
+
+            // Let it wait for the connection first.
+            Thread.sleep( 50);
+            waiter.interrupt();
+            waiter.join( 5000);
+
+            final boolean result = ! waiter.isAlive()
+                                   && (code.get() == CmdResult.CONNECTION_TIMEOUT)
+                                   && interrupted.get()
+                                   && tryLockInterrupted.get();
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            holder.release();
+            c.close();
+        }
+    }
+
+    boolean checkReentrancy() throws Exception
+    {
+        System.out.print( "Checking the nested calls share one acquisition ... ");
+
+        final Connection c = connect();
+        final FrameBufferPool pool = new FrameBufferPool();
+        c.setFrameBufferPool( pool);
+
+        final AtomicBoolean otherLocked = new AtomicBoolean( true);
+        final Thread probe = new Thread() {
+            @Override
+            public void run()
+            {
+                try {
+                    otherLocked.set( c.tryLock( 10, TimeUnit.MILLISECONDS));
+                    if (otherLocked.get())
+                        c.unlock();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        try {
+            boolean result = pool.getBorrowedCount() == 0;
+
+            c.lock();
+            try {
+                result &= pool.getBorrowedCount() == 1;
+
+                c.lock();
+                try {
+                    c.pingServer();
+                    c.pushStackValue( Value.createInt64( 5));
+                    c.flushStackUpdates();
+                    result &= c.retrieveStackTop().toString().equals( "5");
+                    c.popStackValues( 1);
+                    c.flushStackUpdates();
+                } finally {
+                    c.unlock();
+                }
+
+                // The inner unlock did not end the call: the buffer is kept
+                // and the other threads still wait.
+                result &= pool.getBorrowedCount() == 1;
+
+                probe.start();
+                probe.join();
+                result &= ! otherLocked.get();
+            } finally {
+                c.unlock();
+            }
+
+            result &= pool.getBorrowedCount() == 0;
+            result &= c.tryLock( 10, TimeUnit.MILLISECONDS);
+            c.unlock();
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkIsAliveWhileHeld() throws Exception
+    {
+        System.out.print( "Checking isAlive() on a connection held by another thread ... ");
+
+        final Connection c = connect();
+        try {
+            // With a timeout, it is reported as not alive.
+            c.setLockTimeout( 50, TimeUnit.MILLISECONDS);
+
+            Holder holder = new Holder( c).hold();
+            boolean result = ! c.isAlive();
+            holder.release();
+            result &= c.isAlive();
+
+            // With none, it waits for the other thread.
+            c.setLockTimeout( 0, TimeUnit.MILLISECONDS);
+
+            holder = new Holder( c).hold();
+            final Holder releasing = holder;
+            final Thread releaser = new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep( 100);
+                        releasing.release();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            releaser.start();
+
+            final long start = System.nanoTime();
+            result &= c.isAlive();
+            result &= System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos( 50);
+            releaser.join();
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    private final StandInServer mServer;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+}
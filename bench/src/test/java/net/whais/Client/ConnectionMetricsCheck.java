@@ -0,0 +1,326 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Checks {@link ConnectionMetrics}, {@link CommandMetrics} and
+ * {@link LatencyHistogram}: the histogram's buckets and percentiles, the
+ * per command counts of connections talking to a {@link StandInServer},
+ * the reset and the JMX registration.
+ */
+public class ConnectionMetricsCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final ConnectionMetricsCheck t = new ConnectionMetricsCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        testResult &= t.checkBuckets();
+        testResult &= t.checkPercentiles();
+        testResult &= t.checkCommandCounts();
+        testResult &= t.checkReset();
+        testResult &= t.checkMBean();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    ConnectionMetricsCheck( long seed)
+    {
+        mRandom = new Random( seed);
+        mServer = new StandInServer( KEY, KEY);
+        mServer.defineProcedure( "echo",
+                                 ValueType.int64Type(),
+                                 new ValueType[] { ValueType.int64Type() },
+                                 new StandInServer.Procedure() {
+                                     @Override
+                                     public Value execute( Value[] params)
+                                     {
+                                         return params[0];
+                                     }
+                                 });
+    }
+
+    Connection connect( ConnectionMetrics metrics) throws IOException
+    {
+        final Connection c = mServer.connect( "check", KEY, Connection.USER, _c.DEFAULT_FRAME_SIZE);
+        c.setMetrics( metrics);
+
+        return c;
+    }
+
+    // The smallest value counted in a bucket.
+    static long lowestValue( int bucket)
+    {
+        return (bucket == 0) ? 0 : LatencyHistogram.highestValue( bucket - 1) + 1;
+    }
+
+    boolean checkBuckets()
+    {
+        System.out.print( "Checking the histogram's buckets ... ");
+
+        boolean result = true;
+        for (long v = 0; (v < (1 << 16)) && result; ++v)
+            result &= checkBucket( v);
+
+        for (int i = 0; (i < 100000) && result; ++i)
+            result &= checkBucket( mRandom.nextLong() >>> (1 + mRandom.nextInt( 63)));
+
+        for (int shift = 0; (shift < 63) && result; ++shift) {
+            result &= checkBucket( 1L << shift);
+            result &= checkBucket( (1L << shift) - 1);
+        }
+        result &= checkBucket( Long.MAX_VALUE);
+        result &= LatencyHistogram.highestValue( LatencyHistogram.bucket( Long.MAX_VALUE)) == Long.MAX_VALUE;
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    // A value falls in its bucket's bounds, and the bucket is narrow enough
+    // for the documented relative error.
+    static boolean checkBucket( long value)
+    {
+        final int bucket = LatencyHistogram.bucket( value);
+        final long lowest = lowestValue( bucket);
+        final long highest = LatencyHistogram.highestValue( bucket);
+
+        boolean result = (lowest <= value) && (value <= highest);
+        result &= (bucket == 0) || (LatencyHistogram.bucket( lowest - 1) == bucket - 1);
+        if (value >= 64)
+            result &= (highest - lowest + 1) / (double) lowest <= 1.0 / 32;
+        else
+            result &= lowest == highest;
+
+        if ( ! result)
+            System.out.print( "(" + value + " in " + bucket + " [" + lowest + ", " + highest + "]) ");
+
+        return result;
+    }
+
+    boolean checkPercentiles() throws IOException
+    {
+        System.out.print( "Checking the histogram's percentiles ... ");
+
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final LatencyHistogram h = metrics.getCommand( "CMD_PING_SERVER").getLatency();
+
+        boolean result = (h.getCount() == 0) && (h.getValueAtPercentile( 50) == 0) && (h.getMean() == 0);
+
+        final long[] values = new long[5001];
+        long total = 0;
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = (long) Math.exp( mRandom.nextDouble() * 25);
+            total += values[i];
+            metrics.record( _c.CMD_PING_SERVER, 10, 10, values[i], 0, 0);
+        }
+        Arrays.sort( values);
+
+        result &= (h.getCount() == values.length)
+                  && (h.getMax() == values[values.length - 1])
+                  && (h.getMean() == (double) total / values.length);
+
+        for (double p : new double[] { 0, 1, 25, 50, 75, 90, 99, 99.9, 100 }) {
+            // The value at the percentile, reported as its bucket's bound.
+            final long exact = values[(int) Math.max( 0, Math.ceil( values.length * p / 100) - 1)];
+            final long expected = Math.min( LatencyHistogram.highestValue( LatencyHistogram.bucket( exact)), h.getMax());
+
+            result &= h.getValueAtPercentile( p) == expected;
+            result &= (h.getValueAtPercentile( p) - exact) <= exact / 32;
+        }
+
+        try {
+            h.getValueAtPercentile( 100.5);
+            result = false;
+        } catch (IllegalArgumentException e) {
+        }
+
+        // The other commands were left alone.
+        result &= metrics.getCommand( "CMD_EXEC_PROC").getLatency().getCount() == 0;
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkCommandCounts() throws IOException
+    {
+        System.out.print( "Checking the commands are counted ... ");
+
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection first = connect( metrics);
+        final Connection second = connect( metrics);
+        try {
+            for (int i = 0; i < 5; ++i) {
+                first.pingServer();
+                second.pingServer();
+            }
+
+            for (int i = 0; i < 3; ++i) {
+                first.pushStackValue( Value.createInt64( i));
+                first.flushStackUpdates();
+                first.retrieveStackTop();
+            }
+            first.callProcedure( "echo", Value.createInt64( 1));
+
+            final CommandMetrics ping = metrics.getCommand( "CMD_PING_SERVER");
+            boolean result = (ping.getFramesSent() == 10)
+                             && (ping.getFramesReceived() == 10)
+                             && (ping.getLatency().getCount() == 10)
+                             && (ping.getBytesSent() > 0)
+                             && (ping.getBytesReceived() > 0);
+
+            result &= metrics.getCommand( "CMD_UPDATE_STACK").getFramesSent() >= 3;
+            result &= metrics.getCommand( "CMD_READ_STACK").getFramesSent() >= 3;
+            result &= metrics.getCommand( "CMD_EXEC_PROC").getFramesSent() == 1;
+            result &= metrics.getCommand( "CMD_LIST_GLOBALS").getFramesSent() == 0;
+            result &= metrics.getCommand( "CMD_NONE") == null;
+
+            // The totals and the JMX views sum the commands.
+            long sent = 0, received = 0, bytes = 0;
+            for (CommandMetrics c : metrics.getCommands()) {
+                sent += c.getFramesSent();
+                received += c.getFramesReceived();
+                bytes += c.getBytesSent();
+            }
+            result &= (metrics.getFramesSent() == sent)
+                      && (metrics.getFramesReceived() == received)
+                      && (metrics.getBytesSent() == bytes);
+
+            final Map<String, Long> counts = metrics.getCommandCounts();
+            result &= (counts.get( "CMD_PING_SERVER") == 10) && (counts.size() == metrics.getCommands().length);
+            result &= metrics.getLatencyMaxNanos().get( "CMD_PING_SERVER") == ping.getLatency().getMax();
+            result &= metrics.getLatencyP50Nanos().get( "CMD_PING_SERVER") <= metrics.getLatencyP99Nanos().get( "CMD_PING_SERVER");
+
+            // A connection with no metrics set counts nothing.
+            second.setMetrics( null);
+            second.pingServer();
+            result &= ping.getFramesSent() == 10;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    boolean checkReset() throws IOException
+    {
+        System.out.print( "Checking the metrics reset ... ");
+
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection c = connect( metrics);
+        try {
+            c.pingServer();
+            c.pushStackValue( Value.createInt64( 1));
+            c.flushStackUpdates();
+            c.retrieveStackTop();
+
+            metrics.reset();
+
+            boolean result = (metrics.getFramesSent() == 0)
+                             && (metrics.getBytesReceived() == 0)
+                             && (metrics.getCipherNanos() == 0)
+                             && (metrics.getServerWaitNanos() == 0)
+                             && (metrics.getDecodeNanos() == 0);
+            for (CommandMetrics m : metrics.getCommands()) {
+                final LatencyHistogram h = m.getLatency();
+                result &= (h.getCount() == 0) && (h.getMax() == 0) && (h.getValueAtPercentile( 99) == 0);
+            }
+
+            // And counts again from there.
+            c.pingServer();
+            result &= metrics.getCommand( "CMD_PING_SERVER").getFramesSent() == 1;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkMBean() throws Exception
+    {
+        System.out.print( "Checking the JMX registration ... ");
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final ConnectionMetrics other = new ConnectionMetrics();
+        final Connection c = connect( metrics);
+        try {
+            final ObjectName name = metrics.registerMBean( "check");
+            boolean result = server.isRegistered( name)
+                             && name.equals( new ObjectName( "net.whais.Client:type=ConnectionMetrics,name=\"check\""));
+
+            c.pingServer();
+            result &= ((Long) server.getAttribute( name, "FramesSent")) == 1;
+
+            server.invoke( name, "reset", null, null);
+            result &= metrics.getFramesSent() == 0;
+
+            try {
+                metrics.registerMBean( "again");
+                result = false;
+            } catch (IllegalStateException e) {
+            }
+
+            try {
+                other.registerMBean( "check");
+                result = false;
+            } catch (JMException e) {
+            }
+
+            metrics.unregisterMBean();
+            result &= ! server.isRegistered( name);
+            metrics.unregisterMBean();
+
+            // The name is free again.
+            result &= other.registerMBean( "check").equals( name);
+            other.unregisterMBean();
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+            metrics.unregisterMBean();
+            other.unregisterMBean();
+        }
+    }
+
+    private final Random        mRandom;
+    private final StandInServer mServer;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+}
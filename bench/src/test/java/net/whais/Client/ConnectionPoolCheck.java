@@ -0,0 +1,366 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks of {@link ConnectionPool} against a {@link StandInServer}: borrow
+ * timeouts, idle eviction, validation of idle connections and the release
+ * path.
+ */
+public class ConnectionPoolCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final ConnectionPoolCheck t = new ConnectionPoolCheck();
+
+        boolean testResult = true;
+        try {
+            testResult &= t.checkBorrowTimeout();
+            testResult &= t.checkBorrowWakeUp();
+            testResult &= t.checkIdleEviction();
+            testResult &= t.checkValidation();
+            testResult &= t.checkReleaseClearsStack();
+            testResult &= t.checkReleaseOfBrokenConnection();
+            testResult &= t.checkForeignConnection();
+            testResult &= t.checkClosedPool();
+        } finally {
+            t.mServer.close();
+        }
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    ConnectionPoolCheck() throws IOException
+    {
+        mServer = new StandInServer( KEY, KEY);
+        mPort = mServer.listen( 0);
+    }
+
+    ConnectionPool newPool( int minSize, int maxSize, long borrowTimeout, long idleTimeout) throws IOException
+    {
+        return new ConnectionPool( "127.0.0.1",
+                                   Integer.toString( mPort),
+                                   "check",
+                                   KEY,
+                                   Connection.USER,
+                                   _c.DEFAULT_FRAME_SIZE,
+                                   minSize,
+                                   maxSize,
+                                   borrowTimeout,
+                                   idleTimeout);
+    }
+
+    /**
+     * Stop the server, dropping every opened connection, and start a new one
+     * on the same port.
+     */
+    void restartServer() throws Exception
+    {
+        mServer.close();
+        Thread.sleep( 100);
+
+        mServer = new StandInServer( KEY, KEY);
+        mServer.listen( mPort);
+    }
+
+    boolean checkBorrowTimeout() throws IOException
+    {
+        System.out.print( "Checking borrow timeouts ... ");
+
+        final ConnectionPool pool = newPool( 0, 1, 100, 0);
+        boolean result = true;
+        try {
+            final Connection c = pool.borrow();
+
+            final long start = System.currentTimeMillis();
+            try {
+                pool.borrow();
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.CONNECTION_TIMEOUT;
+            }
+            result &= System.currentTimeMillis() - start >= 100;
+
+            try {
+                pool.borrow( 0);
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.CONNECTION_TIMEOUT;
+            }
+
+            result &= (pool.getSize() == 1) && (pool.getLeasedCount() == 1);
+
+            pool.release( c);
+            result &= (pool.getIdleCount() == 1) && (pool.getLeasedCount() == 0);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkBorrowWakeUp() throws Exception
+    {
+        System.out.print( "Checking a waiting borrower gets a released connection ... ");
+
+        final ConnectionPool pool = newPool( 0, 1, 0, 0);
+        boolean result = true;
+        try {
+            final Connection c = pool.borrow( 0);
+            final Thread releaser = new Thread() {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep( 100);
+                    } catch (InterruptedException e) {
+                        // Release it anyway.
+                    }
+                    pool.release( c);
+                }
+            };
+            releaser.start();
+
+            final Connection other = pool.borrow( 5000);
+            releaser.join();
+
+            result &= other == c;
+            other.pingServer();
+            pool.release( other);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkIdleEviction() throws Exception
+    {
+        System.out.print( "Checking idle connections eviction ... ");
+
+        final ConnectionPool pool = newPool( 1, 3, 1000, 100);
+        boolean result = pool.getSize() == 1;
+        try {
+            final Connection[] leased = new Connection[3];
+            for (int i = 0; i < leased.length; ++i)
+                leased[i] = pool.borrow();
+
+            result &= (pool.getSize() == 3) && (pool.getIdleCount() == 0);
+
+            for (Connection c : leased)
+                pool.release( c);
+
+            result &= pool.getIdleCount() == 3;
+            result &= pool.evictIdleConnections() == 0;
+
+            Thread.sleep( 200);
+
+            // The pool does not go under its minimum size.
+            result &= pool.evictIdleConnections() == 2;
+            result &= (pool.getSize() == 1) && (pool.getIdleCount() == 1);
+
+            Thread.sleep( 200);
+            result &= pool.evictIdleConnections() == 0;
+
+            final Connection c = pool.borrow();
+            c.pingServer();
+            pool.release( c);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkValidation() throws Exception
+    {
+        System.out.print( "Checking validation of idle connections ... ");
+
+        final ConnectionPool pool = newPool( 0, 1, 1000, 0);
+        boolean result = true;
+        try {
+            // Without validation the dead connection is handed out.
+            pool.setValidationInterval( 60000);
+            Connection c = pool.borrow();
+            pool.release( c);
+
+            restartServer();
+
+            c = pool.borrow();
+            try {
+                c.pingServer();
+                result = false;
+            } catch (IOException e) {
+                // Expected, the server dropped it.
+            }
+            pool.invalidate( c);
+            result &= pool.getSize() == 0;
+
+            // With validation it is replaced.
+            pool.setValidationInterval( 0);
+            c = pool.borrow();
+            pool.release( c);
+
+            restartServer();
+
+            final Connection fresh = pool.borrow();
+            result &= fresh != c;
+            fresh.pingServer();
+            result &= pool.getSize() == 1;
+            pool.release( fresh);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkReleaseClearsStack() throws IOException
+    {
+        System.out.print( "Checking release pops and flushes the stack ... ");
+
+        final ConnectionPool pool = newPool( 0, 1, 1000, 0);
+        boolean result = true;
+        try {
+            Connection c = pool.borrow();
+            c.pushStackValue( Value.createInt32( 1));
+            c.pushStackValue( Value.createText( "pending"));
+            c.flushStackUpdates();
+            c.pushStackValue( Value.createInt64( 3)); // Left unflushed.
+            pool.release( c);
+
+            final Connection again = pool.borrow();
+            result &= again == c;
+            try {
+                again.describeStackTop();
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.INVALID_ARGS;
+            }
+
+            again.pushStackValue( Value.createInt32( 7));
+            again.flushStackUpdates();
+            result &= again.describeStackTop().getTypeId() == ValueType.INT32;
+            pool.release( again);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkReleaseOfBrokenConnection() throws Exception
+    {
+        System.out.print( "Checking release discards a broken connection ... ");
+
+        final ConnectionPool pool = newPool( 0, 1, 1000, 0);
+        boolean result = true;
+        try {
+            final Connection c = pool.borrow();
+            c.pushStackValue( Value.createInt32( 1));
+
+            restartServer();
+
+            // The flush fails, so the connection must not return to the pool.
+            pool.release( c);
+            result &= (pool.getSize() == 0) && (pool.getIdleCount() == 0);
+
+            final Connection fresh = pool.borrow( 0);
+            result &= fresh != c;
+            fresh.pingServer();
+            pool.release( fresh);
+        } finally {
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkForeignConnection() throws IOException
+    {
+        System.out.print( "Checking connections from elsewhere are refused ... ");
+
+        final ConnectionPool pool = newPool( 0, 1, 1000, 0);
+        final Connection foreign = mServer.connect( "check", KEY, Connection.USER, _c.DEFAULT_FRAME_SIZE);
+        boolean result = true;
+        try {
+            try {
+                pool.release( foreign);
+                result = false;
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+
+            try {
+                pool.invalidate( foreign);
+                result = false;
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+            foreign.pingServer();
+        } finally {
+            foreign.close();
+            pool.close();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkClosedPool() throws IOException
+    {
+        System.out.print( "Checking a closed pool ... ");
+
+        final ConnectionPool pool = newPool( 1, 2, 1000, 0);
+        final Connection c = pool.borrow();
+        pool.close();
+
+        boolean result = true;
+        try {
+            pool.borrow();
+            result = false;
+        } catch (ConnException e) {
+            result &= e.getCode() == CmdResult.OP_NOTPERMITED;
+        }
+
+        // A connection given back after closing is closed, not pooled.
+        pool.release( c);
+        result &= (pool.getIdleCount() == 0) && (pool.getSize() == 0);
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private StandInServer mServer;
+    private final int     mPort;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+}
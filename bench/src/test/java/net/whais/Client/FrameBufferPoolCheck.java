@@ -0,0 +1,315 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks {@link FrameBufferPool}, on its own and lending the buffers of
+ * connections to a {@link StandInServer}: the size classes and the idle
+ * limit, the buffers kept while a connection needs them, the switch of
+ * pools during a connection's life and the buffers given back on close.
+ */
+public class FrameBufferPoolCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final FrameBufferPoolCheck t = new FrameBufferPoolCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        testResult &= t.checkSizeClasses();
+        testResult &= t.checkIdleLimit();
+        testResult &= t.checkKeptBuffer();
+        testResult &= t.checkSwitchPools();
+        testResult &= t.checkClose();
+        testResult &= t.checkSharedPool();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    FrameBufferPoolCheck( long seed)
+    {
+        mRandom = new Random( seed);
+        mServer = new StandInServer( KEY, KEY);
+    }
+
+    Connection connect( FrameBufferPool pool, int frameSize) throws IOException
+    {
+        final Connection c = mServer.connect( "check", KEY, Connection.USER, frameSize);
+        c.setFrameBufferPool( pool);
+
+        return c;
+    }
+
+    boolean checkSizeClasses()
+    {
+        System.out.print( "Checking the buffers' size classes ... ");
+
+        final FrameBufferPool pool = new FrameBufferPool();
+        boolean result = true;
+        for (int size = 1; size <= (1 << 16); size += 1 + mRandom.nextInt( 97)) {
+            final byte[] buffer = pool.borrow( size);
+            result &= (buffer.length >= size)
+                      && (Integer.bitCount( buffer.length) == 1)
+                      && (buffer.length >= 512)
+                      && ((buffer.length == 512) || (buffer.length / 2 < size));
+            pool.giveBack( buffer, true);
+        }
+        result &= pool.borrow( 1 << 16).length == (1 << 16);
+        pool.giveBack( new byte[1 << 16], true);
+
+        // A given back buffer is lent again, to a request of its class only.
+        pool.clear();
+        final byte[] buffer = pool.borrow( 1000);
+        pool.giveBack( buffer, true);
+        result &= (pool.getIdleBytes() == 1024) && (pool.getBorrowedCount() == 0);
+        result &= pool.borrow( 2000) != buffer;
+        result &= pool.borrow( 600) == buffer;
+        result &= (pool.getIdleBytes() == 0) && (pool.getBorrowedCount() == 2);
+
+        // The buffers with no class size are dropped, without changing
+        // the borrowed count of the ones the connections allocated.
+        pool.giveBack( new byte[700], true);
+        pool.giveBack( new byte[1 << 17], false);
+        result &= (pool.getIdleBytes() == 0) && (pool.getBorrowedCount() == 1);
+        pool.giveBack( new byte[4096], false);
+        result &= (pool.getIdleBytes() == 4096) && (pool.getBorrowedCount() == 1);
+
+        try {
+            new FrameBufferPool( -1);
+            result = false;
+        } catch (IllegalArgumentException e) {
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkIdleLimit()
+    {
+        System.out.print( "Checking the idle buffers' limit ... ");
+
+        final FrameBufferPool pool = new FrameBufferPool( 3000);
+        final List<byte[]> buffers = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; ++i)
+            buffers.add( pool.borrow( 1024));
+
+        boolean result = (pool.getBorrowedCount() == 10) && (pool.getMaxIdleBytes() == 3000);
+        for (byte[] b : buffers)
+            pool.giveBack( b, true);
+
+        result &= (pool.getBorrowedCount() == 0) && (pool.getIdleBytes() == 2048);
+
+        pool.clear();
+        result &= pool.getIdleBytes() == 0;
+
+        final FrameBufferPool none = new FrameBufferPool( 0);
+        none.giveBack( none.borrow( 512), true);
+        result &= (none.getIdleBytes() == 0) && (none.getBorrowedCount() == 0);
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkKeptBuffer() throws IOException
+    {
+        System.out.print( "Checking the buffer is kept while needed ... ");
+
+        final FrameBufferPool pool = new FrameBufferPool();
+        final Connection c = connect( pool, 1000);
+        try {
+            // Idle between the calls.
+            c.pingServer();
+            boolean result = (pool.getBorrowedCount() == 0) && (pool.getIdleBytes() == 1024);
+
+            // Held with stack updates not sent yet.
+            c.pushStackValue( Value.createInt64( 7));
+            result &= pool.getBorrowedCount() == 1;
+            c.flushStackUpdates();
+            result &= pool.getBorrowedCount() == 0;
+
+            // Held with a stack read's response.
+            result &= c.retrieveStackTop().equals( Value.createInt64( 7));
+            result &= pool.getBorrowedCount() == 1;
+
+            c.popStackValues( 1);
+            result &= pool.getBorrowedCount() == 1;
+            c.flushStackUpdates();
+            result &= (pool.getBorrowedCount() == 0) && (pool.getIdleBytes() == 1024);
+
+            // A failed call gives it back too.
+            try {
+                c.retrieveStackTop();
+                result = false;
+            } catch (ConnException e) {
+            }
+            c.pingServer();
+            result &= pool.getBorrowedCount() == 0;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkSwitchPools() throws IOException
+    {
+        System.out.print( "Checking the switch of pools ... ");
+
+        final FrameBufferPool first = new FrameBufferPool();
+        final FrameBufferPool second = new FrameBufferPool();
+        final Connection c = connect( null, 2048);
+        try {
+            // The buffer the connection allocated goes to its first pool.
+            c.pingServer();
+            c.setFrameBufferPool( first);
+            c.pingServer();
+            boolean result = (first.getBorrowedCount() == 0) && (first.getIdleBytes() == 2048);
+
+            // A buffer held across the switch goes back to its lender.
+            c.pushStackValue( Value.createInt64( 1));
+            result &= first.getBorrowedCount() == 1;
+            c.setFrameBufferPool( second);
+            c.flushStackUpdates();
+            result &= (first.getBorrowedCount() == 0) && (first.getIdleBytes() == 2048);
+            result &= (second.getBorrowedCount() == 0) && (second.getIdleBytes() == 0);
+
+            c.pingServer();
+            result &= (second.getBorrowedCount() == 0) && (second.getIdleBytes() == 2048);
+
+            // Without a pool the connection keeps the last borrowed buffer.
+            c.setFrameBufferPool( null);
+            c.pingServer();
+            result &= (second.getBorrowedCount() == 1) && (second.getIdleBytes() == 0);
+            result &= c.getFrameBufferPool() == null;
+
+            c.close();
+            result &= (second.getBorrowedCount() == 0) && (second.getIdleBytes() == 2048);
+            result &= first.getBorrowedCount() == 0;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkClose() throws IOException
+    {
+        System.out.print( "Checking the buffers are given back on close ... ");
+
+        final FrameBufferPool pool = new FrameBufferPool();
+        final Connection pushing = connect( pool, 1000);
+        final Connection reading = connect( pool, 4000);
+        final Connection idle = connect( pool, 4000);
+
+        pushing.pushStackValue( Value.createInt64( 1));
+        reading.pushStackValue( Value.createInt64( 2));
+        reading.flushStackUpdates();
+        reading.retrieveStackTop();
+        idle.pingServer();
+
+        boolean result = (pool.getBorrowedCount() == 2) && (pool.getIdleBytes() == 4096);
+
+        pushing.close();
+        reading.close();
+        idle.close();
+        result &= (pool.getBorrowedCount() == 0) && (pool.getIdleBytes() == 1024 + 2 * 4096);
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkSharedPool() throws Exception
+    {
+        System.out.print( "Checking a pool shared by concurrent connections ... ");
+
+        final FrameBufferPool pool = new FrameBufferPool();
+        final Connection[] connections = new Connection[8];
+        for (int i = 0; i < connections.length; ++i)
+            connections[i] = connect( pool, (i % 2 == 0) ? 1000 : 8000);
+
+        final AtomicBoolean failed = new AtomicBoolean( false);
+        final Thread[] threads = new Thread[connections.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final Connection c = connections[i];
+            final long seed = mRandom.nextLong();
+            threads[i] = new Thread() {
+                @Override
+                public void run()
+                {
+                    final Random random = new Random( seed);
+                    try {
+                        for (int op = 0; op < 500; ++op) {
+                            switch (random.nextInt( 3)) {
+                            case 0:
+                                c.pingServer();
+                                break;
+                            case 1:
+                                c.pushStackValue( Value.createInt64( op));
+                                c.flushStackUpdates();
+                                if ( ! c.retrieveStackTop().equals( Value.createInt64( op)))
+                                    failed.set( true);
+                                c.popStackValues( 1);
+                                c.flushStackUpdates();
+                                break;
+                            default:
+                                c.pushStackValue( Value.createInt64( op));
+                                c.popStackValues( 1);
+                                c.flushStackUpdates();
+                            }
+                        }
+                    } catch (IOException e) {
+                        failed.set( true);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        boolean result = ! failed.get() && (pool.getBorrowedCount() == 0);
+        result &= pool.getIdleBytes() <= (connections.length / 2) * (1024 + 8192);
+
+        for (Connection c : connections)
+            c.close();
+        result &= pool.getBorrowedCount() == 0;
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private final Random        mRandom;
+    private final StandInServer mServer;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+}
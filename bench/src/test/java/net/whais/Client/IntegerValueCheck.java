@@ -0,0 +1,239 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks {@link IntegerValue} against {@link BigInteger}: parsing from text
+ * and from the wire, {@code getLong()}, {@code getBigInteger()}, the
+ * encoding, and the 64 bits and {@code UINT64} boundaries.
+ */
+public class IntegerValueCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final IntegerValueCheck t = new IntegerValueCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        testResult &= t.checkBoundaries();
+        testResult &= t.checkRandomValues();
+        testResult &= t.checkRejections();
+        testResult &= t.checkUnsignedRepresentation();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    IntegerValueCheck( long seed)
+    {
+        mRandom = new Random( seed);
+    }
+
+    static ValueType[] types() throws ConnException
+    {
+        return new ValueType[] {
+            ValueType.int8Type(), ValueType.int16Type(), ValueType.int32Type(), ValueType.int64Type(),
+            ValueType.uint8Type(), ValueType.uint16Type(), ValueType.uint32Type(), ValueType.uint64Type()
+        };
+    }
+
+    static boolean isUnsigned64( ValueType type) throws ConnException
+    {
+        return type.getBaseType() == ValueType.UINT64;
+    }
+
+    static BigInteger minOf( ValueType type) throws ConnException
+    {
+        return isUnsigned64( type) ? BigInteger.ZERO : BigInteger.valueOf( Long.MIN_VALUE);
+    }
+
+    static BigInteger maxOf( ValueType type) throws ConnException
+    {
+        return isUnsigned64( type) ? UINT64_MAX : BigInteger.valueOf( Long.MAX_VALUE);
+    }
+
+    /**
+     * Check a value in range of the type's 64 bits representation, in all
+     * the ways it can be given to and taken from an {@link IntegerValue}.
+     */
+    static boolean checkValue( ValueType type, BigInteger expected) throws ConnException
+    {
+        final String text = expected.toString();
+
+        boolean result = check( type, (IntegerValue) Value.createBasic( type, text), expected);
+        result &= check( type,
+                         (IntegerValue) Value.createBasic( type, (expected.signum() < 0) ? "-00" + text.substring( 1) : "00" + text),
+                         expected);
+        if (expected.signum() >= 0)
+            result &= check( type, (IntegerValue) Value.createBasic( type, "+" + text), expected);
+
+        // From the wire, where the digits end with the cell's terminator.
+        final byte[] wire = (" " + text + "\0").getBytes( StandardCharsets.US_ASCII);
+        final IntegerValue decoded = IntegerValue.decode( type, wire, 1);
+        result &= check( type, decoded, expected);
+
+        // Encoded into a buffer that does not start its array.
+        final ByteBuffer b = ByteBuffer.allocate( 64);
+        b.position( 3);
+
+        final ByteBuffer slice = b.slice();
+        slice.position( 1);
+        decoded.encode( slice);
+        slice.put( (byte) 0);
+
+        result &= new String( b.array(), 4, text.length(), StandardCharsets.US_ASCII).equals( text);
+        result &= check( type, IntegerValue.decode( type, b.array(), 4), expected);
+
+        if ( ! result)
+            System.out.print( "(" + type + " " + text + ") ");
+
+        return result;
+    }
+
+    static boolean check( ValueType type, IntegerValue v, BigInteger expected)
+    {
+        boolean result = ( ! v.isNull())
+                         && expected.equals( v.getBigInteger())
+                         && expected.toString().equals( v.toString());
+
+        try {
+            final long l = v.getLong();
+            result &= (expected.bitLength() < 64) && (l == expected.longValue());
+        } catch (ConnException e) {
+            result &= (expected.bitLength() >= 64) && (e.getCode() == CmdResult.VALUE_OUT_OF_RANGE);
+        }
+
+        return result;
+    }
+
+    static boolean rejects( ValueType type, String text)
+    {
+        try {
+            Value.createBasic( type, text);
+        } catch (NumberFormatException e) {
+            return true;
+        } catch (ConnException e) {
+            return false;
+        }
+
+        System.out.print( "(" + type + " '" + text + "' accepted) ");
+        return false;
+    }
+
+    boolean checkBoundaries() throws ConnException
+    {
+        System.out.print( "Checking the boundary values ... ");
+
+        boolean result = true;
+        for (ValueType type : types()) {
+            final BigInteger min = minOf( type);
+            final BigInteger max = maxOf( type);
+
+            for (BigInteger v : new BigInteger[] {
+                     min, min.add( BigInteger.ONE), max, max.subtract( BigInteger.ONE),
+                     BigInteger.ZERO, BigInteger.ONE, BigInteger.TEN,
+                     BigInteger.valueOf( Long.MAX_VALUE), BigInteger.valueOf( Long.MAX_VALUE).add( BigInteger.ONE),
+                     BigInteger.valueOf( Long.MIN_VALUE)
+                 }) {
+                if ((v.compareTo( min) >= 0) && (v.compareTo( max) <= 0))
+                    result &= checkValue( type, v);
+            }
+
+            result &= rejects( type, max.add( BigInteger.ONE).toString());
+            if (min.signum() < 0)
+                result &= rejects( type, min.subtract( BigInteger.ONE).toString());
+            else
+                result &= rejects( type, "-1");
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkRandomValues() throws ConnException
+    {
+        System.out.print( "Checking random values against BigInteger ... ");
+
+        boolean result = true;
+        for (int i = 0; (i < RANDOM_VALUES) && result; ++i) {
+            for (ValueType type : types()) {
+                // Spread the values over all the magnitudes.
+                BigInteger v = new BigInteger( 1 + mRandom.nextInt( 64), mRandom);
+                if ( ! isUnsigned64( type) && mRandom.nextBoolean())
+                    v = v.negate();
+                if ((v.compareTo( maxOf( type)) > 0) || (v.compareTo( minOf( type)) < 0))
+                    v = v.shiftRight( 1);
+
+                result &= checkValue( type, v);
+            }
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkRejections() throws ConnException
+    {
+        System.out.print( "Checking the invalid texts are rejected ... ");
+
+        boolean result = true;
+        for (ValueType type : types()) {
+            for (String text : new String[] { "+", "-", "--1", "+-1", "-+1", "++1", " 1", "1 ", "1a", "0x10", "1.0", "١" })
+                result &= rejects( type, text);
+
+            result &= rejects( type, "99999999999999999999999999");
+            result &= Value.createBasic( type, "").isNull();
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkUnsignedRepresentation() throws ConnException
+    {
+        System.out.print( "Checking the UINT64 values above Long.MAX_VALUE ... ");
+
+        boolean result = true;
+        for (int i = 0; i < RANDOM_VALUES; ++i) {
+            final long bits = mRandom.nextLong() | Long.MIN_VALUE;
+            final BigInteger expected = BigInteger.valueOf( bits & Long.MAX_VALUE).setBit( 63);
+
+            final IntegerValue v = (IntegerValue) Value.createUInt64( bits);
+            result &= check( v.type(), v, expected)
+                      && v.equals( Value.createBasic( ValueType.uint64Type(), expected.toString()));
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private final Random mRandom;
+
+    private static final int        RANDOM_VALUES = 25000;
+    private static final BigInteger UINT64_MAX    = BigInteger.ONE.shiftLeft( 64).subtract( BigInteger.ONE);
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the connections sharing a {@link MetadataCache}, against a
+ * {@link StandInServer}: the cached descriptions answered with no round
+ * trips, the entries' time to live, the invalidation and the answers given
+ * while stack commands are pending.
+ */
+public class MetadataCacheCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final MetadataCacheCheck t = new MetadataCacheCheck();
+
+        boolean testResult = true;
+        testResult &= t.checkHits();
+        testResult &= t.checkInvalidate();
+        testResult &= t.checkTimeToLive();
+        testResult &= t.checkPendingCommands();
+        testResult &= t.checkUserConnection();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    MetadataCacheCheck() throws ConnException
+    {
+        mServer = new StandInServer( KEY, KEY);
+        defineProcedure( "echo");
+        defineProcedure( "work");
+        mServer.defineGlobal( "counter", Value.createInt64( 1));
+        mServer.defineGlobal( "flag", Value.createBool( true));
+    }
+
+    void defineProcedure( String name)
+    {
+        mServer.defineProcedure( name,
+                                 ValueType.int64Type(),
+                                 new ValueType[] { ValueType.int64Type(), ValueType.boolType() },
+                                 new StandInServer.Procedure() {
+                                     @Override
+                                     public Value execute( Value[] params)
+                                     {
+                                         return params[0];
+                                     }
+                                 });
+    }
+
+    Connection connect( MetadataCache cache, ConnectionMetrics metrics, byte userId) throws IOException
+    {
+        final Connection c = mServer.connect( "check", KEY, userId, _c.DEFAULT_FRAME_SIZE);
+        c.setMetadataCache( cache);
+        c.setMetrics( metrics);
+
+        return c;
+    }
+
+    // The frames sent by the metadata requests.
+    static long metadataFrames( ConnectionMetrics metrics)
+    {
+        return metrics.getCommand( "CMD_LIST_GLOBALS").getFramesSent()
+               + metrics.getCommand( "CMD_LIST_PROCEDURE").getFramesSent()
+               + metrics.getCommand( "CMD_DESC_PROC_PARAM").getFramesSent()
+               + metrics.getCommand( "CMD_GLOBAL_DESC").getFramesSent();
+    }
+
+    // Request all the metadata, checking the answers.
+    static boolean describeAll( Connection c) throws IOException
+    {
+        final String[] procedures = c.retrieveProceduresNames();
+        Arrays.sort( procedures);
+
+        final String[] globals = c.retrieveGlobalNames();
+        Arrays.sort( globals);
+
+        boolean result = Arrays.asList( procedures).containsAll( Arrays.asList( "echo", "work"));
+        result &= Arrays.asList( globals).containsAll( Arrays.asList( "counter", "flag"));
+
+        for (String name : new String[] { "echo", "work" }) {
+            final ProcedureDescription d = c.describeProcedure( name);
+            result &= (d.getParametersCount() == 2)
+                      && (d.describeReturnValue().getTypeId() == ValueType.int64Type().getTypeId())
+                      && (d.describeParameter( 1).getTypeId() == ValueType.boolType().getTypeId());
+        }
+        result &= c.describeGlobal( "counter").getTypeId() == ValueType.int64Type().getTypeId();
+        result &= c.describeGlobal( "flag").getTypeId() == ValueType.boolType().getTypeId();
+
+        return result;
+    }
+
+    boolean checkHits() throws IOException
+    {
+        System.out.print( "Checking the cached metadata is answered from memory ... ");
+
+        final MetadataCache cache = new MetadataCache();
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection first = connect( cache, metrics, Connection.ADMIN);
+        final Connection second = connect( cache, metrics, Connection.ADMIN);
+        try {
+            boolean result = describeAll( first);
+
+            final long frames = metadataFrames( metrics);
+            result &= frames >= 6;
+
+            result &= describeAll( first);
+            result &= describeAll( second);
+            result &= metadataFrames( metrics) == frames;
+
+            // The callers get copies of the names.
+            first.retrieveProceduresNames()[0] = "changed";
+            result &= ! Arrays.asList( second.retrieveProceduresNames()).contains( "changed");
+
+            // A connection with no cache asks the server.
+            second.setMetadataCache( null);
+            second.describeProcedure( "echo");
+            result &= metadataFrames( metrics) == frames + 1;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    boolean checkInvalidate() throws IOException
+    {
+        System.out.print( "Checking the metadata invalidation ... ");
+
+        final MetadataCache cache = new MetadataCache();
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection c = connect( cache, metrics, Connection.ADMIN);
+        try {
+            boolean result = describeAll( c);
+
+            // The server changes are not seen until invalidated.
+            defineProcedure( "added");
+            mServer.defineGlobal( "counter", Value.createBool( false));
+            result &= ! Arrays.asList( c.retrieveProceduresNames()).contains( "added");
+            result &= c.describeGlobal( "counter").getTypeId() == ValueType.int64Type().getTypeId();
+
+            long frames = metadataFrames( metrics);
+            cache.invalidateProcedure( "echo");
+            result &= Arrays.asList( c.retrieveProceduresNames()).contains( "added");
+            c.describeProcedure( "echo");
+            c.describeProcedure( "work");
+            result &= metadataFrames( metrics) == frames + 2;
+
+            frames = metadataFrames( metrics);
+            cache.invalidateGlobal( "counter");
+            result &= c.describeGlobal( "counter").getTypeId() == ValueType.boolType().getTypeId();
+            c.retrieveGlobalNames();
+            c.describeGlobal( "flag");
+            result &= metadataFrames( metrics) == frames + 2;
+
+            frames = metadataFrames( metrics);
+            cache.invalidate();
+            mServer.defineGlobal( "counter", Value.createInt64( 1));
+            result &= describeAll( c);
+            result &= metadataFrames( metrics) >= frames + 6;
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkTimeToLive() throws Exception
+    {
+        System.out.print( "Checking the metadata's time to live ... ");
+
+        final MetadataCache cache = new MetadataCache( 300, TimeUnit.MILLISECONDS);
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection c = connect( cache, metrics, Connection.ADMIN);
+        try {
+            c.describeProcedure( "echo");
+            c.describeGlobal( "flag");
+            c.retrieveGlobalNames();
+
+            final long frames = metadataFrames( metrics);
+            c.describeProcedure( "echo");
+            c.describeGlobal( "flag");
+            c.retrieveGlobalNames();
+            boolean result = metadataFrames( metrics) == frames;
+
+            Thread.sleep( 400);
+            c.describeProcedure( "echo");
+            c.describeGlobal( "flag");
+            c.retrieveGlobalNames();
+            result &= metadataFrames( metrics) == 2 * frames;
+
+            try {
+                new MetadataCache( -1, TimeUnit.SECONDS);
+                result = false;
+            } catch (IllegalArgumentException e) {
+            }
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkPendingCommands() throws IOException
+    {
+        System.out.print( "Checking the metadata requests with pending commands ... ");
+
+        final MetadataCache cache = new MetadataCache();
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection c = connect( cache, metrics, Connection.ADMIN);
+        try {
+            c.describeProcedure( "echo");
+            c.retrieveProceduresNames();
+
+            // The cached answers leave the pending stack updates alone.
+            c.pushStackValue( Value.createInt64( 42));
+            boolean result = c.describeProcedure( "echo").getParametersCount() == 2;
+            result &= Arrays.asList( c.retrieveProceduresNames()).contains( "echo");
+
+            // The others need the server, so the updates have to be sent first.
+            try {
+                c.describeGlobal( "flag");
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.INCOMPLETE_CMD;
+            }
+
+            c.flushStackUpdates();
+            result &= c.retrieveStackTop().equals( Value.createInt64( 42));
+
+            // And so do all without a cache.
+            c.setMetadataCache( null);
+            c.pushStackValue( Value.createInt64( 43));
+            try {
+                c.describeProcedure( "echo");
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.INCOMPLETE_CMD;
+            }
+            c.flushStackUpdates();
+            result &= c.retrieveStackTop().equals( Value.createInt64( 43));
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkUserConnection() throws IOException
+    {
+        System.out.print( "Checking the cache does not bypass the permissions ... ");
+
+        final MetadataCache cache = new MetadataCache();
+        final ConnectionMetrics metrics = new ConnectionMetrics();
+        final Connection admin = connect( cache, metrics, Connection.ADMIN);
+        final Connection user = connect( cache, metrics, Connection.USER);
+        try {
+            boolean result = describeAll( admin);
+            try {
+                user.describeProcedure( "echo");
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.OP_NOTPERMITED;
+            }
+            try {
+                user.retrieveGlobalNames();
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.OP_NOTPERMITED;
+            }
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            admin.close();
+            user.close();
+        }
+    }
+
+    private final StandInServer mServer;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+}
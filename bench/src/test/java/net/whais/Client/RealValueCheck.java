@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks the fixed point {@link RealValue} against {@link BigDecimal}:
+ * parsing from text and from the wire, the {@code double} conversion and
+ * the encoding, around the limits of the {@code REAL} and {@code RICHREAL}
+ * types and of the {@code long} holding the digits.
+ */
+public class RealValueCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final RealValueCheck t = new RealValueCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        testResult &= t.checkTypeLimits();
+        testResult &= t.checkLongLimits();
+        testResult &= t.checkRandomValues();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    RealValueCheck( long seed)
+    {
+        mRandom = new Random( seed);
+    }
+
+    /**
+     * Check a real's text in all the ways it can be given to and taken from
+     * a {@link RealValue}.
+     */
+    static boolean checkValue( ValueType type, String text) throws ConnException
+    {
+        final BigDecimal expected = new BigDecimal( text);
+
+        boolean result = check( (RealValue) Value.createBasic( type, text), expected);
+
+        // From the wire, where the digits end with the cell's terminator.
+        final byte[] wire = (" " + text + "\0").getBytes( StandardCharsets.US_ASCII);
+        final RealValue decoded = RealValue.decode( type, wire, 1);
+        result &= check( decoded, expected);
+        result &= RealValue.decodeDouble( wire, 1) == Double.parseDouble( text);
+
+        // Encoded into a buffer that does not start its array.
+        final ByteBuffer b = ByteBuffer.allocate( 128);
+        b.position( 3);
+
+        final ByteBuffer slice = b.slice();
+        slice.position( 1);
+        decoded.encode( slice);
+        slice.put( (byte) 0);
+
+        result &= check( RealValue.decode( type, b.array(), 4), expected);
+
+        if ( ! result)
+            System.out.print( "(" + type + " " + text + ") ");
+
+        return result;
+    }
+
+    static boolean check( RealValue v, BigDecimal expected) throws ConnException
+    {
+        return ( ! v.isNull())
+               && (v.getBigDecimal().compareTo( expected) == 0)
+               && v.toString().equals( expected.toPlainString())
+               && (v.getDouble() == expected.doubleValue());
+    }
+
+    boolean checkTypeLimits() throws ConnException
+    {
+        System.out.print( "Checking the REAL and RICHREAL limits ... ");
+
+        boolean result = true;
+        for (String text : new String[] {
+                 "549755813887.999999", "-549755813888.999999", "549755813887", "-549755813888",
+                 "0.000001", "-0.000001", "0", "-0", "0.0"
+             }) {
+            result &= checkValue( ValueType.realType(), text);
+            result &= checkValue( ValueType.richrealType(), text);
+        }
+
+        for (String text : new String[] {
+                 "9223372036854775807.99999999999999", "-9223372036854775808.99999999999999",
+                 "9223372036854775807", "-9223372036854775808",
+                 "0.00000000000001", "-0.00000000000001"
+             }) {
+            result &= checkValue( ValueType.richrealType(), text);
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    /**
+     * The digits are accumulated in a {@code long}: check the values of 18
+     * to 20 digits around its limits, with the decimal point anywhere.
+     */
+    boolean checkLongLimits() throws ConnException
+    {
+        System.out.print( "Checking the values around the 64 bits limits ... ");
+
+        final BigInteger max = BigInteger.valueOf( Long.MAX_VALUE);
+        final BigInteger[] edges = {
+            max.divide( BigInteger.TEN), max, max.multiply( BigInteger.TEN), BigInteger.TEN.pow( 18), BigInteger.TEN.pow( 19)
+        };
+
+        boolean result = true;
+        for (BigInteger edge : edges) {
+            for (int delta = -12; delta <= 12; ++delta) {
+                final String digits = edge.add( BigInteger.valueOf( delta)).toString();
+                for (int point = 0; point <= digits.length(); ++point) {
+                    final String text = (point == digits.length())
+                                        ? digits
+                                        : digits.substring( 0, point) + "." + digits.substring( point);
+
+                    result &= checkValue( ValueType.richrealType(), text);
+                    result &= checkValue( ValueType.richrealType(), "-" + text);
+                }
+            }
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkRandomValues() throws ConnException
+    {
+        System.out.print( "Checking random values against BigDecimal ... ");
+
+        boolean result = true;
+        for (int i = 0; (i < RANDOM_VALUES) && result; ++i) {
+            final StringBuilder text = new StringBuilder();
+            if (mRandom.nextBoolean())
+                text.append( '-');
+
+            final int digits = 1 + mRandom.nextInt( 33);
+            final int point = mRandom.nextInt( digits + 1);
+            for (int d = 0; d < digits; ++d) {
+                if ((d == point) && (d > 0))
+                    text.append( '.');
+                text.append( (char) ('0' + mRandom.nextInt( 10)));
+            }
+
+            result &= checkValue( ValueType.richrealType(), text.toString());
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private final Random mRandom;
+
+    private static final int RANDOM_VALUES = 100000;
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The three kings cipher as it was first written: every message word is
+ * transformed by testing the third king's bits one by one. Kept as the
+ * reference {@link ThreeKingsCipher} must match byte for byte.
+ * <p>
+ * The kings are chosen by the caller and the padding bytes are whatever the
+ * buffer holds after the frame, so the output is reproducible.</p>
+ */
+final class ReferenceThreeKingsCipher
+{
+    static int encodeFrame( ByteBuffer buffer, int frameSize, byte[] key, int firstKing, int secondKing)
+    {
+        int bufferSize = frameSize;
+        final int plainSize = bufferSize;
+
+        while (bufferSize % 4 != 0)
+            ++bufferSize;
+
+        buffer.putInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF, firstKing);
+        buffer.putInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF, secondKing);
+        for (int i = 0, prev = 0; i < _c.ENC_PLAIN_SIZE_OFF; ++i) {
+            final byte b = buffer.get( _c.FRAME_HDR_SIZE + i);
+            buffer.put( _c.FRAME_HDR_SIZE + i, (byte) (b ^ key[prev % key.length]));
+            prev = b & 0xFF;
+        }
+
+        buffer.putShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, (short) plainSize);
+
+        encodeBuffer( buffer, _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, bufferSize, key, firstKing, secondKing);
+        buffer.putShort( _c.FRAME_SIZE_OFF, (short) bufferSize);
+
+        return bufferSize;
+    }
+
+    static int decodeFrame( ByteBuffer buffer, int frameSize, byte[] key)
+    {
+        for (int i = 0, prev = 0; i < _c.ENC_PLAIN_SIZE_OFF; ++i) {
+            byte b = buffer.get( _c.FRAME_HDR_SIZE + i);
+            b ^= key[prev % key.length];
+            buffer.put( _c.FRAME_HDR_SIZE + i, b);
+            prev = b & 0xFF;
+        }
+
+        final int firstKing = buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF);
+        final int secondKing = buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF);
+        decodeBuffer( buffer, _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, frameSize, key, firstKing, secondKing);
+
+        return buffer.getShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF) & 0x0000FFFF;
+    }
+
+    static void encodeBuffer( ByteBuffer buffer, int from, int to, byte[] key, int firstKing, int secondKing)
+    {
+        assert to % 4 == 0;
+        int keyIndex = (int) ((firstKing & 0xFFFFFFFFL) % key.length);
+
+        for (int pos = from; pos < to; pos += 4) {
+            int message = buffer.getInt( pos);
+            message -= firstKing;
+            message ^= secondKing;
+
+            int thirdKing = 0;
+            for (int k = 0; k < 4; ++k) {
+                thirdKing = (thirdKing << 8) | (key[keyIndex++] & 0xFF);
+                keyIndex %= key.length;
+            }
+
+            for (int b = 0; b < 16; ++b) {
+                if ((thirdKing & (1 << b)) != 0)
+                    message = exchangeBits( message, 2 * b, 2 * b + 1, 1);
+            }
+
+            for (int b = 0; b < 8; ++b) {
+                if ((thirdKing & (1 << (16 + b))) != 0)
+                    message = exchangeBits( message, 4 * b, 4 * b + 2, 2);
+            }
+
+            for (int b = 0; b < 4; ++b) {
+                if ((thirdKing & (1 << (24 + b))) != 0)
+                    message = exchangeBits( message, 8 * b, 8 * b + 4, 4);
+            }
+
+            for (int b = 0; b < 2; ++b) {
+                if ((thirdKing & (1 << (28 + b))) != 0)
+                    message = exchangeBits( message, 16 * b, 16 * b + 8, 8);
+            }
+
+            if ((thirdKing & (1 << 30)) != 0)
+                message = exchangeBits( message, 0, 16, 16);
+
+            if ((thirdKing & (1 << 31)) != 0)
+                message = exchangeBits( message, 8, 16, 8);
+
+            buffer.putInt( pos, message);
+        }
+    }
+
+    static void decodeBuffer( ByteBuffer buffer, int from, int to, byte[] key, int firstKing, int secondKing)
+    {
+        assert to % 4 == 0;
+        int keyIndex = (int) ((firstKing & 0xFFFFFFFFL) % key.length);
+
+        for (int pos = from; pos < to; pos += 4) {
+            int message = buffer.getInt( pos);
+
+            int thirdKing = 0;
+            for (int k = 0; k < 4; ++k) {
+                thirdKing = (thirdKing << 8) | (key[keyIndex++] & 0xFF);
+                keyIndex %= key.length;
+            }
+
+            if ((thirdKing & (1 << 31)) != 0)
+                message = exchangeBits( message, 8, 16, 8);
+
+            if ((thirdKing & (1 << 30)) != 0)
+                message = exchangeBits( message, 0, 16, 16);
+
+            for (int b = 1; b >= 0; --b) {
+                if ((thirdKing & (1 << (28 + b))) != 0)
+                    message = exchangeBits( message, 16 * b, 16 * b + 8, 8);
+            }
+
+            for (int b = 3; b >= 0; --b) {
+                if ((thirdKing & (1 << (24 + b))) != 0)
+                    message = exchangeBits( message, 8 * b, 8 * b + 4, 4);
+            }
+
+            for (int b = 7; b >= 0; --b) {
+                if ((thirdKing & (1 << (16 + b))) != 0)
+                    message = exchangeBits( message, 4 * b, 4 * b + 2, 2);
+            }
+
+            for (int b = 15; b >= 0; --b) {
+                if ((thirdKing & (1 << b)) != 0)
+                    message = exchangeBits( message, 2 * b, 2 * b + 1, 1);
+            }
+
+            message ^= secondKing;
+            message += firstKing;
+
+            buffer.putInt( pos, message);
+        }
+    }
+
+    // Exchange the width bits found at p1 with the ones found at p2.
+    private static int exchangeBits( int value, int p1, int p2, int width)
+    {
+        final int mask = (int) ((1L << width) - 1);
+        final int val1 = (value >>> p1) & mask;
+        final int val2 = (value >>> p2) & mask;
+
+        value &= ~((mask << p1) | (mask << p2));
+        value |= (val1 << p2) | (val2 << p1);
+
+        return value;
+    }
+}
@@ -0,0 +1,638 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks the tables retrieved from a {@link StandInServer} through frames of
+ * different sizes, so the rows are often cut by the frames' boundaries: the
+ * columns of {@link TableValue} and its index based accessors, the
+ * {@link TableCursor} walks, with and without read ahead, and the cursor's
+ * getters reading the cells kept in their received form.
+ */
+public class TableCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final TableCheck t = new TableCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        testResult &= t.checkTableValue();
+        for (int frameSize : FRAME_SIZES) {
+            testResult &= t.checkRetrievedTable( frameSize);
+            testResult &= t.checkCursor( frameSize, false);
+            testResult &= t.checkCursor( frameSize, true);
+            testResult &= t.checkInterleavedCursors( frameSize);
+            testResult &= t.checkCellGetters( frameSize);
+        }
+        testResult &= t.checkCursorErrors();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    TableCheck( long seed) throws ConnException
+    {
+        mRandom = new Random( seed);
+        mServer = new StandInServer( KEY, KEY);
+        mFields = ValueType.create( new TableFieldType[] {
+                      new TableFieldType( "amount", ValueType.realType()),
+                      new TableFieldType( "big", ValueType.uint64Type()),
+                      new TableFieldType( "day", ValueType.dateType()),
+                      new TableFieldType( "flag", ValueType.boolType()),
+                      new TableFieldType( "id", ValueType.int64Type()),
+                      new TableFieldType( "initial", ValueType.charType()),
+                      new TableFieldType( "label", ValueType.textType()),
+                      new TableFieldType( "ratio", ValueType.richrealType()),
+                      new TableFieldType( "small", ValueType.int8Type()),
+                      new TableFieldType( "stamp", ValueType.hirestimeType()),
+                      new TableFieldType( "values", ValueType.arrayInt32Type())
+                  }).getFields();
+    }
+
+    // Get a table with random cells, about one in eight of them null. The
+    // texts are up to a few frames long.
+    TableValue randomTable( int rows, int maxTextLength) throws ConnException
+    {
+        final TableValue table = Value.createTable( mFields);
+
+        table.addRows( rows);
+        for (int row = 0; row < rows; ++row) {
+            for (int f = 0; f < mFields.length; ++f) {
+                if (mRandom.nextInt( 8) != 0)
+                    table.put( randomValue( mFields[f].getType(), maxTextLength), f, row);
+            }
+        }
+
+        return table;
+    }
+
+    Value randomValue( ValueType type, int maxTextLength) throws ConnException
+    {
+        switch (type.getBaseType()) {
+        case ValueType.REAL:
+            return Value.createReal( (mRandom.nextInt( 2000001) - 1000000) + "." + mRandom.nextInt( 1000));
+
+        case ValueType.RICHREAL:
+            return Value.createRichReal( (mRandom.nextLong() >> 20) + "." + mRandom.nextInt( 1000000));
+
+        case ValueType.UINT64:
+            return Value.createUInt64( Long.toUnsignedString( mRandom.nextLong()));
+
+        case ValueType.INT64:
+            return Value.createInt64( mRandom.nextLong() >> mRandom.nextInt( 64));
+
+        case ValueType.INT8:
+            return Value.createInt8( mRandom.nextInt( 256) - 128);
+
+        case ValueType.BOOL:
+            return Value.createBool( mRandom.nextBoolean());
+
+        case ValueType.CHAR:
+            return Value.createChar( ALPHABET.charAt( mRandom.nextInt( ALPHABET.length())));
+
+        case ValueType.DATE:
+            return Value.createDate( (1 + mRandom.nextInt( 3000)) + "/" + (1 + mRandom.nextInt( 12)) + "/" + (1 + mRandom.nextInt( 28)));
+
+        case ValueType.HIRESTIME:
+            return Value.createHiresTime( (1 + mRandom.nextInt( 3000)) + "/" + (1 + mRandom.nextInt( 12)) + "/" + (1 + mRandom.nextInt( 28))
+                                         + " " + mRandom.nextInt( 24) + ":" + mRandom.nextInt( 60) + ":" + mRandom.nextInt( 60)
+                                         + "." + mRandom.nextInt( 1000000));
+
+        case ValueType.TEXT: {
+            final StringBuilder text = new StringBuilder();
+            for (int i = mRandom.nextInt( maxTextLength + 1); i > 0; --i)
+                text.append( ALPHABET.charAt( mRandom.nextInt( ALPHABET.length())));
+
+            return Value.createText( text.toString());
+        }
+
+        default: {
+            final long[] elements = new long[1 + mRandom.nextInt( 5)];
+            for (int i = 0; i < elements.length; ++i)
+                elements[i] = mRandom.nextInt();
+
+            return Value.createArray( ValueType.int32Type(), elements);
+        }
+        }
+    }
+
+    // Connect with a frame size and push a table on the stack.
+    Connection connect( int frameSize, TableValue table) throws IOException
+    {
+        final Connection c = mServer.connect( "check", KEY, Connection.USER, frameSize);
+        c.setMetrics( new ConnectionMetrics());
+
+        c.pushStackValue( table);
+        c.flushStackUpdates();
+
+        return c;
+    }
+
+    // Get the outcome of a cell's read, i.e. the value read or the code of
+    // the error the read failed with.
+    static abstract class Read
+    {
+        abstract Object read() throws ConnException;
+
+        final Object outcome()
+        {
+            try {
+                return read();
+            } catch (ConnException e) {
+                return "error " + e.getCode();
+            }
+        }
+    }
+
+    // The outcome of reading a cell's value as a long, as the typed getters
+    // should have it.
+    static Object expectedLong( final Value v)
+    {
+        return new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                if (v.isNull())
+                    throw new ConnException( CmdResult.INVALID_ARGS);
+                else if ( ! (v instanceof IntegerValue))
+                    throw new ConnException( CmdResult.TYPE_MISMATCH);
+
+                return ((IntegerValue) v).getLong();
+            }
+        }.outcome();
+    }
+
+    static Object expectedDouble( final Value v)
+    {
+        return new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                if (v.isNull())
+                    throw new ConnException( CmdResult.INVALID_ARGS);
+                else if (v instanceof RealValue)
+                    return ((RealValue) v).getDouble();
+                else if (v instanceof IntegerValue)
+                    return ((IntegerValue) v).toDouble();
+
+                throw new ConnException( CmdResult.TYPE_MISMATCH);
+            }
+        }.outcome();
+    }
+
+    boolean checkTableValue() throws ConnException
+    {
+        System.out.print( "Checking the table's columns ... ");
+
+        final TableValue table = randomTable( 500, 40);
+        final TableValue copy = Value.createTable( mFields);
+
+        // Filled in a different order, by name and with a row added at a time.
+        boolean result = true;
+        for (int row = 0; row < table.getRowsCount(); ++row) {
+            for (int f = mFields.length - 1; f >= 0; --f) {
+                final Value v = table.get( f, row);
+                if (v.isNull() && (copy.getRowsCount() > row))
+                    continue;
+
+                copy.put( v.isNull() ? null : v, mFields[f].getName(), row);
+            }
+        }
+        result &= copy.equals( table) && table.equals( copy);
+
+        for (int f = 0; f < mFields.length; ++f)
+            result &= table.getFieldIndex( mFields[f].getName()) == f;
+
+        // Clearing a cell, and setting it back.
+        final int row = mRandom.nextInt( table.getRowsCount());
+        final Value v = randomValue( mFields[0].getType(), 40);
+        copy.put( null, 0, row);
+        result &= copy.isNull( 0, row) && copy.get( 0, row).isNull() && (copy.equals( table) == table.isNull( 0, row));
+        copy.put( v, 0, row);
+        result &= ! copy.isNull( 0, row) && copy.get( 0, row).equals( v);
+
+        result &= errorCode( new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                return table.getFieldIndex( "none");
+            }
+        }) == CmdResult.INVALID_FIELD;
+        result &= errorCode( new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                return table.get( mFields.length, 0);
+            }
+        }) == CmdResult.INVALID_FIELD;
+        result &= errorCode( new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                return table.get( 0, table.getRowsCount());
+            }
+        }) == CmdResult.INVALID_ROW;
+        result &= errorCode( new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                table.put( Value.createInt32( 1), "id", 0);
+                return null;
+            }
+        }) == CmdResult.INVALID_ARGS;
+        result &= errorCode( new Read() {
+            @Override
+            Object read() throws ConnException
+            {
+                table.put( Value.createInt64( 1), "id", table.getRowsCount() + 1);
+                return null;
+            }
+        }) == CmdResult.INVALID_ROW;
+
+        result &= checkIndexAccessors( table, table);
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    static int errorCode( Read read)
+    {
+        try {
+            read.read();
+        } catch (ConnException e) {
+            return e.getCode();
+        }
+
+        return CmdResult.OK;
+    }
+
+    // Check a table's index based accessors against the expected cells.
+    boolean checkIndexAccessors( final TableValue table, TableValue expected) throws ConnException
+    {
+        boolean result = table.getRowsCount() == expected.getRowsCount();
+
+        for (int f = 0; (f < mFields.length) && result; ++f) {
+            final String name = mFields[f].getName();
+            result &= table.getFieldIndex( name) == f;
+
+            for (int r = 0; r < expected.getRowsCount(); ++r) {
+                final Value v = expected.get( f, r);
+                final int field = f, row = r;
+
+                result &= table.get( f, r).equals( v) && table.get( name, r).equals( v);
+                result &= table.isNull( f, r) == v.isNull();
+                result &= expectedLong( v).equals( new Read() {
+                    @Override
+                    Object read() throws ConnException
+                    {
+                        return table.getLong( field, row);
+                    }
+                }.outcome());
+                result &= expectedDouble( v).equals( new Read() {
+                    @Override
+                    Object read() throws ConnException
+                    {
+                        return table.getDouble( field, row);
+                    }
+                }.outcome());
+            }
+        }
+
+        return result;
+    }
+
+    boolean checkRetrievedTable( int frameSize) throws IOException
+    {
+        System.out.print( "Checking a table retrieved through " + frameSize + " bytes frames ... ");
+
+        final TableValue table = randomTable( 300, frameSize / 2);
+        final Connection c = connect( frameSize, table);
+        try {
+            final Value v = c.retrieveStackTop();
+
+            boolean result = (v instanceof TableValue) && v.equals( table);
+            if (result)
+                result &= checkIndexAccessors( (TableValue) v, table);
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkCursor( int frameSize, boolean readAhead) throws IOException
+    {
+        System.out.print( "Checking a cursor " + (readAhead ? "reading ahead " : "") + "through " + frameSize + " bytes frames ... ");
+
+        final TableValue table = randomTable( 300, frameSize / 2);
+        final Connection c = connect( frameSize, table);
+        try {
+            final TableCursor cursor = c.openTableCursor();
+            cursor.setReadAhead( readAhead);
+
+            boolean result = (cursor.isReadAhead() == readAhead)
+                             && (cursor.getRowsCount() == table.getRowsCount())
+                             && (cursor.getRow() == -1);
+
+            final TableFieldType[] fields = cursor.getFields();
+            for (int f = 0; f < mFields.length; ++f) {
+                result &= fields[f].getName().equals( mFields[f].getName())
+                          && (cursor.getFieldIndex( mFields[f].getName()) == f);
+            }
+
+            // Half of the rows copied as kept, the others through the values.
+            final TableValue copy = Value.createTable( mFields);
+            int row = 0;
+            while (cursor.next()) {
+                result &= cursor.getRow() == row;
+                if (mRandom.nextBoolean())
+                    cursor.copyRow( copy, row);
+                else {
+                    for (int f = 0; f < mFields.length; ++f)
+                        copy.put( cursor.getValue( f), f, row);
+                }
+
+                // The other calls on the connection do not lose the cursor's
+                // place.
+                if (mRandom.nextInt( 20) == 0)
+                    c.pingServer();
+
+                ++row;
+            }
+            result &= (row == table.getRowsCount()) && (cursor.getRow() == row) && ! cursor.next();
+            result &= copy.equals( table);
+
+            // The small frames hold a few rows each.
+            final long frames = c.getMetrics().getCommand( "CMD_READ_STACK").getFramesSent();
+            result &= (frameSize > 4096) || (frames > table.getRowsCount() / 10);
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkInterleavedCursors( int frameSize) throws IOException
+    {
+        System.out.print( "Checking two cursors walked together through " + frameSize + " bytes frames ... ");
+
+        final TableValue table = randomTable( 200, frameSize / 2);
+        final Connection c = connect( frameSize, table);
+        try {
+            final TableCursor ahead = c.openTableCursor();
+            final TableCursor plain = c.openTableCursor();
+            ahead.setReadAhead( true);
+
+            // Each cursor has to request again the frames the other replaced.
+            boolean result = true;
+            for (int row = 0; row < table.getRowsCount(); ++row) {
+                final TableCursor first = mRandom.nextBoolean() ? ahead : plain;
+                final TableCursor second = (first == ahead) ? plain : ahead;
+
+                result &= first.next() && second.next();
+                for (int f = 0; f < mFields.length; ++f) {
+                    final Value v = table.get( f, row);
+                    result &= first.getValue( f).equals( v) && second.getValue( f).equals( v);
+                }
+            }
+            result &= ! ahead.next() && ! plain.next();
+
+            // And the table is still there for a new walk.
+            final TableValue copy = Value.createTable( mFields);
+            final TableCursor last = c.openTableCursor();
+            last.setReadAhead( true);
+            while (last.next())
+                last.copyRow( copy, (int) last.getRow());
+            result &= copy.equals( table);
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    // Read a cursor's cell with one of its getters, returning the outcome
+    // along with the expected one.
+    static Object[] readCell( final TableCursor cursor, final int field, final String name, int getter, final Value v)
+    {
+        switch (getter) {
+        case 0:
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.isNull( field) : cursor.isNull( name);
+                }
+            }.outcome(), v.isNull() };
+
+        case 1:
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.getString( field) : cursor.getString( name);
+                }
+            }.outcome(), v.isNull() ? null : v.toString() };
+
+        case 2:
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.getLong( field) : cursor.getLong( name);
+                }
+            }.outcome(), expectedLong( v) };
+
+        case 3: {
+            Object expected = expectedLong( v);
+            if (expected instanceof Long) {
+                final long l = (Long) expected;
+                expected = ((l < Integer.MIN_VALUE) || (l > Integer.MAX_VALUE))
+                           ? "error " + CmdResult.VALUE_OUT_OF_RANGE
+                           : (Object) (int) l;
+            }
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.getInt( field) : cursor.getInt( name);
+                }
+            }.outcome(), expected };
+        }
+
+        case 4:
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.getDouble( field) : cursor.getDouble( name);
+                }
+            }.outcome(), expectedDouble( v) };
+
+        case 5: {
+            final Object expected;
+            if (v.isNull())
+                expected = "error " + CmdResult.INVALID_ARGS;
+            else if (v instanceof BoolValue)
+                expected = v.toString().equals( "1");
+            else
+                expected = "error " + CmdResult.TYPE_MISMATCH;
+
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.getBoolean( field) : cursor.getBoolean( name);
+                }
+            }.outcome(), expected };
+        }
+
+        default:
+            return new Object[] { new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return (name == null) ? cursor.getValue( field) : cursor.getValue( name);
+                }
+            }.outcome(), v };
+        }
+    }
+
+    boolean checkCellGetters( int frameSize) throws IOException
+    {
+        System.out.print( "Checking the cursor's getters through " + frameSize + " bytes frames ... ");
+
+        final TableValue table = randomTable( 300, frameSize / 2);
+        final Connection c = connect( frameSize, table);
+        try {
+            final TableCursor cursor = c.openTableCursor();
+            cursor.setReadAhead( mRandom.nextBoolean());
+
+            // A few cells of each row, through random getters and fields, some
+            // more than once. The rows are then copied with the cells read
+            // and the ones still kept in their received form.
+            boolean result = true;
+            final TableValue copy = Value.createTable( mFields);
+            while (cursor.next()) {
+                final int row = (int) cursor.getRow();
+                for (int i = mRandom.nextInt( 6); i > 0; --i) {
+                    final int f = mRandom.nextInt( mFields.length);
+                    final String name = mRandom.nextBoolean() ? mFields[f].getName() : null;
+                    final Object[] outcomes = readCell( cursor, f, name, mRandom.nextInt( 7), table.get( f, row));
+
+                    if ((outcomes[0] == null) ? (outcomes[1] != null) : ! outcomes[0].equals( outcomes[1])) {
+                        System.out.print( "(" + mFields[f].getName() + " of row " + row + ": " + outcomes[0] + " instead of " + outcomes[1] + ") ");
+                        result = false;
+                    }
+                }
+                cursor.copyRow( copy, row);
+            }
+            result &= copy.equals( table);
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkCursorErrors() throws IOException
+    {
+        System.out.print( "Checking the cursor's errors ... ");
+
+        final TableValue table = randomTable( 3, 10);
+        final Connection c = connect( _c.MIN_FRAME_SIZE, table);
+        try {
+            final TableCursor cursor = c.openTableCursor();
+
+            boolean result = (cursor.getFieldIndex( "none") == -1);
+            result &= errorCode( new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return cursor.getValue( 0);
+                }
+            }) == CmdResult.INVALID_ROW;
+
+            result &= cursor.next();
+            result &= errorCode( new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return cursor.getLong( mFields.length);
+                }
+            }) == CmdResult.INVALID_FIELD;
+            result &= errorCode( new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return cursor.isNull( "none");
+                }
+            }) == CmdResult.INVALID_FIELD;
+
+            while (cursor.next())
+                ;
+            result &= errorCode( new Read() {
+                @Override
+                Object read() throws ConnException
+                {
+                    return cursor.getString( 0);
+                }
+            }) == CmdResult.INVALID_ROW;
+
+            // A walk needs the pending stack updates sent first.
+            final TableCursor pending = c.openTableCursor();
+            c.pushStackValue( Value.createInt64( 1));
+            try {
+                pending.next();
+                result = false;
+            } catch (ConnException e) {
+                result &= e.getCode() == CmdResult.INCOMPLETE_CMD;
+            }
+
+            System.out.println( result ? "OK" : "FAIL");
+            return result;
+        } finally {
+            c.close();
+        }
+    }
+
+    private final Random           mRandom;
+    private final StandInServer    mServer;
+    private final TableFieldType[] mFields;
+
+    private static final byte[] KEY = "root".getBytes( StandardCharsets.UTF_8);
+
+    // Single and multi byte UTF-8 characters.
+    private static final String ALPHABET = "abcXYZ019 .\u0103\u00EE\u0219\u021B\u20AC\u4E2D";
+
+    private static final int[] FRAME_SIZES = { _c.MIN_FRAME_SIZE, 777, 1500, 4096, _c.DEFAULT_FRAME_SIZE };
+}
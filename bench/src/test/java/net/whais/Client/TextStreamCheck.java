@@ -0,0 +1,294 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Round trips texts spread over several communication frames through the
+ * text readers and writers and a {@link StandInServer}. The texts mix one
+ * to four UTF-8 bytes characters, including code points outside of the
+ * basic multilingual plane, as the text offsets count code points rather
+ * than Java characters.
+ */
+public class TextStreamCheck
+{
+    public static void main( String[] args) throws Exception
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final TextStreamCheck t = new TextStreamCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        for (int frameSize : FRAME_SIZES) {
+            testResult &= t.checkStackText( frameSize);
+            testResult &= t.checkTableCell( frameSize);
+            testResult &= t.checkTableWriterCell( frameSize);
+        }
+        testResult &= t.checkUnpairedSurrogate();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    TextStreamCheck( long seed)
+    {
+        mRandom = new Random( seed);
+        mServer = new StandInServer( KEY, KEY);
+    }
+
+    Connection connect( int frameSize) throws IOException
+    {
+        mServer.setMaxFrameSize( frameSize);
+
+        return mServer.connect( "check", KEY, Connection.USER, frameSize);
+    }
+
+    /**
+     * A text of about codePoints characters, a quarter of them outside of
+     * the basic multilingual plane.
+     */
+    String randomText( int codePoints)
+    {
+        final StringBuilder text = new StringBuilder( 2 * codePoints);
+        for (int i = 0; i < codePoints; ++i) {
+            switch (mRandom.nextInt( 4)) {
+            case 0:
+                text.append( (char) ('a' + mRandom.nextInt( 26)));
+                break;
+            case 1:
+                text.append( (char) (0x00C0 + mRandom.nextInt( 0x0100))); // Two UTF-8 bytes.
+                break;
+            case 2:
+                text.append( (char) (0x4E00 + mRandom.nextInt( 0x1000))); // Three UTF-8 bytes.
+                break;
+            default:
+                text.appendCodePoint( 0x1F300 + mRandom.nextInt( 0x0300)); // A surrogate pair.
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Write the text in chunks of random sizes, some of them splitting a
+     * surrogate pair, and some one character at a time.
+     */
+    void writeText( Writer w, String text) throws IOException
+    {
+        int pos = 0;
+        while (pos < text.length()) {
+            final int len = Math.min( text.length() - pos, 1 + mRandom.nextInt( 700));
+            switch (mRandom.nextInt( 3)) {
+            case 0:
+                w.write( text, pos, len);
+                break;
+            case 1:
+                w.write( text.toCharArray(), pos, len);
+                break;
+            default:
+                for (int i = pos; i < pos + len; ++i)
+                    w.write( text.charAt( i));
+            }
+            pos += len;
+        }
+        w.close();
+    }
+
+    String readText( Reader r) throws IOException
+    {
+        final StringBuilder text = new StringBuilder();
+        final char[] buffer = new char[1024];
+
+        while (true) {
+            if (mRandom.nextInt( 4) == 0) {
+                final int c = r.read();
+                if (c < 0)
+                    break;
+                text.append( (char) c);
+                continue;
+            }
+
+            final int count = r.read( buffer, 0, 1 + mRandom.nextInt( buffer.length));
+            if (count < 0)
+                break;
+            text.append( buffer, 0, count);
+        }
+        r.close();
+
+        return text.toString();
+    }
+
+    static boolean report( boolean result, String text, String got)
+    {
+        if (result)
+            System.out.println( "OK");
+        else {
+            System.out.println( "FAIL (" + text.codePointCount( 0, text.length()) + " code points expected, "
+                                + got.codePointCount( 0, got.length()) + " received)");
+        }
+        return result;
+    }
+
+    boolean checkStackText( int frameSize) throws IOException
+    {
+        System.out.print( "Checking a stack text round trip with frames of " + frameSize + " bytes ... ");
+
+        final String text = randomText( 3 * frameSize + mRandom.nextInt( frameSize));
+        final Connection c = connect( frameSize);
+
+        try {
+            writeText( c.openTextWriter(), text);
+            c.flushStackUpdates();
+
+            String got = c.retrieveStackTop().toString();
+            boolean result = got.equals( text);
+
+            if (result) {
+                got = readText( c.openTextReader());
+                result = got.equals( text);
+            }
+
+            // A text pushed as a value is read the same way.
+            if (result) {
+                c.popStackValues( 1);
+                c.pushStackValue( Value.createText( text));
+                c.flushStackUpdates();
+
+                got = readText( c.openTextReader());
+                result = got.equals( text);
+            }
+
+            return report( result, text, got);
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkTableCell( int frameSize) throws IOException
+    {
+        System.out.print( "Checking a table text cell round trip with frames of " + frameSize + " bytes ... ");
+
+        final String text = randomText( 2 * frameSize + mRandom.nextInt( frameSize));
+        final Connection c = connect( frameSize);
+
+        try {
+            final TableWriter table = c.openTableWriter( new TableFieldType[] {
+                new TableFieldType( "id", ValueType.int32Type()),
+                new TableFieldType( "body", ValueType.textType())
+            });
+            for (int row = 0; row < 3; ++row) {
+                table.newRow();
+                table.setLong( 0, row);
+            }
+
+            writeText( c.openTextWriter( "body", 1), text);
+            c.flushStackUpdates();
+
+            String got = c.retrieveStackTop( "body", 1).toString();
+            boolean result = got.equals( text);
+
+            if (result) {
+                got = readText( c.openTextReader( "body", 1));
+                result = got.equals( text);
+            }
+
+            // The neighbour cells are left alone.
+            result &= c.retrieveStackTop( "body", 0).isNull() && c.retrieveStackTop( "body", 2).isNull();
+            result &= readText( c.openTextReader( "body", 2)).isEmpty();
+
+            return report( result, text, got);
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkTableWriterCell( int frameSize) throws IOException
+    {
+        System.out.print( "Checking text cells written by a table writer with frames of " + frameSize + " bytes ... ");
+
+        final String[] texts = { randomText( frameSize / 2), randomText( 2 * frameSize), randomText( 5) };
+        final Connection c = connect( frameSize);
+
+        try {
+            final TableWriter table = c.openTableWriter( new TableFieldType[] {
+                new TableFieldType( "body", ValueType.textType()),
+                new TableFieldType( "id", ValueType.int64Type())
+            });
+            for (int row = 0; row < texts.length; ++row) {
+                table.newRow();
+                writeText( table.openTextWriter( 0), texts[row]);
+                table.setLong( 1, row);
+            }
+            c.flushStackUpdates();
+
+            boolean result = true;
+            String got = "";
+            for (int row = 0; (row < texts.length) && result; ++row) {
+                got = readText( c.openTextReader( "body", row));
+                result = got.equals( texts[row]);
+                if ( ! result)
+                    return report( result, texts[row], got);
+            }
+
+            final TableValue all = (TableValue) c.retrieveStackTop();
+            for (int row = 0; (row < texts.length) && result; ++row)
+                result &= all.get( "body", row).toString().equals( texts[row]);
+
+            return report( result, "", "");
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean checkUnpairedSurrogate() throws IOException
+    {
+        System.out.print( "Checking unpaired surrogates are replaced ... ");
+
+        final Connection c = connect( _c.MIN_FRAME_SIZE);
+        try {
+            final Writer w = c.openTextWriter();
+            w.write( "a\uD83C");    // A high surrogate followed by...
+            w.write( 'b');          // ...something else.
+            w.write( "\uDF00c🌀");
+            w.write( '\uD83C');     // Left unpaired at the end.
+            w.close();
+            c.flushStackUpdates();
+
+            final String expected = "a?b?c🌀?";
+            final String got = readText( c.openTextReader());
+
+            return report( got.equals( expected) && c.retrieveStackTop().toString().equals( expected), expected, got);
+        } finally {
+            c.close();
+        }
+    }
+
+    private final Random        mRandom;
+    private final StandInServer mServer;
+
+    private static final int[]  FRAME_SIZES = { _c.MIN_FRAME_SIZE, 1000, 4096, _c.MAX_FRAME_SIZE };
+    private static final byte[] KEY         = "root".getBytes( StandardCharsets.UTF_8);
+}
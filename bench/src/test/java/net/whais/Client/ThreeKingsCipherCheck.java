@@ -0,0 +1,309 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the table driven {@link ThreeKingsCipher} against
+ * {@link ReferenceThreeKingsCipher} on random keys, byte for byte, and its
+ * fused {@code sealFrame()}/{@code openFrame()} against encoding and check
+ * summing the frame separately.
+ */
+public class ThreeKingsCipherCheck
+{
+    public static void main( String[] args)
+    {
+        final long seed = (args.length > 0) ? Long.parseLong( args[0]) : System.nanoTime();
+        final ThreeKingsCipherCheck t = new ThreeKingsCipherCheck( seed);
+
+        System.out.println( "Using seed " + seed);
+
+        boolean testResult = true;
+        testResult &= t.checkBuffers();
+        testResult &= t.checkEncodedFrames();
+        testResult &= t.checkReferenceFrames();
+        testResult &= t.checkSealedFrames();
+        testResult &= t.checkOpenedFrames();
+        testResult &= t.checkRejectedFrames();
+
+        if ( ! testResult) {
+            System.out.println( "TEST RESULT: FAIL");
+            System.exit( 1);
+        }
+
+        System.out.println( "TEST RESULT: PASS");
+    }
+
+    ThreeKingsCipherCheck( long seed)
+    {
+        mRandom = new Random( seed);
+        mCipher = CipherFactory.threeKingsCipher();
+    }
+
+    byte[] randomKey()
+    {
+        final byte[] key = new byte[1 + mRandom.nextInt( 64)];
+        mRandom.nextBytes( key);
+
+        return key;
+    }
+
+    ByteBuffer randomBuffer( int size)
+    {
+        final byte[] content = new byte[size];
+        mRandom.nextBytes( content);
+
+        return ByteBuffer.wrap( content).order( ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int randomFrameSize()
+    {
+        final int payload = (mRandom.nextInt( 10) == 0) ? mRandom.nextInt( MAX_FRAME_SIZE - mCipher.metadataSize())
+                                                         : mRandom.nextInt( 300);
+
+        return mCipher.metadataSize() + payload;
+    }
+
+    static ByteBuffer copy( ByteBuffer buffer)
+    {
+        return ByteBuffer.wrap( buffer.array().clone()).order( ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static int plainSum( ByteBuffer buffer, int from, int to)
+    {
+        int sum = 0;
+        for (int i = from; i < to; ++i)
+            sum += buffer.get( i) & 0xFF;
+
+        return sum;
+    }
+
+    static boolean samePayload( ByteBuffer a, ByteBuffer b, int from, int to)
+    {
+        for (int i = from; i < to; ++i) {
+            if (a.get( i) != b.get( i))
+                return false;
+        }
+        return true;
+    }
+
+    boolean checkBuffers()
+    {
+        System.out.print( "Checking buffers encoding against the reference ... ");
+
+        boolean result = true;
+        for (int i = 0; (i < 20000) && result; ++i) {
+            final byte[] key = randomKey();
+            final ThreeKingsCipher.PreparedKey pk = new ThreeKingsCipher.PreparedKey( key);
+            final int firstKing = mRandom.nextInt();
+            final int secondKing = mRandom.nextInt();
+            final int from = mRandom.nextInt( 16);
+            final int to = (from + 4 * (1 + mRandom.nextInt( 64))) & ~3;
+
+            final ByteBuffer expected = randomBuffer( to + 8);
+            final ByteBuffer actual = copy( expected);
+            final byte[] plain = expected.array().clone();
+
+            ReferenceThreeKingsCipher.encodeBuffer( expected, from, to, key, firstKing, secondKing);
+            ThreeKingsCipher.encodeBuffer( actual, from, to, pk, firstKing, secondKing);
+            result &= Arrays.equals( expected.array(), actual.array());
+
+            ReferenceThreeKingsCipher.decodeBuffer( expected, from, to, key, firstKing, secondKing);
+            ThreeKingsCipher.decodeBuffer( actual, from, to, pk, firstKing, secondKing);
+            result &= Arrays.equals( expected.array(), actual.array());
+            result &= Arrays.equals( plain, actual.array());
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkEncodedFrames()
+    {
+        System.out.print( "Checking encoded frames against the reference ... ");
+
+        boolean result = true;
+        for (int i = 0; (i < 5000) && result; ++i) {
+            final byte[] key = randomKey();
+            final Object pk = mCipher.prepareKey( key);
+            final int frameSize = randomFrameSize();
+            final ByteBuffer frame = randomBuffer( frameSize + 4);
+            final ByteBuffer plain = copy( frame);
+
+            final int encodedSize = mCipher.encodeFrame( frame, frameSize, pk);
+            result &= (encodedSize % 4 == 0) && (encodedSize - frameSize < 4);
+            result &= frame.getShort( _c.FRAME_SIZE_OFF) == (short) encodedSize;
+
+            // Decode it with the reference, then encode it back with the same
+            // kings and padding: the output must be the same.
+            final ByteBuffer decoded = copy( frame);
+            result &= ReferenceThreeKingsCipher.decodeFrame( decoded, encodedSize, key) == frameSize;
+            result &= samePayload( decoded, plain, mCipher.metadataSize(), frameSize);
+
+            final int firstKing = decoded.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF);
+            final int secondKing = decoded.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF);
+            result &= ReferenceThreeKingsCipher.encodeFrame( decoded, frameSize, key, firstKing, secondKing) == encodedSize;
+            result &= Arrays.equals( Arrays.copyOf( decoded.array(), encodedSize),
+                                     Arrays.copyOf( frame.array(), encodedSize));
+
+            result &= mCipher.decodeFrame( frame, encodedSize, pk) == frameSize;
+            result &= samePayload( frame, plain, mCipher.metadataSize(), frameSize);
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkReferenceFrames()
+    {
+        System.out.print( "Checking frames encoded by the reference are decoded ... ");
+
+        boolean result = true;
+        for (int i = 0; (i < 5000) && result; ++i) {
+            final byte[] key = randomKey();
+            final int frameSize = randomFrameSize();
+            final ByteBuffer frame = randomBuffer( frameSize + 4);
+            final ByteBuffer plain = copy( frame);
+
+            final int encodedSize = ReferenceThreeKingsCipher.encodeFrame( frame,
+                                                                           frameSize,
+                                                                           key,
+                                                                           mRandom.nextInt(),
+                                                                           mRandom.nextInt());
+
+            result &= mCipher.decodeFrame( frame, encodedSize, mCipher.prepareKey( key)) == frameSize;
+            result &= samePayload( frame, plain, mCipher.metadataSize(), frameSize);
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkSealedFrames()
+    {
+        System.out.print( "Checking sealed frames against the reference ... ");
+
+        final int crcOff = mCipher.metadataSize() - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF;
+
+        boolean result = true;
+        for (int i = 0; (i < 5000) && result; ++i) {
+            final byte[] key = randomKey();
+            final Object pk = mCipher.prepareKey( key);
+            final int frameSize = randomFrameSize();
+            final ByteBuffer frame = randomBuffer( frameSize + 4);
+            final ByteBuffer plain = copy( frame);
+
+            final int encodedSize = mCipher.sealFrame( frame, frameSize, pk);
+
+            // The same as check summing the payload, then encoding the frame.
+            final ByteBuffer decoded = copy( frame);
+            result &= ReferenceThreeKingsCipher.decodeFrame( decoded, encodedSize, key) == frameSize;
+            result &= samePayload( decoded, plain, mCipher.metadataSize(), frameSize);
+            result &= decoded.getShort( crcOff) == (short) plainSum( plain, mCipher.metadataSize(), frameSize);
+            result &= decoded.getShort( crcOff) == CommunicationFrame.computeCheckSum( plain,
+                                                                                       mCipher.metadataSize(),
+                                                                                       frameSize);
+
+            final int firstKing = decoded.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF);
+            final int secondKing = decoded.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF);
+            ReferenceThreeKingsCipher.encodeFrame( decoded, frameSize, key, firstKing, secondKing);
+            result &= Arrays.equals( Arrays.copyOf( decoded.array(), encodedSize),
+                                     Arrays.copyOf( frame.array(), encodedSize));
+
+            result &= mCipher.openFrame( frame, encodedSize, pk) == frameSize;
+            result &= samePayload( frame, plain, mCipher.metadataSize(), frameSize);
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkOpenedFrames()
+    {
+        System.out.print( "Checking frames check summed and encoded by the reference are opened ... ");
+
+        final int crcOff = mCipher.metadataSize() - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF;
+
+        boolean result = true;
+        for (int i = 0; (i < 5000) && result; ++i) {
+            final byte[] key = randomKey();
+            final int frameSize = randomFrameSize();
+            final ByteBuffer frame = randomBuffer( frameSize + 4);
+
+            frame.putShort( crcOff, (short) plainSum( frame, mCipher.metadataSize(), frameSize));
+            final ByteBuffer plain = copy( frame);
+
+            final int encodedSize = ReferenceThreeKingsCipher.encodeFrame( frame,
+                                                                           frameSize,
+                                                                           key,
+                                                                           mRandom.nextInt(),
+                                                                           mRandom.nextInt());
+
+            result &= mCipher.openFrame( frame, encodedSize, mCipher.prepareKey( key)) == frameSize;
+            result &= samePayload( frame, plain, mCipher.metadataSize(), frameSize);
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    boolean checkRejectedFrames()
+    {
+        System.out.print( "Checking frames with a bad size or check sum are rejected ... ");
+
+        final int crcOff = mCipher.metadataSize() - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF;
+
+        boolean result = true;
+        for (int i = 0; (i < 5000) && result; ++i) {
+            final byte[] key = randomKey();
+            final Object pk = mCipher.prepareKey( key);
+            final int frameSize = randomFrameSize();
+
+            // A wrong check sum.
+            ByteBuffer frame = randomBuffer( frameSize + 4);
+            final int sum = plainSum( frame, mCipher.metadataSize(), frameSize);
+            frame.putShort( crcOff, (short) (sum + 1 + mRandom.nextInt( 0xFFFF)));
+            int encodedSize = ReferenceThreeKingsCipher.encodeFrame( frame,
+                                                                     frameSize,
+                                                                     key,
+                                                                     mRandom.nextInt(),
+                                                                     mRandom.nextInt());
+            result &= mCipher.openFrame( frame, encodedSize, pk) == -1;
+
+            // A plain size larger than the frame.
+            frame = randomBuffer( frameSize + 8);
+            encodedSize = mCipher.sealFrame( frame, frameSize, pk);
+            result &= mCipher.openFrame( copy( frame), encodedSize - 4, pk) == -1;
+
+            // Sizes that no encoder produces.
+            result &= mCipher.openFrame( copy( frame), encodedSize - 1, pk) == -1;
+            result &= mCipher.openFrame( copy( frame), mCipher.metadataSize() - 4, pk) == -1;
+        }
+
+        System.out.println( result ? "OK" : "FAIL");
+        return result;
+    }
+
+    private final Random mRandom;
+    private final Cipher mCipher;
+
+    private static final int MAX_FRAME_SIZE = 65532;
+}
@@ -4,6 +4,7 @@ import java.util.Arrays;
 import net.whais.Client.ArrayValue;
 import net.whais.Client.ConnException;
 import net.whais.Client.Connection;
+import net.whais.Client.TableCursor;
 import net.whais.Client.TableFieldType;
 import net.whais.Client.TableValue;
 import net.whais.Client.Value;
@@ -641,6 +642,33 @@ public class ConnectorTestTableValuesUpdates
             return false;
         }
 
+        TableCursor cursor = c.openTableCursor ();
+        TableFieldType[] cursorFields = cursor.getFields ();
+        int cursorRows = 0;
+        while (cursor.next ())
+        {
+            for (int f = 0; f < cursorFields.length; ++f)
+            {
+                String name = cursorFields[f].getName ();
+                Value cell = largeTable.get (name, (int) cursor.getRow ());
+                if (! cell.equals (cursor.getValue (name)))
+                {
+                    System.out.println ("Failed to iterate the large table "
+                                        + "with a cursor at row "
+                                        + cursor.getRow () + '.');
+                    return false;
+                }
+            }
+            ++cursorRows;
+        }
+
+        if (cursorRows != cursor.getRowsCount ())
+        {
+            System.out.println ("Failed to iterate all the rows of the "
+                                + "large table with a cursor.");
+            return false;
+        }
+
         c.popStackValues (1);
 
         for (int f = this.tableFields.length - 1; f >= 0; --f)
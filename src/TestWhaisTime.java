@@ -4,7 +4,9 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Arrays;
 
+import net.whais.Client.ConnException;
 import net.whais.Client.Connection;
+import net.whais.Client.TimeValue;
 import net.whais.Client.Value;
 import net.whais.Client.ValueType;
 import test.net.whais.Client.CommnandLine;
@@ -62,6 +64,10 @@ public class TestWhaisTime
         testResult &= t.executeTestYear(c);
         testResult &= t.executeTestYearLeaps(c);
         testResult &= t.executeLastWeekDate(c);
+
+        testResult &= t.executeTestEpochDay();
+        testResult &= t.executeTestMicrosOfDay();
+        testResult &= t.executeTestTextRejections();
         
         c.close ();
 
@@ -1117,6 +1123,185 @@ public class TestWhaisTime
         
         
         
+        return true;
+    }
+
+    boolean executeTestEpochDay() throws ConnException {
+        // The expected counts are the ones of java.time.LocalDate.toEpochDay().
+        final String[] dates = {
+            "1970/1/1", "1969/12/31", "0/2/29", "0/3/1", "9999/12/31",
+            "-1/1/1", "-1/12/31", "-400/2/29", "-4713/11/24", "-9999/1/1",
+            "1600/2/29", "1900/3/1", "2000/2/29"
+        };
+        final long[] epochDays = {
+            0, -1, -719469, -719468, 2932896,
+            -719893, -719529, -865566, -2440588, -4371587,
+            -135081, -25508, 11016
+        };
+
+        for (int i = 0; i < dates.length; ++i) {
+            System.out.print("Check epoch day of " + dates[i] + " ... ");
+
+            final TimeValue date = (TimeValue) Value.createDate(dates[i]);
+            if (date.toEpochDay() != epochDays[i]) {
+                System.out.println("FAIL (got " + date.toEpochDay() + " rather than expected " + epochDays[i] + ")");
+                return false;
+            }
+
+            final Value created = TimeValue.create(ValueType.dateType(), epochDays[i], 0);
+            if (! created.equals(date) || ! created.toString().equals(date.toString())) {
+                System.out.println("FAIL (the date created is '" + created + "' rather than expected '" + date + "')");
+                return false;
+            }
+            System.out.println("OK");
+        }
+
+        System.out.print("Check epoch days round trips from -9999/1/1 to 9999/12/31 ... ");
+        TimeValue previous = null;
+        for (long day = -4371587; day <= 2932896; ++day) {
+            final TimeValue date = TimeValue.create(ValueType.dateType(), day, 0);
+            if (date.toEpochDay() != day) {
+                System.out.println("FAIL (epoch day " + day + " came back as " + date.toEpochDay() + ")");
+                return false;
+            }
+
+            // Consecutive days, so every month has its right length.
+            if (previous != null) {
+                final boolean nextDay = (date.getYear() == previous.getYear())
+                                        && (date.getMonth() == previous.getMonth())
+                                        && (date.getDay() == previous.getDay() + 1);
+                final boolean nextMonth = (date.getDay() == 1)
+                                          && (((date.getYear() == previous.getYear())
+                                               && (date.getMonth() == previous.getMonth() + 1))
+                                              || ((date.getYear() == previous.getYear() + 1)
+                                                  && (date.getMonth() == 1)
+                                                  && (previous.getMonth() == 12)));
+                if ( ! (nextDay || nextMonth)) {
+                    System.out.println("FAIL ('" + date + "' does not follow '" + previous + "')");
+                    return false;
+                }
+            }
+
+            // Parsing the text form gives back the same value.
+            if ((day % 997 == 0) && ! Value.createDate(date.toString()).equals(date)) {
+                System.out.println("FAIL ('" + date + "' is not parsed back to the same date)");
+                return false;
+            }
+            previous = date;
+        }
+        System.out.println("OK");
+
+        System.out.print("Check epoch day of a NULL date ... ");
+        try {
+            ((TimeValue) Value.createDate()).toEpochDay();
+            System.out.println("FAIL (no exception for a NULL date)");
+            return false;
+        } catch (ConnException e) {
+            System.out.println("OK");
+        }
+
+        return true;
+    }
+
+    boolean executeTestMicrosOfDay() throws ConnException {
+        final long[] micros = { 0, 1, 999999, 1000000, 43200000000L, 86399000000L, 86399999999L };
+
+        for (final long m : micros) {
+            System.out.print("Check microseconds of day " + m + " ... ");
+
+            final TimeValue hires = TimeValue.create(ValueType.hirestimeType(), -719469, m);
+            if ((hires.getMicrosOfDay() != m) || (hires.toEpochDay() != -719469)) {
+                System.out.println("FAIL (got '" + hires + "' back as " + hires.getMicrosOfDay() + ")");
+                return false;
+            } else if ( ! Value.createHiresTime(hires.toString()).equals(hires)) {
+                System.out.println("FAIL ('" + hires + "' is not parsed back to the same value)");
+                return false;
+            }
+
+            // The types that can not hold it drop the extra precision.
+            final TimeValue datetime = TimeValue.create(ValueType.datetimeType(), 2932896, m);
+            if (datetime.getMicrosOfDay() != m / 1000000 * 1000000) {
+                System.out.println("FAIL (date&time '" + datetime + "' holds " + datetime.getMicrosOfDay() + ")");
+                return false;
+            }
+
+            final TimeValue date = TimeValue.create(ValueType.dateType(), 0, m);
+            if ((date.getMicrosOfDay() != 0) || ! date.toString().equals("1970/1/1")) {
+                System.out.println("FAIL (date '" + date + "' holds " + date.getMicrosOfDay() + ")");
+                return false;
+            }
+            System.out.println("OK");
+        }
+
+        System.out.print("Check hires time from -1/12/31 23:59:59.999999 ... ");
+        final TimeValue parsed = (TimeValue) Value.createHiresTime("-1/12/31 23:59:59.999999");
+        if ((parsed.toEpochDay() != -719529) || (parsed.getMicrosOfDay() != 86399999999L)) {
+            System.out.println("FAIL (got " + parsed.toEpochDay() + " and " + parsed.getMicrosOfDay() + ")");
+            return false;
+        }
+        System.out.println("OK");
+
+        final long[] invalid = { -1, 86400000000L, Long.MIN_VALUE, Long.MAX_VALUE };
+        for (final long m : invalid) {
+            System.out.print("Check microseconds of day " + m + " are rejected ... ");
+            try {
+                TimeValue.create(ValueType.hirestimeType(), 0, m);
+                System.out.println("FAIL (no exception)");
+                return false;
+            } catch (ConnException e) {
+                System.out.println("OK");
+            }
+        }
+
+        System.out.print("Check a non time type is rejected ... ");
+        try {
+            TimeValue.create(ValueType.int64Type(), 0, 0);
+            System.out.println("FAIL (no exception)");
+            return false;
+        } catch (ConnException e) {
+            System.out.println("OK");
+        }
+
+        return true;
+    }
+
+    boolean executeTestTextRejections() throws ConnException {
+        final ValueType[] types = {
+            ValueType.dateType(), ValueType.dateType(), ValueType.dateType(), ValueType.dateType(),
+            ValueType.dateType(), ValueType.dateType(),
+            ValueType.datetimeType(), ValueType.datetimeType(), ValueType.datetimeType(),
+            ValueType.datetimeType(), ValueType.datetimeType(),
+            ValueType.hirestimeType(), ValueType.hirestimeType(), ValueType.hirestimeType()
+        };
+        final String[] texts = {
+            // Trailing characters.
+            "2018/1/1x", "2018/1/1 ", "2018/1/1 12:00:00",
+            // Parts that would wrap around a byte into a valid value.
+            "2018/1/257", "2018/257/1", "2018/1-1",
+            "2018/1/1 12:00:00x", "2018/1/1 12:00:00.5", "2018/1/1 268:00:00",
+            "2018/1/1 12:300:00", "2018/1/1 12:00:300",
+            "2018/1/1 12:00:00.5z", "2018/1/1 12:00:00.123456 ", "2018/1/1 12:00:00"
+        };
+
+        for (int i = 0; i < texts.length; ++i) {
+            System.out.print("Check '" + texts[i] + "' is rejected as " + types[i] + " ... ");
+            try {
+                final Value v = Value.createBasic(types[i], texts[i]);
+                System.out.println("FAIL (it was accepted as '" + v + "')");
+                return false;
+            } catch (ConnException e) {
+                System.out.println("OK");
+            }
+        }
+
+        System.out.print("Check the extra fraction digits are ignored ... ");
+        final Value hires = Value.createHiresTime("2018/1/1 12:00:00.1234567");
+        if ( ! hires.equals(Value.createHiresTime("2018-1-1 12:00:00.123456"))) {
+            System.out.println("FAIL (got '" + hires + "')");
+            return false;
+        }
+        System.out.println("OK");
+
         return true;
     }
 }
@@ -16,11 +16,15 @@
 
 package net.whais.Client;
 
-import java.util.Vector;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a specialized form of a {@link Value} to ease the manipulation of
  * WHAIS array values.
+ * <p>
+ * The elements are kept as primitives (e.g. {@code long}, {@code double})
+ * rather than as objects, so the bulk accessors (e.g. {@link #toLongArray()})
+ * do not need to create a {@link Value} for each element.</p>
  *
  * @version 1.0
  */
@@ -30,22 +34,17 @@ public class ArrayValue extends Value
     {
         super( type);
 
-        if (values == null) {
-            mValues = null;
+        mElements = TableColumn.create( ValueType.create( type.getBaseType()));
+        mSize = 0;
+
+        if (values == null)
             return;
-        }
 
-        mValues = new Vector<>();
         for (int i = 0; i < values.length; ++i) {
             if ((values[i] == null) || values[i].isNull())
                 throw new ConnException( CmdResult.INVALID_ARGS, "An array should may not hold a null values.");
-            else if ( ! type.equals( values[i].type())) {
-                throw new ConnException( CmdResult.INVALID_ARGS,
-                                         "Cannot add a value of type " + values[i].type().toString()
-                                          + " to an array of type " + type.toString() + '.');
-            }
 
-            mValues.add( values[i]);
+            add( values[i]);
         }
     }
 
@@ -78,10 +77,10 @@ public class ArrayValue extends Value
             return false;
         else if (isNull())
             return true;
-        else if (mValues.size() != o.mValues.size())
+        else if (mSize != o.mSize)
             return false;
 
-        for (int i = 0; i < mValues.size(); ++i) {
+        for (int i = 0; i < mSize; ++i) {
             if ( ! get( i).equals( o.get( i)))
                 return false;
         }
@@ -111,21 +110,19 @@ public class ArrayValue extends Value
         if ( ! v.type().isBasic() || v.type().equals( ValueType.textType()))
             throw new ConnException( CmdResult.INVALID_ARGS, "An array may hold only basic values.");
 
-        if (mValues == null) {
-
-            mValues = new Vector<>();
-            mValues.add( v);
-
-            return;
+        if (mSize == 0) {
+            // The first element decides the type of the elements.
+            if ( ! mElements.type().equals( v.type()))
+                mElements = TableColumn.create( v.type());
         }
-
-        if ( ! ValueType.create( type().getBaseType()).equals( v.type())) {
+        else if ( ! mElements.type().equals( v.type())) {
             throw new ConnException( CmdResult.INVALID_ARGS,
                                      "Cannot add a value of type " + v.type().toString()
                                      + " to an array of type " + this.type().toString() + '.');
         }
 
-        this.mValues.add( v);
+        mElements.ensureCapacity( mSize + 1);
+        mElements.set( mSize++, v);
     }
 
     /**
@@ -138,10 +135,51 @@ public class ArrayValue extends Value
      */
     public Value get( int i)
     {
-        if ((this.mValues == null) || (this.mValues.size() <= i))
-            throw new ArrayIndexOutOfBoundsException( i);
+        checkIndex( i);
 
-        return this.mValues.get( i);
+        try {
+            return mElements.get( i);
+        } catch (ConnException e) {
+            // The elements were checked when they were added.
+            throw new IllegalStateException( e);
+        }
+    }
+
+    /**
+     * Get an integer element as a Java {@code long}.
+     *
+     * @param i
+     *            The index of the element in the array.
+     *
+     * @throws ConnException
+     *            If this is not an array of integers, or if an {@code UINT64}
+     *            element is bigger than {@link Long#MAX_VALUE}.
+     *
+     * @since 1.1
+     */
+    public long getLong( int i) throws ConnException
+    {
+        checkIndex( i);
+
+        return mElements.getLong( i);
+    }
+
+    /**
+     * Get an integer or a real element as a Java {@code double}.
+     *
+     * @param i
+     *            The index of the element in the array.
+     *
+     * @throws ConnException
+     *            If this is not an array of integers or reals.
+     *
+     * @since 1.1
+     */
+    public double getDouble( int i) throws ConnException
+    {
+        checkIndex( i);
+
+        return mElements.getDouble( i);
     }
 
     /**
@@ -155,10 +193,18 @@ public class ArrayValue extends Value
      */
     public Value remove( int i)
     {
-        if ((this.mValues == null) || (this.mValues.size() <= i))
-            throw new ArrayIndexOutOfBoundsException( i);
+        final Value result = get( i);
+
+        try {
+            for (int e = i + 1; e < mSize; ++e)
+                mElements.set( e - 1, mElements.get( e));
+
+            mElements.set( --mSize, null);
+        } catch (ConnException e) {
+            throw new IllegalStateException( e);
+        }
 
-        return this.mValues.remove( i);
+        return result;
     }
 
     /**
@@ -170,12 +216,120 @@ public class ArrayValue extends Value
      */
     public Value[] toArray()
     {
-        Value[] result = new Value[this.mValues.size()];
-
         if (this.isNull())
             return null;
 
-        return this.mValues.toArray( result);
+        final Value[] result = new Value[mSize];
+        for (int i = 0; i < mSize; ++i)
+            result[i] = get( i);
+
+        return result;
+    }
+
+    /**
+     * Get the elements of an array of integers.
+     *
+     * @return
+     *            The elements, or an empty array for a null array value.
+     *
+     * @throws ConnException
+     *            If this is not an array of integers, or if an {@code UINT64}
+     *            element is bigger than {@link Long#MAX_VALUE}.
+     *
+     * @since 1.1
+     */
+    public long[] toLongArray() throws ConnException
+    {
+        final long[] result = new long[mSize];
+        for (int i = 0; i < mSize; ++i)
+            result[i] = mElements.getLong( i);
+
+        return result;
+    }
+
+    /**
+     * Get the elements of an array of integers or reals.
+     *
+     * @return
+     *            The elements, or an empty array for a null array value.
+     *
+     * @throws ConnException
+     *            If this is not an array of integers or reals.
+     *
+     * @since 1.1
+     */
+    public double[] toDoubleArray() throws ConnException
+    {
+        final double[] result = new double[mSize];
+        for (int i = 0; i < mSize; ++i)
+            result[i] = mElements.getDouble( i);
+
+        return result;
+    }
+
+    /**
+     * Get the elements of an array of booleans.
+     *
+     * @return
+     *            The elements, or an empty array for a null array value.
+     *
+     * @throws ConnException
+     *            If this is not an array of booleans.
+     *
+     * @since 1.1
+     */
+    public boolean[] toBooleanArray() throws ConnException
+    {
+        final boolean[] result = new boolean[mSize];
+        for (int i = 0; i < mSize; ++i)
+            result[i] = mElements.getBoolean( i);
+
+        return result;
+    }
+
+    /**
+     * Get the code points of an array of characters.
+     *
+     * @return
+     *            The elements, or an empty array for a null array value.
+     *
+     * @throws ConnException
+     *            If this is not an array of characters.
+     *
+     * @since 1.1
+     */
+    public int[] toCodePointArray() throws ConnException
+    {
+        final int[] result = new int[mSize];
+        for (int i = 0; i < mSize; ++i)
+            result[i] = mElements.getCodePoint( i);
+
+        return result;
+    }
+
+    /**
+     * Get the elements of an array of dates or times, as counts of
+     * microseconds since 1970/1/1 00:00:00 (in the proleptic Gregorian
+     * calendar, with no time zone).
+     *
+     * @return
+     *            The elements, or an empty array for a null array value.
+     *
+     * @throws ConnException
+     *            If this is not an array of dates or times.
+     *
+     * @see TimeValue#toEpochDay()
+     * @see TimeValue#getMicrosOfDay()
+     *
+     * @since 1.1
+     */
+    public long[] toEpochMicrosArray() throws ConnException
+    {
+        final long[] result = new long[mSize];
+        for (int i = 0; i < mSize; ++i)
+            result[i] = mElements.getEpochMicros( i);
+
+        return result;
     }
 
     /**
@@ -183,7 +337,7 @@ public class ArrayValue extends Value
      */
     public int size()
     {
-        return (this.mValues == null) ? 0 : this.mValues.size();
+        return mSize;
     }
 
     @Override
@@ -192,13 +346,13 @@ public class ArrayValue extends Value
         if (this.isNull())
             return "";
 
-        final int count = this.mValues.size();
+        final int count = mSize;
         assert (count > 0);
 
         final StringBuilder resultBuilder = new StringBuilder().append( '{');
         for (int r = 0; r < count; ++r) {
             resultBuilder.append( '\'');
-            resultBuilder.append( this.mValues.get( r).toString());
+            resultBuilder.append( get( r).toString());
             resultBuilder.append( '\'');
             if (r < count - 1)
                 resultBuilder.append( ' ');
@@ -214,8 +368,92 @@ public class ArrayValue extends Value
     @Override
     public boolean isNull()
     {
-        return (this.mValues == null) || (this.mValues.size() == 0);
+        return mSize == 0;
+    }
+
+    /**
+     * Add an element from its wire representation.
+     */
+    final void addEncoded( byte[] src, int offset) throws ConnException
+    {
+        if (src[offset] == 0)
+            throw new ConnException( CmdResult.GENERAL_ERR, "Received a null array element.");
+
+        mElements.ensureCapacity( mSize + 1);
+        mElements.decode( mSize++, src, offset);
+    }
+
+    final int encodedLength( int i) throws ConnException
+    {
+        return mElements.encodedLength( i);
+    }
+
+    final void encode( int i, ByteBuffer b) throws ConnException
+    {
+        mElements.encode( i, b);
+    }
+
+    final ValueType elementsType()
+    {
+        return mElements.type();
+    }
+
+    final void setLongs( long[] values) throws ConnException
+    {
+        mElements.ensureCapacity( values.length);
+        for (int i = 0; i < values.length; ++i) {
+            mElements.setLong( i, values[i]);
+            mElements.present( i);
+        }
+        mSize = values.length;
+    }
+
+    final void setDoubles( double[] values) throws ConnException
+    {
+        mElements.ensureCapacity( values.length);
+        for (int i = 0; i < values.length; ++i) {
+            mElements.setDouble( i, values[i]);
+            mElements.present( i);
+        }
+        mSize = values.length;
+    }
+
+    final void setBooleans( boolean[] values) throws ConnException
+    {
+        mElements.ensureCapacity( values.length);
+        for (int i = 0; i < values.length; ++i) {
+            mElements.setBoolean( i, values[i]);
+            mElements.present( i);
+        }
+        mSize = values.length;
+    }
+
+    final void setCodePoints( int[] values) throws ConnException
+    {
+        mElements.ensureCapacity( values.length);
+        for (int i = 0; i < values.length; ++i) {
+            mElements.setCodePoint( i, values[i]);
+            mElements.present( i);
+        }
+        mSize = values.length;
+    }
+
+    final void setEpochMicros( long[] values) throws ConnException
+    {
+        mElements.ensureCapacity( values.length);
+        for (int i = 0; i < values.length; ++i) {
+            mElements.setEpochMicros( i, values[i]);
+            mElements.present( i);
+        }
+        mSize = values.length;
+    }
+
+    private void checkIndex( int i)
+    {
+        if ((i < 0) || (mSize <= i))
+            throw new ArrayIndexOutOfBoundsException( i);
     }
 
-    private Vector<Value> mValues;
+    private TableColumn mElements;
+    private int         mSize;
 }
@@ -0,0 +1,386 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An asynchronous facade of a {@link Connection}.
+ * <p>
+ * The requests are queued per connection and are sent in the order they
+ * were submitted, one at a time, by a task of the supplied
+ * {@link Executor}. No thread is used while the queue is empty, and a busy
+ * connection keeps at most one of the executor's threads, regardless of the
+ * count of the requests in flight. Several asynchronous connections may
+ * share the same executor.</p>
+ * <p>
+ * Every request returns a {@link Future} and may also take a
+ * {@link Callback}, which is invoked on the executor's thread once the
+ * request completes. Each request holds the connection's lock (see
+ * {@link Connection#lock()}) while it runs, so it is not interleaved with the
+ * blocking calls other threads do on the same connection.</p>
+ *
+ * @version 1.1
+ *
+ * @see Connection
+ */
+public class AsyncConnection
+{
+    /**
+     * Receives the outcome of a request.
+     *
+     * @since 1.1
+     */
+    public interface Callback<V>
+    {
+        /**
+         * The request has completed successfully.
+         */
+        void completed( V result);
+
+        /**
+         * The request has failed or was cancelled (with a
+         * {@link CancellationException}).
+         */
+        void failed( Throwable error);
+    }
+
+    /**
+     * A unit of work done with the connection, while no other request uses
+     * it (e.g. a sequence of stack updates followed by a procedure's
+     * execution).
+     *
+     * @since 1.1
+     */
+    public interface Request<V>
+    {
+        V execute( Connection connection) throws IOException;
+    }
+
+    /**
+     * Create an asynchronous facade.
+     *
+     * @param connection
+     *            The connection the requests are sent through.
+     * @param executor
+     *            Runs the requests. It should not run the tasks on the
+     *            submitter's thread, for the requests to not block it.
+     *
+     * @since 1.1
+     */
+    public AsyncConnection( Connection connection, Executor executor)
+    {
+        if ((connection == null) || (executor == null))
+            throw new NullPointerException();
+
+        mConnection = connection;
+        mExecutor = executor;
+        mLock = new ReentrantLock();
+        mQueue = new ArrayDeque<>();
+        mScheduled = false;
+        mClosed = false;
+    }
+
+    /**
+     * Submit a request.
+     *
+     * @param request
+     *            The work to do with the connection.
+     * @param callback
+     *            Receives the request's outcome, or {@code null} if the
+     *            returned future is enough.
+     * @return
+     *            The request's result. Cancelling it removes the request
+     *            if it has not started yet.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#OP_NOTPERMITED} if this was closed.
+     *
+     * @since 1.1
+     */
+    public <V> Future<V> submit( Request<V> request, Callback<V> callback) throws ConnException
+    {
+        final Task<V> task = new Task<>( request, callback);
+
+        boolean schedule = false;
+        mLock.lock();
+        try {
+            if (mClosed)
+                throw new ConnException( CmdResult.OP_NOTPERMITED, "The asynchronous connection is closed.");
+
+            mQueue.addLast( task);
+            if ( ! mScheduled)
+                schedule = mScheduled = true;
+        } finally {
+            mLock.unlock();
+        }
+
+        if (schedule)
+            schedule();
+
+        return task;
+    }
+
+    /**
+     * Call a procedure asynchronously.
+     *
+     * @see Connection#callProcedure(String, Value...)
+     *
+     * @since 1.1
+     */
+    public Future<Value> callProcedure( final String        name,
+                                        final Value[]       params,
+                                        Callback<Value>     callback) throws ConnException
+    {
+        final Value[] args = params.clone();
+
+        return submit( new Request<Value>() {
+            @Override
+            public Value execute( Connection connection) throws IOException
+            {
+                return connection.callProcedure( name, args);
+            }
+        }, callback);
+    }
+
+    /**
+     * Wrapper for {@code callProcedure( name, params, null)}.
+     *
+     * @see #callProcedure(String, Value[], Callback)
+     *
+     * @since 1.1
+     */
+    public Future<Value> callProcedure( String name, Value... params) throws ConnException
+    {
+        return callProcedure( name, params, null);
+    }
+
+    /**
+     * Execute a procedure asynchronously, using the values already pushed on
+     * the connection's stack as its arguments.
+     *
+     * @see Connection#executeProcedure(String)
+     *
+     * @since 1.1
+     */
+    public Future<Void> executeProcedure( final String name, Callback<Void> callback) throws ConnException
+    {
+        return submit( new Request<Void>() {
+            @Override
+            public Void execute( Connection connection) throws IOException
+            {
+                connection.executeProcedure( name);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Retrieve the stack's top value asynchronously.
+     *
+     * @see Connection#retrieveStackTop()
+     *
+     * @since 1.1
+     */
+    public Future<Value> retrieveStackTop( Callback<Value> callback) throws ConnException
+    {
+        return submit( new Request<Value>() {
+            @Override
+            public Value execute( Connection connection) throws IOException
+            {
+                return connection.retrieveStackTop();
+            }
+        }, callback);
+    }
+
+    /**
+     * Push a value on the connection's stack asynchronously.
+     *
+     * @see Connection#pushStackValue(Value)
+     *
+     * @since 1.1
+     */
+    public Future<Void> pushStackValue( final Value value, Callback<Void> callback) throws ConnException
+    {
+        return submit( new Request<Void>() {
+            @Override
+            public Void execute( Connection connection) throws IOException
+            {
+                connection.pushStackValue( value);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Get the connection the requests are sent through.
+     *
+     * @since 1.1
+     */
+    public final Connection getConnection()
+    {
+        return mConnection;
+    }
+
+    /**
+     * Stop accepting requests.
+     * <p>
+     * The requests already submitted are still sent. The connection is
+     * closed after the last of them completes.</p>
+     *
+     * @since 1.1
+     */
+    public void close()
+    {
+        boolean closeNow = false;
+        mLock.lock();
+        try {
+            if (mClosed)
+                return;
+
+            mClosed = true;
+            closeNow = ! mScheduled;
+        } finally {
+            mLock.unlock();
+        }
+
+        if (closeNow)
+            mConnection.close();
+    }
+
+    private void schedule()
+    {
+        try {
+            mExecutor.execute( new Runnable() {
+                @Override
+                public void run()
+                {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Fail everything that is queued, nobody is going to send it.
+            final ConnException error = new ConnException( CmdResult.GENERAL_ERR,
+                                                           "The executor rejected the connection's requests.");
+            error.initCause( e);
+
+            Task<?> task;
+            while ((task = poll()) != null)
+                task.fail( error);
+        }
+    }
+
+    private void drain()
+    {
+        Task<?> task;
+        while ((task = poll()) != null)
+            task.run(); // Does nothing if it was cancelled while queued.
+    }
+
+    // Get the next queued task, or clear the scheduled flag (closing the
+    // connection if needed) when there are none left.
+    private Task<?> poll()
+    {
+        boolean closeNow = false;
+        mLock.lock();
+        try {
+            final Task<?> task = mQueue.pollFirst();
+            if (task != null)
+                return task;
+
+            mScheduled = false;
+            closeNow = mClosed;
+        } finally {
+            mLock.unlock();
+        }
+
+        if (closeNow)
+            mConnection.close();
+
+        return null;
+    }
+
+    private final class Task<V> extends FutureTask<V>
+    {
+        Task( final Request<V> request, Callback<V> callback)
+        {
+            super( new Callable<V>() {
+                @Override
+                public V call() throws Exception
+                {
+                    mConnection.lock();
+                    try {
+                        return request.execute( mConnection);
+                    } finally {
+                        mConnection.unlock();
+                    }
+                }
+            });
+
+            mCallback = callback;
+        }
+
+        void fail( Throwable error)
+        {
+            setException( error);
+        }
+
+        @Override
+        protected void done()
+        {
+            if (mCallback == null)
+                return;
+
+            try {
+                try {
+                    mCallback.completed( get());
+                } catch (ExecutionException e) {
+                    mCallback.failed( e.getCause());
+                } catch (CancellationException e) {
+                    mCallback.failed( e);
+                }
+            } catch (InterruptedException e) {
+                // Cannot happen, the task is already done.
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                // Do not let a faulty callback, either of its methods, stop
+                // the connection's queue.
+                final Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException( t, e);
+            }
+        }
+
+        private final Callback<V> mCallback;
+    }
+
+    private final Connection        mConnection;
+    private final Executor          mExecutor;
+    private final ReentrantLock     mLock;
+    private final ArrayDeque<Task<?>> mQueue;
+    private boolean                 mScheduled;
+    private boolean                 mClosed;
+}
@@ -71,6 +71,11 @@ class BoolValue extends Value
         return mIsNull;
     }
 
+    final boolean booleanValue()
+    {
+        return mValue;
+    }
+
     private final boolean mValue;
     private final boolean mIsNull;
 }
@@ -36,6 +36,13 @@ class CharValue extends Value
         mValue = v.codePointAt( 0);
     }
 
+    CharValue(int codePoint)
+    {
+        super( ValueType.charType());
+
+        mValue = codePoint;
+    }
+
     @Override
     public boolean equals( Object p)
     {
@@ -16,6 +16,7 @@
 
 package net.whais.Client;
 
+import java.nio.ByteBuffer;
 
 interface Cipher
 {
@@ -23,9 +24,32 @@ interface Cipher
 
     abstract int metadataSize();
 
-    abstract void encodeFrame( CommunicationFrame frame, Object key);
+    /*
+     * Encrypt in place a frame of frameSize bytes (the frame header
+     * included). Returns the size of the encrypted frame, which might be
+     * larger due to the cipher's padding.
+     */
+    abstract int encodeFrame( ByteBuffer buffer, int frameSize, Object key);
 
-    abstract void decodeFrame( CommunicationFrame frame, Object key);
+    /*
+     * Decrypt in place a frame of frameSize bytes. Returns the size of the
+     * original plain frame.
+     */
+    abstract int decodeFrame( ByteBuffer buffer, int frameSize, Object key);
+
+    /*
+     * Store the check sum of the frame's payload in its plain header and
+     * encrypt it in place, like encodeFrame(). A cipher that transforms the
+     * payload word by word may sum it in the same pass.
+     */
+    abstract int sealFrame( ByteBuffer buffer, int frameSize, Object key);
+
+    /*
+     * Decrypt in place a frame, like decodeFrame(), and verify the check sum
+     * of its payload. Returns the size of the original plain frame, or -1 if
+     * the frame is not consistent.
+     */
+    abstract int openFrame( ByteBuffer buffer, int frameSize, Object key);
 
     abstract Object prepareKey (byte[] key);
 }
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The measures of one of the protocol's commands (e.g. {@code CMD_EXEC_PROC}),
+ * as collected by a {@link ConnectionMetrics}.
+ * <p>
+ * A command's time is split in:</p>
+ * <ul>
+ * <li>the cipher time, spent to encrypt the request and decrypt the
+ * response;</li>
+ * <li>the server wait time, spent to send the request and to receive the
+ * response (the network and the server's time);</li>
+ * <li>the decode time, spent by the connector from the response's arrival
+ * until the call that sent the command returns or sends the next one.</li>
+ * </ul>
+ * <p>
+ * All times are in nanoseconds.</p>
+ *
+ * @version 1.1
+ */
+public final class CommandMetrics
+{
+    CommandMetrics( String name)
+    {
+        mName = name;
+        mFramesSent = new AtomicLong();
+        mFramesReceived = new AtomicLong();
+        mBytesSent = new AtomicLong();
+        mBytesReceived = new AtomicLong();
+        mCipherNanos = new AtomicLong();
+        mServerWaitNanos = new AtomicLong();
+        mDecodeNanos = new AtomicLong();
+        mLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Get the command's name (e.g. {@code "CMD_READ_STACK"}).
+     *
+     * @since 1.1
+     */
+    public String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * Get the count of the sent requests (one frame each).
+     *
+     * @since 1.1
+     */
+    public long getFramesSent()
+    {
+        return mFramesSent.get();
+    }
+
+    /**
+     * Get the count of the received responses (one frame each).
+     *
+     * @since 1.1
+     */
+    public long getFramesReceived()
+    {
+        return mFramesReceived.get();
+    }
+
+    /**
+     * Get the size of the sent frames, as written on the wire.
+     *
+     * @since 1.1
+     */
+    public long getBytesSent()
+    {
+        return mBytesSent.get();
+    }
+
+    /**
+     * Get the size of the received frames, as read from the wire.
+     *
+     * @since 1.1
+     */
+    public long getBytesReceived()
+    {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * Get the time spent to encrypt the requests and to decrypt the
+     * responses.
+     *
+     * @since 1.1
+     */
+    public long getCipherNanos()
+    {
+        return mCipherNanos.get();
+    }
+
+    /**
+     * Get the time spent to write the requests and to wait and read the
+     * responses.
+     *
+     * @since 1.1
+     */
+    public long getServerWaitNanos()
+    {
+        return mServerWaitNanos.get();
+    }
+
+    /**
+     * Get the time spent to handle the responses, after their arrival.
+     *
+     * @since 1.1
+     */
+    public long getDecodeNanos()
+    {
+        return mDecodeNanos.get();
+    }
+
+    /**
+     * Get the durations of the round trips, from the start of the request's
+     * encoding until the response is decrypted.
+     *
+     * @since 1.1
+     */
+    public LatencyHistogram getLatency()
+    {
+        return mLatency;
+    }
+
+    @Override
+    public String toString()
+    {
+        return mName
+               + " sent=" + getFramesSent() + '/' + getBytesSent() + 'B'
+               + " received=" + getFramesReceived() + '/' + getBytesReceived() + 'B'
+               + " cipher=" + getCipherNanos()
+               + "ns wait=" + getServerWaitNanos()
+               + "ns decode=" + getDecodeNanos()
+               + "ns latency(" + mLatency + ')';
+    }
+
+    final void reset()
+    {
+        mFramesSent.set( 0);
+        mFramesReceived.set( 0);
+        mBytesSent.set( 0);
+        mBytesReceived.set( 0);
+        mCipherNanos.set( 0);
+        mServerWaitNanos.set( 0);
+        mDecodeNanos.set( 0);
+        mLatency.reset();
+    }
+
+    final void record( int bytesSent, int bytesReceived, long latency, long cipher, long wait)
+    {
+        mFramesSent.incrementAndGet();
+        mBytesSent.addAndGet( bytesSent);
+        if (bytesReceived > 0) {
+            mFramesReceived.incrementAndGet();
+            mBytesReceived.addAndGet( bytesReceived);
+            mLatency.record( latency);
+        }
+        mCipherNanos.addAndGet( cipher);
+        mServerWaitNanos.addAndGet( wait);
+    }
+
+    final void recordDecode( long nanos)
+    {
+        mDecodeNanos.addAndGet( nanos);
+    }
+
+    private final String           mName;
+    private final AtomicLong       mFramesSent;
+    private final AtomicLong       mFramesReceived;
+    private final AtomicLong       mBytesSent;
+    private final AtomicLong       mBytesReceived;
+    private final AtomicLong       mCipherNanos;
+    private final AtomicLong       mServerWaitNanos;
+    private final AtomicLong       mDecodeNanos;
+    private final LatencyHistogram mLatency;
+}
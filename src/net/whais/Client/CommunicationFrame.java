@@ -17,9 +17,6 @@
 package net.whais.Client;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
@@ -27,20 +24,23 @@ import java.util.Random;
 
 class CommunicationFrame
 {
-    CommunicationFrame(Socket s, byte userId, int maxFrameSize, String database, byte[] key) throws IOException
+    CommunicationFrame(FrameTransport t, byte userId, int maxFrameSize, String database, byte[] key) throws IOException
     {
         if (maxFrameSize < _c.MIN_FRAME_SIZE)
             throw new ConnException( CmdResult.INVALID_ARGS, "The maximum communication frame size value is invalid.");
 
         mServerCookie = 0;
         mRndGenerator = new Random();
-        mServer = s;
-        mIStream = s.getInputStream();
-        mOStream = s.getOutputStream();
+        mTransport = t;
         mRawFrame = ByteBuffer.allocate( _c.MIN_FRAME_SIZE).order( ByteOrder.LITTLE_ENDIAN);
         mExpectedFrameId = 0;
         mPendingCommand = _c.CMD_INVALID;
         mCipher = CipherFactory.plainCipher();
+        mMetrics = null;
+        mMeasuredCommand = _c.CMD_INVALID;
+        mTimeRoundTrips = false;
+        mBufferPool = null;
+        mBufferLender = null;
 
         readRawFrame();
         if (mRawFrame.get( _c.FRAME_TYPE_OFF) != _c.FRAME_TYPE_AUTH_CLNT)
@@ -96,6 +96,8 @@ class CommunicationFrame
         if (serverFrameSize != mRawFrame.capacity())
             mRawFrame = ByteBuffer.allocate( serverFrameSize).order( ByteOrder.LITTLE_ENDIAN);
 
+        mFrameSize = serverFrameSize;
+
         // Prepare the answer the authentication frame response
         mRawFrame.put( _c.FRAME_ENCTYPE_OFF, _c.FRAME_ENCTYPE_PLAIN)
                  .put( _c.FRAME_TYPE_OFF, _c.FRAME_TYPE_AUTH_CLNT_RSP)
@@ -115,7 +117,7 @@ class CommunicationFrame
 
         mRawFrame.putShort( _c.FRAME_SIZE_OFF, (short) mRawFrameSize);
 
-        mOStream.write( mRawFrame.array(), 0, mRawFrameSize);
+        mTransport.writeFully( mRawFrame, 0, mRawFrameSize);
 
         // Make sure we have a clean status
         discardCommandBuffer();
@@ -123,16 +125,15 @@ class CommunicationFrame
 
     final void Close()
     {
-        try {
-            mServer.close();
-        } catch (IOException e) {
-            // Do noting here! Just ignore it.
-        }
+        mTransport.close();
+
+        if ((mRawFrame != null) && ((mBufferLender != null) || (mBufferPool != null)))
+            giveBackBuffer();
     }
 
     final int maxCmdSize()
     {
-        return mRawFrame.capacity() - mCipher.metadataSize();
+        return mFrameSize - mCipher.metadataSize();
     }
 
     final int availableCmdSize()
@@ -142,6 +143,11 @@ class CommunicationFrame
         return maxCmdSize() - getLastPosition();
     }
 
+    final int lastFrameId()
+    {
+        return mExpectedFrameId;
+    }
+
     final ByteBuffer getCmdBuffer()
     {
         assert mRawFrameSize >= mCipher.metadataSize();
@@ -168,6 +174,26 @@ class CommunicationFrame
 
     final void sendCommand( short cmd, boolean waitForAnswer) throws IOException
     {
+        postCommand( cmd);
+
+        if (waitForAnswer)
+            receiveResponse( cmd);
+        else if (mMetrics != null)
+            endMeasure( mMetrics, cmd, mPostTime, mPostedSize, 0);
+    }
+
+    /**
+     * Send a command without waiting for its response, so the caller may
+     * work while the server handles it. The response has to be read with
+     * {@link #receiveResponse(short)} before the frame is used again.
+     */
+    final void postCommand( short cmd) throws IOException
+    {
+        if (mMetrics != null)
+            mPostTime = startMeasure( mMetrics);
+        else
+            mPostTime = mTimeRoundTrips ? System.nanoTime() : 0;
+
         mLastReceivedRsp = _c.CMD_INVALID_RSP;
 
         final int headerOffset = mCipher.metadataSize() - _c.PLAIN_HDR_SIZE;
@@ -176,13 +202,23 @@ class CommunicationFrame
 
         mRawFrame.putInt( headerOffset + _c.PLAIN_CLNT_COOKIE_OFF, mClientCookie)
                  .putInt( headerOffset + _c.PLAIN_SERV_COOKIE_OFF, mServerCookie)
-                 .putShort( headerOffset + _c.PLAIN_TYPE_OFF, cmd)
-                 .putShort( headerOffset + _c.PLAIN_CRC_OFF, computeCheckSum());
+                 .putShort( headerOffset + _c.PLAIN_TYPE_OFF, cmd);
 
         writeRawFrame( _c.FRAME_TYPE_NORMAL);
+        mPostedSize = mRawFrameSize;
+    }
 
-        if (waitForAnswer)
-            waithForAnswer( (short) (cmd + 1));
+    /**
+     * Read the response of a command sent with {@link #postCommand(short)}.
+     */
+    final void receiveResponse( short cmd) throws IOException
+    {
+        waithForAnswer( (short) (cmd + 1));
+
+        if (mMetrics != null)
+            endMeasure( mMetrics, cmd, mPostTime, mPostedSize, mReceivedFrameSize);
+        else if (mTimeRoundTrips)
+            addRoundTrip( System.nanoTime() - mPostTime);
     }
 
     final void sendCommand( short cmd) throws IOException
@@ -214,6 +250,104 @@ class CommunicationFrame
         mLastReceivedRsp = _c.CMD_INVALID_RSP;
     }
 
+    /**
+     * Set the pool the frame's buffer is borrowed from, or {@code null} to
+     * keep a buffer for the connection's whole life. Must be called during a
+     * call, i.e. after {@link #startOfCall()}.
+     */
+    final void setBufferPool( FrameBufferPool pool)
+    {
+        assert mRawFrame != null;
+
+        mBufferPool = pool;
+    }
+
+    /**
+     * Signal the start of a connection's call, so the frame gets a buffer
+     * if it had given it back.
+     */
+    final void startOfCall()
+    {
+        if (mRawFrame != null)
+            return;
+
+        mRawFrame = ByteBuffer.wrap( mBufferPool.borrow( mFrameSize), 0, mFrameSize)
+                              .slice()
+                              .order( ByteOrder.LITTLE_ENDIAN);
+        mBufferLender = mBufferPool;
+
+        mRawFrame.position( mCipher.metadataSize());
+        mRawFrameSize = mRawFrame.position();
+    }
+
+    final void setMetrics( ConnectionMetrics metrics)
+    {
+        mMetrics = metrics;
+        mMeasuredCommand = _c.CMD_INVALID;
+    }
+
+    /**
+     * Start timing the round trips of the commands, from the post of a
+     * command to the receipt of its response, with or without metrics set.
+     */
+    final void startRoundTrips()
+    {
+        mTimeRoundTrips = true;
+        mRoundTripsNanos = 0;
+        mRoundTrips = 0;
+    }
+
+    /**
+     * Stop timing the round trips of the commands.
+     *
+     * @return The average round trip time (in nanoseconds) since
+     *         {@link #startRoundTrips()}, or -1 if no response was received.
+     */
+    final long endRoundTrips()
+    {
+        mTimeRoundTrips = false;
+
+        return (mRoundTrips == 0) ? -1 : mRoundTripsNanos / mRoundTrips;
+    }
+
+    /**
+     * Signal the end of a connection's call, so the time spent on the last
+     * response is accounted and, with a buffer pool, the frame's buffer may
+     * be given back.
+     */
+    final void endOfCall()
+    {
+        if (mMeasuredCommand != _c.CMD_INVALID) {
+            final ConnectionMetrics metrics = mMetrics;
+            if (metrics != null)
+                metrics.recordDecode( mMeasuredCommand, System.nanoTime() - mResponseTime);
+
+            mMeasuredCommand = _c.CMD_INVALID;
+        }
+
+        // Keep the buffer for the stack updates to come and for the stack
+        // read responses, which the cursors and the cells' reads reuse.
+        if ((mBufferPool != null)
+                && (mRawFrame != null)
+                && (mPendingCommand == _c.CMD_INVALID)
+                && (mLastReceivedRsp != _c.CMD_READ_STACK_RSP)) {
+            giveBackBuffer();
+        }
+    }
+
+    final private void giveBackBuffer()
+    {
+        if (mBufferLender != null)
+            mBufferLender.giveBack( mRawFrame.array(), true);
+        else
+            mBufferPool.giveBack( mRawFrame.array(), false);
+
+        mRawFrame = null;
+        mBufferLender = null;
+        mPendingCommand = _c.CMD_INVALID;
+        mLastReceivedRsp = _c.CMD_INVALID_RSP;
+    }
+
     final boolean hasPendingCommands()
     {
         assert (mPendingCommand & 1) == 0;
@@ -264,9 +398,7 @@ class CommunicationFrame
         final int headerOffset = mCipher.metadataSize() - _c.PLAIN_HDR_SIZE;
         readRawFrame();
 
-        if (mRawFrame.getShort( headerOffset + _c.PLAIN_CRC_OFF) != computeCheckSum())
-            throw new ConnException( "Received a frame with an invalid check sum.");
-        else if (mRawFrame.getInt( headerOffset + _c.PLAIN_CLNT_COOKIE_OFF) != mClientCookie)
+        if (mRawFrame.getInt( headerOffset + _c.PLAIN_CLNT_COOKIE_OFF) != mClientCookie)
             throw new ConnException( "Received a frame with a different client cookie.");
 
         mServerCookie = mRawFrame.getInt( headerOffset + _c.PLAIN_SERV_COOKIE_OFF);
@@ -276,33 +408,82 @@ class CommunicationFrame
         mLastReceivedRsp = response;
     }
 
-    final private short computeCheckSum()
+    final private long startMeasure( ConnectionMetrics metrics)
     {
-        assert mRawFrameSize >= mCipher.metadataSize();
+        final long now = System.nanoTime();
 
+        // The previous response was handled until now.
+        if (mMeasuredCommand != _c.CMD_INVALID) {
+            metrics.recordDecode( mMeasuredCommand, now - mResponseTime);
+            mMeasuredCommand = _c.CMD_INVALID;
+        }
+
+        mCipherNanos = 0;
+        mWaitNanos = 0;
+
+        return now;
+    }
+
+    final private void endMeasure( ConnectionMetrics    metrics,
+                                   short                cmd,
+                                   long                 start,
+                                   int                  sentSize,
+                                   int                  receivedSize)
+    {
+        final long now = System.nanoTime();
+
+        metrics.record( cmd, sentSize, receivedSize, now - start, mCipherNanos, mWaitNanos);
+        if (receivedSize > 0) {
+            mMeasuredCommand = cmd;
+            mResponseTime = now;
+
+            if (mTimeRoundTrips)
+                addRoundTrip( now - start);
+        }
+    }
+
+    final private void addRoundTrip( long nanos)
+    {
+        mRoundTripsNanos += nanos;
+        ++mRoundTrips;
+    }
+
+    /*
+     * The frame's check sum is the sum of its bytes, truncated to 16 bits.
+     * The bytes are read eight at a time and the even and the odd ones are
+     * added in four 16 bits lanes; a lane grows with at most 510 per word so
+     * the lanes are folded into the result before they could overflow.
+     */
+    static short computeCheckSum( ByteBuffer buffer, int from, int to)
+    {
         int result = 0;
+        int i = from;
 
-        for (int i = mCipher.metadataSize(); i < mRawFrameSize; ++i) {
-            short b = mRawFrame.get( i);
-            b &= 0x00FF; // Sign correction
+        while (i + 8 <= to) {
+            final int end = Math.min( to - 7, i + 8 * CHECKSUM_FOLD_WORDS);
 
-            result += b;
-            result &= 0x0000FFFFF;
+            long lanes = 0;
+            for (; i < end; i += 8) {
+                final long word = buffer.getLong( i);
+                lanes += (word & 0x00FF00FF00FF00FFL) + ((word >>> 8) & 0x00FF00FF00FF00FFL);
+            }
+
+            result += (int) (lanes & 0xFFFF) + (int) ((lanes >>> 16) & 0xFFFF)
+                      + (int) ((lanes >>> 32) & 0xFFFF) + (int) (lanes >>> 48);
         }
+
+        for (; i < to; ++i)
+            result += buffer.get( i) & 0x00FF; // Sign correction
+
         return (short) result;
     }
 
     final private void readRawFrame() throws IOException
     {
-        int bytesRead = 0;
-        while (bytesRead < _c.FRAME_HDR_SIZE) {
-            final int count = mIStream.read( mRawFrame.array(), bytesRead, _c.FRAME_HDR_SIZE - bytesRead);
-
-            if (count < 0)
-                throw new ConnException( CmdResult.DROPPED);
+        final boolean measure = mMetrics != null;
+        final long start = measure ? System.nanoTime() : 0;
 
-            bytesRead += count;
-        }
+        mTransport.readFully( mRawFrame, 0, _c.FRAME_HDR_SIZE);
 
         final int frameId = mRawFrame.getInt( _c.FRAME_ID_OFF);
         if (mExpectedFrameId != frameId)
@@ -314,22 +495,24 @@ class CommunicationFrame
             int expected = mRawFrame.getInt( _c.FRAME_SIZE_OFF);
             expected &= 0x0000FFFF; // For sign correction.
 
-            if (expected <= _c.FRAME_HDR_SIZE)
+            if ((expected <= _c.FRAME_HDR_SIZE) || (expected > mRawFrame.capacity()))
                 throw new ConnException( "Received a frame with an invalid size.");
 
-            while (bytesRead < expected) {
-                final int count = mIStream.read( mRawFrame.array(), bytesRead, expected - bytesRead);
-
-                if (count < 0)
-                    throw new ConnException( CmdResult.DROPPED);
-
-                bytesRead += count;
-            }
+            mTransport.readFully( mRawFrame, _c.FRAME_HDR_SIZE, expected);
             mRawFrameSize = expected;
+            mReceivedFrameSize = expected;
 
-            if (mRawFrame.get( _c.FRAME_TYPE_OFF) == _c.FRAME_TYPE_NORMAL)
-                mCipher.decodeFrame( this, mKey);
+            final long received = measure ? System.nanoTime() : 0;
+            if (mRawFrame.get( _c.FRAME_TYPE_OFF) == _c.FRAME_TYPE_NORMAL) {
+                mRawFrameSize = mCipher.openFrame( mRawFrame, mRawFrameSize, mKey);
+                if (mRawFrameSize < 0)
+                    throw new ConnException( "Received a frame with an invalid check sum.");
+            }
 
+            if (measure) {
+                mWaitNanos += received - start;
+                mCipherNanos += System.nanoTime() - received;
+            }
             return;
         }
 
@@ -357,23 +540,56 @@ class CommunicationFrame
         mRawFrame.put( _c.FRAME_ENCTYPE_OFF, mCipher.type());
         mRawFrame.putInt( _c.FRAME_ID_OFF, mExpectedFrameId++);
 
-        mCipher.encodeFrame( this, mKey);
+        final boolean measure = mMetrics != null;
+        final long start = measure ? System.nanoTime() : 0;
+
+        mRawFrameSize = mCipher.sealFrame( mRawFrame, mRawFrameSize, mKey);
+        final long encoded = measure ? System.nanoTime() : 0;
+
+        mTransport.writeFully( mRawFrame, 0, mRawFrameSize);
 
-        mOStream.write( mRawFrame.array(), 0, mRawFrameSize);
-        mOStream.flush();
+        if (measure) {
+            mCipherNanos += encoded - start;
+            mWaitNanos += System.nanoTime() - encoded;
+        }
     }
 
+    // The words summed before the check sum lanes are folded (128 * 510 fits
+    // in 16 bits).
+    private static final int CHECKSUM_FOLD_WORDS = 128;
+
     private final Random mRndGenerator;
-    private final InputStream mIStream;
-    private final OutputStream mOStream;
-    private final Socket mServer;
+    private final FrameTransport mTransport;
     private Cipher mCipher;
     private ByteBuffer mRawFrame;
     private int mRawFrameSize;
+    private int mFrameSize;
     private int mExpectedFrameId;
     private int mClientCookie;
     private int mServerCookie;
     private short mLastReceivedRsp;
     private short mPendingCommand;
     private Object mKey;
+    private int mReceivedFrameSize;
+    private int mPostedSize;
+
+    // With the metrics enabled, the command whose response is still handled
+    // (if not CMD_INVALID) and the measures of the command in progress.
+    private ConnectionMetrics mMetrics;
+    private short mMeasuredCommand;
+    private long mResponseTime;
+    private long mPostTime;
+    private long mCipherNanos;
+    private long mWaitNanos;
+
+    // The round trips timed since startRoundTrips(), if still timed.
+    private boolean mTimeRoundTrips;
+    private long mRoundTripsNanos;
+    private int mRoundTrips;
+
+    // With a buffer pool, the frame's buffer is null between the calls that
+    // leave nothing in it for the next ones. The buffer is given back to the
+    // pool it was borrowed from, even if the frame's pool was changed since.
+    private FrameBufferPool mBufferPool;
+    private FrameBufferPool mBufferLender;
 }
@@ -53,6 +53,14 @@ public class ConnException extends IOException
         assert s != null;
     }
 
+    ConnException(int exceptCode, String s, Throwable cause)
+    {
+        super( s, cause);
+        mCode = exceptCode;
+
+        assert s != null;
+    }
+
     ConnException(int exceptCode)
     {
         this( exceptCode, CmdResult.translateResultCode( exceptCode));
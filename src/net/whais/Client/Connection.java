@@ -17,16 +17,27 @@
 package net.whais.Client;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a connection to a WHAIS data server.
  *
  * The class Connection is used to instantiate a communication channel to a
  * WHAIS sever and to manage the data it holds.
+ * <p>
+ * A connection may be shared by several threads, but serves one call at a
+ * time. The calls wait for the connection using a {@link ReentrantLock}
+ * rather than the object's monitor, so the waiting and the blocking socket
+ * I/O do not pin virtual threads to their carriers (see
+ * {@link #setLockTimeout(long, TimeUnit)} to bound the waits).</p>
  *
  * @version 1.0
  */
@@ -73,14 +84,35 @@ public class Connection
                        byte[]    key,
                        byte      userId,
                        int       maxFrameSize) throws IOException
+    {
+        this( openTransport( host, port), database, key, userId, maxFrameSize);
+    }
+
+    Connection( FrameTransport  transport,
+                String          database,
+                byte[]          key,
+                byte            userId,
+                int             maxFrameSize) throws IOException
+    {
+        mUserId = userId;
+        mLock = new ReentrantLock();
+        try {
+            mFrame = new CommunicationFrame( transport, userId, maxFrameSize, database, key);
+        } catch (IOException e) {
+            transport.close();
+            throw e;
+        }
+    }
+
+    private static FrameTransport openTransport( String host, String port) throws IOException
     {
         final InetAddress[] addresses = InetAddress.getAllByName( host);
 
-        Throwable t = null;
-        Socket    s = null;
+        Throwable     t = null;
+        SocketChannel s = null;
         for (InetAddress address : addresses) {
             try {
-                s = new Socket( address, Integer.parseInt( port));
+                s = SocketChannel.open( new InetSocketAddress( address, Integer.parseInt( port)));
                 break;
             } catch (IOException e) {
                 t = e;
@@ -91,8 +123,12 @@ public class Connection
             throw new IOException( t);
         }
 
-        mUserId = userId;
-        mFrame  = new CommunicationFrame( s, userId, maxFrameSize, database, key);
+        try {
+            return new SocketChannelTransport( s);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
     }
 
     /**
@@ -163,23 +199,30 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void close( boolean discardCmds)
+    public void close( boolean discardCmds)
     {
-        if (mFrame == null)
-            return;
-
+        mLock.lock();
         try {
-            if (discardCmds)
-                mFrame.discardCommandBuffer();
-            else
-                mFrame.flushPendingCommand();
+            if (mFrame == null)
+                return;
 
-            mFrame.sendCommand( _c.CMD_CLOSE_CONN, false);
-        } catch (IOException e) {
-            // Do nothing here ... just ignore it.
+            startOfCall();
+
+            try {
+                if (discardCmds)
+                    mFrame.discardCommandBuffer();
+                else
+                    mFrame.flushPendingCommand();
+
+                mFrame.sendCommand( _c.CMD_CLOSE_CONN, false);
+            } catch (IOException e) {
+                // Do nothing here ... just ignore it.
+            } finally {
+                mFrame.Close();
+                mFrame = null;
+            }
         } finally {
-            mFrame.Close();
-            mFrame = null;
+            unlock();
         }
     }
 
@@ -205,8 +248,14 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized  boolean isAlive ()
+    public boolean isAlive ()
     {
+        try {
+            acquire();
+        } catch (ConnException e) {
+            return false;
+        }
+
         try {
             if (mFrame.hasPendingCommands())
                 mFrame.flushPendingCommand();
@@ -217,6 +266,8 @@ public class Connection
         }
         catch (Throwable e) {
             return false;
+        } finally {
+            unlock();
         }
         return true;
     }
@@ -252,18 +303,23 @@ public class Connection
      * @since 1.0
      * @see net.whais.Client.ConnException
      */
-    public synchronized void pingServer() throws IOException
+    public void pingServer() throws IOException
     {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+        acquire();
+        try {
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        mFrame.discardCommandBuffer();
-        mFrame.sendCommand( _c.CMD_PING_SERVER);
-        final int cmdResult = mFrame.getCmdBuffer().getInt();
-        mFrame.discardCommandBuffer();
+            mFrame.discardCommandBuffer();
+            mFrame.sendCommand( _c.CMD_PING_SERVER);
+            final int cmdResult = mFrame.getCmdBuffer().getInt();
+            mFrame.discardCommandBuffer();
 
-        if (cmdResult != CmdResult.OK)
-            throw new ConnException( cmdResult);
+            if (cmdResult != CmdResult.OK)
+                throw new ConnException( cmdResult);
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -284,15 +340,164 @@ public class Connection
      * @see #describeGlobal(String)
      * @since 1.0
      */
-    public synchronized String[] retrieveGlobalNames() throws IOException
+    public String[] retrieveGlobalNames() throws IOException
     {
-        String[] result = Connection.emptyList;
+        acquire();
+        try {
+            if (mUserId != ADMIN)
+                throw new ConnException( CmdResult.OP_NOTPERMITED);
+
+            final MetadataCache cache = mMetadataCache;
+            String[] result = (cache != null) ? cache.getGlobalNames() : null;
+            if (result != null)
+                return result;
+            else if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+            result = fetchGlobalNames();
+            if (cache != null)
+                cache.putGlobalNames( result);
+
+            return result;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Gets the type of a global value.
+     * <p>
+     * Describes a global value defined in the namespace of connected
+     * database. This {@link Connection} must be initiated by an administrator
+     * to successfully complete this method call.</p>
+     *
+     * @param name
+     *            The name of the global value.
+     * @return
+     *            An object representing the type of the specified value.
+     *
+     * @throws ConnException
+     *
+     * @since 1.0
+     */
+    public ValueType describeGlobal( String name) throws IOException
+    {
+        acquire();
+        try {
+            if (mUserId != ADMIN)
+                throw new ConnException( CmdResult.OP_NOTPERMITED);
+            else if ((name == null) || (name.length() == 0))
+                throw new ConnException( CmdResult.INVALID_ARGS);
+
+            final MetadataCache cache = mMetadataCache;
+            ValueType result = (cache != null) ? cache.getGlobal( name) : null;
+            if (result != null)
+                return result;
+            else if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+            result = internalDescribeValue( name);
+            if (cache != null)
+                cache.putGlobal( name, result);
+
+            return result;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Retrieves the names of the WHAIS procedures.
+     * <p>
+     * Retrieve the names of the WHAIS procedures defined in the namespace of
+     * connected database. This {@link Connection} must be initiated by an
+     * administrator to successfully complete this method call.</p>
+     *
+     * @return
+     *            An array with the procedures names. If there are no
+     *            procedures it will return an array with {@code 0}
+     *            elements.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @see #describeProcedure(String)
+     * @since 1.0
+     */
+    public String[] retrieveProceduresNames() throws IOException
+    {
+        acquire();
+        try {
+            if (mUserId != ADMIN)
+                throw new ConnException( CmdResult.OP_NOTPERMITED);
+
+            final MetadataCache cache = mMetadataCache;
+            String[] result = (cache != null) ? cache.getProcedureNames() : null;
+            if (result != null)
+                return result;
+            else if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+            result = fetchProceduresNames();
+            if (cache != null)
+                cache.putProcedureNames( result);
+
+            return result;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Describes a WHAIS procedure.
+     * <p>
+     * Once the name of a procedure defined in the context of the connected
+     * database is known, it can be used with this method to find more
+     * information about it( e.g like the type of the parameters it needs or
+     * of the value it returns). This {@link Connection} must be initiated
+     * by an administrator to successfully complete this method call.</p>
+     *
+     * @param name
+     *            The name of the Whais procedure.
+     * @return
+     *            An object holding the procedure description.
+     *
+     * @throws ConnException
+     * @throws IOException
+     *
+     * @see #retrieveProceduresNames()
+     * @see ProcedureDescription
+     * @since 1.0
+     */
+    public ProcedureDescription describeProcedure( String name) throws IOException
+    {
+        acquire();
+        try {
+            if (mUserId != ADMIN)
+                throw new ConnException( CmdResult.OP_NOTPERMITED);
+            else if ((name == null) || (name.length() == 0))
+                throw new ConnException( CmdResult.INVALID_ARGS);
+
+            final MetadataCache cache = mMetadataCache;
+            ProcedureDescription result = (cache != null) ? cache.getProcedure( name) : null;
+            if (result != null)
+                return result;
+            else if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (mUserId != ADMIN)
-            throw new ConnException( CmdResult.OP_NOTPERMITED);
+            result = fetchProcedureDescription( name);
+            if (cache != null)
+                cache.putProcedure( name, result);
+
+            return result;
+        } finally {
+            unlock();
+        }
+    }
 
-        else if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+    private String[] fetchGlobalNames() throws IOException
+    {
+        String[] result = Connection.emptyList;
 
         ByteBuffer buffer = null;
         int glbIndex = 0, glbsCount = 0;
@@ -341,61 +546,10 @@ public class Connection
         return result;
     }
 
-    /**
-     * Gets the type of a global value.
-     * <p>
-     * Describes a global value defined in the namespace of connected
-     * database. This {@link Connection} must be initiated by an administrator
-     * to successfully complete this method call.</p>
-     *
-     * @param name
-     *            The name of the global value.
-     * @return
-     *            An object representing the type of the specified value.
-     *
-     * @throws ConnException
-     *
-     * @since 1.0
-     */
-    public synchronized ValueType describeGlobal( String name) throws IOException
-    {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
-        else if (mUserId != ADMIN)
-            throw new ConnException( CmdResult.OP_NOTPERMITED);
-        else if ((name == null) || (name.length() == 0))
-            throw new ConnException( CmdResult.INVALID_ARGS);
-
-        return internalDescribeValue( name);
-    }
-
-    /**
-     * Retrieves the names of the WHAIS procedures.
-     * <p>
-     * Retrieve the names of the WHAIS procedures defined in the namespace of
-     * connected database. This {@link Connection} must be initiated by an
-     * administrator to successfully complete this method call.</p>
-     *
-     * @return
-     *            An array with the procedures names. If there are no
-     *            procedures it will return an array with {@code 0}
-     *            elements.
-     *
-     * @throws IOException
-     * @throws ConnException
-     *
-     * @see #describeProcedure(String)
-     * @since 1.0
-     */
-    public synchronized String[] retrieveProceduresNames() throws IOException
+    private String[] fetchProceduresNames() throws IOException
     {
         String[] result = null;
 
-        if (mUserId != ADMIN)
-            throw new ConnException( CmdResult.OP_NOTPERMITED);
-        else if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
-
         ByteBuffer buffer = null;
         int procIndex = 0, procsCount = 0;
         do {
@@ -441,36 +595,8 @@ public class Connection
         return result;
     }
 
-    /**
-     * Describes a WHAIS procedure.
-     * <p>
-     * Once the name of a procedure defined in the context of the connected
-     * database is known, it can be used with this method to find more
-     * information about it( e.g like the type of the parameters it needs or
-     * of the value it returns). This {@link Connection} must be initiated
-     * by an administrator to successfully complete this method call.</p>
-     *
-     * @param name
-     *            The name of the Whais procedure.
-     * @return
-     *            An object holding the procedure description.
-     *
-     * @throws ConnException
-     * @throws IOException
-     *
-     * @see #retrieveProceduresNames()
-     * @see ProcedureDescription
-     * @since 1.0
-     */
-    public synchronized ProcedureDescription describeProcedure( String name) throws IOException
+    private ProcedureDescription fetchProcedureDescription( String name) throws IOException
     {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
-        else if (mUserId != ADMIN)
-            throw new ConnException( CmdResult.OP_NOTPERMITED);
-        else if ((name == null) || (name.length() == 0))
-            throw new ConnException( CmdResult.INVALID_ARGS);
-
         mFrame.discardCommandBuffer();
         ByteBuffer b = mFrame.getCmdBuffer();
         final byte[] n = name.getBytes( StandardCharsets.UTF_8);
@@ -575,12 +701,17 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized ValueType describeStackTop() throws IOException
+    public ValueType describeStackTop() throws IOException
     {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+        acquire();
+        try {
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        return internalDescribeValue( "");
+            return internalDescribeValue( "");
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -610,52 +741,58 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void pushStackValue( ValueType type) throws IOException
+    public void pushStackValue( ValueType type) throws IOException
     {
-        if ( ! mFrame.hasPendingCommands())
-            mFrame.discardCommandBuffer();
-        else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+        acquire();
+        try {
+            if ( ! mFrame.hasPendingCommands())
+                mFrame.discardCommandBuffer();
+            else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (type.isField())
-            throw new ConnException( CmdResult.INVALID_ARGS, "Field values cannot be pushed on stack.");
+            if (type.isField())
+                throw new ConnException( CmdResult.INVALID_ARGS, "Field values cannot be pushed on stack.");
 
-        if (mFrame.availableCmdSize() < 3) {
-            assert mFrame.hasPendingCommands();
+            if (mFrame.availableCmdSize() < 3) {
+                assert mFrame.hasPendingCommands();
 
-            mFrame.flushPendingCommand();
-            pushStackValue( type);
-            return;
-        }
+                mFrame.flushPendingCommand();
+                pushStackValue( type);
+                return;
+            }
 
-        final ByteBuffer buffer = mFrame.getCmdBuffer();
-        buffer.position( mFrame.getLastPosition());
-        buffer.put( _c.CMD_UPDATE_FUNC_PUSH)
-              .putShort( type.getTypeId());
-        if (type.isTable() && (type.getFields().length > 0)) {
-            buffer.putShort( (short) type.getFields().length);
-            for (TableFieldType f : type.getFields()) {
-                final byte[] utf8FieldName = f.getName().getBytes( StandardCharsets.UTF_8);
-                final int spaceRequired = utf8FieldName.length + 1 + 2;
-
-                if (buffer.position() + spaceRequired >= buffer.capacity()) {
-                    if (!mFrame.hasPendingCommands()) {
-                        throw new ConnException( CmdResult.LARGE_ARGS,
-                                "The communication frame size does not  to allow the push of this table value.");
+            final ByteBuffer buffer = mFrame.getCmdBuffer();
+            buffer.position( mFrame.getLastPosition());
+            buffer.put( _c.CMD_UPDATE_FUNC_PUSH)
+                  .putShort( type.getTypeId());
+            final TableFieldType[] fields = type.getFields();
+            if (type.isTable() && (fields.length > 0)) {
+                buffer.putShort( (short) fields.length);
+                for (TableFieldType f : fields) {
+                    final byte[] utf8FieldName = f.getName().getBytes( StandardCharsets.UTF_8);
+                    final int spaceRequired = utf8FieldName.length + 1 + 2;
+
+                    if (buffer.position() + spaceRequired >= buffer.capacity()) {
+                        if (!mFrame.hasPendingCommands()) {
+                            throw new ConnException( CmdResult.LARGE_ARGS,
+                                    "The communication frame size does not  to allow the push of this table value.");
+                        }
+
+                        mFrame.flushPendingCommand();
+                        pushStackValue( type);
+                        return;
                     }
 
-                    mFrame.flushPendingCommand();
-                    pushStackValue( type);
-                    return;
+                    buffer.put( utf8FieldName)
+                          .put( (byte) 0)
+                          .putShort( f.getType().getTypeId());
                 }
-
-                buffer.put( utf8FieldName)
-                      .put( (byte) 0)
-                      .putShort( f.getType().getTypeId());
             }
+            mFrame.markBufferPositionValid();
+            mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+        } finally {
+            unlock();
         }
-        mFrame.markBufferPositionValid();
-        mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
     }
 
     /**
@@ -682,12 +819,17 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void pushStackValue( Value v) throws IOException
+    public void pushStackValue( Value v) throws IOException
     {
-        pushStackValue( v.type());
+        acquire();
+        try {
+            pushStackValue( v.type());
 
-        if ( ! v.isNull())
-            updateStackTop( v);
+            if ( ! v.isNull())
+                updateStackTop( v);
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -714,30 +856,35 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void popStackValues( int count) throws IOException
+    public void popStackValues( int count) throws IOException
     {
-        if ( ! mFrame.hasPendingCommands())
-            mFrame.discardCommandBuffer();
-        else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+        acquire();
+        try {
+            if ( ! mFrame.hasPendingCommands())
+                mFrame.discardCommandBuffer();
+            else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (mFrame.availableCmdSize() < 5) {
-            assert mFrame.hasPendingCommands();
+            if (mFrame.availableCmdSize() < 5) {
+                assert mFrame.hasPendingCommands();
 
-            mFrame.flushPendingCommand();
-            popStackValues( count);
+                mFrame.flushPendingCommand();
+                popStackValues( count);
 
-            return;
-        }
+                return;
+            }
 
-        ByteBuffer buffer = mFrame.getCmdBuffer();
-        buffer.position( mFrame.getLastPosition());
+            ByteBuffer buffer = mFrame.getCmdBuffer();
+            buffer.position( mFrame.getLastPosition());
 
-        buffer.put( _c.CMD_UPDATE_FUNC_POP)
-              .putInt( count);
+            buffer.put( _c.CMD_UPDATE_FUNC_POP)
+                  .putInt( count);
 
-        mFrame.markBufferPositionValid();
-        mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+            mFrame.markBufferPositionValid();
+            mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -775,32 +922,37 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void executeProcedure( final String name) throws IOException
+    public void executeProcedure( final String name) throws IOException
     {
-        if ( ! mFrame.hasPendingCommands())
+        acquire();
+        try {
+            if ( ! mFrame.hasPendingCommands())
+                mFrame.discardCommandBuffer();
+            else if (mFrame.getPendingCommand() == _c.CMD_UPDATE_STACK)
+                flushStackUpdates();
+            else if (mFrame.getPendingCommand() != _c.CMD_INVALID)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
             mFrame.discardCommandBuffer();
-        else if (mFrame.getPendingCommand() == _c.CMD_UPDATE_STACK)
-            flushStackUpdates();
-        else if (mFrame.getPendingCommand() != _c.CMD_INVALID)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+            final ByteBuffer b = mFrame.getCmdBuffer();
+            final byte[] n = name.getBytes( StandardCharsets.UTF_8);
+            if (mFrame.availableCmdSize() < n.length + 1) {
+                throw new ConnException( CmdResult.LARGE_ARGS,
+                                         "Procedure name is too long for the configured communication frame size.");
+            }
 
-        mFrame.discardCommandBuffer();
-        final ByteBuffer b = mFrame.getCmdBuffer();
-        final byte[] n = name.getBytes( StandardCharsets.UTF_8);
-        if (mFrame.availableCmdSize() < n.length + 1) {
-            throw new ConnException( CmdResult.LARGE_ARGS,
-                                     "Procedure name is too long for the configured communication frame size.");
-        }
-
-        b.put( n)
-         .put( (byte) 0);
+            b.put( n)
+             .put( (byte) 0);
 
-        mFrame.markBufferPositionValid();
-        mFrame.sendCommand( _c.CMD_EXEC_PROC);
+            mFrame.markBufferPositionValid();
+            mFrame.sendCommand( _c.CMD_EXEC_PROC);
 
-        final int cmdRsp = mFrame.getCmdBuffer().getInt();
-        if (cmdRsp != CmdResult.OK)
-            throw new ConnException( cmdRsp);
+            final int cmdRsp = mFrame.getCmdBuffer().getInt();
+            if (cmdRsp != CmdResult.OK)
+                throw new ConnException( cmdRsp);
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -822,31 +974,36 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void updateStackTopAddTableRows( int rowsCount) throws IOException
+    public void updateStackTopAddTableRows( int rowsCount) throws IOException
     {
-        assert rowsCount > 0;
+        acquire();
+        try {
+            assert rowsCount > 0;
 
-        if (!mFrame.hasPendingCommands())
-            mFrame.discardCommandBuffer();
-        else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+            if (!mFrame.hasPendingCommands())
+                mFrame.discardCommandBuffer();
+            else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (mFrame.availableCmdSize() < 5) {
-            assert mFrame.hasPendingCommands();
+            if (mFrame.availableCmdSize() < 5) {
+                assert mFrame.hasPendingCommands();
 
-            mFrame.flushPendingCommand();
-            updateStackTopAddTableRows( rowsCount);
-            return;
-        }
+                mFrame.flushPendingCommand();
+                updateStackTopAddTableRows( rowsCount);
+                return;
+            }
 
-        final ByteBuffer buffer = mFrame.getCmdBuffer();
-        buffer.position( mFrame.getLastPosition());
+            final ByteBuffer buffer = mFrame.getCmdBuffer();
+            buffer.position( mFrame.getLastPosition());
 
-        buffer.put( _c.CMD_UPDATE_FUNC_TBL_ROWS)
-              .putInt( rowsCount);
+            buffer.put( _c.CMD_UPDATE_FUNC_TBL_ROWS)
+                  .putInt( rowsCount);
 
-        mFrame.markBufferPositionValid();
-        mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+            mFrame.markBufferPositionValid();
+            mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+        } finally {
+            unlock();
+        }
     }
 
 
@@ -882,49 +1039,55 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void updateStackTop( Value val) throws IOException
+    public void updateStackTop( Value val) throws IOException
     {
-        if (!mFrame.hasPendingCommands())
-            mFrame.discardCommandBuffer();
-        else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+        acquire();
+        try {
+            if (!mFrame.hasPendingCommands())
+                mFrame.discardCommandBuffer();
+            else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (val.isNull()) {
-            throw new ConnException( CmdResult.INVALID_ARGS,
-                                     "Cannot use a null value to update stack.");
-        }
+            if (val.isNull()) {
+                throw new ConnException( CmdResult.INVALID_ARGS,
+                                         "Cannot use a null value to update stack.");
+            }
 
-        if (val.type().equals( ValueType.textType()))
-            updateStackTopText( val.toString(), 0);
-        else if (val.type().isBasic())
-            updateStackTopBasic( val);
-        else if (val.type().isArray())
-            updateStackTopArray( ((ArrayValue) val).toArray(), 0);
-        else if (val.type().isTable()) {
-            if (val.isNull())
-                return;
+            if (val.type().equals( ValueType.textType()))
+                updateStackTopText( val.toString(), 0);
+            else if (val.type().isBasic())
+                updateStackTopBasic( val);
+            else if (val.type().isArray())
+                updateStackTopArray( (ArrayValue) val, 0);
+            else if (val.type().isTable()) {
+                if (val.isNull())
+                    return;
 
-            final TableValue table = (TableValue) val;
-            final int rowsCount = table.getRowsCount();
+                final TableValue table = (TableValue) val;
+                final int rowsCount = table.getRowsCount();
 
-            assert rowsCount > 0;
+                assert rowsCount > 0;
 
-            updateStackTopAddTableRows( rowsCount);
+                updateStackTopAddTableRows( rowsCount);
 
-            for (int row = 0; row < rowsCount; ++row) {
-                if (table.isEmptyRow( row))
-                    continue;
+                final TableFieldType[] fields = table.getFields();
+                final byte[][] names = new byte[fields.length][];
+                for (int f = 0; f < fields.length; ++f)
+                    names[f] = fields[f].getName().getBytes( StandardCharsets.UTF_8);
 
-                for (TableFieldType fields : table.getFields()) {
-                    final Value v = table.get( fields.getName(), row);
-                    if ((v == null) || v.isNull())
-                        continue;
+                for (int row = 0; row < rowsCount; ++row) {
+                    for (int f = 0; f < fields.length; ++f) {
+                        if (table.isNull( f, row))
+                            continue;
 
-                    updateStackTop( v, fields.getName(), row);
+                        updateStackTopCell( table.get( f, row), names[f], row);
+                    }
                 }
-            }
-        } else
-            throw new ConnException( CmdResult.INVALID_ARGS, "Unexpected value type to update the top of stack.");
+            } else
+                throw new ConnException( CmdResult.INVALID_ARGS, "Unexpected value type to update the top of stack.");
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -965,33 +1128,31 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void updateStackTop(Value     val,
+    public void updateStackTop(Value     val,
                                             String    fieldName,
                                             long      row) throws IOException
     {
-        if (((fieldName == null)
-                || (fieldName.equals( IGNORE_FIELD))) && (row == IGNORE_ROW)) {
-            updateStackTop( val);
-            return;
-        }
+        acquire();
+        try {
+            if (((fieldName == null)
+                    || (fieldName.equals( IGNORE_FIELD))) && (row == IGNORE_ROW)) {
+                updateStackTop( val);
+                return;
+            }
 
-        if ( ! mFrame.hasPendingCommands())
-            mFrame.discardCommandBuffer();
+            if ( ! mFrame.hasPendingCommands())
+                mFrame.discardCommandBuffer();
 
-        else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+            else if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (row < 0)
-            throw new ConnException( CmdResult.INVALID_ROW);
+            if (row < 0)
+                throw new ConnException( CmdResult.INVALID_ROW);
 
-        if (val.type().equals( ValueType.textType()))
-            updateStackTopText( val.toString(), 0, fieldName, row);
-        else if (val.type().isBasic())
-            updateStackTopBasic( val, fieldName, row);
-        else if (val.type().isArray())
-            updateStackToArray( ((ArrayValue) val).toArray(), 0, fieldName, row);
-        else
-            throw new ConnException( CmdResult.INVALID_ARGS, "Unexpected value type to update the top of stack.");
+            updateStackTopCell( val, fieldName.getBytes( StandardCharsets.UTF_8), row);
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -1021,21 +1182,26 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized void flushStackUpdates() throws IOException
+    public void flushStackUpdates() throws IOException
     {
-        if ( ! mFrame.hasPendingCommands())
-            return;
+        acquire();
+        try {
+            if ( ! mFrame.hasPendingCommands())
+                return;
 
-        if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+            if (mFrame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        mFrame.flushPendingCommand();
+            mFrame.flushPendingCommand();
 
-        final int cmdResult = mFrame.getCmdBuffer().getInt();
-        mFrame.discardCommandBuffer();
+            final int cmdResult = mFrame.getCmdBuffer().getInt();
+            mFrame.discardCommandBuffer();
 
-        if (cmdResult != CmdResult.OK)
-            throw new ConnException( cmdResult);
+            if (cmdResult != CmdResult.OK)
+                throw new ConnException( cmdResult);
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -1060,78 +1226,73 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized long retrieveStackTopRowsCount() throws IOException
+    public long retrieveStackTopRowsCount() throws IOException
     {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+        acquire();
+        try {
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if (mFrame.getCachedResponse() != _c.CMD_READ_STACK_RSP)
-            refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, IGNORE_OFFSET);
+            if (mFrame.getCachedResponse() != _c.CMD_READ_STACK_RSP)
+                refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, IGNORE_OFFSET);
 
-        final ByteBuffer b = mFrame.getCmdBuffer();
-        b.position( b.position() + 4);
+            final ByteBuffer b = mFrame.getCmdBuffer();
+            b.position( b.position() + 4);
 
-        short type = b.getShort();
-        if (!(ValueType.isTable( type) || ValueType.isField( type)))
-            return -1;
+            short type = b.getShort();
+            if (!(ValueType.isTable( type) || ValueType.isField( type)))
+                return -1;
 
-        return b.getLong();
+            return b.getLong();
+        } finally {
+            unlock();
+        }
     }
 
-    public synchronized Value retrieveStackTop( final long row) throws IOException
+    public Value retrieveStackTop( final long row) throws IOException
     {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
-
-        if (mFrame.getCachedResponse() != _c.CMD_READ_STACK_RSP) {
-            refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, IGNORE_OFFSET);
-        }
-
-        ByteBuffer b = mFrame.getCmdBuffer();
-        b.position( b.position() + 4);
-        short type = b.getShort();
-
-        assert (!ValueType.isTable( type));
-
-        if (!ValueType.isField( type)) {
-            if (row == IGNORE_ROW)
-                return retrieveStackTop();
+        acquire();
+        try {
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-            throw new ConnException( CmdResult.INVALID_ROW);
-        }
+            if (mFrame.getCachedResponse() != _c.CMD_READ_STACK_RSP) {
+                refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, IGNORE_OFFSET);
+            }
 
-        if ((b = skipUntilCachedRow( row)) == null) {
-            refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, IGNORE_OFFSET);
+            ByteBuffer b = mFrame.getCmdBuffer();
+            b.position( b.position() + 4);
+            short type = b.getShort();
 
-            if ((b = skipUntilCachedRow( row)) == null)
-                throw new ConnException( CmdResult.GENERAL_ERR);
-        }
+            assert (!ValueType.isTable( type));
 
-        if (ValueType.isArray( type)) {
-            long elementsCount = b.getLong();
-            type = (short) ValueType.getBaseType( type);
+            if (!ValueType.isField( type)) {
+                if (row == IGNORE_ROW)
+                    return retrieveStackTop();
 
-            ArrayValue result = Value.createArray( ValueType.create( type | ValueType.ARRAY_MASK));
+                throw new ConnException( CmdResult.INVALID_ROW);
+            }
 
-            if (elementsCount == 0)
-                return result;
+            if ((b = skipUntilCachedRow( row)) == null) {
+                refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, IGNORE_OFFSET);
 
-            long arrayOffset = b.getLong();
-            if (arrayOffset != 0) {
-                arrayOffset = 0;
-                refreshReadCache( IGNORE_FIELD, row, 0, IGNORE_OFFSET);
                 if ((b = skipUntilCachedRow( row)) == null)
                     throw new ConnException( CmdResult.GENERAL_ERR);
-
-                if ((elementsCount != b.getLong()) || (arrayOffset != b.getLong())) {
-                    throw new ConnException( CmdResult.GENERAL_ERR);
-                }
             }
 
-            while (arrayOffset < elementsCount) {
-                if (b.position() >= mFrame.getLastPosition()) {
-                    refreshReadCache( IGNORE_FIELD, row, arrayOffset, IGNORE_OFFSET);
+            if (ValueType.isArray( type)) {
+                long elementsCount = b.getLong();
+                type = (short) ValueType.getBaseType( type);
+
+                ArrayValue result = Value.createArray( ValueType.create( type | ValueType.ARRAY_MASK));
 
+                if (elementsCount == 0)
+                    return result;
+
+                long arrayOffset = b.getLong();
+                if (arrayOffset != 0) {
+                    arrayOffset = 0;
+                    refreshReadCache( IGNORE_FIELD, row, 0, IGNORE_OFFSET);
                     if ((b = skipUntilCachedRow( row)) == null)
                         throw new ConnException( CmdResult.GENERAL_ERR);
 
@@ -1139,57 +1300,72 @@ public class Connection
                         throw new ConnException( CmdResult.GENERAL_ERR);
                     }
                 }
-                result.add( Value.createBasic( ValueType.create( type), b.array(), b.position()));
 
-                while (b.get() != 0)
-                    ; // Just let the buffer advance
-                ++arrayOffset;
-            }
-            return result;
-        } else if (ValueType.getBaseType( type) == ValueType.TEXT) {
-            long charsCount = b.getLong();
+                while (arrayOffset < elementsCount) {
+                    if (b.position() >= mFrame.getLastPosition()) {
+                        refreshReadCache( IGNORE_FIELD, row, arrayOffset, IGNORE_OFFSET);
 
-            if (charsCount == 0)
-                return Value.createBasic( ValueType.textType());
+                        if ((b = skipUntilCachedRow( row)) == null)
+                            throw new ConnException( CmdResult.GENERAL_ERR);
 
-            long charOffset = b.getLong();
-            String text = "";
-            if (charOffset != 0) {
-                charOffset = 0;
-                refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, 0);
-                if ((b = skipUntilCachedRow( row)) == null)
-                    throw new ConnException( CmdResult.GENERAL_ERR);
+                        if ((elementsCount != b.getLong()) || (arrayOffset != b.getLong())) {
+                            throw new ConnException( CmdResult.GENERAL_ERR);
+                        }
+                    }
+                    result.addEncoded( b.array(), b.position());
 
-                if ((charsCount != b.getLong()) || (charOffset != b.getLong())) {
-                    throw new ConnException( CmdResult.GENERAL_ERR);
+                    while (b.get() != 0)
+                        ; // Just let the buffer advance
+                    ++arrayOffset;
                 }
+                return result;
+            } else if (ValueType.getBaseType( type) == ValueType.TEXT) {
+                long charsCount = b.getLong();
 
-            }
+                if (charsCount == 0)
+                    return Value.createBasic( ValueType.textType());
 
-            while (charOffset < charsCount) {
-                if (b.position() >= mFrame.getLastPosition()) {
-                    refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, charOffset);
+                long charOffset = b.getLong();
+                final StringBuilder text = new StringBuilder();
+                if (charOffset != 0) {
+                    charOffset = 0;
+                    refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, 0);
                     if ((b = skipUntilCachedRow( row)) == null)
                         throw new ConnException( CmdResult.GENERAL_ERR);
 
                     if ((charsCount != b.getLong()) || (charOffset != b.getLong())) {
                         throw new ConnException( CmdResult.GENERAL_ERR);
                     }
+
                 }
 
-                int startOffset = b.position();
-                while (b.get() != 0)
-                    ; // Just let the buffer position to advance
-                int endOffset = b.position() - 1;
+                while (charOffset < charsCount) {
+                    if (b.position() >= mFrame.getLastPosition()) {
+                        refreshReadCache( IGNORE_FIELD, row, IGNORE_OFFSET, charOffset);
+                        if ((b = skipUntilCachedRow( row)) == null)
+                            throw new ConnException( CmdResult.GENERAL_ERR);
+
+                        if ((charsCount != b.getLong()) || (charOffset != b.getLong())) {
+                            throw new ConnException( CmdResult.GENERAL_ERR);
+                        }
+                    }
+
+                    int startOffset = b.position();
+                    while (b.get() != 0)
+                        ; // Just let the buffer position to advance
+                    int endOffset = b.position() - 1;
 
-                String t = new String( b.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
-                charOffset += t.codePointCount( 0, t.length());
-                text += t;
+                    String t = new String( b.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
+                    charOffset += t.codePointCount( 0, t.length());
+                    text.append( t);
+                }
+                return Value.createBasic( ValueType.textType(), text.toString());
             }
-            return Value.createBasic( ValueType.textType(), text);
-        }
 
-        return Value.createBasic( ValueType.create( ValueType.getBaseType( type)), b.array(), b.position());
+            return Value.createBasic( ValueType.create( ValueType.getBaseType( type)), b.array(), b.position());
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -1232,60 +1408,48 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized Value retrieveStackTop( final String   field,
+    public Value retrieveStackTop( final String   field,
                                    final long     row) throws IOException
     {
-        if (field == null || field.equals( IGNORE_FIELD))
-            return (row != IGNORE_ROW) ? retrieveStackTop( row) : retrieveStackTop();
-
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
-
-        if (mFrame.getCachedResponse() != _c.CMD_READ_STACK_RSP)
-            refreshReadCache( field, row, IGNORE_OFFSET, IGNORE_OFFSET);
-
-        ByteBuffer b = mFrame.getCmdBuffer();
-        b.position( b.position() + 4);
-
-        assert (field != null && !field.equals( IGNORE_FIELD));
+        acquire();
+        try {
+            if (field == null || field.equals( IGNORE_FIELD))
+                return (row != IGNORE_ROW) ? retrieveStackTop( row) : retrieveStackTop();
 
-        if (!ValueType.isTable( b.getShort()))
-            throw new ConnException( CmdResult.INVALID_FIELD);
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        if ((b = skipUntilFieldValue( field, row)) == null) {
-            refreshReadCache( field, row, IGNORE_OFFSET, IGNORE_OFFSET);
-            if ((b = skipUntilFieldValue( field, row)) == null)
-                throw new ConnException( CmdResult.GENERAL_ERR);
-        }
+            if (mFrame.getCachedResponse() != _c.CMD_READ_STACK_RSP)
+                refreshReadCache( field, row, IGNORE_OFFSET, IGNORE_OFFSET);
 
-        ValueType type = ValueType.create( b.getShort());
-        if (type.isArray()) {
-            long elementsCount = b.getLong();
-            ArrayValue result = Value.createArray( type);
+            ByteBuffer b = mFrame.getCmdBuffer();
+            b.position( b.position() + 4);
 
-            type = ValueType.create( type.getBaseType());
+            assert (field != null && !field.equals( IGNORE_FIELD));
 
-            if (elementsCount == 0)
-                return result;
+            if (!ValueType.isTable( b.getShort()))
+                throw new ConnException( CmdResult.INVALID_FIELD);
 
-            long arrayOffset = b.getLong();
-            if (arrayOffset != 0) {
-                arrayOffset = 0;
-                refreshReadCache( field, row, 0, IGNORE_OFFSET);
+            if ((b = skipUntilFieldValue( field, row)) == null) {
+                refreshReadCache( field, row, IGNORE_OFFSET, IGNORE_OFFSET);
                 if ((b = skipUntilFieldValue( field, row)) == null)
                     throw new ConnException( CmdResult.GENERAL_ERR);
-
-                if ((type.getTypeId() != ValueType.getBaseType( b.getShort()))
-                        || (elementsCount != b.getLong())
-                        || (arrayOffset != b.getLong())) {
-                    throw new ConnException( CmdResult.GENERAL_ERR);
-                }
             }
 
-            while (arrayOffset < elementsCount) {
-                if (b.position() >= mFrame.getLastPosition()) {
-                    refreshReadCache( field, row, arrayOffset, IGNORE_OFFSET);
+            ValueType type = ValueType.create( b.getShort());
+            if (type.isArray()) {
+                long elementsCount = b.getLong();
+                ArrayValue result = Value.createArray( type);
+
+                type = ValueType.create( type.getBaseType());
 
+                if (elementsCount == 0)
+                    return result;
+
+                long arrayOffset = b.getLong();
+                if (arrayOffset != 0) {
+                    arrayOffset = 0;
+                    refreshReadCache( field, row, 0, IGNORE_OFFSET);
                     if ((b = skipUntilFieldValue( field, row)) == null)
                         throw new ConnException( CmdResult.GENERAL_ERR);
 
@@ -1295,39 +1459,40 @@ public class Connection
                         throw new ConnException( CmdResult.GENERAL_ERR);
                     }
                 }
-                result.add( Value.createBasic( type, b.array(), b.position()));
 
-                while (b.get() != 0)
-                    ; // Just let the buffer advance
+                while (arrayOffset < elementsCount) {
+                    if (b.position() >= mFrame.getLastPosition()) {
+                        refreshReadCache( field, row, arrayOffset, IGNORE_OFFSET);
 
-                ++arrayOffset;
-            }
-            return result;
-        } else if (type.getBaseType() == ValueType.TEXT) {
-            type = ValueType.textType();
-            long charsCount = b.getLong();
-
-            if (charsCount == 0)
-                return Value.createBasic( type);
-
-            long charOffset = b.getLong();
-            String text = "";
-            if (charOffset != 0) {
-                charOffset = 0;
-                refreshReadCache( field, row, IGNORE_OFFSET, 0);
-                if ((b = skipUntilFieldValue( field, row)) == null)
-                    throw new ConnException( CmdResult.GENERAL_ERR);
+                        if ((b = skipUntilFieldValue( field, row)) == null)
+                            throw new ConnException( CmdResult.GENERAL_ERR);
 
-                if ((type.getTypeId() != b.getShort())
-                        || (charsCount != b.getLong())
-                        || (charOffset != b.getLong())) {
-                    throw new ConnException( CmdResult.GENERAL_ERR);
+                        if ((type.getTypeId() != ValueType.getBaseType( b.getShort()))
+                                || (elementsCount != b.getLong())
+                                || (arrayOffset != b.getLong())) {
+                            throw new ConnException( CmdResult.GENERAL_ERR);
+                        }
+                    }
+                    result.addEncoded( b.array(), b.position());
+
+                    while (b.get() != 0)
+                        ; // Just let the buffer advance
+
+                    ++arrayOffset;
                 }
-            }
+                return result;
+            } else if (type.getBaseType() == ValueType.TEXT) {
+                type = ValueType.textType();
+                long charsCount = b.getLong();
 
-            while (charOffset < charsCount) {
-                if (b.position() >= mFrame.getLastPosition()) {
-                    refreshReadCache( field, row, IGNORE_OFFSET, charOffset);
+                if (charsCount == 0)
+                    return Value.createBasic( type);
+
+                long charOffset = b.getLong();
+                final StringBuilder text = new StringBuilder();
+                if (charOffset != 0) {
+                    charOffset = 0;
+                    refreshReadCache( field, row, IGNORE_OFFSET, 0);
                     if ((b = skipUntilFieldValue( field, row)) == null)
                         throw new ConnException( CmdResult.GENERAL_ERR);
 
@@ -1338,20 +1503,36 @@ public class Connection
                     }
                 }
 
-                int startOffset = b.position();
-                while (b.get() != 0)
-                    ; // Just let the buffer position to advance
-                int endOffset = b.position() - 1;
+                while (charOffset < charsCount) {
+                    if (b.position() >= mFrame.getLastPosition()) {
+                        refreshReadCache( field, row, IGNORE_OFFSET, charOffset);
+                        if ((b = skipUntilFieldValue( field, row)) == null)
+                            throw new ConnException( CmdResult.GENERAL_ERR);
+
+                        if ((type.getTypeId() != b.getShort())
+                                || (charsCount != b.getLong())
+                                || (charOffset != b.getLong())) {
+                            throw new ConnException( CmdResult.GENERAL_ERR);
+                        }
+                    }
 
-                String t = new String( b.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
-                charOffset += t.codePointCount( 0, t.length());
-                text += t;
+                    int startOffset = b.position();
+                    while (b.get() != 0)
+                        ; // Just let the buffer position to advance
+                    int endOffset = b.position() - 1;
+
+                    String t = new String( b.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
+                    charOffset += t.codePointCount( 0, t.length());
+                    text.append( t);
+                }
+                return Value.createBasic( type, text.toString());
             }
-            return Value.createBasic( type, text);
-        }
 
-        type = ValueType.create( type.getBaseType());
-        return Value.createBasic( type, b.array(), b.position());
+            type = ValueType.create( type.getBaseType());
+            return Value.createBasic( type, b.array(), b.position());
+        } finally {
+            unlock();
+        }
     }
 
     /**
@@ -1377,116 +1558,114 @@ public class Connection
      *
      * @since 1.0
      */
-    public synchronized Value retrieveStackTop() throws IOException
+    public Value retrieveStackTop() throws IOException
     {
-        if (mFrame.hasPendingCommands())
-            throw new ConnException( CmdResult.INCOMPLETE_CMD);
-
-        refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, IGNORE_OFFSET);
-        ByteBuffer buffer = mFrame.getCmdBuffer();
-        buffer.position( buffer.position() + 4);
-
-        ValueType type = ValueType.create( buffer.getShort());
-        if (type.isTable()) {
-            ValueType tableType = describeStackTop();
-            final TableFieldType[] fields = tableType.getFields();
-
-            assert fields.length >= 0;
-
-            TableValue result = Value.createTable( fields);
+        acquire();
+        try {
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-            final long rowsCount = retrieveStackTopRowsCount();
-            for (long r = 0; r < rowsCount; ++r) {
-                for (TableFieldType f : fields) {
-                    Value cellValue = retrieveStackTop( f.getName(), r);
-                    result.put( cellValue, f.getName(), (int) r);
-                }
-            }
+            refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, IGNORE_OFFSET);
+            ByteBuffer buffer = mFrame.getCmdBuffer();
+            buffer.position( buffer.position() + 4);
 
-            return result;
-        } else if (type.isField()) {
-            FieldValue result = Value.createField( type);
+            ValueType type = ValueType.create( buffer.getShort());
+            if (type.isTable()) {
+                final TableCursor cursor = openCachedTableCursor();
+                final TableFieldType[] fields = cursor.getFields();
 
-            final long rowsCount = retrieveStackTopRowsCount();
+                cursor.setReadAhead( true);
 
-            assert (rowsCount >= 0);
+                TableValue result = Value.createTable( fields);
+                while (cursor.next())
+                    cursor.copyRow( result, (int) cursor.getRow());
 
-            for (long r = 0; r < rowsCount; ++r) {
-                final Value v = retrieveStackTop( r);
-                result.add( v);
-            }
+                return result;
+            } else if (type.isField()) {
+                FieldValue result = Value.createField( type);
 
-            return result;
-        } else if (type.isArray()) {
-            ValueType baseType = ValueType.create( type.getBaseType());
-            ArrayValue result = Value.createArray( type);
+                final long rowsCount = retrieveStackTopRowsCount();
 
-            final long elementsCount = buffer.getLong();
-            long currentOffset = buffer.getLong();
+                assert (rowsCount >= 0);
 
-            while ((0 <= currentOffset) && (currentOffset < elementsCount)) {
-                if (buffer.position() >= mFrame.getLastPosition()) {
-                    refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, currentOffset);
-                    buffer = mFrame.getCmdBuffer();
-                    buffer.position( buffer.position() + 4 + 2);
+                for (long r = 0; r < rowsCount; ++r) {
+                    final Value v = retrieveStackTop( r);
+                    result.add( v);
+                }
 
-                    if ((elementsCount != buffer.getLong())
-                            || (currentOffset != buffer.getLong())) {
-                        throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+                return result;
+            } else if (type.isArray()) {
+                ArrayValue result = Value.createArray( type);
+
+                final long elementsCount = buffer.getLong();
+                long currentOffset = buffer.getLong();
+
+                while ((0 <= currentOffset) && (currentOffset < elementsCount)) {
+                    if (buffer.position() >= mFrame.getLastPosition()) {
+                        refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, currentOffset);
+                        buffer = mFrame.getCmdBuffer();
+                        buffer.position( buffer.position() + 4 + 2);
+
+                        if ((elementsCount != buffer.getLong())
+                                || (currentOffset != buffer.getLong())) {
+                            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+                        }
                     }
-                }
 
-                final int startOffset = buffer.position();
-                while (buffer.get() != 0)
-                    ; // Just let the buffer's position advance.
+                    final int startOffset = buffer.position();
+                    while (buffer.get() != 0)
+                        ; // Just let the buffer's position advance.
 
-                result.add( Value.createBasic( baseType, buffer.array(), startOffset));
-                ++currentOffset;
-            }
+                    result.addEncoded( buffer.array(), startOffset);
+                    ++currentOffset;
+                }
 
-            return result;
-        } else if (type.equals( ValueType.textType())) {
-            final long charsCount = buffer.getLong();
+                return result;
+            } else if (type.equals( ValueType.textType())) {
+                final long charsCount = buffer.getLong();
 
-            if (charsCount == 0)
-                return Value.createBasic( ValueType.textType());
+                if (charsCount == 0)
+                    return Value.createBasic( ValueType.textType());
+
+                long currentOffset = buffer.getLong();
+                assert currentOffset == 0;
+
+                final StringBuilder text = new StringBuilder();
+                while (currentOffset < charsCount) {
+                    if (buffer.position() >= mFrame.getLastPosition()) {
+                        refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, currentOffset);
+                        buffer = mFrame.getCmdBuffer();
+                        buffer.position( buffer.position() + 4 + 2);
+
+                        if ((charsCount != buffer.getLong())
+                                || (currentOffset != buffer.getLong())) {
+                            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+                        }
+                    }
 
-            long currentOffset = buffer.getLong();
-            assert currentOffset == 0;
+                    final int startOffset = buffer.position();
+                    while (buffer.get() != 0)
+                        ; // Just let the buffer's position advance.
+                    final int endOffset = buffer.position() - 1;
 
-            String text = "";
-            while (currentOffset < charsCount) {
-                if (buffer.position() >= buffer.capacity()) {
-                    refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, currentOffset);
-                    buffer = mFrame.getCmdBuffer();
-                    buffer.position( buffer.position() + 4);
+                    String t = new String( buffer.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
+                    currentOffset += t.codePointCount( 0, t.length());
+                    text.append( t);
 
-                    if ((charsCount != buffer.getLong())
-                            || (currentOffset != buffer.getLong())) {
-                        throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
-                    }
+                    assert currentOffset <= charsCount;
                 }
 
-                final int startOffset = buffer.position();
-                while (buffer.get() != 0)
-                    ; // Just let the buffer's position advance.
-                final int endOffset = buffer.position() - 1;
-
-                String t = new String( buffer.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
-                currentOffset += t.codePointCount( 0, t.length());
-                text += t;
+                assert text.length() > 0;
 
-                assert currentOffset <= charsCount;
+                return Value.createBasic( ValueType.textType(), text.toString());
             }
 
-            assert text.length() > 0;
+            assert type.isBasic();
 
-            return Value.createBasic( ValueType.textType(), text);
+            return Value.createBasic( type, buffer.array(), buffer.position());
+        } finally {
+            unlock();
         }
-
-        assert type.isBasic();
-
-        return Value.createBasic( type, buffer.array(), buffer.position());
     }
 
     /**
@@ -1509,66 +1688,677 @@ public class Connection
      *          from the WHAIS procedure's signature.
      *
      * @throws IOException
+     * @throws ConnException
+     *          If one of the call's stages fails. The exception's message
+     *          identifies the failed stage (the parameters push, the
+     *          procedure execution or the result retrieval), while its code
+     *          and cause are the ones of the original error.
      *
      * @see #describeStackTop()
      * @see #executeProcedure(String)
      *
      * @since 1.0
      */
-    public synchronized Value callProcedure(final String procName, final Value... params) throws IOException {
+    public Value callProcedure(final String procName, final Value... params) throws IOException
+    {
+        acquire();
+        try {
+            // The result's pop request is left pending, so it gets sent with the
+            // parameters of the next call instead of needing its own round trip.
+            try {
+                if (params != null) {
+                    for (Value p : params)
+                        pushStackValue(p);
+                }
+                flushStackUpdates();
+            } catch (ConnException e) {
+                throw callStageError( "push the parameters of", procName, e);
+            }
+
+            try {
+                executeProcedure (procName);
+            } catch (ConnException e) {
+                throw callStageError( "execute", procName, e);
+            }
+
+            final Value result;
+            try {
+                result = retrieveStackTop();
+            } catch (ConnException e) {
+                throw callStageError( "retrieve the result of", procName, e);
+            }
 
-        if (params != null) {
-            for (Value p : params)
-                pushStackValue(p);
+            popStackValues(1);
+            return result;
+        } finally {
+            unlock();
         }
-        executeProcedure (procName);
-        final Value result = retrieveStackTop();
+    }
 
-        popStackValues(1);
-        return result;
+    private static ConnException callStageError( String stage, String procName, ConnException e)
+    {
+        return new ConnException( e.getCode(),
+                                  "Failed to " + stage + " procedure '" + procName + "': " + e.getMessage(),
+                                  e);
     }
 
-    private final void updateStackTopBasic( Value value) throws IOException
+    /**
+     * Open a cursor to iterate over the rows of the table from the top of the
+     * communication channel's stack.
+     * <p>
+     * The cursor fetches the table rows by whole communication frames, so it
+     * requires much less round trips to the server than retrieving the table
+     * cells one by one. Use it when the table result is too large to be
+     * retrieved with {@link #retrieveStackTop()}.</p>
+     * <p>
+     * The table's fields are learned from the cells of the first row, which
+     * come with the first frame of the table, so opening the cursor needs a
+     * single round trip. Only when the first row does not fit in this frame
+     * (or the table has no rows) the table is described separately, as with
+     * {@link #describeStackTop()}.</p>
+     *
+     * @return
+     *            A cursor positioned before the first table row.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the value from the top of the stack is not a table.
+     *
+     * @see TableCursor
+     * @see #describeStackTop()
+     * @see #executeProcedure(String)
+     *
+     * @since 1.1
+     */
+    public TableCursor openTableCursor() throws IOException
     {
-        assert !value.type().equals( ValueType.textType());
-        assert !(value.type().isArray() || value.type().isField() || value.type().isTable());
+        acquire();
+        try {
+            if (mFrame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
 
-        ByteBuffer buffer = mFrame.getCmdBuffer();
-        buffer.position( mFrame.getLastPosition());
+            refreshReadCache( IGNORE_FIELD, IGNORE_ROW, IGNORE_OFFSET, IGNORE_OFFSET);
 
-        final byte[] v = value.toString().getBytes( StandardCharsets.UTF_8);
-        if (buffer.position() + 1 + 2 + v.length + 1 > buffer.capacity()) {
-            assert mFrame.hasPendingCommands();
+            return openCachedTableCursor();
+        } finally {
+            unlock();
+        }
+    }
 
-            mFrame.flushPendingCommand();
+    // Opens a cursor over the table described by the cached read response,
+    // which is expected to be requested with no field and row hints.
+    private TableCursor openCachedTableCursor() throws IOException
+    {
+        assert mFrame.getCachedResponse() == _c.CMD_READ_STACK_RSP;
 
-            buffer = mFrame.getCmdBuffer();
+        final ByteBuffer b = mFrame.getCmdBuffer();
+        b.position( b.position() + 4);
+
+        if ( ! ValueType.isTable( b.getShort()))
+            throw new ConnException( CmdResult.TYPE_MISMATCH, "The stack top value is not a table.");
+
+        final long rowsCount = b.getLong();
+
+        TableFieldType[] fields = cachedTableFields();
+        if (fields != null) {
+            fields = ValueType.create( fields).getFields();
+
+            final TableCursor cursor = new TableCursor( this, fields, rowsCount);
+            cursor.startFromCachedPage( skipUntilCachedRow( 0).position());
+
+            return cursor;
         }
 
-        buffer.put( _c.CMD_UPDATE_FUNC_CHTOP)
-              .putShort( value.type().getTypeId())
-              .put( v)
-              .put( (byte) 0);
+        fields = internalDescribeValue( "").getFields();
+        if (fields.length == 0)
+            throw new ConnException( CmdResult.TYPE_MISMATCH, "The stack top value is a table with no fields.");
 
-        mFrame.markBufferPositionValid();
-        mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+        return new TableCursor( this, fields, rowsCount);
     }
 
-    private final void updateStackTopBasic( Value       value,
-                                            String      fieldName,
-                                            long        row) throws IOException
+    // Describes the fields of the table from the top of the stack using the
+    // cells of the first row held by the cached read response. Returns null
+    // if the response does not hold the cells of all the fields.
+    private TableFieldType[] cachedTableFields() throws ConnException
     {
-        assert !value.type().equals( ValueType.textType());
+        final ByteBuffer b = mFrame.getCmdBuffer();
+        final int lastPosition = mFrame.getLastPosition();
+
+        // The field hint, the row hint and the fields count follow.
+        b.position( b.position() + 4 + 2 + 8);
+        if (b.position() + 8 + 2 > lastPosition)
+            return null;
+
+        if (b.getLong() != 0)
+            return null;
+
+        final int fieldsCount = b.getShort() & 0xFFFF;
+        if (fieldsCount == 0)
+            return null;
+
+        final TableFieldType[] fields = new TableFieldType[fieldsCount];
+        for (int f = 0; f < fieldsCount; ++f) {
+            final int startOffset = b.position();
+            while ((b.position() < lastPosition) && (b.get() != 0))
+                ; // Just let the buffer's position advance.
+            final int endOffset = b.position() - 1;
+
+            // The name's terminator and the cell's type must be in the frame.
+            if ((endOffset < startOffset) || (b.get( endOffset) != 0) || (endOffset + 3 > lastPosition))
+                return null;
+
+            final short type = b.getShort();
+            final int baseType = ValueType.getBaseType( type);
+            fields[f] = new TableFieldType( new String( b.array(),
+                                                        startOffset,
+                                                        endOffset - startOffset,
+                                                        StandardCharsets.UTF_8),
+                                            ValueType.create( ValueType.isArray( type)
+                                                                  ? baseType | ValueType.ARRAY_MASK
+                                                                  : baseType));
+
+            // The last cell may be truncated, only its type is needed.
+            if (f < fieldsCount - 1) {
+                b.position( startOffset);
+                if ( ! skipCachedFieldValue( b, lastPosition) || (b.position() > lastPosition))
+                    return null;
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Push a table on top of the communication channel's stack and open a
+     * writer for its rows.
+     * <p>
+     * The writer streams the rows as they are produced, so large tables can
+     * be sent as procedure parameters without building a {@link TableValue}
+     * first.</p>
+     *
+     * @param fields
+     *            The table's fields. Their order gives the fields' indexes
+     *            used by the writer.
+     * @return
+     *            A writer positioned before the first table row.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @see TableWriter
+     * @see #executeProcedure(String)
+     *
+     * @since 1.1
+     */
+    public TableWriter openTableWriter( TableFieldType... fields) throws IOException
+    {
+        acquire();
+        try {
+            if (fields.length == 0)
+                throw new ConnException( CmdResult.INVALID_ARGS, "A table needs at least a field to be written.");
+
+            pushStackValue( ValueType.create( fields));
+
+            return new TableWriter( this, fields.clone());
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Open a reader of the text value from the top of the communication
+     * channel's stack.
+     * <p>
+     * The text is received one communication frame at a time, as it is
+     * read, so large texts are retrieved with bounded memory. The stack has
+     * to stay unchanged while the reader is used.</p>
+     *
+     * @return
+     *            A reader of the text's characters. A null text is read as
+     *            an empty one.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the value from the top of the stack is not a text.
+     *
+     * @see #retrieveStackTop()
+     * @since 1.1
+     */
+    public Reader openTextReader() throws IOException
+    {
+        return openTextReader( IGNORE_FIELD, IGNORE_ROW);
+    }
+
+    /**
+     * Open a reader of a text cell of the table from the top of the
+     * communication channel's stack.
+     *
+     * @param field
+     *            The table field name. Use {@link #IGNORE_FIELD} to read the
+     *            stack top text value instead.
+     * @param row
+     *            The table row. Use {@link #IGNORE_ROW} when is not
+     *            applicable.
+     * @return
+     *            A reader of the cell's characters.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the cell is not a text.
+     *
+     * @see #openTextReader()
+     * @see #retrieveStackTop(String, long)
+     * @since 1.1
+     */
+    public Reader openTextReader( String field, long row) throws IOException
+    {
+        acquire();
+        try {
+            final StackTextReader reader = new StackTextReader( this, field, row);
+
+            reader.fetch();
+            return reader;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Push a text value on top of the communication channel's stack and
+     * open a writer for its content.
+     * <p>
+     * The characters are added to the pending stack updates as they are
+     * written, and sent whenever a communication frame fills up. The stack
+     * has to stay unchanged while the writer is used.</p>
+     *
+     * @return
+     *            A writer of the text's characters.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @see #pushStackValue(Value)
+     * @see #flushStackUpdates()
+     * @since 1.1
+     */
+    public Writer openTextWriter() throws IOException
+    {
+        acquire();
+        try {
+            pushStackValue( ValueType.textType());
+
+            return new StackTextWriter( this, null, IGNORE_ROW);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Open a writer for a text cell of the table from the top of the
+     * communication channel's stack.
+     * <p>
+     * The characters are written starting with the cell's first one, so
+     * the cell is expected to be null (e.g. of a newly added row).</p>
+     *
+     * @param field
+     *            The table field name.
+     * @param row
+     *            The table row.
+     * @return
+     *            A writer of the cell's characters.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @see #openTextWriter()
+     * @see TableWriter#openTextWriter(int)
+     * @since 1.1
+     */
+    public Writer openTextWriter( String field, long row) throws IOException
+    {
+        if ((field == null) || (field.length() == 0))
+            throw new ConnException( CmdResult.INVALID_FIELD);
+        else if (row < 0)
+            throw new ConnException( CmdResult.INVALID_ROW);
+
+        return new StackTextWriter( this, field.getBytes( StandardCharsets.UTF_8), row);
+    }
+
+    /**
+     * Set the cache used to describe the database's globals and procedures.
+     * <p>
+     * With a cache set, {@link #describeGlobal(String)},
+     * {@link #describeProcedure(String)}, {@link #retrieveGlobalNames()} and
+     * {@link #retrieveProceduresNames()} answer from it when they can, and
+     * store there what they retrieve from the server. An answer taken from
+     * the cache needs no round trip, so it is available even when this
+     * connection has commands pending. The cache must hold only the metadata
+     * of the database this connection uses.</p>
+     *
+     * @param cache
+     *            The cache to use, or {@code null} to always ask the server.
+     *
+     * @see MetadataCache
+     * @since 1.1
+     */
+    public final void setMetadataCache( MetadataCache cache)
+    {
+        mMetadataCache = cache;
+    }
+
+    /**
+     * Get the cache used to describe the database's globals and procedures.
+     *
+     * @return
+     *            The cache, or {@code null} if none is used.
+     *
+     * @since 1.1
+     */
+    public final MetadataCache getMetadataCache()
+    {
+        return mMetadataCache;
+    }
+
+    /**
+     * Set where the connection records the measures of the commands it
+     * sends (e.g. the exchanged frames and bytes, the latencies).
+     * <p>
+     * The same instance may be set to several connections, to sum up their
+     * measures. With no metrics set (the default) nothing is measured.</p>
+     *
+     * @param metrics
+     *            The metrics to update, or {@code null} to stop measuring.
+     *
+     * @throws ConnException
+     *            If the connection could not be acquired.
+     *
+     * @since 1.1
+     */
+    public final void setMetrics( ConnectionMetrics metrics) throws ConnException
+    {
+        acquire();
+        try {
+            mMetrics = metrics;
+            if (mFrame != null)
+                mFrame.setMetrics( metrics);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Get where the connection records the measures of its commands.
+     *
+     * @return
+     *            The metrics, or {@code null} if nothing is measured.
+     *
+     * @since 1.1
+     */
+    public final ConnectionMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+    /**
+     * Start timing the round trips of the connection's commands, whether
+     * metrics are set or not.
+     *
+     * @see #endRoundTrips()
+     */
+    final void startRoundTrips()
+    {
+        // Not a call: the frame's buffer is neither needed nor given back.
+        mLock.lock();
+        try {
+            if (mFrame != null)
+                mFrame.startRoundTrips();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stop timing the round trips of the connection's commands.
+     *
+     * @return
+     *            The average round trip time (in nanoseconds) since
+     *            {@link #startRoundTrips()}, or -1 if no command got its
+     *            response.
+     */
+    final long endRoundTrips()
+    {
+        mLock.lock();
+        try {
+            return (mFrame != null) ? mFrame.endRoundTrips() : -1;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Set the pool the connection borrows its communication frame's buffer
+     * from.
+     * <p>
+     * By default a connection keeps a buffer of its frame's size for its
+     * whole life. With a pool set, the buffer is borrowed when a call starts
+     * and given back when the call ends, unless it holds something the
+     * following calls need (e.g. pending stack updates or the rows read by a
+     * {@link TableCursor}).</p>
+     *
+     * @param pool
+     *            The pool to borrow from, or {@code null} to keep a buffer.
+     *
+     * @throws ConnException
+     *            If the connection could not be acquired.
+     *
+     * @see FrameBufferPool
+     * @since 1.1
+     */
+    public final void setFrameBufferPool( FrameBufferPool pool) throws ConnException
+    {
+        acquire();
+        try {
+            mFrameBufferPool = pool;
+            if (mFrame != null)
+                mFrame.setBufferPool( pool);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Get the pool the connection borrows its communication frame's buffer
+     * from.
+     *
+     * @return
+     *            The pool, or {@code null} if the connection keeps its buffer.
+     *
+     * @since 1.1
+     */
+    public final FrameBufferPool getFrameBufferPool()
+    {
+        return mFrameBufferPool;
+    }
+
+    /**
+     * Set how long a call waits for the connection to be released by another
+     * thread.
+     * <p>
+     * The connection serves one call at a time. By default a call waits as
+     * long as needed. With a timeout set, a call that cannot get the
+     * connection in time fails with {@link CmdResult#CONNECTION_TIMEOUT},
+     * and so does a waiting call whose thread is interrupted.</p>
+     *
+     * @param timeout
+     *            The maximum time to wait, or {@code 0} to wait as long as
+     *            needed.
+     * @param unit
+     *            The unit of the {@code timeout} argument.
+     *
+     * @since 1.1
+     */
+    public final void setLockTimeout( long timeout, TimeUnit unit)
+    {
+        if (timeout < 0)
+            throw new IllegalArgumentException( "The lock timeout cannot be negative.");
+
+        mLockTimeout = unit.toNanos( timeout);
+    }
+
+    /**
+     * Get the exclusive use of the connection, for a sequence of calls that
+     * must not be interleaved with other threads' calls (e.g. pushing the
+     * parameters, executing a procedure and retrieving its result).
+     * <p>
+     * This replaces synchronizing on the connection object, and unlike it,
+     * does not pin a virtual thread to its carrier while waiting. Each
+     * successful call must be matched by a call to {@link #unlock()}, the
+     * lock being reentrant.</p>
+     *
+     * @param timeout
+     *            The maximum time to wait for the connection.
+     * @param unit
+     *            The unit of the {@code timeout} argument.
+     * @return
+     *            {@code true} if the connection was acquired, or
+     *            {@code false} if the time elapsed first.
+     *
+     * @throws InterruptedException
+     *            If the thread was interrupted while waiting.
+     *
+     * @since 1.1
+     */
+    public final boolean tryLock( long timeout, TimeUnit unit) throws InterruptedException
+    {
+        if ( ! mLock.tryLock( timeout, unit))
+            return false;
+
+        startOfCall();
+        return true;
+    }
+
+    /**
+     * Get the exclusive use of the connection, waiting as set by
+     * {@link #setLockTimeout(long, TimeUnit)}.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#CONNECTION_TIMEOUT} if the connection
+     *            could not be acquired.
+     *
+     * @see #tryLock(long, TimeUnit)
+     *
+     * @since 1.1
+     */
+    public final void lock() throws ConnException
+    {
+        acquire();
+    }
+
+    /**
+     * Give up the exclusive use of the connection, acquired with
+     * {@link #lock()} or {@link #tryLock(long, TimeUnit)}.
+     *
+     * @since 1.1
+     */
+    public final void unlock()
+    {
+        if ((mFrame != null) && (mLock.getHoldCount() == 1))
+            mFrame.endOfCall();
+
+        mLock.unlock();
+    }
+
+    final void acquire() throws ConnException
+    {
+        final long timeout = mLockTimeout;
+        if (timeout == 0) {
+            mLock.lock();
+            startOfCall();
+            return;
+        }
+
+        try {
+            if (mLock.tryLock( timeout, TimeUnit.NANOSECONDS)) {
+                startOfCall();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnException( CmdResult.CONNECTION_TIMEOUT,
+                                     "Interrupted while waiting for the connection.");
+        }
+
+        throw new ConnException( CmdResult.CONNECTION_TIMEOUT,
+                                 "Timed out waiting for the connection to be released by another thread.");
+    }
+
+    final CommunicationFrame getFrame()
+    {
+        return mFrame;
+    }
+
+    private void startOfCall()
+    {
+        if ((mFrame != null) && (mLock.getHoldCount() == 1))
+            mFrame.startOfCall();
+    }
+
+    private final void updateStackTopBasic( Value value) throws IOException
+    {
+        assert !value.type().equals( ValueType.textType());
+        assert !(value.type().isArray() || value.type().isField() || value.type().isTable());
+
+        ByteBuffer buffer = mFrame.getCmdBuffer();
+        buffer.position( mFrame.getLastPosition());
+
+        final int vLength = value.encodedLength();
+        if (buffer.position() + 1 + 2 + vLength + 1 > buffer.capacity()) {
+            assert mFrame.hasPendingCommands();
+
+            mFrame.flushPendingCommand();
+
+            buffer = mFrame.getCmdBuffer();
+        }
+
+        buffer.put( _c.CMD_UPDATE_FUNC_CHTOP)
+              .putShort( value.type().getTypeId());
+        value.encode( buffer);
+        buffer.put( (byte) 0);
+
+        mFrame.markBufferPositionValid();
+        mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
+    }
+
+    // Appends the update of a table cell to the pending stack updates. The
+    // caller should have checked the stack may be updated.
+    final void updateStackTopCell( Value    val,
+                                   byte[]   fieldName,
+                                   long     row) throws IOException
+    {
+        if (val.type().equals( ValueType.textType()))
+            updateStackTopText( val.toString(), 0, fieldName, row);
+        else if (val.type().isBasic())
+            updateStackTopBasic( val, fieldName, row);
+        else if (val.type().isArray())
+            updateStackToArray( (ArrayValue) val, 0, fieldName, row);
+        else
+            throw new ConnException( CmdResult.INVALID_ARGS, "Unexpected value type to update the top of stack.");
+    }
+
+    private final void updateStackTopBasic( Value       value,
+                                            byte[]      f,
+                                            long        row) throws IOException
+    {
+        assert !value.type().equals( ValueType.textType());
         assert !(value.type().isArray() || value.type().isField() || value.type().isTable());
         assert !value.isNull();
 
-        byte[] f = fieldName.getBytes( StandardCharsets.UTF_8);
-        byte[] v = value.toString().getBytes( StandardCharsets.UTF_8);
+        final int vLength = value.encodedLength();
 
         ByteBuffer buffer = mFrame.getCmdBuffer();
         buffer.position( mFrame.getLastPosition());
 
-        final int spaceReq = 1 + 2 + f.length + 1 + 8 + v.length + 1;
+        final int spaceReq = 1 + 2 + f.length + 1 + 8 + vLength + 1;
         if (buffer.position() + spaceReq > buffer.capacity()) {
             if (mFrame.hasPendingCommands())
                 mFrame.flushPendingCommand();
@@ -1583,38 +2373,29 @@ public class Connection
               .putShort( (short) (value.type().getTypeId() | ValueType.FIELD_MASK))
               .put( f)
               .put( (byte) 0)
-              .putLong( row)
-              .put( v)
-              .put( (byte) 0);
+              .putLong( row);
+        value.encode( buffer);
+        buffer.put( (byte) 0);
 
         mFrame.markBufferPositionValid();
         mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
     }
 
-    private synchronized final void updateStackTopArray( Value[]     values,
+    private final void updateStackTopArray( ArrayValue  values,
                                             long        arrayOffset) throws IOException
     {
-        assert (values != null) && (values.length > 0);
+        assert ! values.isNull();
 
-        for (int i = 1; i < values.length; ++i) {
-            if (!values[i].type().equals( values[i - 1].type())) {
-                throw new ConnException( CmdResult.INVALID_ARGS,
-                                         "The array's elements used to update the stack top are of "
-                                         + "different types.");
-            }
-        }
-
-        assert values[0].type().isBasic();
+        final ValueType type = values.elementsType();
+        assert type.isBasic();
 
         ByteBuffer buffer = mFrame.getCmdBuffer();
         buffer.position( mFrame.getLastPosition());
 
         int subCmdOffset = buffer.position(), count = 0;
-        for (Value value : values) {
-            assert !value.isNull();
-
-            final byte[] v = value.toString().getBytes( StandardCharsets.UTF_8);
-            final int spaceReq = v.length + ((count == 0) ? (1 + 2 + 2 + 8 + 1) : 1);
+        for (int e = 0; e < values.size(); ++e) {
+            final int vLength = values.encodedLength( e);
+            final int spaceReq = vLength + ((count == 0) ? (1 + 2 + 2 + 8 + 1) : 1);
 
             if ((buffer.position() + spaceReq > buffer.capacity()) || (count >= 0xFFFF)) {
                 assert mFrame.hasPendingCommands();
@@ -1628,14 +2409,14 @@ public class Connection
 
             if (count++ == 0) {
                 buffer.put( _c.CMD_UPDATE_FUNC_CHTOP)
-                      .putShort( (short) (value.type().getTypeId() | ValueType.ARRAY_MASK))
+                      .putShort( (short) (type.getTypeId() | ValueType.ARRAY_MASK))
                       .putShort( (short) count) // Just reserve space
                       .putLong( arrayOffset);
             } else
                 buffer.putShort( subCmdOffset + 3, (short) count);
 
-            buffer.put( v)
-                  .put( (byte) 0);
+            values.encode( e, buffer);
+            buffer.put( (byte) 0);
             ++arrayOffset;
 
             mFrame.markBufferPositionValid();
@@ -1643,33 +2424,23 @@ public class Connection
         }
     }
 
-    private final void updateStackToArray( Value[]      values,
+    private final void updateStackToArray( ArrayValue   values,
                                            long         arrayOffset,
-                                           String       fieldName,
+                                           byte[]       f,
                                            long         row) throws IOException
     {
-        assert (values != null) && (values.length > 0);
+        assert ! values.isNull();
 
-        for (int i = 1; i < values.length; ++i) {
-            if (!values[i].type().equals( values[i - 1].type())) {
-                throw new ConnException( CmdResult.INVALID_ARGS,
-                                         "The array's elements used to update the stack top are of "
-                                         + "different types.");
-            }
-        }
-
-        assert values[0].type().isBasic();
+        final ValueType type = values.elementsType();
+        assert type.isBasic();
 
-        byte[] f = fieldName.getBytes( StandardCharsets.UTF_8);
         ByteBuffer buffer = mFrame.getCmdBuffer();
         buffer.position( mFrame.getLastPosition());
 
         int subCmdOffset = buffer.position(), count = 0;
-        for (Value value : values) {
-            assert !value.isNull();
-
-            final byte[] v = value.toString().getBytes( StandardCharsets.UTF_8);
-            final int spaceReq = ((count == 0) ? (1 + 2 + f.length + 1 + 8 + 2 + 8) : 0) + v.length + 1;
+        for (int e = 0; e < values.size(); ++e) {
+            final int vLength = values.encodedLength( e);
+            final int spaceReq = ((count == 0) ? (1 + 2 + f.length + 1 + 8 + 2 + 8) : 0) + vLength + 1;
 
             if ((buffer.position() + spaceReq > buffer.capacity()) || (count >= 0xFFFF)) {
                 if (mFrame.hasPendingCommands()) {
@@ -1687,7 +2458,7 @@ public class Connection
 
             if (count++ == 0) {
                 buffer.put( _c.CMD_UPDATE_FUNC_CHTOP)
-                      .putShort( (short) (value.type().getTypeId() | ValueType.ARRAY_MASK | ValueType.FIELD_MASK))
+                      .putShort( (short) (type.getTypeId() | ValueType.ARRAY_MASK | ValueType.FIELD_MASK))
                       .put( f)
                       .put( (byte) 0)
                       .putLong( row)
@@ -1697,8 +2468,8 @@ public class Connection
                 buffer.putShort( subCmdOffset + 1 + 2 + f.length + 1 + 8, (short) count);
             }
 
-            buffer.put( v)
-                  .put( (byte) 0);
+            values.encode( e, buffer);
+            buffer.put( (byte) 0);
             ++arrayOffset;
 
             mFrame.markBufferPositionValid();
@@ -1732,7 +2503,6 @@ public class Connection
             final int cuCount = utf8CUCount( text[textCount]);
             if (buffer.position() + cuCount + 1 > buffer.capacity()) {
                 assert textCount > 0;
-                assert mFrame.hasPendingCommands();
 
                 buffer.put( (byte) 0);
                 mFrame.markBufferPositionValid();
@@ -1762,10 +2532,10 @@ public class Connection
 
     private final void updateStackTopText( String       value,
                                            long         textOffset,
-                                           String       fieldName, long row) throws IOException
+                                           byte[]       f,
+                                           long         row) throws IOException
     {
         final byte[] text = value.getBytes( StandardCharsets.UTF_8);
-        final byte[] f = fieldName.getBytes( StandardCharsets.UTF_8);
 
         final int minSpace = 1 + 2 + f.length + 1 + 8 + 8 + 4 + 1;
 
@@ -1785,7 +2555,7 @@ public class Connection
         }
 
         buffer.put( _c.CMD_UPDATE_FUNC_CHTOP)
-              .putShort( (short) (ValueType.TEXT & ValueType.FIELD_MASK))
+              .putShort( (short) (ValueType.TEXT | ValueType.FIELD_MASK))
               .put( f)
               .put( (byte) 0)
               .putLong( row)
@@ -1797,38 +2567,57 @@ public class Connection
             if (cuCount == 0)
                 throw new ConnException( CmdResult.GENERAL_ERR);
 
-            if (buffer.position() + minSpace + cuCount + 1 > buffer.capacity()) {
+            if (buffer.position() + cuCount + 1 > buffer.capacity()) {
                 assert textCount > 0;
-                assert mFrame.hasPendingCommands();
+
+                buffer.put( (byte) 0);
+                mFrame.markBufferPositionValid();
+                mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
 
                 mFrame.flushPendingCommand();
+                mFrame.discardCommandBuffer();
 
                 buffer = mFrame.getCmdBuffer();
 
                 buffer.put( _c.CMD_UPDATE_FUNC_CHTOP)
-                      .putShort( (short) (ValueType.TEXT & ValueType.FIELD_MASK))
+                      .putShort( (short) (ValueType.TEXT | ValueType.FIELD_MASK))
                       .put( f)
                       .put( (byte) 0)
                       .putLong( row)
                       .putLong( textOffset);
+            } else {
+                buffer.put( text, textCount, cuCount);
+                ++textOffset;
+                textCount += cuCount;
             }
-
-            buffer.put( text, textCount, cuCount);
-            buffer.put( (byte) 0);
-            ++textOffset;
-            textCount += cuCount;
-
-            mFrame.markBufferPositionValid();
-            mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
         }
 
         assert textCount == text.length;
+
+        buffer.put( (byte) 0);
+        mFrame.markBufferPositionValid();
+        mFrame.setPendingCommand( _c.CMD_UPDATE_STACK);
     }
 
-    private final void refreshReadCache( String    field,
-                                         long      rowHint,
-                                         long      arrayOffsetHint,
-                                         long      textOffsetHint) throws IOException
+    final void refreshReadCache( String    field,
+                                 long      rowHint,
+                                 long      arrayOffsetHint,
+                                 long      textOffsetHint) throws IOException
+    {
+        requestReadCache( field, rowHint, arrayOffsetHint, textOffsetHint);
+        mFrame.receiveResponse( _c.CMD_READ_STACK);
+
+        final int reponse = mFrame.getCmdBuffer().getInt();
+        if (reponse != CmdResult.OK)
+            throw new ConnException( reponse);
+    }
+
+    // Sends the request of refreshReadCache() without waiting for its
+    // response, which has to be read (and checked) by the caller.
+    final void requestReadCache( String    field,
+                                 long      rowHint,
+                                 long      arrayOffsetHint,
+                                 long      textOffsetHint) throws IOException
     {
         assert !mFrame.hasPendingCommands();
 
@@ -1846,13 +2635,10 @@ public class Connection
               .putLong( textOffsetHint);
 
         mFrame.markBufferPositionValid();
-        mFrame.sendCommand( _c.CMD_READ_STACK);
-        final int reponse = mFrame.getCmdBuffer().getInt();
-        if (reponse != CmdResult.OK)
-            throw new ConnException( reponse);
+        mFrame.postCommand( _c.CMD_READ_STACK);
     }
 
-    private final ByteBuffer skipUntilCachedRow( long row) throws ConnException
+    final ByteBuffer skipUntilCachedRow( long row) throws ConnException
     {
         assert mFrame.getCachedResponse() == _c.CMD_READ_STACK_RSP;
 
@@ -1932,8 +2718,8 @@ public class Connection
         return b;
     }
 
-    private final ByteBuffer skipUntilFieldValue( String   field,
-                                                  long     row) throws ConnException
+    final ByteBuffer skipUntilFieldValue( String   field,
+                                          long     row) throws ConnException
     {
         ByteBuffer b = skipUntilCachedRow( row);
 
@@ -2065,9 +2851,9 @@ public class Connection
         return true;
     }
 
-    private static final boolean skipUntilCachedField( String       f,
-                                                       ByteBuffer   b,
-                                                       final int    toPosition) throws ConnException
+    static final boolean skipUntilCachedField( String       f,
+                                               ByteBuffer   b,
+                                               final int    toPosition) throws ConnException
     {
         assert f.length() > 0;
 
@@ -2141,9 +2927,14 @@ public class Connection
      */
     public static final String IGNORE_FIELD = "";
 
-    private static final long     IGNORE_OFFSET = -1;
-    private static final String[] emptyList     = new String[0];
+    static final long              IGNORE_OFFSET = -1;
+    private static final String[]  emptyList     = new String[0];
 
-    private CommunicationFrame    mFrame;
-    private byte                  mUserId;
+    private final ReentrantLock        mLock;
+    private volatile long              mLockTimeout;
+    private volatile MetadataCache     mMetadataCache;
+    private volatile ConnectionMetrics mMetrics;
+    private volatile FrameBufferPool   mFrameBufferPool;
+    private CommunicationFrame         mFrame;
+    private byte                       mUserId;
 }
\ No newline at end of file
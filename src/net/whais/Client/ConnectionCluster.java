@@ -0,0 +1,699 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads the calls of a database over several WHAIS servers that serve it
+ * (e.g. replicas of a read mostly database).
+ * <p>
+ * The cluster holds a {@link ConnectionPool} for every server. A connection
+ * is leased with {@link #borrow()} from the pool of the server chosen by the
+ * routing policy and must be given back with {@link #release(Connection)}
+ * (or with {@link #invalidate(Connection)}):</p>
+ * <ul>
+ * <li>{@link #ROUTE_LEAST_OUTSTANDING} picks the server with the fewest
+ * leased connections.</li>
+ * <li>{@link #ROUTE_LEAST_LATENCY} picks the server with the lowest
+ * expected wait, that is the average round trip time of its commands (an
+ * exponentially weighted moving average) times the number of leased
+ * connections plus one. A busy server is avoided even if it was fast so far.
+ * A server with no command measured yet is expected to be as fast as the
+ * measured ones are on average.</li>
+ * </ul>
+ * <p>
+ * A server is ejected from the routing when a connection to it could not be
+ * opened or when too many consecutive leases of its connections were
+ * invalidated. An ejected server is probed with
+ * {@link Connection#pingServer()} once the retry interval passed, by the
+ * next borrower or when one calls {@link #checkServers()}, and is admitted
+ * again if it answers.</p>
+ *
+ * @version 1.1
+ *
+ * @see ConnectionPool
+ */
+public class ConnectionCluster
+{
+    /**
+     * Create a cluster of servers.
+     * <p>
+     * The cluster takes over the pools, which are closed with the
+     * cluster.</p>
+     *
+     * @param pools
+     *            The pools of the servers, all connecting to the same
+     *            database.
+     * @param policy
+     *            Either {@link #ROUTE_LEAST_OUTSTANDING} or
+     *            {@link #ROUTE_LEAST_LATENCY}.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#INVALID_ARGS} if no pool is given, the
+     *            pools connect to different databases or the policy is
+     *            unknown.
+     *
+     * @since 1.1
+     */
+    public ConnectionCluster( List<ConnectionPool> pools, int policy) throws ConnException
+    {
+        if (pools.isEmpty())
+            throw new ConnException( CmdResult.INVALID_ARGS, "A connection cluster needs at least one server.");
+        else if ((policy != ROUTE_LEAST_OUTSTANDING) && (policy != ROUTE_LEAST_LATENCY))
+            throw new ConnException( CmdResult.INVALID_ARGS, "Invalid connection cluster routing policy.");
+
+        final String database = pools.get( 0).getDatabase();
+        for (ConnectionPool p : pools) {
+            if ( ! database.equals( p.getDatabase()))
+                throw new ConnException( CmdResult.INVALID_ARGS, "The cluster's servers do not serve the same database.");
+        }
+
+        mPolicy = policy;
+        mServers = new Server[pools.size()];
+        for (int i = 0; i < mServers.length; ++i)
+            mServers[i] = new Server( pools.get( i));
+
+        mLock = new ReentrantLock();
+        mLeases = new IdentityHashMap<>();
+        mNextServer = 0;
+        mRetryInterval = DEFAULT_RETRY_INTERVAL;
+        mFailuresThreshold = DEFAULT_FAILURES_THRESHOLD;
+        mClosed = false;
+        mLastFailure = null;
+    }
+
+    /**
+     * Lease a connection from one of the cluster's servers.
+     * <p>
+     * Wrapper for {@link #borrow(long)} using each pool's borrow
+     * timeout.</p>
+     *
+     * @see #borrow(long)
+     * @since 1.1
+     */
+    public Connection borrow() throws IOException
+    {
+        return borrow( -1);
+    }
+
+    /**
+     * Lease a connection from one of the cluster's servers.
+     * <p>
+     * The server is chosen by the cluster's routing policy among the
+     * admitted ones. If the server cannot be reached or does not answer as
+     * expected, it is ejected and the next one is tried. The other errors
+     * (e.g. invalid arguments) are thrown as they are, with no server
+     * ejected. An ejected server due to be probed is probed first, by this
+     * call.</p>
+     *
+     * @param timeout
+     *            How long (in milliseconds) to wait for a connection of the
+     *            chosen server's pool.
+     * @return
+     *            A connection that the caller holds until it gives it back
+     *            with {@link #release(Connection)}.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#CONNECTION_TIMEOUT} if the chosen
+     *            server's pool has no connection available in time, or with
+     *            {@link CmdResult#DROPPED} if no server can be reached (the
+     *            last failure of a server, if any, being its cause).
+     * @throws IOException
+     *
+     * @see ConnectionPool#borrow(long)
+     * @since 1.1
+     */
+    public Connection borrow( long timeout) throws IOException
+    {
+        probeEjected( System.currentTimeMillis(), false);
+
+        while (true) {
+            final Server s;
+            mLock.lock();
+            try {
+                if (mClosed)
+                    throw new ConnException( CmdResult.OP_NOTPERMITED, "The connection cluster is closed.");
+
+                s = route();
+                if (s == null) {
+                    throw new ConnException( CmdResult.DROPPED,
+                                             "None of the cluster's servers is available.",
+                                             mLastFailure);
+                }
+
+                ++s.mOutstanding;
+            } finally {
+                mLock.unlock();
+            }
+
+            final Connection c;
+            try {
+                c = (timeout < 0) ? s.mPool.borrow() : s.mPool.borrow( timeout);
+            } catch (IOException e) {
+                if ( ! isServerFailure( e)) {
+                    // The server's pool is busy (or closed), or the request
+                    // itself is wrong, not the server.
+                    cancelLease( s);
+                    throw e;
+                }
+
+                finishLease( s, -1, false);
+                eject( s, e);
+                continue;
+            }
+
+            c.startRoundTrips();
+
+            mLock.lock();
+            try {
+                mLeases.put( c, s);
+            } finally {
+                mLock.unlock();
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Give back a leased connection.
+     * <p>
+     * The average round trip time of the commands sent during the lease
+     * updates the latency estimate of the connection's server.</p>
+     *
+     * @param c
+     *            A connection obtained with {@link #borrow()}.
+     *
+     * @see ConnectionPool#release(Connection)
+     * @since 1.1
+     */
+    public void release( Connection c)
+    {
+        final Server s = endLease( c);
+
+        finishLease( s, c.endRoundTrips(), true);
+        s.mPool.release( c);
+    }
+
+    /**
+     * Give back a leased connection that should not be used anymore.
+     * <p>
+     * Counts as a failure of the connection's server; a server ejected from
+     * the routing after too many consecutive ones (see
+     * {@link #setFailuresThreshold(int)}).</p>
+     *
+     * @see ConnectionPool#invalidate(Connection)
+     * @since 1.1
+     */
+    public void invalidate( Connection c)
+    {
+        final Server s = endLease( c);
+
+        finishLease( s, -1, false);
+        s.mPool.invalidate( c);
+    }
+
+    /**
+     * Probe the cluster's servers.
+     * <p>
+     * The ejected servers whose retry interval passed are probed and
+     * admitted again if they answer. With {@code all} set, the admitted
+     * servers are probed as well and ejected if they do not answer. A server
+     * whose pool has no connection to spare within the probe's timeout is
+     * not probed and keeps its state.</p>
+     *
+     * @param all
+     *            Probe the admitted servers too.
+     * @return
+     *            The number of servers admitted in the routing.
+     *
+     * @since 1.1
+     */
+    public int checkServers( boolean all)
+    {
+        probeEjected( System.currentTimeMillis(), all);
+
+        return getAvailableCount();
+    }
+
+    /**
+     * Probe the ejected servers whose retry interval passed.
+     *
+     * @see #checkServers(boolean)
+     * @since 1.1
+     */
+    public int checkServers()
+    {
+        return checkServers( false);
+    }
+
+    /**
+     * Close the cluster and the pools of its servers.
+     *
+     * @see ConnectionPool#close()
+     * @since 1.1
+     */
+    public void close()
+    {
+        mLock.lock();
+        try {
+            mClosed = true;
+        } finally {
+            mLock.unlock();
+        }
+
+        for (Server s : mServers)
+            s.mPool.close();
+    }
+
+    /**
+     * Set how long an ejected server is left out of the routing before it is
+     * probed again.
+     *
+     * @param interval
+     *            Time in milliseconds.
+     *
+     * @since 1.1
+     */
+    public void setRetryInterval( long interval)
+    {
+        if (interval < 0)
+            throw new IllegalArgumentException( "Invalid retry interval.");
+
+        mRetryInterval = interval;
+    }
+
+    /**
+     * Set the number of consecutive invalidated leases that eject a server.
+     *
+     * @param threshold
+     *            A positive number.
+     *
+     * @since 1.1
+     */
+    public void setFailuresThreshold( int threshold)
+    {
+        if (threshold <= 0)
+            throw new IllegalArgumentException( "Invalid failures threshold.");
+
+        mFailuresThreshold = threshold;
+    }
+
+    /**
+     * Get the number of the cluster's servers.
+     *
+     * @since 1.1
+     */
+    public int getServersCount()
+    {
+        return mServers.length;
+    }
+
+    /**
+     * Get the number of servers admitted in the routing.
+     *
+     * @since 1.1
+     */
+    public int getAvailableCount()
+    {
+        mLock.lock();
+        try {
+            int result = 0;
+            for (Server s : mServers) {
+                if ( ! s.mEjected)
+                    ++result;
+            }
+            return result;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the pool of a server.
+     *
+     * @param server
+     *            The server's index, in the order the pools were given to
+     *            the constructor.
+     *
+     * @since 1.1
+     */
+    public ConnectionPool getPool( int server)
+    {
+        return mServers[server].mPool;
+    }
+
+    /**
+     * Test if a server is admitted in the routing.
+     *
+     * @since 1.1
+     */
+    public boolean isAvailable( int server)
+    {
+        mLock.lock();
+        try {
+            return ! mServers[server].mEjected;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of connections of a server that are currently leased
+     * through the cluster.
+     *
+     * @since 1.1
+     */
+    public int getOutstandingCount( int server)
+    {
+        mLock.lock();
+        try {
+            return mServers[server].mOutstanding;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the average round trip time of the commands sent to a server.
+     *
+     * @return
+     *            The time in nanoseconds, or {@code 0} if no command was
+     *            measured yet.
+     *
+     * @since 1.1
+     */
+    public long getLatencyEstimate( int server)
+    {
+        mLock.lock();
+        try {
+            return (long) mServers[server].mLatency;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the name of the database the cluster connects to.
+     *
+     * @since 1.1
+     */
+    public final String getDatabase()
+    {
+        return mServers[0].mPool.getDatabase();
+    }
+
+    // Choose the admitted server to lease from. The search starts after the
+    // last chosen server, so the ties are spread around.
+    private Server route()
+    {
+        assert mLock.isHeldByCurrentThread();
+
+        // An unmeasured server would cost nothing and get all the leases,
+        // so it is expected to be as fast as the others are on average.
+        double average = 0;
+        if (mPolicy == ROUTE_LEAST_LATENCY) {
+            int measured = 0;
+            for (Server s : mServers) {
+                if (( ! s.mEjected) && (s.mLatency > 0)) {
+                    average += s.mLatency;
+                    ++measured;
+                }
+            }
+            if (measured > 0)
+                average /= measured;
+        }
+
+        Server result = null;
+        double best = 0;
+
+        for (int i = 0; i < mServers.length; ++i) {
+            final Server s = mServers[(mNextServer + i) % mServers.length];
+            if (s.mEjected)
+                continue;
+
+            final double cost;
+            if (average == 0)
+                cost = s.mOutstanding;
+            else
+                cost = ((s.mLatency > 0) ? s.mLatency : average) * (s.mOutstanding + 1);
+
+            if ((result == null) || (cost < best)) {
+                result = s;
+                best = cost;
+            }
+        }
+
+        mNextServer = (mNextServer + 1) % mServers.length;
+
+        return result;
+    }
+
+    private Server endLease( Connection c)
+    {
+        mLock.lock();
+        try {
+            final Server s = mLeases.remove( c);
+            if (s == null)
+                throw new IllegalArgumentException( "The connection was not leased from this cluster.");
+
+            return s;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void cancelLease( Server s)
+    {
+        mLock.lock();
+        try {
+            --s.mOutstanding;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Account the end of a lease. The time is the average round trip of the
+    // lease's commands; a negative one means there was none to measure.
+    private void finishLease( Server s, long nanos, boolean succeeded)
+    {
+        boolean eject = false;
+
+        mLock.lock();
+        try {
+            --s.mOutstanding;
+
+            if (nanos >= 0) {
+                s.mLatency = (s.mLatency == 0)
+                             ? nanos
+                             : s.mLatency + LATENCY_WEIGHT * (nanos - s.mLatency);
+            }
+
+            if (succeeded)
+                s.mFailures = 0;
+            else if (++s.mFailures >= mFailuresThreshold)
+                eject = true;
+        } finally {
+            mLock.unlock();
+        }
+
+        if (eject)
+            eject( s, null);
+    }
+
+    // Eject a server, keeping the failure that caused it (if known) for the
+    // callers left with no server.
+    private void eject( Server s, IOException failure)
+    {
+        mLock.lock();
+        try {
+            if ( ! s.mEjected) {
+                s.mEjected = true;
+                s.mEjectedSince = System.currentTimeMillis();
+            }
+            if (failure != null)
+                mLastFailure = failure;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Check if the failure to get a connection is the server's (i.e. it
+    // could not be reached or did not talk as expected), rather than of its
+    // pool (busy or closed) or of the request (e.g. invalid arguments).
+    private static boolean isServerFailure( IOException e)
+    {
+        if ( ! (e instanceof ConnException))
+            return true;
+
+        switch (((ConnException) e).getCode()) {
+        case CmdResult.DROPPED:
+        case CmdResult.UNEXPECTED_FRAME:
+        case CmdResult.INVALID_FRAME:
+        case CmdResult.COMM_OUT_OF_SYNC:
+        case CmdResult.SERVER_BUSY:
+        case CmdResult.GENERAL_ERR:
+            return true;
+        }
+
+        return false;
+    }
+
+    // Probe the ejected servers due to be probed (and the admitted ones too,
+    // if all is set). A server is probed by one thread at a time; the others
+    // carry on with the admitted servers.
+    private void probeEjected( long now, boolean all)
+    {
+        final List<Server> due = new ArrayList<>();
+
+        mLock.lock();
+        try {
+            for (Server s : mServers) {
+                if (s.mProbing)
+                    continue;
+
+                if ((s.mEjected && (now - s.mEjectedSince >= mRetryInterval)) || all) {
+                    s.mProbing = true;
+                    due.add( s);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        for (Server s : due) {
+            final int probed = probe( s);
+
+            mLock.lock();
+            try {
+                s.mProbing = false;
+                if (probed == PROBE_ANSWERED) {
+                    s.mEjected = false;
+                    s.mFailures = 0;
+                } else if ((probed == PROBE_FAILED) || s.mEjected) {
+                    // Wait another interval before the next probe. An
+                    // admitted server that could not be probed stays so.
+                    s.mEjected = true;
+                    s.mEjectedSince = System.currentTimeMillis();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    // Ping a server with a connection of its pool. A pool with no connection
+    // to spare in time (e.g. all of them are leased), a closed one or one
+    // refusing the request's arguments says nothing about the server, so the
+    // probe is skipped as in borrow().
+    private int probe( Server s)
+    {
+        Connection c = null;
+        try {
+            c = s.mPool.borrow( PROBE_TIMEOUT);
+            c.pingServer();
+        } catch (ConnException e) {
+            if (c != null)
+                s.mPool.invalidate( c);
+            else if ( ! isServerFailure( e))
+                return PROBE_SKIPPED;
+
+            return PROBE_FAILED;
+        } catch (IOException | RuntimeException e) {
+            if (c != null)
+                s.mPool.invalidate( c);
+
+            return PROBE_FAILED;
+        }
+
+        s.mPool.release( c);
+        return PROBE_ANSWERED;
+    }
+
+    private static final class Server
+    {
+        Server( ConnectionPool pool)
+        {
+            mPool = pool;
+            mOutstanding = 0;
+            mLatency = 0;
+            mFailures = 0;
+            mEjected = false;
+            mEjectedSince = 0;
+            mProbing = false;
+        }
+
+        final ConnectionPool mPool;
+
+        // Guarded by the cluster's lock.
+        int     mOutstanding;
+        double  mLatency;
+        int     mFailures;
+        boolean mEjected;
+        long    mEjectedSince;
+        boolean mProbing;
+    }
+
+    /**
+     * Route the calls to the server with the fewest leased connections.
+     */
+    public static final int ROUTE_LEAST_OUTSTANDING = 0;
+
+    /**
+     * Route the calls to the server with the lowest expected wait, from the
+     * average round trip time of its commands and its number of leased
+     * connections.
+     */
+    public static final int ROUTE_LEAST_LATENCY = 1;
+
+    /**
+     * Default time (in milliseconds) an ejected server is left out of the
+     * routing before it is probed again.
+     */
+    public static final long DEFAULT_RETRY_INTERVAL = 5000;
+
+    /**
+     * Default number of consecutive invalidated leases that eject a server.
+     */
+    public static final int DEFAULT_FAILURES_THRESHOLD = 3;
+
+    // How long a probe waits for a connection of the server's pool.
+    private static final long PROBE_TIMEOUT = 1000;
+
+    // The outcomes of a server's probe.
+    private static final int PROBE_ANSWERED = 0;
+    private static final int PROBE_FAILED   = 1;
+    private static final int PROBE_SKIPPED  = 2;
+
+    // The weight of the last lease in the servers' average round trip time.
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final int                       mPolicy;
+    private final Server[]                  mServers;
+    private final ReentrantLock             mLock;
+    private final Map<Connection, Server>   mLeases;
+    private int                             mNextServer;
+    private volatile long                   mRetryInterval;
+    private volatile int                    mFailuresThreshold;
+    private boolean                         mClosed;
+    private IOException                     mLastFailure;
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects the measures of the commands sent by one or more connections: the
+ * frames and the bytes exchanged, the cipher, server wait and decode times,
+ * and the latency histograms, for each of the protocol's commands.
+ * <p>
+ * A connection measures nothing until it is given an instance with
+ * {@link Connection#setMetrics(ConnectionMetrics)}; with no metrics set the
+ * connector's only cost is a {@code null} check per frame. An instance may
+ * be shared by several connections (e.g. the ones of a
+ * {@link ConnectionPool}, see {@link ConnectionPool#setMetrics(ConnectionMetrics)})
+ * and may be published over JMX with {@link #registerMBean(String)}.</p>
+ *
+ * @version 1.1
+ *
+ * @see CommandMetrics
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean
+{
+    /**
+     * Create an instance with no measures.
+     *
+     * @since 1.1
+     */
+    public ConnectionMetrics()
+    {
+        mCommands = new CommandMetrics[sNames.length];
+        for (int i = 0; i < sNames.length; ++i)
+            mCommands[i] = new CommandMetrics( sNames[i]);
+
+        mSince = System.nanoTime();
+        mObjectName = null;
+    }
+
+    /**
+     * Get the measures of all the protocol's commands.
+     *
+     * @since 1.1
+     */
+    public CommandMetrics[] getCommands()
+    {
+        return mCommands.clone();
+    }
+
+    /**
+     * Get the measures of a command.
+     *
+     * @param name
+     *            The command's name (e.g. {@code "CMD_UPDATE_STACK"}).
+     * @return
+     *            The command's measures, or {@code null} if there is no such
+     *            command.
+     *
+     * @since 1.1
+     */
+    public CommandMetrics getCommand( String name)
+    {
+        for (CommandMetrics c : mCommands) {
+            if (c.getName().equals( name))
+                return c;
+        }
+
+        return null;
+    }
+
+    @Override
+    public long getFramesSent()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getFramesSent();
+
+        return result;
+    }
+
+    @Override
+    public long getFramesReceived()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getFramesReceived();
+
+        return result;
+    }
+
+    @Override
+    public long getBytesSent()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getBytesSent();
+
+        return result;
+    }
+
+    @Override
+    public long getBytesReceived()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getBytesReceived();
+
+        return result;
+    }
+
+    @Override
+    public long getCipherNanos()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getCipherNanos();
+
+        return result;
+    }
+
+    @Override
+    public long getServerWaitNanos()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getServerWaitNanos();
+
+        return result;
+    }
+
+    @Override
+    public long getDecodeNanos()
+    {
+        long result = 0;
+        for (CommandMetrics c : mCommands)
+            result += c.getDecodeNanos();
+
+        return result;
+    }
+
+    @Override
+    public double getCommandsPerSecond()
+    {
+        final long elapsed = System.nanoTime() - mSince;
+
+        return (elapsed <= 0) ? 0 : getFramesSent() * 1e9 / elapsed;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts()
+    {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (CommandMetrics c : mCommands)
+            result.put( c.getName(), c.getFramesSent());
+
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Nanos()
+    {
+        return latencyPercentiles( 50);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Nanos()
+    {
+        return latencyPercentiles( 99);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxNanos()
+    {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (CommandMetrics c : mCommands)
+            result.put( c.getName(), c.getLatency().getMax());
+
+        return result;
+    }
+
+    @Override
+    public void reset()
+    {
+        for (CommandMetrics c : mCommands)
+            c.reset();
+
+        mSince = System.nanoTime();
+    }
+
+    /**
+     * Publish the metrics in the platform's MBean server, under the name
+     * {@code net.whais.Client:type=ConnectionMetrics,name=<name>}.
+     *
+     * @param name
+     *            A name to tell apart the instances (e.g. the pool's
+     *            database).
+     * @return
+     *            The name the metrics were registered with.
+     *
+     * @throws JMException
+     *            If the registration failed (e.g. the name is used by other
+     *            instance).
+     *
+     * @since 1.1
+     */
+    public synchronized ObjectName registerMBean( String name) throws JMException
+    {
+        if (mObjectName != null)
+            throw new IllegalStateException( "The metrics are already registered as " + mObjectName + '.');
+
+        final ObjectName objectName = new ObjectName( "net.whais.Client:type=ConnectionMetrics,name="
+                                                      + ObjectName.quote( name));
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean( this, objectName);
+        mObjectName = objectName;
+
+        return objectName;
+    }
+
+    /**
+     * Remove the metrics from the platform's MBean server, if these were
+     * registered.
+     *
+     * @throws JMException
+     *
+     * @since 1.1
+     */
+    public synchronized void unregisterMBean() throws JMException
+    {
+        if (mObjectName == null)
+            return;
+
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean( mObjectName);
+        mObjectName = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder();
+        for (CommandMetrics c : mCommands) {
+            if (c.getFramesSent() > 0)
+                result.append( c).append( '\n');
+        }
+
+        return result.toString();
+    }
+
+    final void record( short cmd, int bytesSent, int bytesReceived, long latency, long cipher, long wait)
+    {
+        mCommands[index( cmd)].record( bytesSent, bytesReceived, latency, cipher, wait);
+    }
+
+    final void recordDecode( short cmd, long nanos)
+    {
+        mCommands[index( cmd)].recordDecode( nanos);
+    }
+
+    private Map<String, Long> latencyPercentiles( double percentile)
+    {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (CommandMetrics c : mCommands)
+            result.put( c.getName(), c.getLatency().getValueAtPercentile( percentile));
+
+        return result;
+    }
+
+    private static int index( short cmd)
+    {
+        switch (cmd) {
+        case _c.CMD_LIST_GLOBALS:
+            return 0;
+
+        case _c.CMD_LIST_PROCEDURE:
+            return 1;
+
+        case _c.CMD_DESC_PROC_PARAM:
+            return 2;
+
+        case _c.CMD_CLOSE_CONN:
+            return 3;
+
+        case _c.CMD_GLOBAL_DESC:
+            return 4;
+
+        case _c.CMD_READ_STACK:
+            return 5;
+
+        case _c.CMD_UPDATE_STACK:
+            return 6;
+
+        case _c.CMD_EXEC_PROC:
+            return 7;
+
+        case _c.CMD_PING_SERVER:
+            return 8;
+        }
+
+        return 9;
+    }
+
+    private static final String[] sNames = {
+        "CMD_LIST_GLOBALS",
+        "CMD_LIST_PROCEDURE",
+        "CMD_DESC_PROC_PARAM",
+        "CMD_CLOSE_CONN",
+        "CMD_GLOBAL_DESC",
+        "CMD_READ_STACK",
+        "CMD_UPDATE_STACK",
+        "CMD_EXEC_PROC",
+        "CMD_PING_SERVER",
+        "CMD_OTHER"
+    };
+
+    private final CommandMetrics[] mCommands;
+    private volatile long          mSince;
+    private ObjectName             mObjectName;
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.util.Map;
+
+/**
+ * The management interface of a {@link ConnectionMetrics}, as registered
+ * with {@link ConnectionMetrics#registerMBean(String)}.
+ * <p>
+ * The totals are summed over all the commands; the per command values are
+ * keyed by the commands' names (e.g. {@code "CMD_EXEC_PROC"}). All times are
+ * in nanoseconds.</p>
+ *
+ * @version 1.1
+ */
+public interface ConnectionMetricsMXBean
+{
+    long getFramesSent();
+
+    long getFramesReceived();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getCipherNanos();
+
+    long getServerWaitNanos();
+
+    long getDecodeNanos();
+
+    /**
+     * Get the rate of the sent commands since the metrics were created or
+     * reset.
+     */
+    double getCommandsPerSecond();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getLatencyP50Nanos();
+
+    Map<String, Long> getLatencyP99Nanos();
+
+    Map<String, Long> getLatencyMaxNanos();
+
+    /**
+     * Forget all the measures.
+     */
+    void reset();
+}
@@ -0,0 +1,715 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a set of opened {@link Connection} objects to a WHAIS database.
+ * <p>
+ * Opening a connection requires a name resolution, a TCP connect and a full
+ * authentication handshake with the server. A pool keeps the connections of
+ * a database and user opened between requests, so a short procedure call
+ * pays only for its own commands.</p>
+ * <p>
+ * A connection is leased with {@link #borrow()} and must be given back with
+ * {@link #release(Connection)} (or with {@link #invalidate(Connection)} if it
+ * should not be used anymore). On release, the values left on the
+ * connection's stack are removed so the next borrower gets a clean
+ * stack.</p>
+ * <p>
+ * Connections that were not used for longer than the idle timeout are
+ * closed, as long as the pool holds more than its minimum size. This
+ * happens when connections are borrowed or released, or when one calls
+ * {@link #evictIdleConnections()}.</p>
+ * <p>
+ * The borrowers wait on a {@link Condition} rather than on the object's
+ * monitor, so the pool may be shared by virtual threads.</p>
+ *
+ * @version 1.0
+ *
+ * @see Connection
+ */
+public class ConnectionPool
+{
+    /**
+     * Create a pool of connections.
+     * <p>
+     * The pool is warmed up by opening {@code minSize} connections before
+     * this constructor returns.</p>
+     *
+     * @param host
+     *            The host where the Whais server resides.
+     * @param port
+     *            The port where the server listens for TCP/IP connections.
+     * @param database
+     *            The name of the database to use.
+     * @param key
+     *            The authentication data.
+     * @param userId
+     *            Either {@link Connection#ADMIN} or {@link Connection#USER}.
+     * @param maxFrameSize
+     *            The maximum communication frame size of the connections.
+     * @param minSize
+     *            The number of connections the pool keeps opened even if
+     *            they are idle.
+     * @param maxSize
+     *            The maximum number of opened connections.
+     * @param borrowTimeout
+     *            How long (in milliseconds) {@link #borrow()} waits for a
+     *            connection to become available.
+     * @param idleTimeout
+     *            How long (in milliseconds) an unused connection is kept
+     *            opened. Use {@code 0} to never close idle connections.
+     *
+     * @throws IOException
+     *            If the initial connections could not be opened.
+     *
+     * @see Connection#Connection(String, String, String, byte[], byte, int)
+     * @since 1.1
+     */
+    public ConnectionPool( String    host,
+                           String    port,
+                           String    database,
+                           byte[]    key,
+                           byte      userId,
+                           int       maxFrameSize,
+                           int       minSize,
+                           int       maxSize,
+                           long      borrowTimeout,
+                           long      idleTimeout) throws IOException
+    {
+        if ((minSize < 0) || (maxSize <= 0) || (minSize > maxSize))
+            throw new ConnException( CmdResult.INVALID_ARGS, "Invalid connection pool size limits.");
+        else if ((borrowTimeout < 0) || (idleTimeout < 0))
+            throw new ConnException( CmdResult.INVALID_ARGS, "Invalid connection pool timeouts.");
+
+        mHost = host;
+        mPort = port;
+        mDatabase = database;
+        mKey = key.clone();
+        mUserId = userId;
+        mMaxFrameSize = maxFrameSize;
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mBorrowTimeout = borrowTimeout;
+        mIdleTimeout = idleTimeout;
+        mValidationInterval = DEFAULT_VALIDATION_INTERVAL;
+        mMetadataCache = null;
+        mMetrics = null;
+        mFrameBufferPool = null;
+
+        mLock = new ReentrantLock();
+        mAvailable = mLock.newCondition();
+        mIdle = new ArrayDeque<>();
+        mLeased = Collections.newSetFromMap( new IdentityHashMap<Connection, Boolean>());
+        mOpenedCount = 0;
+        mClosed = false;
+
+        try {
+            for (int i = 0; i < minSize; ++i) {
+                final Connection c = openConnection();
+                mLock.lock();
+                try {
+                    ++mOpenedCount;
+                    mIdle.addFirst( new IdleConnection( c, System.currentTimeMillis()));
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a pool of connections.
+     * <p>
+     * Wrapper constructor to automatically convert the password to the UTF-8
+     * representation byte array and to use the default frame size and
+     * timeouts.</p>
+     *
+     * @see #ConnectionPool(String, String, String, byte[], byte, int, int, int, long, long)
+     * @since 1.1
+     */
+    public ConnectionPool( String    host,
+                           String    port,
+                           String    database,
+                           String    password,
+                           byte      userId,
+                           int       minSize,
+                           int       maxSize) throws IOException
+    {
+        this( host,
+              port,
+              database,
+              password.getBytes( StandardCharsets.UTF_8),
+              userId,
+              _c.DEFAULT_FRAME_SIZE,
+              minSize,
+              maxSize,
+              DEFAULT_BORROW_TIMEOUT,
+              DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Lease a connection from the pool.
+     * <p>
+     * Wrapper for {@link #borrow(long)} using the pool's borrow
+     * timeout.</p>
+     *
+     * @see #borrow(long)
+     * @since 1.1
+     */
+    public Connection borrow() throws IOException
+    {
+        return borrow( mBorrowTimeout);
+    }
+
+    /**
+     * Lease a connection from the pool.
+     * <p>
+     * An idle connection is preferred. If none is available and the pool
+     * has not reached its maximum size, a new connection is opened;
+     * otherwise it waits for another thread to release one. Connections that
+     * were idle longer than the validation interval are checked with
+     * {@link Connection#isAlive()} before being handed out.</p>
+     *
+     * @param timeout
+     *            How long (in milliseconds) to wait for a connection.
+     * @return
+     *            A connection that the caller holds until it gives it back
+     *            with {@link #release(Connection)}.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#CONNECTION_TIMEOUT} if no connection
+     *            became available in time.
+     * @throws IOException
+     *            If a new connection could not be opened.
+     *
+     * @since 1.1
+     */
+    public Connection borrow( long timeout) throws IOException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            final List<Connection> expired = new ArrayList<>();
+            IdleConnection candidate = null;
+
+            try {
+                mLock.lock();
+                try {
+                    while (true) {
+                        if (mClosed)
+                            throw new ConnException( CmdResult.OP_NOTPERMITED, "The connection pool is closed.");
+
+                        expired.addAll( evictExpired( System.currentTimeMillis()));
+
+                        if ( ! mIdle.isEmpty()) {
+                            candidate = mIdle.removeFirst();
+                            mLeased.add( candidate.mConnection);
+                            break;
+                        } else if (mOpenedCount < mMaxSize) {
+                            ++mOpenedCount; // Reserve the slot while connecting.
+                            break;
+                        }
+
+                        final long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw new ConnException( CmdResult.CONNECTION_TIMEOUT,
+                                                     "Timed out waiting for a pooled connection.");
+                        }
+
+                        try {
+                            mAvailable.await( wait, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new ConnException( CmdResult.CONNECTION_TIMEOUT,
+                                                     "Interrupted while waiting for a pooled connection.");
+                        }
+                    }
+                } finally {
+                    mLock.unlock();
+                }
+            } finally {
+                closeAll( expired);
+            }
+
+            if (candidate == null) {
+                Connection c = null;
+                try {
+                    c = openConnection();
+                } finally {
+                    mLock.lock();
+                    try {
+                        if (c == null) {
+                            --mOpenedCount;
+                            mAvailable.signalAll();
+                        } else
+                            mLeased.add( c);
+                    } finally {
+                        mLock.unlock();
+                    }
+                }
+                c.setMetadataCache( mMetadataCache);
+                c.setMetrics( mMetrics);
+                c.setFrameBufferPool( mFrameBufferPool);
+                return c;
+            }
+
+            final long idleTime = System.currentTimeMillis() - candidate.mSince;
+            if ((idleTime < mValidationInterval) || candidate.mConnection.isAlive()) {
+                candidate.mConnection.setMetadataCache( mMetadataCache);
+                candidate.mConnection.setMetrics( mMetrics);
+                candidate.mConnection.setFrameBufferPool( mFrameBufferPool);
+                return candidate.mConnection;
+            }
+
+            discard( candidate.mConnection);
+        }
+    }
+
+    /**
+     * Give back a leased connection.
+     * <p>
+     * Any pending stack updates are committed and all the values from the
+     * connection's stack are removed. If this fails, the connection is
+     * closed rather than put back to the pool.</p>
+     *
+     * @param c
+     *            A connection obtained with {@link #borrow()}.
+     *
+     * @since 1.1
+     */
+    public void release( Connection c)
+    {
+        mLock.lock();
+        try {
+            if ( ! mLeased.contains( c))
+                throw new IllegalArgumentException( "The connection was not leased from this pool.");
+        } finally {
+            mLock.unlock();
+        }
+
+        boolean reusable;
+        try {
+            c.popStackValues( Connection.ALL);
+            c.flushStackUpdates();
+            reusable = true;
+        } catch (IOException | RuntimeException e) {
+            reusable = false;
+        }
+
+        List<Connection> expired = null;
+        mLock.lock();
+        try {
+            if (reusable && ! mClosed) {
+                mLeased.remove( c);
+                mIdle.addFirst( new IdleConnection( c, System.currentTimeMillis()));
+                expired = evictExpired( System.currentTimeMillis());
+                mAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (expired != null)
+            closeAll( expired);
+        else
+            discard( c);
+    }
+
+    /**
+     * Give back a leased connection that should not be used anymore.
+     * <p>
+     * Used when a connection was left in an unknown state (e.g. after an
+     * exception during a command). The connection is closed and its slot is
+     * made available to the next borrower.</p>
+     *
+     * @since 1.1
+     */
+    public void invalidate( Connection c)
+    {
+        mLock.lock();
+        try {
+            if ( ! mLeased.contains( c))
+                throw new IllegalArgumentException( "The connection was not leased from this pool.");
+        } finally {
+            mLock.unlock();
+        }
+
+        discard( c);
+    }
+
+    /**
+     * Close the idle connections that were not used for longer than the
+     * idle timeout.
+     * <p>
+     * The pool never goes under its minimum size due to this.</p>
+     *
+     * @return
+     *            The number of closed connections.
+     *
+     * @since 1.1
+     */
+    public int evictIdleConnections()
+    {
+        final List<Connection> expired;
+        mLock.lock();
+        try {
+            expired = evictExpired( System.currentTimeMillis());
+        } finally {
+            mLock.unlock();
+        }
+        closeAll( expired);
+
+        return expired.size();
+    }
+
+    /**
+     * Close the pool.
+     * <p>
+     * All idle connections are closed immediately. Leased connections are
+     * closed when they are given back.</p>
+     *
+     * @since 1.1
+     */
+    public void close()
+    {
+        final List<Connection> idle = new ArrayList<>();
+        mLock.lock();
+        try {
+            mClosed = true;
+            for (IdleConnection ic : mIdle)
+                idle.add( ic.mConnection);
+
+            mOpenedCount -= mIdle.size();
+            mIdle.clear();
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+
+        closeAll( idle);
+    }
+
+    /**
+     * Set how long a connection may stay idle before it is validated on
+     * borrow.
+     *
+     * @param interval
+     *            Time in milliseconds. Use {@code 0} to validate every
+     *            connection before it is leased.
+     *
+     * @since 1.1
+     */
+    public void setValidationInterval( long interval)
+    {
+        mLock.lock();
+        try {
+            if (interval < 0)
+                throw new IllegalArgumentException( "Invalid validation interval.");
+
+            mValidationInterval = interval;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Set the cache shared by the pool's connections to describe the
+     * database's globals and procedures.
+     * <p>
+     * The cache is handed to every connection when it is leased, so the
+     * description of a procedure or a global value is retrieved from the
+     * server only once for the whole pool.</p>
+     *
+     * @param cache
+     *            The cache to use, or {@code null} to always ask the server.
+     *
+     * @see Connection#setMetadataCache(MetadataCache)
+     * @since 1.1
+     */
+    public void setMetadataCache( MetadataCache cache)
+    {
+        mMetadataCache = cache;
+    }
+
+    /**
+     * Get the cache shared by the pool's connections.
+     *
+     * @return
+     *            The cache, or {@code null} if none is used.
+     *
+     * @since 1.1
+     */
+    public MetadataCache getMetadataCache()
+    {
+        return mMetadataCache;
+    }
+
+    /**
+     * Set the metrics updated by the pool's connections.
+     * <p>
+     * The metrics are handed to every connection when it is leased, so
+     * these sum up the measures of the whole pool (e.g. to size it from the
+     * commands' rate and latencies).</p>
+     *
+     * @param metrics
+     *            The metrics to update, or {@code null} to stop measuring.
+     *
+     * @see Connection#setMetrics(ConnectionMetrics)
+     * @since 1.1
+     */
+    public void setMetrics( ConnectionMetrics metrics)
+    {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Get the metrics updated by the pool's connections.
+     *
+     * @return
+     *            The metrics, or {@code null} if nothing is measured.
+     *
+     * @since 1.1
+     */
+    public ConnectionMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+    /**
+     * Set the pool the pool's connections borrow their frames' buffers from.
+     * <p>
+     * The buffer pool is handed to the idle connections right away, and to
+     * every connection when it is leased. The connections returned to the
+     * pool give back their buffers, so the idle connections hold no frame
+     * buffer.</p>
+     *
+     * @param pool
+     *            The buffer pool, or {@code null} to let each connection keep
+     *            its buffer.
+     *
+     * @see Connection#setFrameBufferPool(FrameBufferPool)
+     * @since 1.1
+     */
+    public void setFrameBufferPool( FrameBufferPool pool)
+    {
+        mFrameBufferPool = pool;
+
+        final List<Connection> idle = new ArrayList<>();
+        mLock.lock();
+        try {
+            for (IdleConnection ic : mIdle)
+                idle.add( ic.mConnection);
+        } finally {
+            mLock.unlock();
+        }
+
+        // A connection leased meanwhile gets the same pool anyway.
+        for (Connection c : idle) {
+            try {
+                c.setFrameBufferPool( pool);
+            } catch (ConnException e) {
+                // Let the lease hand it the pool.
+            }
+        }
+    }
+
+    /**
+     * Get the pool the pool's connections borrow their frames' buffers from.
+     *
+     * @return
+     *            The buffer pool, or {@code null} if none is used.
+     *
+     * @since 1.1
+     */
+    public FrameBufferPool getFrameBufferPool()
+    {
+        return mFrameBufferPool;
+    }
+
+    /**
+     * Get the number of opened connections (both idle and leased).
+     *
+     * @since 1.1
+     */
+    public int getSize()
+    {
+        mLock.lock();
+        try {
+            return mOpenedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of connections currently available for lease.
+     *
+     * @since 1.1
+     */
+    public int getIdleCount()
+    {
+        mLock.lock();
+        try {
+            return mIdle.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of connections currently leased.
+     *
+     * @since 1.1
+     */
+    public int getLeasedCount()
+    {
+        mLock.lock();
+        try {
+            return mLeased.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the name of the database the pool connects to.
+     *
+     * @since 1.1
+     */
+    public final String getDatabase()
+    {
+        return mDatabase;
+    }
+
+    private Connection openConnection() throws IOException
+    {
+        return new Connection( mHost, mPort, mDatabase, mKey, mUserId, mMaxFrameSize);
+    }
+
+    private void discard( Connection c)
+    {
+        mLock.lock();
+        try {
+            mLeased.remove( c);
+            --mOpenedCount;
+            mAvailable.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+
+        c.close( true);
+    }
+
+    // Removes the expired connections from the idle list. The caller
+    // should close them after it releases the pool's lock.
+    private List<Connection> evictExpired( long now)
+    {
+        assert mLock.isHeldByCurrentThread();
+
+        if ((mIdleTimeout == 0) || mIdle.isEmpty())
+            return Collections.emptyList();
+
+        // The idle list is ordered with the most recently used connection
+        // first, so expired connections are found at its end.
+        final List<Connection> expired = new ArrayList<>();
+        final Iterator<IdleConnection> it = mIdle.descendingIterator();
+        while (it.hasNext() && (mOpenedCount > mMinSize)) {
+            final IdleConnection ic = it.next();
+            if (now - ic.mSince < mIdleTimeout)
+                break;
+
+            it.remove();
+            --mOpenedCount;
+            expired.add( ic.mConnection);
+        }
+
+        return expired;
+    }
+
+    private static void closeAll( List<Connection> connections)
+    {
+        for (Connection c : connections)
+            c.close( true);
+    }
+
+    private static final class IdleConnection
+    {
+        IdleConnection(Connection c, long since)
+        {
+            mConnection = c;
+            mSince = since;
+        }
+
+        final Connection mConnection;
+        final long       mSince;
+    }
+
+    /**
+     * Default time (in milliseconds) {@link #borrow()} waits for a connection.
+     */
+    public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+
+    /**
+     * Default time (in milliseconds) an unused connection is kept opened.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+
+    /**
+     * Default time (in milliseconds) after which an idle connection is
+     * validated before being leased.
+     */
+    public static final long DEFAULT_VALIDATION_INTERVAL = 5000;
+
+    private final String                 mHost;
+    private final String                 mPort;
+    private final String                 mDatabase;
+    private final byte[]                 mKey;
+    private final byte                   mUserId;
+    private final int                    mMaxFrameSize;
+    private final int                    mMinSize;
+    private final int                    mMaxSize;
+    private final long                   mBorrowTimeout;
+    private final long                   mIdleTimeout;
+    private long                         mValidationInterval;
+    private volatile MetadataCache       mMetadataCache;
+    private volatile ConnectionMetrics   mMetrics;
+    private volatile FrameBufferPool     mFrameBufferPool;
+
+    private final ReentrantLock          mLock;
+    private final Condition              mAvailable;
+    private final ArrayDeque<IdleConnection> mIdle;
+    private final Set<Connection>        mLeased;
+    private int                          mOpenedCount;
+    private boolean                      mClosed;
+}
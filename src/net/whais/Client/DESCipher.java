@@ -17,9 +17,7 @@
 package net.whais.Client;
 
 import java.nio.ByteBuffer;
-import java.security.Key;
-
-import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 
@@ -38,22 +36,21 @@ public class DESCipher extends net.whais.Client.PlainCipher
     }
 
     @Override
-    public void encodeFrame( CommunicationFrame frame, Object key)
+    public int encodeFrame( ByteBuffer buffer, int frameSize, Object key)
     {
-        final ByteBuffer buffer = frame.getCmdBuffer();
-        int bufferSize = frame.getLastPosition();
+        int bufferSize = frameSize;
         int plainSize = bufferSize;
 
-        buffer.position( bufferSize);
-        while (bufferSize % 8 != 0) {
-            buffer.put( (byte) (Math.random() * 1024));
-            ++bufferSize;
-            frame.markBufferPositionValid();
+        if (bufferSize % 8 != 0) {
+            final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (bufferSize % 8 != 0) {
+                buffer.put( bufferSize, (byte) rnd.nextInt());
+                ++bufferSize;
+            }
         }
 
         try {
-            final javax.crypto.Cipher cipher = this.getChiper ();
-            cipher.init (javax.crypto.Cipher.ENCRYPT_MODE, (Key) key);
+            final javax.crypto.Cipher cipher = ((PreparedKey) key).mEncryptor;
 
             buffer.putShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, (short) plainSize);
 
@@ -65,23 +62,22 @@ public class DESCipher extends net.whais.Client.PlainCipher
         }
 
         buffer.putShort (_c.FRAME_SIZE_OFF, (short) bufferSize);
+
+        return bufferSize;
     }
 
     @Override
-    public void decodeFrame( CommunicationFrame frame, Object key)
+    public int decodeFrame( ByteBuffer buffer, int frameSize, Object key)
     {
-        final ByteBuffer buffer = frame.getCmdBuffer();
-
-        assert (frame.getLastPosition () % 8) == 0;
+        assert (frameSize % 8) == 0;
 
         try {
-            final javax.crypto.Cipher cipher = this.getChiper ();
-            cipher.init (javax.crypto.Cipher.DECRYPT_MODE, (Key) key);
+            final javax.crypto.Cipher cipher = ((PreparedKey) key).mDecryptor;
 
             final byte[] buff = buffer.array();
             cipher.doFinal (buff,
                             _c.FRAME_HDR_SIZE,
-                            frame.getLastPosition() - _c.FRAME_HDR_SIZE, buff, _c.FRAME_HDR_SIZE);
+                            frameSize - _c.FRAME_HDR_SIZE, buff, _c.FRAME_HDR_SIZE);
 
         } catch (Exception e) {
             e.printStackTrace ();
@@ -90,19 +86,15 @@ public class DESCipher extends net.whais.Client.PlainCipher
         int plainSize = buffer.getShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF);
         plainSize &= 0x0000FFFF;
 
-        buffer.position( plainSize);
-        frame.markBufferPositionValid();
+        return plainSize;
     }
 
     public byte[] encode (byte[] key, byte[] buffer, int offset, int count)
     {
         try {
-            final Object k = prepareKey (key);
+            final PreparedKey k = (PreparedKey) prepareKey (key);
 
-            final javax.crypto.Cipher cipher = this.getChiper ();
-            cipher.init (javax.crypto.Cipher.ENCRYPT_MODE, (SecretKeySpec) k);
-
-            return cipher.doFinal (buffer, offset, count);
+            return k.mEncryptor.doFinal (buffer, offset, count);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -113,12 +105,9 @@ public class DESCipher extends net.whais.Client.PlainCipher
     public byte[] decode (byte[] key, byte[] buffer, int offset, int count)
     {
         try {
-            final Object k = prepareKey (key);
-
-            final javax.crypto.Cipher cipher = this.getChiper ();
-            cipher.init (javax.crypto.Cipher.DECRYPT_MODE, (SecretKeySpec) k);
+            final PreparedKey k = (PreparedKey) prepareKey (key);
 
-            return cipher.doFinal (buffer, offset, count);
+            return k.mDecryptor.doFinal (buffer, offset, count);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -17,7 +17,6 @@
 package net.whais.Client;
 
 import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
 
 public class DESedeChiper extends DESCipher
 {
@@ -34,13 +33,7 @@ public class DESedeChiper extends DESCipher
         for (int i = 0; i < _key.length; ++i)
             _key[i] = (i < key.length) ? key[i] : 0;
 
-        try {
-            return new SecretKeySpec (_key, "DESede");
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        return null;
+        return prepareKey( _key, "DESede");
     }
 
     @Override
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lends the buffers of the communication frames to the connections, so these
+ * hold a frame's buffer only while one of their calls is in progress.
+ * <p>
+ * A connection with a pool set (see
+ * {@link Connection#setFrameBufferPool(FrameBufferPool)}) borrows a buffer
+ * when a call starts and gives it back when the call ends. The buffer is
+ * kept between calls only while the frame holds something the next calls
+ * need: the stack updates not sent yet, or a stack read's response (e.g.
+ * the page of a {@link TableCursor}). This way many idle connections (e.g.
+ * the ones of a {@link ConnectionPool}, see
+ * {@link ConnectionPool#setFrameBufferPool(FrameBufferPool)}) share a few
+ * buffers.</p>
+ * <p>
+ * The buffers are grouped by size, in powers of 2 from 512 bytes up to 64
+ * KiB, so connections with different frame sizes may still share them. The
+ * pool keeps the given back buffers up to a total size; the rest are left
+ * to the garbage collector.</p>
+ *
+ * @version 1.1
+ */
+public class FrameBufferPool
+{
+    /**
+     * Create a pool keeping up to {@link #DEFAULT_MAX_IDLE_BYTES} of unused
+     * buffers.
+     *
+     * @since 1.1
+     */
+    public FrameBufferPool()
+    {
+        this( DEFAULT_MAX_IDLE_BYTES);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param maxIdleBytes
+     *            The total size of the unused buffers the pool keeps.
+     *
+     * @since 1.1
+     */
+    public FrameBufferPool( long maxIdleBytes)
+    {
+        if (maxIdleBytes < 0)
+            throw new IllegalArgumentException( "The size of the pooled buffers cannot be negative.");
+
+        mMaxIdleBytes = maxIdleBytes;
+        mLock = new ReentrantLock();
+        mIdle = new byte[CLASSES_COUNT][][];
+        mIdleCounts = new int[CLASSES_COUNT];
+        for (int c = 0; c < CLASSES_COUNT; ++c)
+            mIdle[c] = new byte[0][];
+
+        mIdleBytes = 0;
+        mBorrowedCount = 0;
+    }
+
+    /**
+     * Get the total size of the unused buffers the pool keeps.
+     *
+     * @since 1.1
+     */
+    public final long getMaxIdleBytes()
+    {
+        return mMaxIdleBytes;
+    }
+
+    /**
+     * Get the total size of the unused buffers held by the pool.
+     *
+     * @since 1.1
+     */
+    public long getIdleBytes()
+    {
+        mLock.lock();
+        try {
+            return mIdleBytes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of buffers currently used by connections.
+     *
+     * @since 1.1
+     */
+    public int getBorrowedCount()
+    {
+        mLock.lock();
+        try {
+            return mBorrowedCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drop all the unused buffers.
+     *
+     * @since 1.1
+     */
+    public void clear()
+    {
+        mLock.lock();
+        try {
+            for (int c = 0; c < CLASSES_COUNT; ++c) {
+                Arrays.fill( mIdle[c], 0, mIdleCounts[c], null);
+                mIdleCounts[c] = 0;
+            }
+            mIdleBytes = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Get a buffer of at least the specified size (not larger than the
+    // biggest frame).
+    byte[] borrow( int size)
+    {
+        assert (0 < size) && (size <= MAX_CLASS_SIZE);
+
+        final int c = sizeClass( size);
+
+        mLock.lock();
+        try {
+            ++mBorrowedCount;
+            if (mIdleCounts[c] > 0) {
+                final byte[] buffer = mIdle[c][--mIdleCounts[c]];
+                mIdle[c][mIdleCounts[c]] = null;
+                mIdleBytes -= buffer.length;
+
+                return buffer;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        return new byte[MIN_CLASS_SIZE << c];
+    }
+
+    // Take back a buffer, either a borrowed one or one the connection had
+    // allocated itself. The buffers with no class size are dropped.
+    void giveBack( byte[] buffer, boolean borrowed)
+    {
+        final int c = sizeClass( buffer.length);
+        final boolean pooled = (buffer.length <= MAX_CLASS_SIZE) && (buffer.length == (MIN_CLASS_SIZE << c));
+
+        mLock.lock();
+        try {
+            if (borrowed)
+                --mBorrowedCount;
+
+            if ( ! pooled || (mIdleBytes + buffer.length > mMaxIdleBytes))
+                return;
+
+            if (mIdleCounts[c] == mIdle[c].length)
+                mIdle[c] = Arrays.copyOf( mIdle[c], Math.max( 4, 2 * mIdle[c].length));
+
+            mIdle[c][mIdleCounts[c]++] = buffer;
+            mIdleBytes += buffer.length;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // The index of the smallest class whose buffers hold the specified size.
+    private static int sizeClass( int size)
+    {
+        if (size <= MIN_CLASS_SIZE)
+            return 0;
+
+        return (32 - Integer.numberOfLeadingZeros( size - 1)) - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * The default total size of the unused buffers a pool keeps (16 MiB).
+     */
+    public static final long DEFAULT_MAX_IDLE_BYTES = 16L * 1024 * 1024;
+
+    private static final int MIN_CLASS_SHIFT = 9;
+    private static final int MIN_CLASS_SIZE  = 1 << MIN_CLASS_SHIFT;
+    private static final int MAX_CLASS_SIZE  = 1 << 16;
+    private static final int CLASSES_COUNT   = 16 - MIN_CLASS_SHIFT + 1;
+
+    private final long          mMaxIdleBytes;
+    private final ReentrantLock mLock;
+    private final byte[][][]    mIdle;
+    private final int[]         mIdleCounts;
+    private long                mIdleBytes;
+    private int                 mBorrowedCount;
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The channel used by a {@link CommunicationFrame} to exchange raw frames
+ * with a WHAIS server.
+ * <p>
+ * Implementations read and write regions of the frame buffer. They are not
+ * required to understand the frame content.</p>
+ */
+interface FrameTransport
+{
+    /**
+     * Fill the buffer region {@code [from, to)} with data received from the
+     * server. It blocks until all the requested bytes are available.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#DROPPED} if the peer has closed the
+     *            channel.
+     */
+    void readFully( ByteBuffer buffer, int from, int to) throws IOException;
+
+    /**
+     * Send the content of the buffer region {@code [from, to)} to the
+     * server.
+     */
+    void writeFully( ByteBuffer buffer, int from, int to) throws IOException;
+
+    void close();
+}
@@ -17,23 +17,98 @@
 package net.whais.Client;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
-class IntegerValue extends Value
+/**
+ * A WHAIS integer value (of any type from {@code INT8} to {@code UINT64}).
+ * <p>
+ * The value is held as a primitive {@code long}. For {@code UINT64} values
+ * the {@code long} holds the unsigned 64 bits representation, so values above
+ * {@link Long#MAX_VALUE} are kept exactly and are only reachable through
+ * {@link #getBigInteger()}.</p>
+ *
+ * @since 1.1
+ */
+public class IntegerValue extends Value
 {
     IntegerValue(ValueType type, long value)
     {
         super( type);
-        mValue = new BigInteger( "" + value);
+
+        mValue = value;
+        mIsNull = false;
+        mUnsigned = isUnsigned64( type);
     }
 
     IntegerValue(ValueType type, String v)
     {
         super( type);
 
-        if ((v != null) && (v.length() > 0))
-            mValue = new BigInteger( v);
-        else
-            mValue = null;
+        mUnsigned = isUnsigned64( type);
+        if ((v != null) && (v.length() > 0)) {
+            mValue = parse( type, v);
+            mIsNull = false;
+        } else {
+            mValue = 0;
+            mIsNull = true;
+        }
+    }
+
+    /**
+     * Get the value as a Java {@code long}.
+     *
+     * @throws ConnException
+     *            If this is a null value or if an {@code UINT64} value is
+     *            bigger than {@link Long#MAX_VALUE}.
+     *
+     * @since 1.1
+     */
+    public final long getLong() throws ConnException
+    {
+        if (mIsNull)
+            throw new ConnException( CmdResult.INVALID_ARGS, "Cannot get the content of a null integer value.");
+
+        else if ((mValue < 0) && mUnsigned)
+            throw new ConnException( CmdResult.VALUE_OUT_OF_RANGE, "The value " + toString() + " does not fit in a long.");
+
+        return mValue;
+    }
+
+    /**
+     * Get the value as a Java {@code int}.
+     *
+     * @throws ConnException
+     *            If this is a null value or if it does not fit in an
+     *            {@code int}.
+     *
+     * @since 1.1
+     */
+    public final int getInt() throws ConnException
+    {
+        final long l = getLong();
+        if ((l < Integer.MIN_VALUE) || (l > Integer.MAX_VALUE))
+            throw new ConnException( CmdResult.VALUE_OUT_OF_RANGE, "The value " + l + " does not fit in an int.");
+
+        return (int) l;
+    }
+
+    /**
+     * Get the value as a {@link BigInteger}, for any value type.
+     *
+     * @return
+     *            The value, or {@code null} if this is a null value.
+     *
+     * @since 1.1
+     */
+    public final BigInteger getBigInteger()
+    {
+        if (mIsNull)
+            return null;
+
+        else if ((mValue < 0) && mUnsigned)
+            return BigInteger.valueOf( mValue & Long.MAX_VALUE).setBit( 63);
+
+        return BigInteger.valueOf( mValue);
     }
 
     @Override
@@ -59,23 +134,169 @@ class IntegerValue extends Value
         else if (isNull())
             return true;
 
-        return mValue.compareTo( o.mValue) == 0;
+        return mValue == o.mValue;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return mIsNull ? 0 : (int) (mValue ^ (mValue >>> 32));
     }
 
     @Override
     public String toString()
     {
-        if (mValue != null)
-            return mValue.toString();
+        if (mIsNull)
+            return "";
+
+        else if ((mValue < 0) && mUnsigned) {
+            // Halve it first, so the quotient fits in a signed long.
+            final long quotient = (mValue >>> 1) / 5;
+            return Long.toString( quotient) + (char) ('0' + (mValue - quotient * 10));
+        }
 
-        return "";
+        return Long.toString( mValue);
     }
 
     @Override
     public boolean isNull()
     {
-        return mValue == null;
+        return mIsNull;
+    }
+
+    @Override
+    int encodedLength()
+    {
+        if (mIsNull || ((mValue < 0) && mUnsigned))
+            return super.encodedLength();
+
+        return RealValue.decimalLength( mValue, 0);
+    }
+
+    @Override
+    void encode( ByteBuffer b)
+    {
+        if (mIsNull || ((mValue < 0) && mUnsigned)) {
+            super.encode( b);
+            return;
+        }
+
+        final int end = b.position() + RealValue.decimalLength( mValue, 0);
+        RealValue.putDecimal( b.array(), b.arrayOffset() + end, mValue, 0);
+        b.position( end);
+    }
+
+    /**
+     * Get the held bits (the unsigned representation for {@code UINT64}).
+     */
+    final long rawValue()
+    {
+        return mValue;
+    }
+
+    /**
+     * Get the value as a {@code double}, for any value type (a null value
+     * is not expected).
+     */
+    final double toDouble()
+    {
+        assert ! mIsNull;
+
+        if ((mValue < 0) && mUnsigned)
+            return getBigInteger().doubleValue();
+
+        return mValue;
+    }
+
+    /**
+     * Decode an integer from its wire representation (the decimal digits
+     * with an optional leading minus sign), with no intermediate string.
+     */
+    static IntegerValue decode( ValueType type, byte[] src, int offset)
+    {
+        return new IntegerValue( type, parse( type, src, offset));
+    }
+
+    private static long parse( ValueType type, String s)
+    {
+        final int length = s.length();
+        final boolean negative = s.charAt( 0) == '-';
+
+        // An optional sign, as BigInteger and the real values take.
+        int i = (negative || (s.charAt( 0) == '+')) ? 1 : 0;
+        if (i >= length)
+            throw new NumberFormatException( "Invalid integer value '" + s + "'.");
+
+        final boolean unsigned = isUnsigned64( type);
+        long result = 0;
+        for (; i < length; ++i) {
+            final int digit = s.charAt( i) - '0';
+            if ((digit < 0) || (digit > 9))
+                throw new NumberFormatException( "Invalid integer value '" + s + "'.");
+
+            result = accumulate( result, digit, negative, unsigned);
+        }
+
+        return result;
+    }
+
+    static long parse( ValueType type, byte[] src, int offset)
+    {
+        final boolean negative = src[offset] == '-';
+        if (negative)
+            ++offset;
+
+        final boolean unsigned = isUnsigned64( type);
+        long result = 0;
+        while (('0' <= src[offset]) && (src[offset] <= '9'))
+            result = accumulate( result, src[offset++] - '0', negative, unsigned);
+
+        return result;
+    }
+
+    // Add a digit to the value parsed so far. Negative values are accumulated
+    // as such, so Long.MIN_VALUE may be parsed too.
+    private static long accumulate( long value, int digit, boolean negative, boolean unsigned)
+    {
+        if (unsigned) {
+            if (negative)
+                throw new NumberFormatException( "An UINT64 value cannot be negative.");
+
+            // Unsigned comparison with (2^64 - 1) / 10, which is 0x1999999999999999.
+            if ((value + Long.MIN_VALUE > 0x1999999999999999L + Long.MIN_VALUE)
+                    || ((value == 0x1999999999999999L) && (digit > 5))) {
+                throw new NumberFormatException( "The value is too big for an UINT64.");
+            }
+
+            return value * 10 + digit;
+
+        } else if (negative) {
+            if ((value < Long.MIN_VALUE / 10)
+                    || ((value == Long.MIN_VALUE / 10) && (digit > 8))) {
+                throw new NumberFormatException( "The value is too small for a 64 bits integer.");
+            }
+
+            return value * 10 - digit;
+        }
+
+        if ((value > Long.MAX_VALUE / 10)
+                || ((value == Long.MAX_VALUE / 10) && (digit > 7))) {
+            throw new NumberFormatException( "The value is too big for a 64 bits integer.");
+        }
+
+        return value * 10 + digit;
+    }
+
+    private static boolean isUnsigned64( ValueType type)
+    {
+        try {
+            return type.getBaseType() == ValueType.UINT64;
+        } catch (ConnException e) {
+            return false;
+        }
     }
 
-    private final BigInteger mValue;
+    private final long    mValue;
+    private final boolean mIsNull;
+    private final boolean mUnsigned;
 }
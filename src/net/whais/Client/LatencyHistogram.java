@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of durations, in nanoseconds.
+ * <p>
+ * The values are counted in buckets whose width doubles with each power of
+ * two (e.g. 32 buckets from about 1ms to 2ms, and other 32 from 2ms to 4ms),
+ * so the percentiles are reported with a relative error below 3.2% over the
+ * whole range. Recording a value takes no locks and allocates no memory.</p>
+ *
+ * @version 1.1
+ *
+ * @see CommandMetrics#getLatency()
+ */
+public final class LatencyHistogram
+{
+    LatencyHistogram()
+    {
+        mCounts = new AtomicLongArray( BUCKETS_COUNT);
+        mCount = new AtomicLong();
+        mTotal = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+    /**
+     * Get the count of the recorded values.
+     *
+     * @since 1.1
+     */
+    public long getCount()
+    {
+        return mCount.get();
+    }
+
+    /**
+     * Get the biggest recorded value, or {@code 0} if none was recorded.
+     *
+     * @since 1.1
+     */
+    public long getMax()
+    {
+        return mMax.get();
+    }
+
+    /**
+     * Get the average of the recorded values, or {@code 0} if none was
+     * recorded.
+     *
+     * @since 1.1
+     */
+    public double getMean()
+    {
+        final long count = mCount.get();
+
+        return (count == 0) ? 0 : (double) mTotal.get() / count;
+    }
+
+    /**
+     * Get the value that is not exceeded by a percentage of the recorded
+     * values.
+     *
+     * @param percentile
+     *            The percentage, from {@code 0} to {@code 100} (e.g.
+     *            {@code 99.9}).
+     * @return
+     *            The value (the upper bound of its bucket), or {@code 0} if
+     *            no value was recorded.
+     *
+     * @since 1.1
+     */
+    public long getValueAtPercentile( double percentile)
+    {
+        if ((percentile < 0) || (percentile > 100))
+            throw new IllegalArgumentException( "The percentile should be between 0 and 100.");
+
+        long total = 0;
+        for (int i = 0; i < BUCKETS_COUNT; ++i)
+            total += mCounts.get( i);
+
+        if (total == 0)
+            return 0;
+
+        final long rank = Math.max( 1, (long) Math.ceil( total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_COUNT; ++i) {
+            seen += mCounts.get( i);
+            if (seen >= rank)
+                return Math.min( highestValue( i), mMax.get());
+        }
+
+        return mMax.get();
+    }
+
+    /**
+     * Forget the recorded values.
+     *
+     * @since 1.1
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS_COUNT; ++i)
+            mCounts.set( i, 0);
+
+        mCount.set( 0);
+        mTotal.set( 0);
+        mMax.set( 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount()
+               + " mean=" + (long) getMean()
+               + " p50=" + getValueAtPercentile( 50)
+               + " p99=" + getValueAtPercentile( 99)
+               + " max=" + getMax();
+    }
+
+    final void record( long value)
+    {
+        if (value < 0)
+            value = 0;
+
+        mCounts.incrementAndGet( bucket( value));
+        mCount.incrementAndGet();
+        mTotal.addAndGet( value);
+
+        long max = mMax.get();
+        while ((value > max) && ! mMax.compareAndSet( max, value))
+            max = mMax.get();
+    }
+
+    static int bucket( long value)
+    {
+        if (value < 2 * SUB_BUCKETS)
+            return (int) value;
+
+        final int shift = 63 - Long.numberOfLeadingZeros( value) - SUB_BITS;
+
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValue( int bucket)
+    {
+        if (bucket < 2 * SUB_BUCKETS)
+            return bucket;
+
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+
+        return lowest + ((1L << shift) - 1);
+    }
+
+    private static final int SUB_BITS      = 5;
+    private static final int SUB_BUCKETS   = 1 << SUB_BITS;
+    private static final int BUCKETS_COUNT = bucket( Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong      mCount;
+    private final AtomicLong      mTotal;
+    private final AtomicLong      mMax;
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the descriptions of a database's globals and procedures, and the
+ * lists of their names, once a {@link Connection} has retrieved them.
+ * <p>
+ * A cache should be shared only by the connections to the same database
+ * (e.g. the connections of a {@link ConnectionPool}, see
+ * {@link ConnectionPool#setMetadataCache(MetadataCache)}), and installed with
+ * {@link Connection#setMetadataCache(MetadataCache)}. The connections then
+ * answer the repeated description requests from memory, with no round trips
+ * to the server.</p>
+ * <p>
+ * The server does not signal its changes, so the entries are dropped either
+ * explicitly (e.g. after a database's definitions were updated) or when
+ * they get older than the cache's time to live.</p>
+ *
+ * @version 1.1
+ *
+ * @see Connection#describeProcedure(String)
+ * @see Connection#describeGlobal(String)
+ */
+public class MetadataCache
+{
+    /**
+     * Create a cache whose entries never expire.
+     *
+     * @since 1.1
+     */
+    public MetadataCache()
+    {
+        this( 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create a cache whose entries expire.
+     *
+     * @param ttl
+     *            How long an entry is kept, or {@code 0} to keep the entries
+     *            until they are invalidated.
+     * @param unit
+     *            The unit of the {@code ttl} argument.
+     *
+     * @since 1.1
+     */
+    public MetadataCache( long ttl, TimeUnit unit)
+    {
+        if (ttl < 0)
+            throw new IllegalArgumentException( "The metadata's time to live cannot be negative.");
+
+        mTtl = unit.toNanos( ttl);
+        mProcedures = new ConcurrentHashMap<>();
+        mGlobals = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Drop all the entries.
+     *
+     * @since 1.1
+     */
+    public void invalidate()
+    {
+        mProcedures.clear();
+        mGlobals.clear();
+        mProcedureNames = null;
+        mGlobalNames = null;
+    }
+
+    /**
+     * Drop a procedure's description, and the list of the procedures' names.
+     *
+     * @since 1.1
+     */
+    public void invalidateProcedure( String name)
+    {
+        mProcedures.remove( name);
+        mProcedureNames = null;
+    }
+
+    /**
+     * Drop a global value's description, and the list of the globals' names.
+     *
+     * @since 1.1
+     */
+    public void invalidateGlobal( String name)
+    {
+        mGlobals.remove( name);
+        mGlobalNames = null;
+    }
+
+    ProcedureDescription getProcedure( String name)
+    {
+        return (ProcedureDescription) valid( mProcedures.get( name));
+    }
+
+    void putProcedure( String name, ProcedureDescription description)
+    {
+        mProcedures.put( name, new Entry( description, expiry()));
+    }
+
+    ValueType getGlobal( String name)
+    {
+        return (ValueType) valid( mGlobals.get( name));
+    }
+
+    void putGlobal( String name, ValueType type)
+    {
+        mGlobals.put( name, new Entry( type, expiry()));
+    }
+
+    String[] getProcedureNames()
+    {
+        final String[] names = (String[]) valid( mProcedureNames);
+
+        return (names == null) ? null : names.clone();
+    }
+
+    void putProcedureNames( String[] names)
+    {
+        mProcedureNames = new Entry( names.clone(), expiry());
+    }
+
+    String[] getGlobalNames()
+    {
+        final String[] names = (String[]) valid( mGlobalNames);
+
+        return (names == null) ? null : names.clone();
+    }
+
+    void putGlobalNames( String[] names)
+    {
+        mGlobalNames = new Entry( names.clone(), expiry());
+    }
+
+    private long expiry()
+    {
+        return (mTtl == 0) ? 0 : System.nanoTime() + mTtl;
+    }
+
+    private static Object valid( Entry e)
+    {
+        if ((e == null) || ((e.mExpiry != 0) && (System.nanoTime() - e.mExpiry > 0)))
+            return null;
+
+        return e.mValue;
+    }
+
+    private static final class Entry
+    {
+        Entry( Object value, long expiry)
+        {
+            mValue = value;
+            mExpiry = expiry;
+        }
+
+        final Object mValue;
+        final long   mExpiry;
+    }
+
+    private final long                                mTtl;
+    private final ConcurrentHashMap<String, Entry>    mProcedures;
+    private final ConcurrentHashMap<String, Entry>    mGlobals;
+    private volatile Entry                            mProcedureNames;
+    private volatile Entry                            mGlobalNames;
+}
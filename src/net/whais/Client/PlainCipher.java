@@ -16,12 +16,36 @@
 
 package net.whais.Client;
 
+import java.nio.ByteBuffer;
+
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 
 class PlainCipher implements net.whais.Client.Cipher
 {
+    /**
+     * Per connection key material. Holds the cipher objects already
+     * initialised with the connection's key, so a frame's encryption costs
+     * only the actual transformation of its bytes. As the ECB transformations
+     * get reset after each doFinal() the objects are reused between frames,
+     * and because a connection's frames are processed one at time they do
+     * not need further synchronisation.
+     */
+    static final class PreparedKey
+    {
+        PreparedKey( SecretKeySpec spec, Cipher encryptor, Cipher decryptor)
+        {
+            mSpec = spec;
+            mEncryptor = encryptor;
+            mDecryptor = decryptor;
+        }
+
+        final SecretKeySpec mSpec;
+        final Cipher        mEncryptor;
+        final Cipher        mDecryptor;
+    }
+
     @Override
     public byte type ()
     {
@@ -35,33 +59,58 @@ class PlainCipher implements net.whais.Client.Cipher
     }
 
     @Override
-    public void encodeFrame (CommunicationFrame frame, Object key)
+    public int encodeFrame (ByteBuffer buffer, int frameSize, Object key)
     {
         try {
-            final javax.crypto.Cipher cipher = this.getChiper ();
-            cipher.init (javax.crypto.Cipher.ENCRYPT_MODE, (SecretKeySpec) key);
-
-            final byte[] buff = frame.getCmdBuffer().array();
-            cipher.doFinal (buff, _c.FRAME_HDR_SIZE, 8, buff, _c.FRAME_HDR_SIZE);
+            final byte[] buff = buffer.array();
+            ((PreparedKey) key).mEncryptor.doFinal (buff, _c.FRAME_HDR_SIZE, 8, buff, _c.FRAME_HDR_SIZE);
 
         } catch (Exception e) {
             e.printStackTrace ();
         }
+
+        return frameSize;
     }
 
     @Override
-    public void decodeFrame (CommunicationFrame frame, Object key)
+    public int decodeFrame (ByteBuffer buffer, int frameSize, Object key)
     {
         try {
-            final javax.crypto.Cipher cipher = this.getChiper ();
-            cipher.init (javax.crypto.Cipher.DECRYPT_MODE, (SecretKeySpec) key);
-
-            final byte[] buff = frame.getCmdBuffer().array();
-            cipher.doFinal (buff, _c.FRAME_HDR_SIZE, 8, buff, _c.FRAME_HDR_SIZE);
+            final byte[] buff = buffer.array();
+            ((PreparedKey) key).mDecryptor.doFinal (buff, _c.FRAME_HDR_SIZE, 8, buff, _c.FRAME_HDR_SIZE);
 
         } catch (Exception e) {
             e.printStackTrace ();
         }
+
+        return frameSize;
+    }
+
+    @Override
+    public int sealFrame( ByteBuffer buffer, int frameSize, Object key)
+    {
+        final int metadataSize = metadataSize ();
+
+        buffer.putShort (metadataSize - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF,
+                         CommunicationFrame.computeCheckSum (buffer, metadataSize, frameSize));
+
+        return encodeFrame (buffer, frameSize, key);
+    }
+
+    @Override
+    public int openFrame( ByteBuffer buffer, int frameSize, Object key)
+    {
+        final int metadataSize = metadataSize ();
+        final int plainSize = decodeFrame (buffer, frameSize, key);
+
+        if ((plainSize < metadataSize) || (plainSize > frameSize))
+            return -1;
+
+        else if (buffer.getShort (metadataSize - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF)
+                 != CommunicationFrame.computeCheckSum (buffer, metadataSize, plainSize))
+            return -1;
+
+        return plainSize;
     }
 
     @Override
@@ -71,8 +120,21 @@ class PlainCipher implements net.whais.Client.Cipher
         for (int i = 0; i < _key.length; ++i)
             _key[i] = (i < key.length) ? key[i] : 0;
 
+        return prepareKey( _key, "DES");
+    }
+
+    final PreparedKey prepareKey( byte[] key, String algorithm)
+    {
         try {
-            return new SecretKeySpec (_key, "DES");
+            final SecretKeySpec spec = new SecretKeySpec (key, algorithm);
+
+            final Cipher encryptor = this.getChiper ();
+            encryptor.init (Cipher.ENCRYPT_MODE, spec);
+
+            final Cipher decryptor = this.getChiper ();
+            decryptor.init (Cipher.DECRYPT_MODE, spec);
+
+            return new PreparedKey( spec, encryptor, decryptor);
         } catch (Exception e) {
             e.printStackTrace();
         }
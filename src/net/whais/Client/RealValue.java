@@ -17,18 +17,135 @@
 package net.whais.Client;
 
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
-class RealValue extends Value
+/**
+ * A WHAIS real value (of a {@code REAL} or a {@code RICHREAL} type).
+ * <p>
+ * The value is held as a fixed point decimal: a {@code long} with the
+ * decimal digits and the count of the fractional ones among them. This holds
+ * exactly any {@code REAL} value and most of the {@code RICHREAL} ones. Only
+ * the values needing more than 18 digits are kept as {@link BigDecimal}.</p>
+ *
+ * @since 1.1
+ */
+public class RealValue extends Value
 {
     RealValue(ValueType type, String value)
     {
         super( type);
 
-        if ((value == null) || (value.length() == 0))
-            mValue = null;
+        if ((value == null) || (value.length() == 0)) {
+            mIsNull = true;
+            mUnscaled = 0;
+            mScale = 0;
+            mBig = null;
+            return;
+        }
+
+        mIsNull = false;
+
+        final int length = value.length();
+        final boolean negative = value.charAt( 0) == '-';
+
+        // Accumulate the digits as a negative number, so Long.MIN_VALUE fits.
+        long unscaled = 0;
+        int scale = -1, digits = 0, i = negative ? 1 : 0;
+        boolean valid = true;
+        for (; valid && (i < length); ++i) {
+            final char c = value.charAt( i);
+            if ((c == '.') && (scale < 0))
+                scale = 0;
+
+            else if ((c < '0') || (c > '9') || ! fitsDigit( unscaled, c - '0'))
+                valid = false;
+
+            else {
+                unscaled = unscaled * 10 - (c - '0');
+                if (scale >= 0)
+                    ++scale;
+                ++digits;
+            }
+        }
+
+        if (valid && (digits > 0) && (negative || (unscaled != Long.MIN_VALUE))) {
+            mUnscaled = negative ? unscaled : -unscaled;
+            mScale = Math.max( 0, scale);
+            mBig = null;
+        } else {
+            // Too many digits or an unusual notation (e.g. an exponent).
+            final BigDecimal big = normalize( new BigDecimal( value));
+            final boolean compact = isCompact( big);
+
+            mUnscaled = compact ? big.unscaledValue().longValue() : 0;
+            mScale = big.scale();
+            mBig = compact ? null : big;
+        }
+    }
+
+    RealValue(ValueType type, BigDecimal value)
+    {
+        super( type);
+
+        final BigDecimal big = normalize( value);
+        final boolean compact = isCompact( big);
+
+        mIsNull = false;
+        mUnscaled = compact ? big.unscaledValue().longValue() : 0;
+        mScale = big.scale();
+        mBig = compact ? null : big;
+    }
+
+    RealValue(ValueType type, long unscaled, int scale)
+    {
+        super( type);
+
+        mIsNull = false;
+        mUnscaled = unscaled;
+        mScale = scale;
+        mBig = null;
+    }
+
+    /**
+     * Get the value as a Java {@code double}.
+     *
+     * @throws ConnException
+     *            If this is a null value.
+     *
+     * @since 1.1
+     */
+    public final double getDouble() throws ConnException
+    {
+        if (mIsNull)
+            throw new ConnException( CmdResult.INVALID_ARGS, "Cannot get the content of a null real value.");
+
+        else if (mBig != null)
+            return mBig.doubleValue();
+
+        else if (isExactDouble( mUnscaled, mScale))
+            return toDouble( mUnscaled, mScale);
+
+        return Double.parseDouble( toString());
+    }
+
+    /**
+     * Get the exact value.
+     *
+     * @return
+     *            The value, or {@code null} if this is a null value.
+     *
+     * @since 1.1
+     */
+    public final BigDecimal getBigDecimal()
+    {
+        if (mIsNull)
+            return null;
+
+        else if (mBig != null)
+            return mBig;
 
-        else
-            mValue = new BigDecimal( value);
+        return BigDecimal.valueOf( mUnscaled, mScale);
     }
 
     @Override
@@ -54,7 +171,35 @@ class RealValue extends Value
         else if (isNull())
             return true;
 
-        return mValue.compareTo( o.mValue) == 0;
+        else if ((mBig == null) && (o.mBig == null) && (mScale == o.mScale))
+            return mUnscaled == o.mUnscaled;
+
+        return getBigDecimal().compareTo( o.getBigDecimal()) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        if (mIsNull)
+            return 0;
+
+        long unscaled = mUnscaled;
+        int scale = mScale;
+        if (mBig != null) {
+            final BigDecimal stripped = normalize( mBig.stripTrailingZeros());
+            if ( ! isCompact( stripped))
+                return stripped.hashCode();
+
+            unscaled = stripped.unscaledValue().longValue();
+            scale = stripped.scale();
+        }
+
+        while ((scale > 0) && (unscaled % 10 == 0)) {
+            unscaled /= 10;
+            --scale;
+        }
+
+        return 31 * (int) (unscaled ^ (unscaled >>> 32)) + scale;
     }
 
     @Override
@@ -63,14 +208,241 @@ class RealValue extends Value
         if (isNull())
             return "";
 
-        return mValue.toString();
+        else if (mBig != null)
+            return mBig.toPlainString();
+
+        final byte[] result = new byte[decimalLength( mUnscaled, mScale)];
+        putDecimal( result, result.length, mUnscaled, mScale);
+
+        return new String( result, StandardCharsets.US_ASCII);
     }
 
     @Override
     public boolean isNull()
     {
-        return (mValue == null);
+        return mIsNull;
+    }
+
+    @Override
+    int encodedLength()
+    {
+        if (mIsNull || (mBig != null))
+            return super.encodedLength();
+
+        return decimalLength( mUnscaled, mScale);
+    }
+
+    @Override
+    void encode( ByteBuffer b)
+    {
+        if (mIsNull || (mBig != null)) {
+            super.encode( b);
+            return;
+        }
+
+        final int end = b.position() + decimalLength( mUnscaled, mScale);
+        putDecimal( b.array(), b.arrayOffset() + end, mUnscaled, mScale);
+        b.position( end);
+    }
+
+    /**
+     * Check if the value is held as a fixed point decimal. If so,
+     * {@link #unscaled()} and {@link #scale()} give its parts.
+     */
+    final boolean hasCompactForm()
+    {
+        return ! mIsNull && (mBig == null);
+    }
+
+    final long unscaled()
+    {
+        return mUnscaled;
+    }
+
+    final int scale()
+    {
+        return mScale;
+    }
+
+    /**
+     * Decode a real from its wire representation (the decimal digits, with
+     * an optional leading minus sign and an optional decimal point), with no
+     * intermediate string.
+     */
+    static RealValue decode( ValueType type, byte[] src, int offset)
+    {
+        final long unscaled = decodeUnscaled( src, offset);
+        if (unscaled == NOT_COMPACT)
+            return new RealValue( type, new String( src, offset, getRealStringLength( src, offset), StandardCharsets.US_ASCII));
+
+        return new RealValue( type, unscaled, decodedScale( src, offset));
+    }
+
+    /**
+     * Decode the unscaled part of a real's wire representation.
+     *
+     * @return
+     *            The unscaled value, or {@link #NOT_COMPACT} if it does not
+     *            fit in a {@code long}.
+     */
+    static long decodeUnscaled( byte[] src, int offset)
+    {
+        final boolean negative = src[offset] == '-';
+        if (negative)
+            ++offset;
+
+        // Accumulate the digits as a negative number, so Long.MIN_VALUE fits.
+        long unscaled = 0;
+        boolean point = false;
+        while (true) {
+            final byte c = src[offset++];
+            if ((c == '.') && ! point)
+                point = true;
+
+            else if ((c < '0') || (c > '9'))
+                break;
+
+            else if ( ! fitsDigit( unscaled, c - '0'))
+                return NOT_COMPACT;
+
+            else
+                unscaled = unscaled * 10 - (c - '0');
+        }
+
+        if (negative)
+            return unscaled;
+
+        return (unscaled == Long.MIN_VALUE) ? NOT_COMPACT : -unscaled;
+    }
+
+    /**
+     * Count the fractional digits of a real's wire representation.
+     */
+    static int decodedScale( byte[] src, int offset)
+    {
+        if (src[offset] == '-')
+            ++offset;
+
+        while (('0' <= src[offset]) && (src[offset] <= '9'))
+            ++offset;
+
+        if (src[offset] != '.')
+            return 0;
+
+        int scale = 0;
+        while (('0' <= src[++offset]) && (src[offset] <= '9'))
+            ++scale;
+
+        return scale;
+    }
+
+    /**
+     * Decode a real from its wire representation straight to a Java
+     * {@code double}, with no intermediate value.
+     */
+    static double decodeDouble( byte[] src, int offset)
+    {
+        final long unscaled = decodeUnscaled( src, offset);
+        if (unscaled != NOT_COMPACT) {
+            final int scale = decodedScale( src, offset);
+            if (isExactDouble( unscaled, scale))
+                return toDouble( unscaled, scale);
+        }
+
+        return Double.parseDouble( new String( src, offset, getRealStringLength( src, offset), StandardCharsets.US_ASCII));
+    }
+
+    private static boolean isExactDouble( long unscaled, int scale)
+    {
+        return (scale == 0) || ((Math.abs( unscaled) < (1L << 53)) && (scale < POWERS_OF_10.length));
+    }
+
+    private static double toDouble( long unscaled, int scale)
+    {
+        if (scale == 0)
+            return unscaled;
+
+        // Both operands are exact, so the division is correctly rounded.
+        return unscaled / (double) POWERS_OF_10[scale];
+    }
+
+    // Check if a digit can be added to a (negative) accumulated value.
+    private static boolean fitsDigit( long unscaled, int digit)
+    {
+        return (unscaled > -MAX_UNSCALED_DIV_10)
+                || ((unscaled == -MAX_UNSCALED_DIV_10) && (digit <= 8));
+    }
+
+    /**
+     * Compute the length of the plain decimal representation of
+     * {@code unscaled / 10^scale}.
+     */
+    static int decimalLength( long unscaled, int scale)
+    {
+        int digits = 1;
+        for (long n = unscaled / 10; n != 0; n /= 10)
+            ++digits;
+
+        int length = Math.max( digits, scale + 1);
+        if (scale > 0)
+            ++length;
+
+        return (unscaled < 0) ? length + 1 : length;
     }
 
-    private final BigDecimal mValue;
+    /**
+     * Write the plain decimal representation of {@code unscaled / 10^scale}
+     * in ASCII, ending just before {@code end}.
+     */
+    static void putDecimal( byte[] dest, int end, long unscaled, int scale)
+    {
+        // Work with a negative number, so Long.MIN_VALUE needs no special care.
+        long n = (unscaled < 0) ? unscaled : -unscaled;
+        int p = end;
+
+        for (int d = 0; d < scale; ++d) {
+            dest[--p] = (byte) ('0' - (n % 10));
+            n /= 10;
+        }
+
+        if (scale > 0)
+            dest[--p] = '.';
+
+        do {
+            dest[--p] = (byte) ('0' - (n % 10));
+            n /= 10;
+        } while (n != 0);
+
+        if (unscaled < 0)
+            dest[--p] = '-';
+    }
+
+    private static BigDecimal normalize( BigDecimal value)
+    {
+        return (value.scale() < 0) ? value.setScale( 0) : value;
+    }
+
+    private static boolean isCompact( BigDecimal value)
+    {
+        return value.unscaledValue().bitLength() <= 63;
+    }
+
+    /**
+     * Returned by {@link #decodeUnscaled(byte[], int)} for the values that
+     * do not fit in a {@code long}.
+     */
+    static final long NOT_COMPACT = Long.MIN_VALUE;
+
+    private static final long MAX_UNSCALED_DIV_10 = Long.MAX_VALUE / 10;
+
+    private static final long[] POWERS_OF_10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+        10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L,
+        1000000000000000L, 10000000000000000L, 100000000000000000L, 1000000000000000000L
+    };
+
+    private final long       mUnscaled;
+    private final int        mScale;
+    private final BigDecimal mBig;
+    private final boolean    mIsNull;
 }
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Frame transport built on a blocking NIO socket channel.
+ * <p>
+ * The frame buffer is a heap buffer (the ciphers and the values decoders
+ * work on its backing array), so the channel still copies the bytes through
+ * the JDK's temporary direct buffer on every read and write, as the socket
+ * streams do with their native buffer.</p>
+ */
+final class SocketChannelTransport implements FrameTransport
+{
+    SocketChannelTransport(SocketChannel channel) throws IOException
+    {
+        channel.configureBlocking( true);
+        channel.socket().setTcpNoDelay( true);
+
+        mChannel = channel;
+    }
+
+    @Override
+    public void readFully( ByteBuffer buffer, int from, int to) throws IOException
+    {
+        final ByteBuffer b = buffer.duplicate();
+        b.limit( to).position( from);
+
+        while (b.hasRemaining()) {
+            if (mChannel.read( b) < 0)
+                throw new ConnException( CmdResult.DROPPED);
+        }
+    }
+
+    @Override
+    public void writeFully( ByteBuffer buffer, int from, int to) throws IOException
+    {
+        final ByteBuffer b = buffer.duplicate();
+        b.limit( to).position( from);
+
+        while (b.hasRemaining())
+            mChannel.write( b);
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // Do noting here! Just ignore it.
+        }
+    }
+
+    private final SocketChannel mChannel;
+}
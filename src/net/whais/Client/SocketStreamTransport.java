@@ -0,0 +1,86 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Frame transport built on the streams of a regular socket.
+ */
+final class SocketStreamTransport implements FrameTransport
+{
+    SocketStreamTransport(Socket s) throws IOException
+    {
+        this( s, s.getInputStream(), s.getOutputStream());
+    }
+
+    SocketStreamTransport(Socket s, InputStream in, OutputStream out)
+    {
+        mServer = s;
+        mIStream = in;
+        mOStream = out;
+    }
+
+    @Override
+    public void readFully( ByteBuffer buffer, int from, int to) throws IOException
+    {
+        assert buffer.hasArray();
+
+        final byte[] b = buffer.array();
+        final int offset = buffer.arrayOffset();
+        while (from < to) {
+            final int count = mIStream.read( b, offset + from, to - from);
+
+            if (count < 0)
+                throw new ConnException( CmdResult.DROPPED);
+
+            from += count;
+        }
+    }
+
+    @Override
+    public void writeFully( ByteBuffer buffer, int from, int to) throws IOException
+    {
+        assert buffer.hasArray();
+
+        mOStream.write( buffer.array(), buffer.arrayOffset() + from, to - from);
+        mOStream.flush();
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            if (mServer != null)
+                mServer.close();
+            else {
+                mIStream.close();
+                mOStream.close();
+            }
+        } catch (IOException e) {
+            // Do noting here! Just ignore it.
+        }
+    }
+
+    private final Socket mServer;
+    private final InputStream mIStream;
+    private final OutputStream mOStream;
+}
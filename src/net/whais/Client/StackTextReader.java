@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a text value from the top of a connection's stack (or a text cell
+ * of the table from the top of the stack), one communication frame at a
+ * time.
+ * <p>
+ * Only the characters of the last received frame are kept. The next ones
+ * are requested using the text offset hint of {@code CMD_READ_STACK}, so
+ * a text of any size is read with bounded memory.</p>
+ *
+ * @see Connection#openTextReader()
+ * @see Connection#openTextReader(String, long)
+ */
+final class StackTextReader extends Reader
+{
+    StackTextReader( Connection connection, String field, long row)
+    {
+        mConnection = connection;
+        mField = field;
+        mRow = row;
+        mCharsCount = -1;
+        mCharOffset = 0;
+        mChunk = "";
+        mChunkPosition = 0;
+        mClosed = false;
+    }
+
+    @Override
+    public int read( char[] cbuf, int off, int len) throws IOException
+    {
+        if ((off < 0) || (len < 0) || (len > cbuf.length - off))
+            throw new IndexOutOfBoundsException();
+
+        mConnection.acquire();
+        try {
+            if (mClosed)
+                throw new IOException( "The text reader is closed.");
+            else if (len == 0)
+                return 0;
+
+            while (mChunkPosition >= mChunk.length()) {
+                if ((mCharsCount >= 0) && (mCharOffset >= mCharsCount))
+                    return -1;
+
+                fetch();
+            }
+
+            final int count = Math.min( len, mChunk.length() - mChunkPosition);
+            mChunk.getChars( mChunkPosition, mChunkPosition + count, cbuf, off);
+            mChunkPosition += count;
+
+            return count;
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        mClosed = true;
+        mChunk = "";
+        mChunkPosition = 0;
+    }
+
+    // Request the frame holding the characters from the current offset. The
+    // first call also checks the value is a text.
+    final void fetch() throws IOException
+    {
+        final CommunicationFrame frame = mConnection.getFrame();
+
+        if (frame.hasPendingCommands())
+            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+        final boolean isCell = (mField != null) && (mField.length() > 0);
+
+        mConnection.refreshReadCache( isCell ? mField : Connection.IGNORE_FIELD,
+                                      mRow,
+                                      Connection.IGNORE_OFFSET,
+                                      mCharOffset);
+        ByteBuffer b;
+        if (isCell) {
+            b = frame.getCmdBuffer();
+            b.position( b.position() + 4);
+            if ( ! ValueType.isTable( b.getShort()))
+                throw new ConnException( CmdResult.INVALID_FIELD);
+
+            if ((b = mConnection.skipUntilFieldValue( mField, mRow)) == null)
+                throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+        } else {
+            b = frame.getCmdBuffer();
+            b.position( b.position() + 4);
+        }
+
+        if (b.getShort() != ValueType.TEXT)
+            throw new ConnException( CmdResult.TYPE_MISMATCH, "The value is not a text.");
+
+        final long charsCount = b.getLong();
+        if ((mCharsCount >= 0) && (charsCount != mCharsCount))
+            throw new ConnException( CmdResult.GENERAL_ERR, "The text was changed while it was read.");
+
+        mCharsCount = charsCount;
+        mChunk = "";
+        mChunkPosition = 0;
+        if (charsCount == 0)
+            return;
+
+        if (b.getLong() != mCharOffset)
+            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+
+        final int startOffset = b.position();
+        while (b.get() != 0)
+            ; // Just let the buffer's position advance.
+        final int endOffset = b.position() - 1;
+
+        mChunk = new String( b.array(), startOffset, endOffset - startOffset, StandardCharsets.UTF_8);
+
+        final int count = mChunk.codePointCount( 0, mChunk.length());
+        if ((count == 0) || (mCharOffset + count > mCharsCount))
+            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+
+        mCharOffset += count;
+    }
+
+    private final Connection mConnection;
+    private final String     mField;
+    private final long       mRow;
+    private long             mCharsCount;
+    private long             mCharOffset;
+    private String           mChunk;
+    private int              mChunkPosition;
+    private boolean          mClosed;
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a text value on top of a connection's stack (or in a text cell of
+ * the table from the top of the stack) as its characters are produced.
+ * <p>
+ * The characters are encoded straight in the pending stack updates frame.
+ * Consecutive writes extend the same {@code CMD_UPDATE_FUNC_CHTOP}
+ * sub-command, and a frame is sent as soon as it fills up. The text never
+ * has to be held in memory as a whole.</p>
+ *
+ * @see Connection#openTextWriter()
+ * @see Connection#openTextWriter(String, long)
+ * @see TableWriter#openTextWriter(int)
+ */
+final class StackTextWriter extends Writer
+{
+    StackTextWriter( Connection connection, byte[] field, long row)
+    {
+        mConnection = connection;
+        mField = field;
+        mRow = row;
+        mTextOffset = 0;
+        mHighSurrogate = 0;
+        mCmdFrameId = -1;
+        mCmdEnd = -1;
+        mClosed = false;
+    }
+
+    @Override
+    public void write( char[] cbuf, int off, int len) throws IOException
+    {
+        if ((off < 0) || (len < 0) || (len > cbuf.length - off))
+            throw new IndexOutOfBoundsException();
+
+        mConnection.acquire();
+        try {
+            checkOpen();
+            for (int i = off; i < off + len; ++i)
+                putChar( cbuf[i]);
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    @Override
+    public void write( String str, int off, int len) throws IOException
+    {
+        if ((off < 0) || (len < 0) || (len > str.length() - off))
+            throw new IndexOutOfBoundsException();
+
+        mConnection.acquire();
+        try {
+            checkOpen();
+            for (int i = off; i < off + len; ++i)
+                putChar( str.charAt( i));
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    @Override
+    public void write( int c) throws IOException
+    {
+        mConnection.acquire();
+        try {
+            checkOpen();
+            putChar( (char) c);
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Send the characters written so far, as
+     * {@link Connection#flushStackUpdates()} does.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        mConnection.acquire();
+        try {
+            checkOpen();
+            mConnection.flushStackUpdates();
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Stop writing the text. The last characters are left with the pending
+     * stack updates, to be sent with the next command.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        mConnection.acquire();
+        try {
+            if (mClosed)
+                return;
+
+            if (mHighSurrogate != 0) {
+                mHighSurrogate = 0;
+                putCodePoint( '?');
+            }
+            mClosed = true;
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if (mClosed)
+            throw new IOException( "The text writer is closed.");
+    }
+
+    // Unpaired surrogates are replaced, as String.getBytes() does.
+    private void putChar( char c) throws IOException
+    {
+        if (mHighSurrogate != 0) {
+            final char high = mHighSurrogate;
+
+            mHighSurrogate = 0;
+            if (Character.isLowSurrogate( c)) {
+                putCodePoint( Character.toCodePoint( high, c));
+                return;
+            }
+            putCodePoint( '?');
+        }
+
+        if (Character.isHighSurrogate( c))
+            mHighSurrogate = c;
+        else if (Character.isLowSurrogate( c))
+            putCodePoint( '?');
+        else
+            putCodePoint( c);
+    }
+
+    private void putCodePoint( int cp) throws IOException
+    {
+        final CommunicationFrame frame = mConnection.getFrame();
+        final int length = (cp < 0x80) ? 1 : (cp < 0x800) ? 2 : (cp < 0x10000) ? 3 : 4;
+
+        if ( ! frame.hasPendingCommands())
+            frame.discardCommandBuffer();
+        else if (frame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+        ByteBuffer b = frame.getCmdBuffer();
+        if ((mCmdFrameId == frame.lastFrameId())
+                && frame.hasPendingCommands()
+                && (mCmdEnd == frame.getLastPosition())
+                && (mCmdEnd + length <= b.capacity())) {
+            // Extend the last sub-command, overwriting its terminator.
+            b.position( mCmdEnd - 1);
+        } else
+            b = startCommand( frame, length);
+
+        if (length == 1)
+            b.put( (byte) cp);
+        else if (length == 2) {
+            b.put( (byte) (0xC0 | (cp >> 6)))
+             .put( (byte) (0x80 | (cp & 0x3F)));
+        } else if (length == 3) {
+            b.put( (byte) (0xE0 | (cp >> 12)))
+             .put( (byte) (0x80 | ((cp >> 6) & 0x3F)))
+             .put( (byte) (0x80 | (cp & 0x3F)));
+        } else {
+            b.put( (byte) (0xF0 | (cp >> 18)))
+             .put( (byte) (0x80 | ((cp >> 12) & 0x3F)))
+             .put( (byte) (0x80 | ((cp >> 6) & 0x3F)))
+             .put( (byte) (0x80 | (cp & 0x3F)));
+        }
+        b.put( (byte) 0);
+
+        frame.markBufferPositionValid();
+        frame.setPendingCommand( _c.CMD_UPDATE_STACK);
+
+        mCmdFrameId = frame.lastFrameId();
+        mCmdEnd = b.position();
+        ++mTextOffset;
+    }
+
+    private ByteBuffer startCommand( CommunicationFrame frame, int length) throws IOException
+    {
+        final int header = 1 + 2 + ((mField == null) ? 0 : mField.length + 1 + 8) + 8;
+
+        ByteBuffer b = frame.getCmdBuffer();
+        if (frame.getLastPosition() + header + length + 1 > b.capacity()) {
+            if (frame.hasPendingCommands()) {
+                frame.flushPendingCommand();
+                frame.discardCommandBuffer();
+
+                b = frame.getCmdBuffer();
+            }
+
+            if (frame.getLastPosition() + header + length + 1 > b.capacity())
+                throw new ConnException( CmdResult.LARGE_ARGS, "Field name too long to allow a value update.");
+        }
+
+        b.position( frame.getLastPosition());
+        if (mField == null) {
+            b.put( _c.CMD_UPDATE_FUNC_CHTOP)
+             .putShort( (short) ValueType.TEXT);
+        } else {
+            b.put( _c.CMD_UPDATE_FUNC_CHTOP)
+             .putShort( (short) (ValueType.TEXT | ValueType.FIELD_MASK))
+             .put( mField)
+             .put( (byte) 0)
+             .putLong( mRow);
+        }
+
+        return b.putLong( mTextOffset);
+    }
+
+    private final Connection mConnection;
+    private final byte[]     mField;
+    private final long       mRow;
+    private long             mTextOffset;
+    private char             mHighSurrogate;
+    private int              mCmdFrameId;
+    private int              mCmdEnd;
+    private boolean          mClosed;
+}
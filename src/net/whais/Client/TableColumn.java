@@ -0,0 +1,825 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The storage of a table's field, used by {@link TableValue}, or of an
+ * array's elements, used by {@link ArrayValue}.
+ * <p>
+ * A column keeps one bit per row to tell the null cells apart. The non null
+ * cells of the basic types are kept in arrays of primitives, and only the
+ * text and the array cells are kept as {@link Value} objects. The text cells
+ * received from the server are kept in their UTF-8 form until requested. The
+ * cells' values are created only when these are requested.</p>
+ */
+abstract class TableColumn
+{
+    TableColumn( ValueType type)
+    {
+        mType = type;
+        mPresent = new long[0];
+    }
+
+    static TableColumn create( ValueType type) throws ConnException
+    {
+        if ( ! type.isBasic())
+            return new ObjectColumn( type);
+
+        switch (type.getBaseType()) {
+        case ValueType.BOOL:
+            return new BoolColumn( type);
+
+        case ValueType.CHAR:
+            return new CharColumn( type);
+
+        case ValueType.DATE:
+        case ValueType.DATETIME:
+        case ValueType.HIRESTIME:
+            return new TimeColumn( type);
+
+        case ValueType.INT8:
+        case ValueType.INT16:
+        case ValueType.INT32:
+        case ValueType.INT64:
+        case ValueType.UINT8:
+        case ValueType.UINT16:
+        case ValueType.UINT32:
+        case ValueType.UINT64:
+            return new IntegerColumn( type);
+
+        case ValueType.REAL:
+        case ValueType.RICHREAL:
+            return new RealColumn( type);
+
+        case ValueType.TEXT:
+            return new TextColumn( type);
+        }
+
+        return new ObjectColumn( type);
+    }
+
+    /**
+     * Check an integer fits in a value of an integer type; the other types
+     * take any.
+     *
+     * @throws ConnException
+     *            With {@link CmdResult#VALUE_OUT_OF_RANGE} if it does not.
+     */
+    static void checkIntegerRange( ValueType type, long value) throws ConnException
+    {
+        final long min, max;
+        switch (type.getBaseType()) {
+        case ValueType.INT8:
+            min = Byte.MIN_VALUE;
+            max = Byte.MAX_VALUE;
+            break;
+
+        case ValueType.INT16:
+            min = Short.MIN_VALUE;
+            max = Short.MAX_VALUE;
+            break;
+
+        case ValueType.INT32:
+            min = Integer.MIN_VALUE;
+            max = Integer.MAX_VALUE;
+            break;
+
+        case ValueType.UINT8:
+            min = 0;
+            max = 0xFFL;
+            break;
+
+        case ValueType.UINT16:
+            min = 0;
+            max = 0xFFFFL;
+            break;
+
+        case ValueType.UINT32:
+            min = 0;
+            max = 0xFFFFFFFFL;
+            break;
+
+        case ValueType.UINT64:
+            min = 0;
+            max = Long.MAX_VALUE;
+            break;
+
+        default:
+            min = Long.MIN_VALUE;
+            max = Long.MAX_VALUE;
+        }
+
+        if ((value < min) || (value > max))
+            throw new ConnException( CmdResult.VALUE_OUT_OF_RANGE, "Cannot hold " + value + " in a " + type + " value.");
+    }
+
+    final ValueType type()
+    {
+        return mType;
+    }
+
+    /**
+     * Make room for at least {@code rows} cells.
+     */
+    final void ensureCapacity( int rows)
+    {
+        if (rows <= mCapacity)
+            return;
+
+        final int capacity = Math.max( rows, Math.max( 16, mCapacity + (mCapacity >> 1)));
+
+        mPresent = Arrays.copyOf( mPresent, (capacity + 63) >>> 6);
+        resize( capacity);
+        mCapacity = capacity;
+    }
+
+    final boolean isNull( int row)
+    {
+        return (mPresent[row >>> 6] & (1L << row)) == 0;
+    }
+
+    /**
+     * Get a cell's value, or {@code null} for a null cell.
+     */
+    final Value get( int row) throws ConnException
+    {
+        return isNull( row) ? null : load( row);
+    }
+
+    /**
+     * Set a cell's value. A {@code null} or a null value clears the cell.
+     */
+    final void set( int row, Value value) throws ConnException
+    {
+        if ((value == null) || value.isNull()) {
+            mPresent[row >>> 6] &= ~(1L << row);
+            clear( row);
+        } else {
+            store( row, value);
+            present( row);
+        }
+    }
+
+    /**
+     * Set a cell from its wire representation (a zero terminated string),
+     * with no intermediate value for the basic types stored as primitives.
+     */
+    final void decode( int row, byte[] src, int offset) throws ConnException
+    {
+        if (src[offset] == 0)
+            set( row, null);
+        else {
+            decodeValue( row, src, offset);
+            present( row);
+        }
+    }
+
+    /**
+     * Get the size of a non null cell's representation in a stack update
+     * request (with no terminating zero).
+     */
+    int encodedLength( int row) throws ConnException
+    {
+        return load( row).encodedLength();
+    }
+
+    /**
+     * Write a non null cell's representation in a stack update request (with
+     * no terminating zero), advancing the buffer's position.
+     */
+    void encode( int row, ByteBuffer b) throws ConnException
+    {
+        load( row).encode( b);
+    }
+
+    long getLong( int row) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Not an integer value.");
+    }
+
+    double getDouble( int row) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Not a numeric value.");
+    }
+
+    boolean getBoolean( int row) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Not a boolean value.");
+    }
+
+    int getCodePoint( int row) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Not a character value.");
+    }
+
+    long getEpochMicros( int row) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Not a time value.");
+    }
+
+    // The setters below leave to the caller to mark the cell as not null.
+
+    void setLong( int row, long value) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Cannot set an integer to a " + mType + " value.");
+    }
+
+    void setDouble( int row, double value) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Cannot set a real to a " + mType + " value.");
+    }
+
+    void setBoolean( int row, boolean value) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Cannot set a boolean to a " + mType + " value.");
+    }
+
+    void setCodePoint( int row, int codePoint) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Cannot set a character to a " + mType + " value.");
+    }
+
+    void setEpochMicros( int row, long micros) throws ConnException
+    {
+        throw new ConnException( CmdResult.TYPE_MISMATCH, "Cannot set a time to a " + mType + " value.");
+    }
+
+    abstract void resize( int capacity);
+
+    abstract Value load( int row) throws ConnException;
+
+    abstract void store( int row, Value value) throws ConnException;
+
+    void clear( int row)
+    {
+        // Only the columns that reference objects need to forget them.
+    }
+
+    void decodeValue( int row, byte[] src, int offset) throws ConnException
+    {
+        store( row, Value.createBasic( mType, src, offset));
+    }
+
+    final void present( int row)
+    {
+        mPresent[row >>> 6] |= 1L << row;
+    }
+
+    private static final class BoolColumn extends TableColumn
+    {
+        BoolColumn( ValueType type)
+        {
+            super( type);
+            mValues = new long[0];
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mValues = Arrays.copyOf( mValues, (capacity + 63) >>> 6);
+        }
+
+        @Override
+        Value load( int row)
+        {
+            return new BoolValue( (mValues[row >>> 6] & (1L << row)) != 0);
+        }
+
+        @Override
+        void store( int row, Value value)
+        {
+            setBoolean( row, ((BoolValue) value).booleanValue());
+        }
+
+        @Override
+        void decodeValue( int row, byte[] src, int offset)
+        {
+            setBoolean( row, src[offset] != '0');
+        }
+
+        @Override
+        int encodedLength( int row)
+        {
+            return 1;
+        }
+
+        @Override
+        void encode( int row, ByteBuffer b)
+        {
+            b.put( (byte) (getBoolean( row) ? '1' : '0'));
+        }
+
+        @Override
+        boolean getBoolean( int row)
+        {
+            return (mValues[row >>> 6] & (1L << row)) != 0;
+        }
+
+        @Override
+        void setBoolean( int row, boolean value)
+        {
+            if (value)
+                mValues[row >>> 6] |= 1L << row;
+            else
+                mValues[row >>> 6] &= ~(1L << row);
+        }
+
+        private long[] mValues;
+    }
+
+    private static final class CharColumn extends TableColumn
+    {
+        CharColumn( ValueType type)
+        {
+            super( type);
+            mValues = new int[0];
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mValues = Arrays.copyOf( mValues, capacity);
+        }
+
+        @Override
+        Value load( int row)
+        {
+            return new CharValue( mValues[row]);
+        }
+
+        @Override
+        void store( int row, Value value)
+        {
+            mValues[row] = ((CharValue) value).getCodePoint();
+        }
+
+        @Override
+        void decodeValue( int row, byte[] src, int offset) throws ConnException
+        {
+            // Most characters are ASCII ones; leave the UTF-8 decoding for the rest.
+            if ((src[offset] > 0) && (src[offset + 1] == 0))
+                mValues[row] = src[offset];
+            else
+                super.decodeValue( row, src, offset);
+        }
+
+        @Override
+        int encodedLength( int row) throws ConnException
+        {
+            return (mValues[row] < 0x80) ? 1 : super.encodedLength( row);
+        }
+
+        @Override
+        void encode( int row, ByteBuffer b) throws ConnException
+        {
+            if (mValues[row] < 0x80)
+                b.put( (byte) mValues[row]);
+            else
+                super.encode( row, b);
+        }
+
+        @Override
+        int getCodePoint( int row)
+        {
+            return mValues[row];
+        }
+
+        @Override
+        void setCodePoint( int row, int codePoint) throws ConnException
+        {
+            if ((codePoint <= 0) || ! Character.isValidCodePoint( codePoint))
+                throw new ConnException( CmdResult.INVALID_ARGS, "Invalid character code point " + codePoint + '.');
+
+            mValues[row] = codePoint;
+        }
+
+        private int[] mValues;
+    }
+
+    private static final class IntegerColumn extends TableColumn
+    {
+        IntegerColumn( ValueType type)
+        {
+            super( type);
+            mValues = new long[0];
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mValues = Arrays.copyOf( mValues, capacity);
+        }
+
+        @Override
+        Value load( int row)
+        {
+            return new IntegerValue( type(), mValues[row]);
+        }
+
+        @Override
+        void store( int row, Value value)
+        {
+            mValues[row] = ((IntegerValue) value).rawValue();
+        }
+
+        @Override
+        void decodeValue( int row, byte[] src, int offset)
+        {
+            mValues[row] = IntegerValue.parse( type(), src, offset);
+        }
+
+        @Override
+        int encodedLength( int row) throws ConnException
+        {
+            if ((mValues[row] < 0) && isUnsigned64())
+                return super.encodedLength( row);
+
+            return RealValue.decimalLength( mValues[row], 0);
+        }
+
+        @Override
+        void encode( int row, ByteBuffer b) throws ConnException
+        {
+            if ((mValues[row] < 0) && isUnsigned64()) {
+                super.encode( row, b);
+                return;
+            }
+
+            final int end = b.position() + RealValue.decimalLength( mValues[row], 0);
+            RealValue.putDecimal( b.array(), b.arrayOffset() + end, mValues[row], 0);
+            b.position( end);
+        }
+
+        @Override
+        long getLong( int row) throws ConnException
+        {
+            if ((mValues[row] < 0) && isUnsigned64())
+                return ((IntegerValue) load( row)).getLong();
+
+            return mValues[row];
+        }
+
+        @Override
+        double getDouble( int row) throws ConnException
+        {
+            return ((IntegerValue) load( row)).toDouble();
+        }
+
+        @Override
+        void setLong( int row, long value) throws ConnException
+        {
+            checkIntegerRange( type(), value);
+
+            mValues[row] = value;
+        }
+
+        private boolean isUnsigned64() throws ConnException
+        {
+            return type().getBaseType() == ValueType.UINT64;
+        }
+
+        private long[] mValues;
+    }
+
+    private static final class RealColumn extends TableColumn
+    {
+        RealColumn( ValueType type)
+        {
+            super( type);
+            mUnscaled = new long[0];
+            mScales = new byte[0];
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mUnscaled = Arrays.copyOf( mUnscaled, capacity);
+            mScales = Arrays.copyOf( mScales, capacity);
+            if (mWide != null)
+                mWide = Arrays.copyOf( mWide, capacity);
+        }
+
+        @Override
+        Value load( int row)
+        {
+            if (mScales[row] == WIDE_SCALE)
+                return mWide[row];
+
+            return new RealValue( type(), mUnscaled[row], mScales[row]);
+        }
+
+        @Override
+        void store( int row, Value value)
+        {
+            final RealValue v = (RealValue) value;
+
+            if (v.hasCompactForm() && (v.scale() < WIDE_SCALE)) {
+                mUnscaled[row] = v.unscaled();
+                mScales[row] = (byte) v.scale();
+                clear( row);
+            } else {
+                // Rare enough (e.g. the extreme rich real values) to keep the object.
+                if (mWide == null)
+                    mWide = new RealValue[mUnscaled.length];
+
+                mWide[row] = v;
+                mScales[row] = WIDE_SCALE;
+            }
+        }
+
+        @Override
+        void clear( int row)
+        {
+            if (mWide != null)
+                mWide[row] = null;
+        }
+
+        @Override
+        void decodeValue( int row, byte[] src, int offset)
+        {
+            final long unscaled = RealValue.decodeUnscaled( src, offset);
+            final int scale = (unscaled == RealValue.NOT_COMPACT) ? WIDE_SCALE : RealValue.decodedScale( src, offset);
+
+            if (scale < WIDE_SCALE) {
+                mUnscaled[row] = unscaled;
+                mScales[row] = (byte) scale;
+                clear( row);
+            } else
+                store( row, RealValue.decode( type(), src, offset));
+        }
+
+        @Override
+        int encodedLength( int row) throws ConnException
+        {
+            if (mScales[row] == WIDE_SCALE)
+                return super.encodedLength( row);
+
+            return RealValue.decimalLength( mUnscaled[row], mScales[row]);
+        }
+
+        @Override
+        void encode( int row, ByteBuffer b) throws ConnException
+        {
+            if (mScales[row] == WIDE_SCALE) {
+                super.encode( row, b);
+                return;
+            }
+
+            final int end = b.position() + RealValue.decimalLength( mUnscaled[row], mScales[row]);
+            RealValue.putDecimal( b.array(), b.arrayOffset() + end, mUnscaled[row], mScales[row]);
+            b.position( end);
+        }
+
+        @Override
+        double getDouble( int row) throws ConnException
+        {
+            return ((RealValue) load( row)).getDouble();
+        }
+
+        @Override
+        void setLong( int row, long value)
+        {
+            mUnscaled[row] = value;
+            mScales[row] = 0;
+            clear( row);
+        }
+
+        @Override
+        void setDouble( int row, double value) throws ConnException
+        {
+            if (Double.isNaN( value) || Double.isInfinite( value))
+                throw new ConnException( CmdResult.INVALID_ARGS, "Cannot hold a non finite real value.");
+
+            store( row, new RealValue( type(), BigDecimal.valueOf( value)));
+        }
+
+        private static final byte WIDE_SCALE = Byte.MAX_VALUE;
+
+        private long[]      mUnscaled;
+        private byte[]      mScales;
+        private RealValue[] mWide;
+    }
+
+    private static final class TimeColumn extends TableColumn
+    {
+        TimeColumn( ValueType type)
+        {
+            super( type);
+            mYears = new int[0];
+            mParts = new long[0];
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mYears = Arrays.copyOf( mYears, capacity);
+            mParts = Arrays.copyOf( mParts, capacity);
+        }
+
+        @Override
+        Value load( int row) throws ConnException
+        {
+            final long p = mParts[row];
+
+            return new TimeValue( type(),
+                                  mYears[row],
+                                  (int) (p >>> MONTH_SHIFT) & 0x0F,
+                                  (int) (p >>> DAY_SHIFT) & 0x1F,
+                                  (int) (p >>> HOURS_SHIFT) & 0x1F,
+                                  (int) (p >>> MINS_SHIFT) & 0x3F,
+                                  (int) (p >>> SECS_SHIFT) & 0x3F,
+                                  (int) p & 0xFFFFF);
+        }
+
+        @Override
+        void store( int row, Value value) throws ConnException
+        {
+            final TimeValue v = (TimeValue) value;
+
+            mYears[row] = v.getYear();
+            mParts[row] = ((long) v.getMonth() << MONTH_SHIFT)
+                          | ((long) v.getDay() << DAY_SHIFT)
+                          | ((long) v.getHours() << HOURS_SHIFT)
+                          | ((long) v.getMinutes() << MINS_SHIFT)
+                          | ((long) v.getSeconds() << SECS_SHIFT)
+                          | v.getMicroseconds();
+        }
+
+        @Override
+        long getEpochMicros( int row) throws ConnException
+        {
+            final TimeValue v = (TimeValue) load( row);
+
+            return v.toEpochDay() * MICROS_PER_DAY + v.getMicrosOfDay();
+        }
+
+        @Override
+        void setEpochMicros( int row, long micros) throws ConnException
+        {
+            long day = micros / MICROS_PER_DAY;
+            if (day * MICROS_PER_DAY > micros)
+                --day; // Round towards the negative infinity for the dates before the epoch.
+
+            store( row, TimeValue.create( type(), day, micros - day * MICROS_PER_DAY));
+        }
+
+        private static final long MICROS_PER_DAY = 24L * 3600 * 1000000;
+
+        private static final int SECS_SHIFT  = 20;
+        private static final int MINS_SHIFT  = 26;
+        private static final int HOURS_SHIFT = 32;
+        private static final int DAY_SHIFT   = 37;
+        private static final int MONTH_SHIFT = 42;
+
+        private int[]  mYears;
+        private long[] mParts;
+    }
+
+    private static final class TextColumn extends TableColumn
+    {
+        TextColumn( ValueType type)
+        {
+            super( type);
+            mValues = new Value[0];
+            mOffsets = new int[0];
+            mUtf8 = new byte[0];
+            mUtf8Length = 0;
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mValues = Arrays.copyOf( mValues, capacity);
+            mOffsets = Arrays.copyOf( mOffsets, capacity);
+        }
+
+        @Override
+        Value load( int row)
+        {
+            // A non null cell with no value object is still in its UTF-8 form.
+            if (mValues[row] == null)
+                mValues[row] = new TextValue( new String( mUtf8, mOffsets[row], utf8Length( row), StandardCharsets.UTF_8));
+
+            return mValues[row];
+        }
+
+        @Override
+        void store( int row, Value value)
+        {
+            mValues[row] = value;
+        }
+
+        @Override
+        void clear( int row)
+        {
+            mValues[row] = null;
+        }
+
+        @Override
+        void decodeValue( int row, byte[] src, int offset)
+        {
+            int end = offset;
+            while (src[end] != 0)
+                ++end;
+
+            // Keep the terminating zero too. The space of the overwritten
+            // cells is not reclaimed, as the received tables are mostly read.
+            final int length = end + 1 - offset;
+            if (mUtf8Length + length > mUtf8.length)
+                mUtf8 = Arrays.copyOf( mUtf8, Math.max( mUtf8Length + length, 2 * mUtf8.length));
+
+            System.arraycopy( src, offset, mUtf8, mUtf8Length, length);
+            mOffsets[row] = mUtf8Length;
+            mValues[row] = null;
+            mUtf8Length += length;
+        }
+
+        @Override
+        int encodedLength( int row) throws ConnException
+        {
+            return (mValues[row] == null) ? utf8Length( row) : super.encodedLength( row);
+        }
+
+        @Override
+        void encode( int row, ByteBuffer b) throws ConnException
+        {
+            if (mValues[row] == null)
+                b.put( mUtf8, mOffsets[row], utf8Length( row));
+            else
+                super.encode( row, b);
+        }
+
+        private int utf8Length( int row)
+        {
+            int end = mOffsets[row];
+            while (mUtf8[end] != 0)
+                ++end;
+
+            return end - mOffsets[row];
+        }
+
+        private Value[] mValues;
+        private int[]   mOffsets;
+        private byte[]  mUtf8;
+        private int     mUtf8Length;
+    }
+
+    private static final class ObjectColumn extends TableColumn
+    {
+        ObjectColumn( ValueType type)
+        {
+            super( type);
+            mValues = new Value[0];
+        }
+
+        @Override
+        void resize( int capacity)
+        {
+            mValues = Arrays.copyOf( mValues, capacity);
+        }
+
+        @Override
+        Value load( int row)
+        {
+            return mValues[row];
+        }
+
+        @Override
+        void store( int row, Value value)
+        {
+            mValues[row] = value;
+        }
+
+        @Override
+        void clear( int row)
+        {
+            mValues[row] = null;
+        }
+
+        private Value[] mValues;
+    }
+
+    private final ValueType mType;
+    private long[]          mPresent;
+    private int             mCapacity;
+}
@@ -0,0 +1,974 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Forward only cursor over the rows of a table from the top of a
+ * connection's stack.
+ * <p>
+ * The cursor reads the table rows in the order they are sent by the WHAIS
+ * server. Every received communication frame is decoded only once, and a new
+ * one is requested only after all the rows it holds were consumed. This
+ * makes it the preferred way to walk large table results, compared to
+ * repeated calls of {@link Connection#retrieveStackTop(String, long)}.</p>
+ * <p>
+ * The cursor relies on the content of the connection's stack top. Changing
+ * the stack (e.g. pushing or popping values, executing procedures) while
+ * the cursor is still used leads to undefined results. Other connection's
+ * calls that do not change the stack are allowed; the cursor will simply
+ * request again the frame it needs.</p>
+ * <p>
+ * The cells of the basic types (including the text ones) are kept in their
+ * received form, copied aside from the communication frame, and their
+ * {@link Value} objects are created only when requested. The primitive
+ * getters (e.g. {@link #getLong(int)}) parse the received form directly, so
+ * the cells not used by the caller cost no more than a copy.</p>
+ * <p>
+ * For large tables the cursor may read ahead (see
+ * {@link #setReadAhead(boolean)}), so the server prepares the next frame
+ * while the rows of the current one are decoded.</p>
+ *
+ * @version 1.0
+ *
+ * @see Connection#openTableCursor()
+ */
+public class TableCursor
+{
+    TableCursor(Connection connection, TableFieldType[] fields, long rowsCount)
+    {
+        assert fields.length > 0;
+
+        mConnection = connection;
+        mFields = fields;
+        mRowsCount = rowsCount;
+        mRow = -1;
+        mRowValues = new Value[fields.length];
+        mRowOffsets = new int[fields.length];
+        mValues = mRowValues;
+        mOffsets = mRowOffsets;
+        mCells = new byte[64];
+        mCellsLength = 0;
+
+        mFieldNames = new byte[fields.length][];
+        mCellTypes = new ValueType[fields.length];
+        mFieldsIndex = new HashMap<>( 2 * fields.length);
+        for (int f = 0; f < fields.length; ++f) {
+            final ValueType type = fields[f].getType();
+
+            mFieldNames[f] = fields[f].getName().getBytes( StandardCharsets.UTF_8);
+            mCellTypes[f] = type.isBasic() ? type : null;
+            mFieldsIndex.put( fields[f].getName(), f);
+        }
+
+        mPageFrameId = -1;
+        mPagePosition = 0;
+        mPageRow = -1;
+
+        mReadAhead = false;
+        mAheadPage = null;
+        mAheadBuffer = null;
+        mAheadRows = null;
+        mAheadOffsets = null;
+        mAheadFirstRow = -1;
+        mAheadRowsCount = 0;
+    }
+
+    /**
+     * Set if the cursor reads the rows ahead.
+     * <p>
+     * With read ahead, once a frame with rows is received, the cursor copies
+     * it aside and requests the next rows before decoding the copy, so the
+     * server's work and the frame's transfer overlap with the decoding. All
+     * the rows of a frame are decoded at once and kept until the cursor moves
+     * past them. The rows that do not fit in a frame are read as usual.</p>
+     * <p>
+     * This pays off for the tables spanning many frames, when these are
+     * walked without other calls on the connection between the rows.</p>
+     *
+     * @param readAhead
+     *            Set to {@code true} to read ahead, or to {@code false} (the
+     *            default) to request each frame when its rows are needed.
+     *
+     * @since 1.1
+     */
+    public void setReadAhead( boolean readAhead)
+    {
+        mReadAhead = readAhead;
+        mAheadRowsCount = 0;
+    }
+
+    /**
+     * Check if the cursor reads the rows ahead.
+     *
+     * @see #setReadAhead(boolean)
+     * @since 1.1
+     */
+    public boolean isReadAhead()
+    {
+        return mReadAhead;
+    }
+
+    /**
+     * Move the cursor to the next table row.
+     * <p>
+     * The cursor is initially positioned before the first row, so this has
+     * to be called before accessing the first row's cells.</p>
+     *
+     * @return
+     *            {@code true} if the cursor was moved on a valid row, or
+     *            {@code false} if there are no more rows.
+     *
+     * @throws IOException
+     *
+     * @since 1.1
+     */
+    public boolean next() throws IOException
+    {
+        mConnection.acquire();
+        try {
+            if (mRow + 1 >= mRowsCount) {
+                mRow = mRowsCount;
+                return false;
+            }
+
+            final long row = mRow + 1;
+            final CommunicationFrame frame = mConnection.getFrame();
+
+            if (frame.hasPendingCommands())
+                throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+            if (mReadAhead && nextAhead( frame, row)) {
+                mRow = row;
+                return true;
+            }
+
+            ByteBuffer b = null;
+            if ((mPageRow == row)
+                    && (mPageFrameId == frame.lastFrameId())
+                    && (frame.getCachedResponse() == _c.CMD_READ_STACK_RSP)
+                    && (0 < mPagePosition) && (mPagePosition < frame.getLastPosition())) {
+                b = frame.getCmdBuffer();
+                b.position( mPagePosition);
+            } else {
+                mConnection.refreshReadCache( Connection.IGNORE_FIELD,
+                                              row,
+                                              Connection.IGNORE_OFFSET,
+                                              Connection.IGNORE_OFFSET);
+                if ((b = mConnection.skipUntilCachedRow( row)) == null)
+                    throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+            }
+
+            mAheadRowsCount = 0;
+            mValues = mRowValues;
+            mOffsets = mRowOffsets;
+            mCellsLength = 0;
+            for (int f = 0; f < mFields.length; ++f) {
+                if (b.position() >= frame.getLastPosition())
+                    b = fetchCell( row, f, Connection.IGNORE_OFFSET, Connection.IGNORE_OFFSET, false);
+
+                b = decodeCell( b, row, f);
+            }
+
+            mPageFrameId = frame.lastFrameId();
+            mPagePosition = b.position();
+            mPageRow = row + 1;
+            mRow = row;
+
+            return true;
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Get the number of rows of the table.
+     *
+     * @since 1.1
+     */
+    public final long getRowsCount()
+    {
+        return mRowsCount;
+    }
+
+    /**
+     * Get the index of the current row.
+     *
+     * @return
+     *            The current row, or {@code -1} if {@link #next()} was not
+     *            called yet.
+     *
+     * @since 1.1
+     */
+    public final long getRow()
+    {
+        return mRow;
+    }
+
+    /**
+     * Describe the fields of the table.
+     *
+     * @return
+     *            The fields of the table. A field's position in this array
+     *            is the index to be used with {@link #getValue(int)}.
+     *
+     * @since 1.1
+     */
+    public final TableFieldType[] getFields()
+    {
+        return mFields.clone();
+    }
+
+    /**
+     * Get the index of a table field.
+     *
+     * @return
+     *            The field's index, or {@code -1} if the table has no such
+     *            field.
+     *
+     * @since 1.1
+     */
+    public final int getFieldIndex( String field)
+    {
+        final Integer f = mFieldsIndex.get( field);
+
+        return (f == null) ? -1 : f;
+    }
+
+    /**
+     * Get the value of a cell from the current row.
+     *
+     * @param field
+     *            The field index.
+     *
+     * @throws ConnException
+     *
+     * @see #getFieldIndex(String)
+     * @since 1.1
+     */
+    public final Value getValue( int field) throws ConnException
+    {
+        checkCell( field);
+
+        if (mOffsets[field] >= 0) {
+            mValues[field] = Value.createBasic( mCellTypes[field], mCells, mOffsets[field]);
+            mOffsets[field] = -1;
+        }
+
+        return mValues[field];
+    }
+
+    /**
+     * Get the value of a cell from the current row.
+     *
+     * @param field
+     *            The field name.
+     *
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public final Value getValue( String field) throws ConnException
+    {
+        return getValue( fieldIndex( field));
+    }
+
+    /**
+     * Check if a cell of the current row holds a null value.
+     *
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public final boolean isNull( String field) throws ConnException
+    {
+        return isNull( fieldIndex( field));
+    }
+
+    /**
+     * Check if a cell of the current row holds a null value, selecting the
+     * field by its index.
+     *
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public final boolean isNull( int field) throws ConnException
+    {
+        checkCell( field);
+
+        if (mOffsets[field] >= 0)
+            return mCells[mOffsets[field]] == 0;
+
+        return mValues[field].isNull();
+    }
+
+    /**
+     * Get the text representation of a cell from the current row.
+     *
+     * @return
+     *            The cell's value representation, or {@code null} if the
+     *            cell holds a null value.
+     *
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public final String getString( String field) throws ConnException
+    {
+        return getString( fieldIndex( field));
+    }
+
+    /**
+     * Get the text representation of a cell from the current row, selecting
+     * the field by its index.
+     *
+     * @see #getString(String)
+     * @since 1.1
+     */
+    public final String getString( int field) throws ConnException
+    {
+        if (isNull( field))
+            return null;
+
+        return getValue( field).toString();
+    }
+
+    /**
+     * Get the value of an integer cell from the current row.
+     *
+     * @throws ConnException
+     *            If the cell is null or does not hold an integer value.
+     *
+     * @since 1.1
+     */
+    public final long getLong( String field) throws ConnException
+    {
+        return getLong( fieldIndex( field));
+    }
+
+    /**
+     * Get the value of an integer cell from the current row, selecting the
+     * field by its index.
+     *
+     * @see #getLong(String)
+     * @since 1.1
+     */
+    public final long getLong( int field) throws ConnException
+    {
+        final int offset = nonNullOffset( field);
+
+        if ((offset >= 0) && isInteger( mCellTypes[field].getBaseType())) {
+            final long l = IntegerValue.parse( mCellTypes[field], mCells, offset);
+
+            // Let the value object complain about the too big unsigned ones.
+            if ((l >= 0) || (mCellTypes[field].getBaseType() != ValueType.UINT64))
+                return l;
+        }
+
+        final Value v = getValue( field);
+        if ( ! (v instanceof IntegerValue))
+            throw new ConnException( CmdResult.TYPE_MISMATCH, "The field '" + fieldName( field) + "' is not an integer.");
+
+        return ((IntegerValue) v).getLong();
+    }
+
+    /**
+     * Get the value of an integer cell from the current row.
+     *
+     * @throws ConnException
+     *            If the cell is null, does not hold an integer value or the
+     *            value does not fit in an {@code int}.
+     *
+     * @since 1.1
+     */
+    public final int getInt( String field) throws ConnException
+    {
+        return getInt( fieldIndex( field));
+    }
+
+    /**
+     * Get the value of an integer cell from the current row, selecting the
+     * field by its index.
+     *
+     * @see #getInt(String)
+     * @since 1.1
+     */
+    public final int getInt( int field) throws ConnException
+    {
+        final long l = getLong( field);
+        if ((l < Integer.MIN_VALUE) || (l > Integer.MAX_VALUE))
+            throw new ConnException( CmdResult.VALUE_OUT_OF_RANGE, "The value of field '" + fieldName( field) + "' is too big.");
+
+        return (int) l;
+    }
+
+    /**
+     * Get the value of a numeric cell from the current row.
+     *
+     * @throws ConnException
+     *            If the cell is null or does not hold a numeric value.
+     *
+     * @since 1.1
+     */
+    public final double getDouble( String field) throws ConnException
+    {
+        return getDouble( fieldIndex( field));
+    }
+
+    /**
+     * Get the value of a numeric cell from the current row, selecting the
+     * field by its index.
+     *
+     * @see #getDouble(String)
+     * @since 1.1
+     */
+    public final double getDouble( int field) throws ConnException
+    {
+        final int offset = nonNullOffset( field);
+
+        if (offset >= 0) {
+            final int baseType = mCellTypes[field].getBaseType();
+
+            if ((baseType == ValueType.REAL) || (baseType == ValueType.RICHREAL))
+                return RealValue.decodeDouble( mCells, offset);
+
+            else if (isInteger( baseType)) {
+                final long l = IntegerValue.parse( mCellTypes[field], mCells, offset);
+                if ((l >= 0) || (baseType != ValueType.UINT64))
+                    return l;
+            }
+        }
+
+        final Value v = getValue( field);
+        if ( ! ((v instanceof RealValue) || (v instanceof IntegerValue)))
+            throw new ConnException( CmdResult.TYPE_MISMATCH, "The field '" + fieldName( field) + "' is not a numeric one.");
+
+        else if (v instanceof RealValue)
+            return ((RealValue) v).getDouble();
+
+        return ((IntegerValue) v).toDouble();
+    }
+
+    /**
+     * Get the value of a boolean cell from the current row.
+     *
+     * @throws ConnException
+     *            If the cell is null or does not hold a boolean value.
+     *
+     * @since 1.1
+     */
+    public final boolean getBoolean( String field) throws ConnException
+    {
+        return getBoolean( fieldIndex( field));
+    }
+
+    /**
+     * Get the value of a boolean cell from the current row, selecting the
+     * field by its index.
+     *
+     * @see #getBoolean(String)
+     * @since 1.1
+     */
+    public final boolean getBoolean( int field) throws ConnException
+    {
+        final int offset = nonNullOffset( field);
+
+        if ((offset >= 0) && (mCellTypes[field].getBaseType() == ValueType.BOOL))
+            return mCells[offset] != '0';
+
+        final Value v = getValue( field);
+        if ( ! (v instanceof BoolValue))
+            throw new ConnException( CmdResult.TYPE_MISMATCH, "The field '" + fieldName( field) + "' is not a boolean.");
+
+        return v.toString().equals( "1");
+    }
+
+    // Copy the current row in a table, with no intermediate values for the
+    // cells still kept in their received form.
+    void copyRow( TableValue table, int row) throws ConnException
+    {
+        for (int f = 0; f < mFields.length; ++f) {
+            if (mOffsets[f] >= 0)
+                table.decode( f, row, mCells, mOffsets[f]);
+            else
+                table.put( mValues[f], f, row);
+        }
+    }
+
+    private int fieldIndex( String field) throws ConnException
+    {
+        final int f = getFieldIndex( field);
+        if (f < 0)
+            throw new ConnException( CmdResult.INVALID_FIELD);
+
+        return f;
+    }
+
+    private String fieldName( int field)
+    {
+        return mFields[field].getName();
+    }
+
+    private void checkCell( int field) throws ConnException
+    {
+        if ((mRow < 0) || (mRow >= mRowsCount))
+            throw new ConnException( CmdResult.INVALID_ROW);
+        else if ((field < 0) || (field >= mValues.length))
+            throw new ConnException( CmdResult.INVALID_FIELD);
+    }
+
+    // Get the offset of a non null cell kept in its received form, or -1 if
+    // the cell has a value object.
+    private int nonNullOffset( int field) throws ConnException
+    {
+        if (isNull( field))
+            throw new ConnException( CmdResult.INVALID_ARGS, "The field '" + fieldName( field) + "' holds a null value.");
+
+        return mOffsets[field];
+    }
+
+    private static boolean isInteger( int baseType)
+    {
+        return (ValueType.INT8 <= baseType) && (baseType <= ValueType.UINT64);
+    }
+
+    // Get a row from the ones decoded ahead, decoding the rows of the next
+    // page if needed. Returns false if the row has to be read as usual.
+    private boolean nextAhead( CommunicationFrame frame, long row) throws IOException
+    {
+        if ((row < mAheadFirstRow) || (row >= mAheadFirstRow + mAheadRowsCount)) {
+            if ( ! decodeAhead( frame, row))
+                return false;
+        }
+
+        mValues = mAheadRows[(int) (row - mAheadFirstRow)];
+        mOffsets = mAheadOffsets[(int) (row - mAheadFirstRow)];
+
+        return true;
+    }
+
+    // Decode the rows of the page starting with the specified one, while the
+    // next page is requested. Returns false if the page does not hold the
+    // whole row, which is left to be read as usual from the cached page.
+    private boolean decodeAhead( CommunicationFrame frame, long row) throws IOException
+    {
+        mAheadRowsCount = 0;
+
+        ByteBuffer b = null;
+        if ((mPageRow == row)
+                && (mPageFrameId == frame.lastFrameId())
+                && (frame.getCachedResponse() == _c.CMD_READ_STACK_RSP)) {
+            b = frame.getCmdBuffer();
+            if (mPagePosition > 0)
+                b.position( mPagePosition);
+            else {
+                // The page requested ahead was not checked yet.
+                final int response = b.getInt( b.position());
+                if (response != CmdResult.OK)
+                    throw new ConnException( response);
+
+                b = mConnection.skipUntilCachedRow( row);
+            }
+        } else {
+            mConnection.refreshReadCache( Connection.IGNORE_FIELD,
+                                          row,
+                                          Connection.IGNORE_OFFSET,
+                                          Connection.IGNORE_OFFSET);
+            b = mConnection.skipUntilCachedRow( row);
+        }
+
+        if (b == null)
+            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+
+        final int start = b.position();
+        final int end = frame.getLastPosition();
+
+        mPageFrameId = frame.lastFrameId();
+        mPagePosition = start;
+        mPageRow = row;
+
+        final int rowsCount = completeRows( b, end, mRowsCount - row);
+        if (rowsCount == 0)
+            return false;
+
+        final long nextRow = row + rowsCount;
+        final boolean ahead = nextRow < mRowsCount;
+
+        ByteBuffer page = b;
+        if (ahead) {
+            // Copy the page aside, as the frame is about to receive the next one.
+            if ((mAheadPage == null) || (mAheadPage.length < end)) {
+                mAheadPage = new byte[b.capacity()];
+                mAheadBuffer = ByteBuffer.wrap( mAheadPage).order( ByteOrder.LITTLE_ENDIAN);
+            }
+            System.arraycopy( b.array(), 0, mAheadPage, 0, end);
+            mAheadBuffer.limit( end);
+            mAheadBuffer.position( start);
+            page = mAheadBuffer;
+
+            mConnection.requestReadCache( Connection.IGNORE_FIELD,
+                                          nextRow,
+                                          Connection.IGNORE_OFFSET,
+                                          Connection.IGNORE_OFFSET);
+        }
+
+        mPageRow = -1;
+        try {
+            if ((mAheadRows == null) || (mAheadRows.length < rowsCount)) {
+                mAheadRows = new Value[rowsCount][];
+                mAheadOffsets = new int[rowsCount][];
+            }
+
+            mCellsLength = 0;
+            for (int r = 0; r < rowsCount; ++r) {
+                if (mAheadRows[r] == null) {
+                    mAheadRows[r] = new Value[mFields.length];
+                    mAheadOffsets[r] = new int[mFields.length];
+                }
+
+                mValues = mAheadRows[r];
+                mOffsets = mAheadOffsets[r];
+                for (int f = 0; f < mFields.length; ++f)
+                    page = decodeCell( page, row + r, f);
+            }
+        } finally {
+            // Even if the decoding failed, to keep the communication in sync.
+            if (ahead)
+                frame.receiveResponse( _c.CMD_READ_STACK);
+        }
+
+        mAheadFirstRow = row;
+        mAheadRowsCount = rowsCount;
+        if (ahead) {
+            mPageFrameId = frame.lastFrameId();
+            mPagePosition = 0;
+            mPageRow = nextRow;
+        }
+
+        return true;
+    }
+
+    // Count the rows held entirely by a page, from the buffer's position on.
+    private int completeRows( ByteBuffer b, int end, long maxRows) throws ConnException
+    {
+        int position = b.position(), rows = 0;
+
+        while (rows < maxRows) {
+            for (int f = 0; f < mFields.length; ++f) {
+                if ((position = skipCell( b, position, end)) < 0)
+                    return rows;
+            }
+            ++rows;
+        }
+
+        return rows;
+    }
+
+    // Get the position following a cell, or -1 if the cell does not end
+    // before the page's end.
+    private static int skipCell( ByteBuffer b, int position, int end) throws ConnException
+    {
+        final byte[] raw = b.array();
+
+        position = skipString( raw, position, end);
+        if ((position < 0) || (position + 2 > end))
+            return -1;
+
+        final short type = b.getShort( position);
+        position += 2;
+
+        final boolean isArray = ValueType.isArray( type);
+        if ( ! isArray && (ValueType.getBaseType( type) != ValueType.TEXT))
+            return skipString( raw, position, end);
+
+        if (position + 8 > end)
+            return -1;
+
+        final long count = b.getLong( position);
+        position += 8;
+        if (count == 0)
+            return position;
+        else if ((position + 8 > end) || (b.getLong( position) != 0))
+            return -1;
+
+        position += 8;
+        for (long c = 0; c < count; ) {
+            final int start = position;
+            if ((position = skipString( raw, position, end)) < 0)
+                return -1;
+
+            c += isArray ? 1 : codePointsCount( raw, start, position - 1);
+        }
+
+        return position;
+    }
+
+    private static int skipString( byte[] raw, int position, int end)
+    {
+        while ((position < end) && (raw[position] != 0))
+            ++position;
+
+        return (position < end) ? position + 1 : -1;
+    }
+
+    private static int codePointsCount( byte[] utf8, int from, int to)
+    {
+        int result = 0;
+        for (int i = from; i < to; ++i) {
+            if ((utf8[i] & 0xC0) != 0x80)
+                ++result;
+        }
+
+        return result;
+    }
+
+    // Let the first call of next() decode the rows from the connection's
+    // cached read response, whose first row is at the specified position.
+    void startFromCachedPage( int position)
+    {
+        mPageFrameId = mConnection.getFrame().lastFrameId();
+        mPagePosition = position;
+        mPageRow = 0;
+    }
+
+    // Request a frame starting with the cell of the specified field and row.
+    // The returned buffer is positioned either on the cell's field name or,
+    // if skipName is set, on the cell's type.
+    private ByteBuffer fetchCell( long      row,
+                                  int       field,
+                                  long      arrayOffset,
+                                  long      textOffset,
+                                  boolean   skipName) throws IOException
+    {
+        final CommunicationFrame frame = mConnection.getFrame();
+        final String name = mFields[field].getName();
+
+        mConnection.refreshReadCache( name, row, arrayOffset, textOffset);
+
+        final ByteBuffer b = mConnection.skipUntilCachedRow( row);
+        if ((b == null) || ! Connection.skipUntilCachedField( name, b, frame.getLastPosition()))
+            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+
+        if (skipName) {
+            while (b.get() != 0)
+                ; // Just let the buffer's position advance.
+        }
+
+        return b;
+    }
+
+    private int matchFieldName( ByteBuffer b, int expected) throws ConnException
+    {
+        final byte[] raw = b.array();
+        final int start = b.position();
+
+        int end = start;
+        while (raw[end] != 0)
+            ++end;
+
+        b.position( end + 1);
+
+        if (sameName( raw, start, end, mFieldNames[expected]))
+            return expected;
+
+        for (int f = 0; f < mFieldNames.length; ++f) {
+            if (sameName( raw, start, end, mFieldNames[f]))
+                return f;
+        }
+
+        throw new ConnException( CmdResult.GENERAL_ERR, "Received a cell of an unknown table field.");
+    }
+
+    private static boolean sameName( byte[] raw, int start, int end, byte[] name)
+    {
+        if (end - start != name.length)
+            return false;
+
+        for (int i = 0; i < name.length; ++i) {
+            if (raw[start + i] != name[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    // Get where the content of a page ends, for either the connection's frame
+    // or the copy used to read ahead.
+    private int pageEnd( ByteBuffer b)
+    {
+        if (b == mAheadBuffer)
+            return b.limit();
+
+        return mConnection.getFrame().getLastPosition();
+    }
+
+    private ByteBuffer decodeCell( ByteBuffer b, long row, int expected) throws IOException
+    {
+        final int field = matchFieldName( b, expected);
+        final short type = b.getShort();
+        final int baseType = ValueType.getBaseType( type);
+
+        if (ValueType.isArray( type)) {
+            final ArrayValue result = Value.createArray( ValueType.create( baseType | ValueType.ARRAY_MASK));
+            final long elementsCount = b.getLong();
+
+            if (elementsCount > 0) {
+                long arrayOffset = b.getLong();
+                if (arrayOffset != 0) {
+                    arrayOffset = 0;
+                    b = fetchCellContinuation( row, field, type, elementsCount, arrayOffset, Connection.IGNORE_OFFSET);
+                }
+
+                while (arrayOffset < elementsCount) {
+                    if (b.position() >= pageEnd( b))
+                        b = fetchCellContinuation( row, field, type, elementsCount, arrayOffset, Connection.IGNORE_OFFSET);
+
+                    result.addEncoded( b.array(), b.position());
+
+                    while (b.get() != 0)
+                        ; // Just let the buffer advance
+                    ++arrayOffset;
+                }
+            }
+            mValues[field] = result;
+            mOffsets[field] = -1;
+        } else if (baseType == ValueType.TEXT) {
+            final long charsCount = b.getLong();
+
+            if (charsCount == 0) {
+                mValues[field] = Value.createBasic( ValueType.textType());
+                mOffsets[field] = -1;
+            } else {
+                long charOffset = b.getLong();
+                if (charOffset != 0) {
+                    charOffset = 0;
+                    b = fetchCellContinuation( row, field, type, charsCount, Connection.IGNORE_OFFSET, charOffset);
+                }
+
+                // Join the text's chunks, as these may span several frames.
+                final int offset = mCellsLength;
+                while (charOffset < charsCount) {
+                    if (b.position() >= pageEnd( b))
+                        b = fetchCellContinuation( row, field, type, charsCount, Connection.IGNORE_OFFSET, charOffset);
+
+                    final int startOffset = b.position();
+                    while (b.get() != 0)
+                        ; // Just let the buffer position to advance
+                    final int endOffset = b.position() - 1;
+
+                    charOffset += codePointsCount( b.array(), startOffset, endOffset);
+                    keepCell( b.array(), startOffset, endOffset - startOffset);
+                }
+                keepCell( TEXT_END, 0, TEXT_END.length);
+
+                keptCell( field, type, offset);
+            }
+        } else {
+            final int offset = mCellsLength;
+            final int startOffset = b.position();
+            while (b.get() != 0)
+                ; // Just let the buffer advance
+
+            keepCell( b.array(), startOffset, b.position() - startOffset);
+            keptCell( field, type, offset);
+        }
+
+        return b;
+    }
+
+    // Append a part of a cell's received form to the current row's ones.
+    private void keepCell( byte[] src, int offset, int length)
+    {
+        if (mCellsLength + length > mCells.length)
+            mCells = Arrays.copyOf( mCells, Math.max( mCellsLength + length, 2 * mCells.length));
+
+        System.arraycopy( src, offset, mCells, mCellsLength, length);
+        mCellsLength += length;
+    }
+
+    // Leave a kept cell to be decoded on request, unless its type is not the
+    // one of its field, when the value is created right away.
+    private void keptCell( int field, short type, int offset) throws ConnException
+    {
+        if ((mCellTypes[field] != null) && (mCellTypes[field].getTypeId() == type)) {
+            mValues[field] = null;
+            mOffsets[field] = offset;
+        } else {
+            mValues[field] = Value.createBasic( ValueType.create( ValueType.getBaseType( type)), mCells, offset);
+            mOffsets[field] = -1;
+            mCellsLength = offset;
+        }
+    }
+
+    private ByteBuffer fetchCellContinuation( long    row,
+                                              int     field,
+                                              short   type,
+                                              long    count,
+                                              long    arrayOffset,
+                                              long    textOffset) throws IOException
+    {
+        final ByteBuffer b = fetchCell( row, field, arrayOffset, textOffset, true);
+        final long offset = (arrayOffset == Connection.IGNORE_OFFSET) ? textOffset : arrayOffset;
+
+        if ((ValueType.getBaseType( b.getShort()) != ValueType.getBaseType( type))
+                || (count != b.getLong())
+                || (offset != b.getLong())) {
+            throw new ConnException( CmdResult.GENERAL_ERR, "Unexpected response frame format.");
+        }
+
+        return b;
+    }
+
+    private static final byte[] TEXT_END = { 0 };
+
+    private final Connection           mConnection;
+    private final TableFieldType[]     mFields;
+    private final byte[][]             mFieldNames;
+    private final Map<String, Integer> mFieldsIndex;
+    private final ValueType[]          mCellTypes;
+    private final Value[]              mRowValues;
+    private final int[]                mRowOffsets;
+    private final long                 mRowsCount;
+    private long                       mRow;
+
+    // The current row's cells, with the offsets in mCells of the ones kept in
+    // their received form (or -1 for the ones having a value object).
+    private Value[]                    mValues;
+    private int[]                      mOffsets;
+    private byte[]                     mCells;
+    private int                        mCellsLength;
+
+    private int                        mPageFrameId;
+    private int                        mPagePosition;
+    private long                       mPageRow;
+
+    private boolean                    mReadAhead;
+    private byte[]                     mAheadPage;
+    private ByteBuffer                 mAheadBuffer;
+    private Value[][]                  mAheadRows;
+    private int[][]                    mAheadOffsets;
+    private long                       mAheadFirstRow;
+    private int                        mAheadRowsCount;
+}
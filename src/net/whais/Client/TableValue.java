@@ -16,15 +16,22 @@
 
 package net.whais.Client;
 
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This specialized for of {@link Value} is intend to ease the manipulation of
  * WHAIS table values. It provides extra capabilities specific to table values
  * like retrieving the number of rows, retrieval or update a specific table
  * cell and so on.
+ * <p>
+ * The cells are stored by columns: the basic values are kept in arrays of
+ * primitives (with a bit per cell to mark the null ones) and are turned into
+ * {@link Value} objects only on request. The cells may also be addressed by
+ * the field's index (see {@link #getFieldIndex(String)}), skipping the field's
+ * lookup by name.</p>
  *
- * @version 1.0
+ * @version 1.1
  */
 public class TableValue extends Value
 {
@@ -32,10 +39,21 @@ public class TableValue extends Value
     {
         super( ValueType.create( fields));
 
-        mRows = null;
         if ((fields == null) || (fields.length == 0)) {
             throw new ConnException( CmdResult.INVALID_ARGS, "No fields descriptors supplied to create a table.");
         }
+
+        // Follow the type's fields order (e.g. sorted by name), not the supplied one.
+        final TableFieldType[] typeFields = getFields();
+
+        mColumns = new TableColumn[typeFields.length];
+        mFieldsIndexes = new HashMap<>( 2 * typeFields.length);
+        for (int f = 0; f < typeFields.length; ++f) {
+            mColumns[f] = TableColumn.create( typeFields[f].getType());
+            mFieldsIndexes.put( typeFields[f].getName(), f);
+        }
+
+        mRowsCount = 0;
     }
 
     /**
@@ -71,34 +89,24 @@ public class TableValue extends Value
         if (rowsCount != o.getRowsCount())
             return false;
 
-        for (int i = 0; i < rowsCount; ++i) {
-            final Vector<Value> thisRow = mRows.get( i);
-            final Vector<Value> othRow = o.mRows.get( i);
-
-            if (thisRow == null) {
-                if (othRow != null)
-                    return false;
-                continue;
-            } else if (othRow == null)
-                return false;
-
-            if (thisRow.size() != othRow.size())
-                return false;
+        try {
+            for (int f = 0; f < mColumns.length; ++f) {
+                final TableColumn thisColumn = mColumns[f];
+                final TableColumn othColumn = o.mColumns[f];
 
-            for (int j = 0; j < thisRow.size(); ++j) {
-                final Value tf = thisRow.get( j);
-                final Value of = othRow.get( j);
+                for (int r = 0; r < rowsCount; ++r) {
+                    if (thisColumn.isNull( r) != othColumn.isNull( r))
+                        return false;
 
-                if (tf == null) {
-                    if (of == null)
+                    else if (thisColumn.isNull( r))
                         continue;
-                    else
+
+                    if (!thisColumn.get( r).equals( othColumn.get( r)))
                         return false;
                 }
-
-                if (!tf.equals( of))
-                    return false;
             }
+        } catch (ConnException e) {
+            return false;
         }
 
         return true;
@@ -126,7 +134,7 @@ public class TableValue extends Value
                 resultBuilder.append( field.getName());
                 Value cell = null;
                 try {
-                    cell = get( field.getName(), r);
+                    cell = get( f, r);
                 } catch (Throwable e) {
                     assert (false);
                     cell = null;
@@ -194,38 +202,80 @@ public class TableValue extends Value
             throw new ConnException( CmdResult.INVALID_ARGS, "Cannot retrieve a value from a null table.");
         }
 
-        final TableFieldType[] fields = getFields();
-        int field = 0;
-        for (field = 0; field < fields.length; ++field) {
-            if (fields[field].getName().equals( fieldName))
-                break;
-        }
+        return get( getFieldIndex( fieldName), row);
+    }
 
-        if (field >= fields.length)
-            throw new ConnException( CmdResult.INVALID_FIELD);
+    /**
+     * Get the value of a table's cell, selecting the field by its index.
+     *
+     * @param field
+     *            The field's index, in the order of {@link #getFields()}.
+     * @param row
+     *            Cell's corresponding row number, counted from {@code 0}.
+     * @return
+     *            An object holding the cell's value.
+     *
+     * @throws ConnException
+     *
+     * @see #getFieldIndex(String)
+     *
+     * @since 1.1
+     */
+    public Value get( int field, int row) throws ConnException
+    {
+        final TableColumn column = column( field, row);
 
-        if (row >= getRowsCount())
-            throw new ConnException( CmdResult.INVALID_ROW);
+        final Value result = column.get( row);
+        if (result != null)
+            return result;
 
-        assert (mRows.get( row) == null) || (field < mRows.get( row).size());
+        final ValueType t = column.type();
+        if (t.isArray())
+            return Value.createArray( t);
 
-        Value result = null;
+        return Value.createBasic( t);
+    }
 
-        if (mRows.get( row) != null) {
-            assert mRows.get( row).size() == fields.length;
+    /**
+     * Check if a table's cell holds a null value, with no need to create
+     * an object for it.
+     *
+     * @since 1.1
+     */
+    public final boolean isNull( int field, int row) throws ConnException
+    {
+        return column( field, row).isNull( row);
+    }
 
-            result = mRows.get( row).get( field);
-        }
+    /**
+     * Get the value of a table's integer cell.
+     *
+     * @throws ConnException
+     *            If the cell is null, its field is not an integer one or the
+     *            value does not fit in a {@code long}.
+     *
+     * @since 1.1
+     */
+    public final long getLong( int field, int row) throws ConnException
+    {
+        final TableColumn column = nonNullCell( field, row);
 
-        if (result == null) {
-            final ValueType t = fields[field].getType();
-            if (t.isArray())
-                result = Value.createArray( t);
-            else
-                result = Value.createBasic( t);
-        }
+        return column.getLong( row);
+    }
 
-        return result;
+    /**
+     * Get the value of a table's integer or real cell as a {@code double}.
+     *
+     * @throws ConnException
+     *            If the cell is null or its field is not a numeric one.
+     *
+     * @since 1.1
+     */
+    public final double getDouble( int field, int row) throws ConnException
+    {
+        final TableColumn column = nonNullCell( field, row);
+
+        return column.getDouble( row);
     }
 
     /**
@@ -250,49 +300,57 @@ public class TableValue extends Value
      */
     public void put( Value value, String fieldName, int row) throws ConnException
     {
-        if (row > getRowsCount())
-            throw new ConnException( CmdResult.INVALID_ROW);
-        else if (row == getRowsCount())
-            addRows( 1);
-
-        final TableFieldType[] fields = getFields();
-        int field = 0;
-        for (field = 0; field < fields.length; ++field) {
-            if (fields[field].getName().equals( fieldName))
-                break;
-        }
+        put( value, getFieldIndex( fieldName), row);
+    }
 
-        if (field >= fields.length)
+    /**
+     * Update the content of a table cell, selecting the field by its index.
+     *
+     * @param value
+     *            The new cell value. Use {@code null} or a null value to
+     *            clear the cell.
+     * @param field
+     *            The field's index, in the order of {@link #getFields()}.
+     * @param row
+     *            Cell's corresponding row number, counted from {@code 0}. If
+     *            this equals the rows count, a new row is added.
+     *
+     * @throws ConnException
+     *
+     * @see #getFieldIndex(String)
+     *
+     * @since 1.1
+     */
+    public void put( Value value, int field, int row) throws ConnException
+    {
+        if ((field < 0) || (field >= mColumns.length))
             throw new ConnException( CmdResult.INVALID_FIELD);
 
-        if ((value != null) && !value.type().equals( fields[field].getType())) {
+        if ((row < 0) || (row > getRowsCount()))
+            throw new ConnException( CmdResult.INVALID_ROW);
+
+        final TableColumn column = mColumns[field];
+        if ((value != null) && !value.type().equals( column.type())) {
             throw new ConnException( CmdResult.INVALID_ARGS, "The value type is different from field type");
         }
 
-        if ((value != null) && value.isNull()) {
-            if (mRows.get( row) != null) {
-                mRows.get( row).set( field, null);
-                for (Value v : mRows.get( row)) {
-                    if ((v != null) && !v.isNull())
-                        return;
-                }
+        if (row == getRowsCount())
+            addRows( 1);
 
-                mRows.set( row, null);
-            }
-        } else {
-            Vector<Value> rowValues = mRows.get( row);
-            if (rowValues == null) {
-                rowValues = new Vector<>();
-                for (int f = 0; f < fields.length; ++f)
-                    rowValues.add( null);
-
-                mRows.set( row, rowValues);
-            }
+        column.set( row, value);
+    }
 
-            assert rowValues.size() == fields.length;
+    // Set a cell from its wire representation, with the same rules for the
+    // row as put(). The caller makes sure the cell's type is the field's one.
+    final void decode( int field, int row, byte[] src, int offset) throws ConnException
+    {
+        if ((row < 0) || (row > getRowsCount()))
+            throw new ConnException( CmdResult.INVALID_ROW);
 
-            mRows.get( row).set( field, value);
-        }
+        if (row == getRowsCount())
+            addRows( 1);
+
+        mColumns[field].decode( row, src, offset);
     }
 
     /**
@@ -308,14 +366,12 @@ public class TableValue extends Value
      */
     public final void addRows( int count)
     {
-        if (count == 0)
+        if (count <= 0)
             return;
 
-        if (mRows == null)
-            mRows = new Vector<>();
-
-        for (int i = 0; i < count; ++i)
-            mRows.add( null);
+        mRowsCount += count;
+        for (TableColumn column : mColumns)
+            column.ensureCapacity( mRowsCount);
     }
 
     /**
@@ -323,10 +379,7 @@ public class TableValue extends Value
      */
     public final int getRowsCount()
     {
-        if (mRows == null)
-            return 0;
-
-        return mRows.size();
+        return mRowsCount;
     }
 
     /**
@@ -351,6 +404,27 @@ public class TableValue extends Value
         return null;
     }
 
+    /**
+     * Get the index of a field.
+     *
+     * @return
+     *            The field's position in the array returned by
+     *            {@link #getFields()}.
+     *
+     * @throws ConnException
+     *            If the table has no field with this name.
+     *
+     * @since 1.1
+     */
+    public final int getFieldIndex( String fieldName) throws ConnException
+    {
+        final Integer field = mFieldsIndexes.get( fieldName);
+        if (field == null)
+            throw new ConnException( CmdResult.INVALID_FIELD);
+
+        return field;
+    }
+
     /**
      * Check if the row is used.
      *
@@ -362,20 +436,35 @@ public class TableValue extends Value
      */
     public boolean isEmptyRow( int row)
     {
-        final Vector<Value> rowValues = mRows.get( row);
-
-        if (rowValues == null)
-            return true;
-
-        assert rowValues.size() == getFields().length;
-
-        for (Value f : rowValues) {
-            if ((f != null) && !f.isNull())
+        for (TableColumn column : mColumns) {
+            if ( ! column.isNull( row))
                 return false;
         }
 
         return true;
     }
 
-    private Vector<Vector<Value>> mRows;
+    private TableColumn column( int field, int row) throws ConnException
+    {
+        if ((field < 0) || (field >= mColumns.length))
+            throw new ConnException( CmdResult.INVALID_FIELD);
+
+        if ((row < 0) || (row >= getRowsCount()))
+            throw new ConnException( CmdResult.INVALID_ROW);
+
+        return mColumns[field];
+    }
+
+    private TableColumn nonNullCell( int field, int row) throws ConnException
+    {
+        final TableColumn column = column( field, row);
+        if (column.isNull( row))
+            throw new ConnException( CmdResult.INVALID_ARGS, "The requested table cell holds a null value.");
+
+        return column;
+    }
+
+    private final TableColumn[]         mColumns;
+    private final Map<String, Integer>  mFieldsIndexes;
+    private int                         mRowsCount;
 }
@@ -0,0 +1,516 @@
+/**
+ * Copyright 2016-2018 Iulian Popa (popaiulian@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package net.whais.Client;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writer of the rows of a table from the top of a connection's stack.
+ * <p>
+ * The writer appends the rows and their cells to the connection's pending
+ * stack updates, packed as densely as possible in the communication
+ * frames. A frame is sent as soon as it fills up, so a table of any size
+ * can be sent without building it first as a {@link TableValue}. The
+ * integer and boolean cells are encoded directly in the frame, without
+ * creating any value objects.</p>
+ * <p>
+ * Rows are written one after the other: {@link #newRow()} starts a new row
+ * and the cell setters update the cells of the last started row. Cells
+ * that are not set remain null. Like any other stack update, the last
+ * rows are sent with the next command that needs it (e.g. a procedure
+ * execution) or by {@link #flush()}.</p>
+ * <p>
+ * The writer relies on the table being the top of the connection's stack.
+ * Changing the stack while the writer is still used leads to undefined
+ * results.</p>
+ *
+ * @version 1.1
+ *
+ * @see Connection#openTableWriter(TableFieldType...)
+ */
+public class TableWriter
+{
+    TableWriter( Connection connection, TableFieldType[] fields)
+    {
+        assert fields.length > 0;
+
+        mConnection = connection;
+        mFields = fields;
+        mRow = -1;
+
+        mFieldNames = new byte[fields.length][];
+        mFieldTypes = new short[fields.length];
+        mFieldsIndex = new HashMap<>( 2 * fields.length);
+        for (int f = 0; f < fields.length; ++f) {
+            mFieldNames[f] = fields[f].getName().getBytes( StandardCharsets.UTF_8);
+            mFieldTypes[f] = fields[f].getType().getTypeId();
+            mFieldsIndex.put( fields[f].getName(), f);
+        }
+
+        mRowsCmdFrameId = -1;
+        mRowsCmdOffset = -1;
+    }
+
+    /**
+     * Describe the fields of the table.
+     *
+     * @return
+     *            The fields of the table, in the order they were given when
+     *            the writer was opened. A field's position in this array is
+     *            the index to be used with the cell setters.
+     *
+     * @since 1.1
+     */
+    public final TableFieldType[] getFields()
+    {
+        return mFields.clone();
+    }
+
+    /**
+     * Get the index of a table field.
+     *
+     * @return
+     *            The field's index, or {@code -1} if the table has no such
+     *            field.
+     *
+     * @since 1.1
+     */
+    public final int getFieldIndex( String field)
+    {
+        final Integer f = mFieldsIndex.get( field);
+
+        return (f == null) ? -1 : f;
+    }
+
+    /**
+     * Get the number of rows written so far.
+     *
+     * @since 1.1
+     */
+    public final long getRowsCount()
+    {
+        return mRow + 1;
+    }
+
+    /**
+     * Add a new row to the table. Its cells are null until they are set.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public void newRow() throws IOException
+    {
+        mConnection.acquire();
+        try {
+            final CommunicationFrame frame = prepareFrame();
+            ByteBuffer b = frame.getCmdBuffer();
+
+            if ((mRowsCmdFrameId == frame.lastFrameId())
+                    && frame.hasPendingCommands()
+                    && (mRowsCmdOffset < frame.getLastPosition())
+                    && (b.get( mRowsCmdOffset) == _c.CMD_UPDATE_FUNC_TBL_ROWS)) {
+                // The rows added since this frame was started are counted by
+                // a single sub-command.
+                b.putInt( mRowsCmdOffset + 1, b.getInt( mRowsCmdOffset + 1) + 1);
+            } else {
+                b = reserve( frame, 1 + 4);
+
+                mRowsCmdOffset = b.position();
+                b.put( _c.CMD_UPDATE_FUNC_TBL_ROWS)
+                 .putInt( 1);
+
+                frame.markBufferPositionValid();
+                frame.setPendingCommand( _c.CMD_UPDATE_STACK);
+                mRowsCmdFrameId = frame.lastFrameId();
+            }
+
+            ++mRow;
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Set an integer cell of the current row.
+     * <p>
+     * The value may be used for the real fields too.</p>
+     *
+     * @param field
+     *            The field index.
+     * @param value
+     *            The cell's value.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the field is not a numeric one, or with
+     *            {@link CmdResult#VALUE_OUT_OF_RANGE} if the value does not
+     *            fit the integer field's type.
+     *
+     * @since 1.1
+     */
+    public void setLong( int field, long value) throws IOException
+    {
+        checkCell( field);
+
+        final int type = mFieldTypes[field];
+        if ((type < ValueType.INT8) || (type > ValueType.RICHREAL))
+            throw mismatch( field);
+
+        TableColumn.checkIntegerRange( mFields[field].getType(), value);
+
+        mConnection.acquire();
+        try {
+            final int length = RealValue.decimalLength( value, 0);
+            final ByteBuffer b = beginCell( field, length);
+
+            RealValue.putDecimal( b.array(), b.arrayOffset() + b.position() + length, value, 0);
+            b.position( b.position() + length);
+
+            endCell( b);
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Set a real cell of the current row.
+     *
+     * @param field
+     *            The field index.
+     * @param value
+     *            The cell's value.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the field is not a real one.
+     *
+     * @since 1.1
+     */
+    public void setDouble( int field, double value) throws IOException
+    {
+        checkCell( field);
+
+        final int type = mFieldTypes[field];
+        if ((type != ValueType.REAL) && (type != ValueType.RICHREAL))
+            throw mismatch( field);
+
+        if (Double.isNaN( value) || Double.isInfinite( value))
+            throw new ConnException( CmdResult.INVALID_ARGS, "Cannot send a non finite real value.");
+
+        setValue( field, new RealValue( mFields[field].getType(), BigDecimal.valueOf( value)));
+    }
+
+    /**
+     * Set a boolean cell of the current row.
+     *
+     * @param field
+     *            The field index.
+     * @param value
+     *            The cell's value.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the field is not a boolean one.
+     *
+     * @since 1.1
+     */
+    public void setBoolean( int field, boolean value) throws IOException
+    {
+        checkCell( field);
+
+        if (mFieldTypes[field] != ValueType.BOOL)
+            throw mismatch( field);
+
+        mConnection.acquire();
+        try {
+            final ByteBuffer b = beginCell( field, 1);
+
+            b.put( (byte) (value ? '1' : '0'));
+            endCell( b);
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Set a cell of the current row from its text representation.
+     * <p>
+     * For a text field the value is sent as it is; for the other basic
+     * fields it has to be a valid representation of a value of the field's
+     * type.</p>
+     *
+     * @param field
+     *            The field index.
+     * @param value
+     *            The cell's value. A {@code null} leaves the cell null.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the field is an array one or the value is not valid for
+     *            the field's type.
+     *
+     * @since 1.1
+     */
+    public void setString( int field, String value) throws IOException
+    {
+        checkCell( field);
+
+        if (ValueType.isArray( mFieldTypes[field]))
+            throw mismatch( field);
+        else if ((value == null) || value.isEmpty())
+            return;
+
+        final ValueType type = mFields[field].getType();
+        setValue( field, (mFieldTypes[field] == ValueType.TEXT)
+                         ? new TextValue( value)
+                         : Value.createBasic( type, value));
+    }
+
+    /**
+     * Set a cell of the current row.
+     *
+     * @param field
+     *            The field index.
+     * @param value
+     *            The cell's value, with the same type as the field. A null
+     *            value leaves the cell null.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *            If the value's type is not the field's type.
+     *
+     * @since 1.1
+     */
+    public void setValue( int field, Value value) throws IOException
+    {
+        checkCell( field);
+
+        if ((value == null) || value.isNull())
+            return;
+        else if ( ! value.type().equals( mFields[field].getType()))
+            throw mismatch( field);
+
+        mConnection.acquire();
+        try {
+            prepareFrame();
+            mConnection.updateStackTopCell( value, mFieldNames[field], mRow);
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Open a writer for a text cell of the current row.
+     * <p>
+     * Large texts are sent as they are written, without being held in
+     * memory. The returned writer keeps updating this row's cell even after
+     * new rows are added.</p>
+     *
+     * @param field
+     *            The field index.
+     * @return
+     *            A writer of the cell's characters.
+     *
+     * @throws ConnException
+     *            If the field is not a text one.
+     *
+     * @see Connection#openTextWriter(String, long)
+     * @since 1.1
+     */
+    public Writer openTextWriter( int field) throws ConnException
+    {
+        checkCell( field);
+
+        if (mFieldTypes[field] != ValueType.TEXT)
+            throw mismatch( field);
+
+        return new StackTextWriter( mConnection, mFieldNames[field], mRow);
+    }
+
+    /**
+     * Add a new row to the table, with the specified cells.
+     *
+     * @param cells
+     *            The cells' values, in the order of the table fields. Use
+     *            {@code null} for the cells to be left null.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @see #getFields()
+     * @since 1.1
+     */
+    public void writeRow( Value... cells) throws IOException
+    {
+        if (cells.length != mFields.length)
+            throw new ConnException( CmdResult.INVALID_ARGS, "The row's cells do not match the table's fields.");
+
+        mConnection.acquire();
+        try {
+            newRow();
+            for (int f = 0; f < cells.length; ++f)
+                setValue( f, cells[f]);
+        } finally {
+            mConnection.unlock();
+        }
+    }
+
+    /**
+     * Add new rows to the table.
+     *
+     * @param rows
+     *            Provides the rows' cells, as for {@link #writeRow(Value...)}.
+     * @return
+     *            The number of rows added.
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public long writeRows( Iterator<? extends Value[]> rows) throws IOException
+    {
+        long count = 0;
+
+        mConnection.acquire();
+        try {
+            while (rows.hasNext()) {
+                writeRow( rows.next());
+                ++count;
+            }
+        } finally {
+            mConnection.unlock();
+        }
+
+        return count;
+    }
+
+    /**
+     * Add new rows to the table.
+     *
+     * @see #writeRows(Iterator)
+     * @since 1.1
+     */
+    public long writeRows( Iterable<? extends Value[]> rows) throws IOException
+    {
+        return writeRows( rows.iterator());
+    }
+
+    /**
+     * Send the rows written so far.
+     * <p>
+     * This is equivalent to {@link Connection#flushStackUpdates()}.</p>
+     *
+     * @throws IOException
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public void flush() throws IOException
+    {
+        mConnection.flushStackUpdates();
+    }
+
+    private void checkCell( int field) throws ConnException
+    {
+        if (mRow < 0)
+            throw new ConnException( CmdResult.INVALID_ROW, "No row was added to the table yet.");
+        else if ((field < 0) || (field >= mFields.length))
+            throw new ConnException( CmdResult.INVALID_FIELD);
+    }
+
+    private ConnException mismatch( int field)
+    {
+        return new ConnException( CmdResult.TYPE_MISMATCH,
+                                  "Unexpected value for the field '" + mFields[field].getName() + "'.");
+    }
+
+    private CommunicationFrame prepareFrame() throws ConnException
+    {
+        final CommunicationFrame frame = mConnection.getFrame();
+
+        if ( ! frame.hasPendingCommands())
+            frame.discardCommandBuffer();
+        else if (frame.getPendingCommand() != _c.CMD_UPDATE_STACK)
+            throw new ConnException( CmdResult.INCOMPLETE_CMD);
+
+        return frame;
+    }
+
+    // Get the frame's buffer positioned where a sub-command of the specified
+    // size can be added, sending the pending updates if there is no room.
+    private static ByteBuffer reserve( CommunicationFrame frame, int size) throws IOException
+    {
+        ByteBuffer b = frame.getCmdBuffer();
+
+        if (frame.getLastPosition() + size > b.capacity()) {
+            if (frame.hasPendingCommands()) {
+                frame.flushPendingCommand();
+                frame.discardCommandBuffer();
+
+                b = frame.getCmdBuffer();
+            }
+
+            if (frame.getLastPosition() + size > b.capacity())
+                throw new ConnException( CmdResult.LARGE_ARGS, "Field name too long to allow a value update.");
+        }
+
+        b.position( frame.getLastPosition());
+        return b;
+    }
+
+    private ByteBuffer beginCell( int field, int valueLength) throws IOException
+    {
+        final CommunicationFrame frame = prepareFrame();
+        final byte[] name = mFieldNames[field];
+        final ByteBuffer b = reserve( frame, 1 + 2 + name.length + 1 + 8 + valueLength + 1);
+
+        return b.put( _c.CMD_UPDATE_FUNC_CHTOP)
+                .putShort( (short) (mFieldTypes[field] | ValueType.FIELD_MASK))
+                .put( name)
+                .put( (byte) 0)
+                .putLong( mRow);
+    }
+
+    private void endCell( ByteBuffer b)
+    {
+        final CommunicationFrame frame = mConnection.getFrame();
+
+        b.put( (byte) 0);
+        frame.markBufferPositionValid();
+        frame.setPendingCommand( _c.CMD_UPDATE_STACK);
+    }
+
+    private final Connection            mConnection;
+    private final TableFieldType[]      mFields;
+    private final byte[][]              mFieldNames;
+    private final short[]               mFieldTypes;
+    private final Map<String, Integer>  mFieldsIndex;
+    private long                        mRow;
+    private int                         mRowsCmdFrameId;
+    private int                         mRowsCmdOffset;
+}
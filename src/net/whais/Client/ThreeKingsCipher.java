@@ -17,9 +17,59 @@
 package net.whais.Client;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
 
 final class ThreeKingsCipher implements Cipher
 {
+    /**
+     * Per connection key material. For every possible start of the four key
+     * bytes window (the third king) it holds the masks of the six bit
+     * groups exchange stages, so a message word is transformed with a fixed
+     * sequence of delta swaps, without testing the third king's bits.
+     */
+    static final class PreparedKey
+    {
+        PreparedKey( byte[] key)
+        {
+            mKey = key;
+            mMasks = new int[STAGES_COUNT * key.length];
+
+            for (int i = 0; i < key.length; ++i) {
+                int thirdKing = 0;
+                for (int k = 0; k < 4; ++k)
+                    thirdKing = (thirdKing << 8) | (key[(i + k) % key.length] & 0xFF);
+
+                int m1 = 0, m2 = 0, m3 = 0, m4 = 0;
+                for (int b = 0; b < 16; ++b) {
+                    if ((thirdKing & (1 << b)) != 0)
+                        m1 |= 0x01 << (2 * b);
+                }
+                for (int b = 0; b < 8; ++b) {
+                    if ((thirdKing & (1 << (16 + b))) != 0)
+                        m2 |= 0x03 << (4 * b);
+                }
+                for (int b = 0; b < 4; ++b) {
+                    if ((thirdKing & (1 << (24 + b))) != 0)
+                        m3 |= 0x0F << (8 * b);
+                }
+                for (int b = 0; b < 2; ++b) {
+                    if ((thirdKing & (1 << (28 + b))) != 0)
+                        m4 |= 0xFF << (16 * b);
+                }
+
+                final int base = STAGES_COUNT * i;
+                mMasks[base]     = m1;
+                mMasks[base + 1] = m2;
+                mMasks[base + 2] = m3;
+                mMasks[base + 3] = m4;
+                mMasks[base + 4] = ((thirdKing & (1 << 30)) != 0) ? 0x0000FFFF : 0;
+                mMasks[base + 5] = ((thirdKing & (1 << 31)) != 0) ? 0x0000FF00 : 0;
+            }
+        }
+
+        final byte[] mKey;
+        final int[]  mMasks;
+    }
 
     @Override
     public byte type()
@@ -34,32 +84,86 @@ final class ThreeKingsCipher implements Cipher
     }
 
     @Override
-    public void encodeFrame( CommunicationFrame frame, Object key)
+    public int encodeFrame( ByteBuffer buffer, int frameSize, Object key)
+    {
+        return encode( buffer, frameSize, (PreparedKey) key, false);
+    }
+
+    @Override
+    public int decodeFrame( ByteBuffer buffer, int frameSize, Object key)
+    {
+        final PreparedKey pk = (PreparedKey) key;
+
+        final int firstKing = decodeKings( buffer, pk);
+        final int secondKing = buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF);
+        decodeBuffer( buffer, _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, frameSize, pk, firstKing, secondKing);
+        int plainSize = buffer.getShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF);
+        plainSize &= 0x0000FFFF;
+
+        return plainSize;
+    }
+
+    @Override
+    public int sealFrame( ByteBuffer buffer, int frameSize, Object key)
+    {
+        return encode( buffer, frameSize, (PreparedKey) key, true);
+    }
+
+    @Override
+    public int openFrame( ByteBuffer buffer, int frameSize, Object key)
+    {
+        final PreparedKey pk = (PreparedKey) key;
+        final int from = _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF;
+        final int payload = metadataSize();
+
+        if ((frameSize < payload) || (frameSize % 4 != 0))
+            return -1;
+
+        final int firstKing = decodeKings( buffer, pk);
+        final int secondKing = buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF);
+
+        // The header holds the payload's size, so it goes first. The payload's
+        // words are summed while they are decoded.
+        decodeBuffer( buffer, from, payload, pk, firstKing, secondKing, keyIndex( pk, firstKing, 0), from);
+
+        int plainSize = buffer.getShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF);
+        plainSize &= 0x0000FFFF;
+        if ((plainSize < payload) || (plainSize > frameSize))
+            return -1;
+
+        final int checkSum = decodeBuffer( buffer,
+                                           payload,
+                                           frameSize,
+                                           pk,
+                                           firstKing,
+                                           secondKing,
+                                           keyIndex( pk, firstKing, payload - from),
+                                           plainSize);
+
+        if (buffer.getShort( payload - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF) != (short) checkSum)
+            return -1;
+
+        return plainSize;
+    }
+
+    private int encode( ByteBuffer buffer, int frameSize, PreparedKey pk, boolean seal)
     {
-        final byte[] _key = (byte[]) key;
-        final ByteBuffer buffer = frame.getCmdBuffer();
-        int bufferSize = frame.getLastPosition();
+        final byte[] _key = pk.mKey;
+        final ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int bufferSize = frameSize;
         int plainSize = bufferSize;
 
-        buffer.position( bufferSize);
         while (bufferSize % 4 != 0) {
-            buffer.put( (byte) (Math.random() * 1024));
+            buffer.put( bufferSize, (byte) rnd.nextInt());
             ++bufferSize;
-            frame.markBufferPositionValid();
         }
 
-        final int firstKing = ((byte) (Math.random() * 1024) << 24)
-                              + ((byte) (Math.random() * 1024) << 16)
-                              + ((byte) (Math.random() * 1024) << 8)
-                              + ((byte) (Math.random() * 1024));
+        final int firstKing = rnd.nextInt();
         buffer.putInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF, firstKing);
 
-        final int secondKing = ((byte) (Math.random() * 1024) << 24)
-                               + ((byte) (Math.random() * 1024) << 16)
-                               + ((byte) (Math.random() * 1024) << 8)
-                               + ((byte) (Math.random() * 1024));
-
+        final int secondKing = rnd.nextInt();
         buffer.putInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF, secondKing);
+
         for (int i = 0, prev = 0; i < _c.ENC_PLAIN_SIZE_OFF; ++i) {
             final byte b = buffer.get( _c.FRAME_HDR_SIZE + i);
             buffer.put( _c.FRAME_HDR_SIZE + i, (byte) (b ^ _key[prev % _key.length]));
@@ -68,17 +172,36 @@ final class ThreeKingsCipher implements Cipher
 
         buffer.putShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, (short) plainSize);
 
-        encodeBuffer( buffer, _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, bufferSize, _key, firstKing, secondKing);
+        final int from = _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF;
+        if (seal) {
+            // The payload is summed while it is encoded, then the header
+            // receives the check sum and is encoded last.
+            final int payload = metadataSize();
+            assert plainSize >= payload;
+
+            final int checkSum = encodeBuffer( buffer,
+                                               payload,
+                                               bufferSize,
+                                               pk,
+                                               firstKing,
+                                               secondKing,
+                                               keyIndex( pk, firstKing, payload - from),
+                                               plainSize);
+
+            buffer.putShort( payload - _c.PLAIN_HDR_SIZE + _c.PLAIN_CRC_OFF, (short) checkSum);
+            encodeBuffer( buffer, from, payload, pk, firstKing, secondKing, keyIndex( pk, firstKing, 0), from);
+        }
+        else
+            encodeBuffer( buffer, from, bufferSize, pk, firstKing, secondKing);
+
         buffer.putShort( _c.FRAME_SIZE_OFF, (short) bufferSize);
+
+        return bufferSize;
     }
 
-    @Override
-    public void decodeFrame( CommunicationFrame frame, Object key)
+    private static int decodeKings( ByteBuffer buffer, PreparedKey pk)
     {
-        final byte[] _key = (byte[]) key;
-        ByteBuffer buffer = frame.getCmdBuffer();
-
-        int bufferSize = frame.getLastPosition();
+        final byte[] _key = pk.mKey;
 
         for (int i = 0, prev = 0; i < _c.ENC_PLAIN_SIZE_OFF; ++i) {
             byte b = buffer.get( _c.FRAME_HDR_SIZE + i);
@@ -87,201 +210,169 @@ final class ThreeKingsCipher implements Cipher
             prev = b & 0xFF;
         }
 
-        final int firstKing = buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF);
-        final int secondKing = buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_SECOND_KING_OFF);
-        decodeBuffer( buffer, _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF, bufferSize, _key, firstKing, secondKing);
-        int plainSize = buffer.getShort( _c.FRAME_HDR_SIZE + _c.ENC_PLAIN_SIZE_OFF);
-        plainSize &= 0x0000FFFF;
-
-        buffer.position( plainSize);
-        frame.markBufferPositionValid();
+        return buffer.getInt( _c.FRAME_HDR_SIZE + _c.ENC_3K_FIRST_KING_OFF);
     }
 
-    static void encodeBuffer( ByteBuffer buffer, int from, int to, byte[] key, int firstKing, int secondKing)
+    // The key window used for the word found offset bytes after the start of
+    // the encoded region.
+    private static int keyIndex( PreparedKey key, int firstKing, int offset)
     {
-        assert to % 4 == 0;
-        int keyIndex = (int) ((firstKing & 0xFFFFFFFFL) % key.length);
-
-        for (int pos = from; pos < to; pos += 4) {
-            int message = buffer.getInt( pos);
-            message -= firstKing;
-            message ^= secondKing;
-
-            int thirdKing = key[keyIndex++] & 0xFF;
-            thirdKing <<= 8;
-            keyIndex %= key.length;
-
-            thirdKing |= key[keyIndex++] & 0xFF;
-            thirdKing <<= 8;
-            keyIndex %= key.length;
-
-            thirdKing |= key[keyIndex++] & 0xFF;
-            thirdKing <<= 8;
-            keyIndex %= key.length;
-
-            thirdKing |= key[keyIndex++] & 0xFF;
-            keyIndex %= key.length;
-
-            for (int b = 0; b < 16; ++b) {
-                if ((thirdKing & (1 << b)) != 0)
-                    message = exchange_1bit_pair( message, 2 * b, 2 * b + 1);
-            }
-
-            for (int b = 0; b < 8; ++b) {
-                if ((thirdKing & (1 << (16 + b))) != 0)
-                    message = exchange_2bit_pair( message, 4 * b, 4 * b + 2);
-            }
-
-            for (int b = 0; b < 4; ++b) {
-                if ((thirdKing & (1 << (24 + b))) != 0)
-                    message = exchange_4bit_pair( message, 8 * b, 8 * b + 4);
-            }
-
-            for (int b = 0; b < 2; ++b) {
-                if ((thirdKing & (1 << (28 + b))) != 0)
-                    message = exchange_8bit_pair( message, 16 * b, 16 * b + 8);
-            }
-
-            if ((thirdKing & (1 << 30)) != 0)
-                message = exchange_16bit_pair( message, 0, 16);
-
-            if ((thirdKing & (1 << 31)) != 0)
-                message = exchange_8bit_pair( message, 8, 16);
+        return (int) (((firstKing & 0xFFFFFFFFL) + offset) % key.mKey.length);
+    }
 
-            buffer.putInt( pos, message);
-        }
+    static void encodeBuffer( ByteBuffer buffer, int from, int to, PreparedKey key, int firstKing, int secondKing)
+    {
+        encodeBuffer( buffer, from, to, key, firstKing, secondKing, keyIndex( key, firstKing, 0), from);
     }
 
-    static void decodeBuffer( ByteBuffer buffer, int from, int to, byte[] key, int firstKing, int secondKing)
+    /*
+     * Encode the words between from and to, the first one with the key window
+     * keyIndex. Returns the sum of the plain bytes found before sumEnd.
+     */
+    static int encodeBuffer( ByteBuffer    buffer,
+                             int           from,
+                             int           to,
+                             PreparedKey   key,
+                             int           firstKing,
+                             int           secondKing,
+                             int           keyIndex,
+                             int           sumEnd)
     {
         assert to % 4 == 0;
 
-        int keyIndex = (int) ((firstKing & 0xFFFFFFFFL) % key.length);
-
-        for (int pos = from; pos < to; pos += 4) {
-            int message = buffer.getInt( pos);
+        final int[] masks = key.mMasks;
+        final int keyLength = key.mKey.length;
+        final int summed = Math.max( from, Math.min( to, sumEnd));
+        int sum = 0;
+        int pos = from;
 
-            int thirdKing = key[keyIndex++] & 0xFF;
-            thirdKing <<= 8;
-            keyIndex %= key.length;
+        for (; pos + 4 <= summed; pos += 4) {
+            final int message = buffer.getInt( pos);
+            sum += wordSum( message);
+            buffer.putInt( pos, encodeWord( message, masks, STAGES_COUNT * keyIndex, firstKing, secondKing));
 
-            thirdKing |= key[keyIndex++] & 0xFF;
-            thirdKing <<= 8;
-            keyIndex %= key.length;
-
-            thirdKing |= key[keyIndex++] & 0xFF;
-            thirdKing <<= 8;
-            keyIndex %= key.length;
-
-            thirdKing |= key[keyIndex++] & 0xFF;
-            keyIndex %= key.length;
-
-            if ((thirdKing & (1 << 31)) != 0)
-                message = exchange_8bit_pair( message, 8, 16);
+            keyIndex += 4;
+            while (keyIndex >= keyLength)
+                keyIndex -= keyLength;
+        }
 
-            if ((thirdKing & (1 << 30)) != 0)
-                message = exchange_16bit_pair( message, 0, 16);
+        for (; pos < to; pos += 4) {
+            final int message = buffer.getInt( pos);
+            if (pos < summed)
+                sum += wordSum( message & ((1 << (8 * (summed - pos))) - 1));
+            buffer.putInt( pos, encodeWord( message, masks, STAGES_COUNT * keyIndex, firstKing, secondKing));
 
-            for (int b = 1; b >= 0; --b) {
-                if ((thirdKing & (1 << (28 + b))) != 0)
-                    message = exchange_8bit_pair( message, 16 * b, 16 * b + 8);
-            }
+            keyIndex += 4;
+            while (keyIndex >= keyLength)
+                keyIndex -= keyLength;
+        }
 
-            for (int b = 3; b >= 0; --b) {
-                if ((thirdKing & (1 << (24 + b))) != 0)
-                    message = exchange_4bit_pair( message, 8 * b, 8 * b + 4);
-            }
+        return sum;
+    }
 
-            for (int b = 7; b >= 0; --b) {
-                if ((thirdKing & (1 << (16 + b))) != 0)
-                    message = exchange_2bit_pair( message, 4 * b, 4 * b + 2);
-            }
+    static void decodeBuffer( ByteBuffer buffer, int from, int to, PreparedKey key, int firstKing, int secondKing)
+    {
+        decodeBuffer( buffer, from, to, key, firstKing, secondKing, keyIndex( key, firstKing, 0), from);
+    }
 
-            for (int b = 15; b >= 0; --b) {
-                if ((thirdKing & (1 << b)) != 0)
-                    message = exchange_1bit_pair( message, 2 * b, 2 * b + 1);
-            }
+    /*
+     * Decode the words between from and to, the first one with the key window
+     * keyIndex. Returns the sum of the decoded bytes found before sumEnd.
+     */
+    static int decodeBuffer( ByteBuffer    buffer,
+                             int           from,
+                             int           to,
+                             PreparedKey   key,
+                             int           firstKing,
+                             int           secondKing,
+                             int           keyIndex,
+                             int           sumEnd)
+    {
+        assert to % 4 == 0;
 
-            message ^= secondKing;
-            message += firstKing;
+        final int[] masks = key.mMasks;
+        final int keyLength = key.mKey.length;
+        final int summed = Math.max( from, Math.min( to, sumEnd));
+        int sum = 0;
+        int pos = from;
 
+        for (; pos + 4 <= summed; pos += 4) {
+            final int message = decodeWord( buffer.getInt( pos), masks, STAGES_COUNT * keyIndex, firstKing, secondKing);
             buffer.putInt( pos, message);
-        }
-    }
+            sum += wordSum( message);
 
-    static int exchange_1bit_pair( int value, int p1, int p2)
-    {
-        int val1 = (value >> p1) & 1;
-        int val2 = (value >> p2) & 1;
+            keyIndex += 4;
+            while (keyIndex >= keyLength)
+                keyIndex -= keyLength;
+        }
 
-        assert (p1 < 32);
-        assert (p2 < 32);
+        for (; pos < to; pos += 4) {
+            final int message = decodeWord( buffer.getInt( pos), masks, STAGES_COUNT * keyIndex, firstKing, secondKing);
+            buffer.putInt( pos, message);
+            if (pos < summed)
+                sum += wordSum( message & ((1 << (8 * (summed - pos))) - 1));
 
-        value &= ~((1 << p1) | (1 << p2));
-        value |= (val1 << p2) | (val2 << p1);
+            keyIndex += 4;
+            while (keyIndex >= keyLength)
+                keyIndex -= keyLength;
+        }
 
-        return value;
+        return sum;
     }
 
-    static int exchange_2bit_pair( int value, int p1, int p2)
+    static int encodeWord( int message, int[] masks, int m, int firstKing, int secondKing)
     {
-        int val1 = (value >> p1) & 0x03;
-        int val2 = (value >> p2) & 0x03;
-
-        assert ((p1 < 32) && ((p1 % 2) == 0));
-        assert ((p2 < 32) && ((p2 % 2) == 0));
+        message -= firstKing;
+        message ^= secondKing;
 
-        value &= ~((0x03 << p1) | (0x03 << p2));
-        value |= (val1 << p2) | (val2 << p1);
+        message = deltaSwap( message, masks[m],     1);
+        message = deltaSwap( message, masks[m + 1], 2);
+        message = deltaSwap( message, masks[m + 2], 4);
+        message = deltaSwap( message, masks[m + 3], 8);
+        message = deltaSwap( message, masks[m + 4], 16);
+        message = deltaSwap( message, masks[m + 5], 8);
 
-        return value;
+        return message;
     }
 
-    static int exchange_4bit_pair( int value, int p1, int p2)
+    static int decodeWord( int message, int[] masks, int m, int firstKing, int secondKing)
     {
-        int val1 = (value >> p1) & 0x0F;
-        int val2 = (value >> p2) & 0x0F;
-
-        assert ((p1 < 32) && ((p1 % 4) == 0));
-        assert ((p2 < 32) && ((p2 % 4) == 0));
+        message = deltaSwap( message, masks[m + 5], 8);
+        message = deltaSwap( message, masks[m + 4], 16);
+        message = deltaSwap( message, masks[m + 3], 8);
+        message = deltaSwap( message, masks[m + 2], 4);
+        message = deltaSwap( message, masks[m + 1], 2);
+        message = deltaSwap( message, masks[m],     1);
 
-        value &= ~((0x0F << p1) | (0x0F << p2));
-        value |= (val1 << p2) | (val2 << p1);
+        message ^= secondKing;
+        message += firstKing;
 
-        return value;
+        return message;
     }
 
-    static int exchange_8bit_pair( int value, int p1, int p2)
+    // The sum of a word's four bytes. The even and the odd bytes are added
+    // in pairs, in two 16 bits lanes that can not overflow.
+    static int wordSum( int word)
     {
-        int val1 = (value >> p1) & 0xFF;
-        int val2 = (value >> p2) & 0xFF;
+        final int lanes = (word & 0x00FF00FF) + ((word >>> 8) & 0x00FF00FF);
 
-        assert ((p1 < 32) && ((p1 % 8) == 0));
-        assert ((p2 < 32) && ((p2 % 8) == 0));
-
-        value &= ~((0xFF << p1) | (0xFF << p2));
-        value |= (val1 << p2) | (val2 << p1);
-
-        return value;
+        return (lanes & 0xFFFF) + (lanes >>> 16);
     }
 
-    static int exchange_16bit_pair( int value, int p1, int p2)
+    // Exchange every bit selected by mask with the bit found delta positions
+    // above it. The pairs of a stage are disjoint, so this is its own inverse.
+    static int deltaSwap( int value, int mask, int delta)
     {
-        int val1 = (value >> p1) & 0xFFFF;
-        int val2 = (value >> p2) & 0xFFFF;
-
-        assert ((p1 < 32) && ((p1 % 16) == 0));
-        assert ((p2 < 32) && ((p2 % 16) == 0));
+        final int t = ((value >>> delta) ^ value) & mask;
 
-        value &= ~((0xFFFF << p1) | (0xFFFF << p2));
-        value |= (val1 << p2) | (val2 << p1);
-
-        return value;
+        return value ^ t ^ (t << delta);
     }
 
     @Override
     public Object prepareKey( byte[] key)
     {
-        return key;
+        return new PreparedKey( key);
     }
+
+    private static final int STAGES_COUNT = 6;
 }
@@ -16,7 +16,8 @@
 
 package net.whais.Client;
 
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A specialized form of {@link Value} designed for better manipulation of
@@ -42,6 +43,7 @@ public class TimeValue extends Value
     {
         super( type);
 
+        mKind = type.getBaseType();
         mYear = year;
         mMonth = (byte) month;
         mDay = (byte) day;
@@ -65,6 +67,8 @@ public class TimeValue extends Value
             throw new ConnException( CmdResult.INVALID_ARGS, "The constructor needs a time related type.");
         }
 
+        mKind = type.getBaseType();
+
         if ((v == null) || (v.length() == 0)) {
             mMicrosecs = mYear = mMonth = mDay = mHours = mMins = mSecs = 0;
             mIsNull = true;
@@ -72,55 +76,54 @@ public class TimeValue extends Value
         }
 
         try {
+            // Scan the string only once. The date's parts are separated either
+            // by '/' or by '-', and the year may be negative.
+            final boolean negative = v.charAt( 0) == '-';
 
-            char dateSeparator = '/';
-            int yearEndOffset = v.indexOf(dateSeparator);
-            if (yearEndOffset < 0) {
-                dateSeparator = '-';
-                yearEndOffset = v.indexOf(dateSeparator);
-                if (yearEndOffset == 0) //Ignore the first character ... maybe is the year's negative sign.
-                    yearEndOffset = v.indexOf( dateSeparator, yearEndOffset + 1);
-            }
-            int monthEndOffset = v.indexOf( dateSeparator, yearEndOffset + 1);
-            int dayEndOffset = type.equals( ValueType.dateType()) ? v.length() : v.indexOf( ' ');
-
-            mYear = Integer.parseInt( v.substring( 0, yearEndOffset));
-            mMonth = (byte) Integer.parseInt( v.substring( yearEndOffset + 1, monthEndOffset));
-            mDay = (byte) Integer.parseInt( v.substring( monthEndOffset + 1, dayEndOffset));
-
-            if (type.equals( ValueType.dateType())) {
-                mMicrosecs = mHours = mMins = mSecs = 0;
-                mIsNull = false;
+            long n = scanNumber( v, negative ? 1 : 0);
+            mYear = negative ? -number( n) : number( n);
 
-                validateDate();
+            final char dateSeparator = v.charAt( end( n));
+            if ((dateSeparator != '/') && (dateSeparator != '-'))
+                throw new NumberFormatException( "Unexpected date separator '" + dateSeparator + "'.");
 
-                return;
-            }
+            n = scanNumber( v, end( n) + 1);
+            mMonth = smallNumber( n);
 
-            v = v.substring( dayEndOffset + 1);
-            final int hoursEndOffset = v.indexOf( ':');
-            final int minsEndOffset = v.indexOf( ':', hoursEndOffset + 1);
-            final int secsEndOffset = type.equals( ValueType.datetimeType()) ? v.length() : v.indexOf( '.');
+            n = scanNumber( v, expect( v, end( n), dateSeparator));
+            mDay = smallNumber( n);
 
-            mHours = (byte) Integer.parseInt( v.substring( 0, hoursEndOffset));
-            mMins = (byte) Integer.parseInt( v.substring( hoursEndOffset + 1, minsEndOffset));
-            mSecs = (byte) Integer.parseInt( v.substring( minsEndOffset + 1, secsEndOffset));
+            int usecs = 0;
+            if (mKind == ValueType.DATE) {
+                mHours = mMins = mSecs = 0;
+                expect( v, end( n), END_OF_STRING);
+            } else {
+                n = scanNumber( v, expect( v, end( n), ' '));
+                mHours = smallNumber( n);
 
-            if (type.equals( ValueType.datetimeType())) {
-                mMicrosecs = 0;
-                mIsNull = false;
+                n = scanNumber( v, expect( v, end( n), ':'));
+                mMins = smallNumber( n);
 
-                validateDate();
+                n = scanNumber( v, expect( v, end( n), ':'));
+                mSecs = smallNumber( n);
 
-                return;
-            }
+                if (mKind == ValueType.DATETIME)
+                    expect( v, end( n), END_OF_STRING);
 
-            v = v.substring( secsEndOffset + 1);
-            int usecs = 0;
-            for (int i = 0; i < 6; ++i) {
-                usecs *= 10;
-                if (i < v.length())
-                    usecs += v.charAt( i) - '0';
+                else {
+                    // The fraction has microseconds precision, the extra digits are ignored.
+                    int pos = expect( v, end( n), '.');
+                    for (int i = 0; i < 6; ++i) {
+                        usecs *= 10;
+                        if ((pos < v.length()) && isDigit( v.charAt( pos)))
+                            usecs += v.charAt( pos++) - '0';
+                    }
+
+                    while ((pos < v.length()) && isDigit( v.charAt( pos)))
+                        ++pos;
+
+                    expect( v, pos, END_OF_STRING);
+                }
             }
 
             mMicrosecs = usecs;
@@ -144,6 +147,113 @@ public class TimeValue extends Value
         }
     }
 
+    /**
+     * Create a time value from its components as counted by {@code java.time}
+     * (e.g. {@code LocalDate.toEpochDay()} and {@code LocalTime.toNanoOfDay() / 1000}).
+     *
+     * @param type
+     *            One of the date, date&amp;time or high resolution time types.
+     *            The parts of the time of the day that the type cannot hold
+     *            are ignored.
+     * @param epochDay
+     *            The count of days since 1970/1/1, in the proleptic Gregorian
+     *            calendar.
+     * @param microsOfDay
+     *            The count of microseconds since the day's start.
+     *
+     * @see #toEpochDay()
+     * @see #getMicrosOfDay()
+     *
+     * @since 1.1
+     */
+    public static TimeValue create( ValueType type, long epochDay, long microsOfDay) throws ConnException
+    {
+        if ( ! (type.equals( ValueType.dateType())
+                || (type.equals( ValueType.datetimeType()))
+                || (type.equals( ValueType.hirestimeType())))) {
+            throw new ConnException( CmdResult.INVALID_ARGS, "The constructor needs a time related type.");
+        }
+
+        if ((microsOfDay < 0) || (microsOfDay >= MICROS_PER_DAY))
+            throw new ConnException( CmdResult.INVALID_ARGS, "The time of the day is out of range.");
+
+        // The inverse of the computation done by toEpochDay().
+        final long z = epochDay + DAYS_0000_03_01_TO_EPOCH;
+        final long era = ((z >= 0) ? z : z - 146096) / 146097;
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int shiftedMonth = (int) ((5 * dayOfYear + 2) / 153);
+        final int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        final int month = (shiftedMonth < 10) ? shiftedMonth + 3 : shiftedMonth - 9;
+        final long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+
+        if ((year < Integer.MIN_VALUE) || (year > Integer.MAX_VALUE))
+            throw new ConnException( CmdResult.INVALID_ARGS, "The date is out of range.");
+
+        final int kind = type.getBaseType();
+        final long secsOfDay = (kind == ValueType.DATE) ? 0 : microsOfDay / 1000000;
+        final int usecs = (kind == ValueType.HIRESTIME) ? (int) (microsOfDay % 1000000) : 0;
+
+        return new TimeValue( type,
+                              (int) year,
+                              month,
+                              day,
+                              (int) (secsOfDay / 3600),
+                              (int) (secsOfDay / 60 % 60),
+                              (int) (secsOfDay % 60),
+                              usecs);
+    }
+
+    /**
+     * Decode a time value from its wire representation (e.g.
+     * {@code "YYYY/M/D h:m:s.uuuuuu"}), scanning it only once.
+     */
+    static TimeValue decode( ValueType type, byte[] src, int offset) throws ConnException
+    {
+        final int kind = type.getBaseType();
+        final boolean negative = src[offset] == '-';
+
+        long n = scanNumber( src, negative ? offset + 1 : offset);
+        final int year = negative ? -number( n) : number( n);
+
+        assert src[end( n)] == '/';
+        n = scanNumber( src, end( n) + 1);
+        final int month = number( n);
+
+        assert src[end( n)] == '/';
+        n = scanNumber( src, end( n) + 1);
+        final int day = number( n);
+
+        if (kind == ValueType.DATE) {
+            assert src[end( n)] == 0;
+            return new TimeValue( type, year, month, day, 0, 0, 0, 0);
+        }
+
+        assert src[end( n)] == ' ';
+        n = scanNumber( src, end( n) + 1);
+        final int hours = number( n);
+
+        assert src[end( n)] == ':';
+        n = scanNumber( src, end( n) + 1);
+        final int mins = number( n);
+
+        assert src[end( n)] == ':';
+        n = scanNumber( src, end( n) + 1);
+        final int secs = number( n);
+
+        if (kind == ValueType.DATETIME) {
+            assert src[end( n)] == 0;
+            return new TimeValue( type, year, month, day, hours, mins, secs, 0);
+        }
+
+        assert src[end( n)] == '.';
+        n = scanNumber( src, end( n) + 1);
+
+        assert src[end( n)] == 0;
+        return new TimeValue( type, year, month, day, hours, mins, secs, number( n));
+    }
+
     /**
      * Returns {@code true} of both objects holds the same type of WHAIS time
      * related type (e.g both holds a date, or bold holds a date&time values)
@@ -181,6 +291,17 @@ public class TimeValue extends Value
                 && (mMicrosecs == o.mMicrosecs);
     }
 
+    @Override
+    public int hashCode()
+    {
+        if (isNull())
+            return 0;
+
+        final long h = epochDay() * 31 + microsOfDay();
+
+        return (int) (h ^ (h >>> 32));
+    }
+
     /**
      * Returns a default representation the WHAIS time value.
      */
@@ -190,28 +311,16 @@ public class TimeValue extends Value
         if (mPrecomputeString != null)
             return mPrecomputeString;
 
-        String s = "";
-
-        if (!isNull()) {
-            try {
-                if (type().equals( ValueType.dateType()))
-                    s = "" + mYear + '/' + mMonth + '/' + mDay;
+        if (isNull())
+            mPrecomputeString = "";
 
-                else if (type().equals( ValueType.datetimeType())) {
-                    s = "" + mYear + '/' + mMonth + '/' + mDay + ' ' + mHours + ':' + mMins + ':' + mSecs;
-                }
+        else {
+            final byte[] s = new byte[formatLength()];
+            format( s, 0);
 
-                else {
-                    s = "" + mYear + '/' + mMonth + '/' + mDay + ' ' + mHours + ':' + mMins + ':' + mSecs + '.'
-                           + String.format( "%06d", mMicrosecs);
-                }
-            } catch (IOException e) {
-                s = "";
-            }
+            mPrecomputeString = new String( s, StandardCharsets.US_ASCII);
         }
 
-        mPrecomputeString = s;
-
         return mPrecomputeString;
     }
 
@@ -224,6 +333,24 @@ public class TimeValue extends Value
         return mIsNull;
     }
 
+    @Override
+    int encodedLength()
+    {
+        return isNull() ? 0 : formatLength();
+    }
+
+    @Override
+    void encode( ByteBuffer b)
+    {
+        if (isNull())
+            return;
+
+        final int length = formatLength();
+
+        format( b.array(), b.arrayOffset() + b.position());
+        b.position( b.position() + length);
+    }
+
     private final void validateDate() throws ConnException
     {
         if (isNull())
@@ -387,6 +514,56 @@ public class TimeValue extends Value
         return mMicrosecs;
     }
 
+    /**
+     * Get the count of days from 1970/1/1 to this value's date, in the
+     * proleptic Gregorian calendar (e.g. as expected by
+     * {@code java.time.LocalDate.ofEpochDay()}).
+     *
+     * @throws ConnException
+     *            The caller should check first this is a non null value.
+     * @since 1.1
+     */
+    public final long toEpochDay() throws ConnException
+    {
+        if (isNull())
+            throw new ConnException( CmdResult.INVALID_ARGS, "Requested the epoch day of a null date value.");
+
+        return epochDay();
+    }
+
+    /**
+     * Get the count of microseconds from the day's start to this value's time
+     * (e.g. {@code java.time.LocalTime.ofNanoOfDay( 1000 * getMicrosOfDay())}).
+     *
+     * @throws ConnException
+     *            The caller should check first this is a non null value.
+     * @since 1.1
+     */
+    public final long getMicrosOfDay() throws ConnException
+    {
+        if (isNull())
+            throw new ConnException( CmdResult.INVALID_ARGS, "Requested the time of the day of a null time value.");
+
+        return microsOfDay();
+    }
+
+    private long epochDay()
+    {
+        // Count the years from March, so the leap day is the last of the year.
+        final long year = (mMonth <= 2) ? mYear - 1L : mYear;
+        final long era = ((year >= 0) ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (mMonth + ((mMonth > 2) ? -3 : 9)) + 2) / 5 + mDay - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - DAYS_0000_03_01_TO_EPOCH;
+    }
+
+    private long microsOfDay()
+    {
+        return ((mHours * 60L + mMins) * 60 + mSecs) * 1000000 + mMicrosecs;
+    }
+
     /**
      * Check for a leap year.
      * @param year
@@ -409,6 +586,124 @@ public class TimeValue extends Value
         return false;
     }
 
+    private int formatLength()
+    {
+        int length = RealValue.decimalLength( mYear, 0) + 1 + smallLength( mMonth) + 1 + smallLength( mDay);
+
+        if (mKind != ValueType.DATE)
+            length += 1 + smallLength( mHours) + 1 + smallLength( mMins) + 1 + smallLength( mSecs);
+
+        if (mKind == ValueType.HIRESTIME)
+            length += 1 + 6;
+
+        return length;
+    }
+
+    private void format( byte[] dest, int p)
+    {
+        p += RealValue.decimalLength( mYear, 0);
+        RealValue.putDecimal( dest, p, mYear, 0);
+
+        dest[p++] = '/';
+        p = putSmall( dest, p, mMonth);
+        dest[p++] = '/';
+        p = putSmall( dest, p, mDay);
+
+        if (mKind == ValueType.DATE)
+            return;
+
+        dest[p++] = ' ';
+        p = putSmall( dest, p, mHours);
+        dest[p++] = ':';
+        p = putSmall( dest, p, mMins);
+        dest[p++] = ':';
+        p = putSmall( dest, p, mSecs);
+
+        if (mKind == ValueType.DATETIME)
+            return;
+
+        dest[p++] = '.';
+        for (int i = 5, usecs = mMicrosecs; i >= 0; --i, usecs /= 10)
+            dest[p + i] = (byte) ('0' + usecs % 10);
+    }
+
+    private static int smallLength( int value)
+    {
+        return (value < 10) ? 1 : 2;
+    }
+
+    private static int putSmall( byte[] dest, int p, int value)
+    {
+        if (value >= 10)
+            dest[p++] = (byte) ('0' + value / 10);
+
+        dest[p++] = (byte) ('0' + value % 10);
+
+        return p;
+    }
+
+    private static boolean isDigit( int c)
+    {
+        return ('0' <= c) && (c <= '9');
+    }
+
+    /*
+     * The number scanners return the number in the upper half of the result
+     * and the offset following its last digit in the lower half.
+     */
+
+    private static long scanNumber( String s, int pos)
+    {
+        final int start = pos;
+
+        int value = 0;
+        while ((pos < s.length()) && isDigit( s.charAt( pos)) && (pos - start < 9))
+            value = value * 10 + (s.charAt( pos++) - '0');
+
+        if (pos == start)
+            throw new NumberFormatException( "Expected a number at offset " + start + " of '" + s + "'.");
+
+        return ((long) value << 32) | pos;
+    }
+
+    private static long scanNumber( byte[] src, int offset)
+    {
+        int value = 0;
+        while (isDigit( src[offset]))
+            value = value * 10 + (src[offset++] - '0');
+
+        return ((long) value << 32) | offset;
+    }
+
+    private static int number( long scanResult)
+    {
+        return (int) (scanResult >>> 32);
+    }
+
+    private static byte smallNumber( long scanResult)
+    {
+        final int value = number( scanResult);
+        if (value > 99)
+            throw new NumberFormatException( "The number " + value + " is too big for a date or a time part.");
+
+        return (byte) value;
+    }
+
+    private static int end( long scanResult)
+    {
+        return (int) scanResult;
+    }
+
+    private static int expect( String s, int pos, char c)
+    {
+        final char found = (pos < s.length()) ? s.charAt( pos) : END_OF_STRING;
+        if (found != c)
+            throw new NumberFormatException( "Unexpected character at offset " + pos + " of '" + s + "'.");
+
+        return pos + 1;
+    }
+
+    private final int mKind;
     private final int mYear;
     private final byte mMonth;
     private final byte mDay;
@@ -419,5 +714,9 @@ public class TimeValue extends Value
     private final boolean mIsNull;
     private String mPrecomputeString;
 
+    private static final char END_OF_STRING = 0;
+    private static final long MICROS_PER_DAY = 24L * 3600 * 1000000;
+    private static final long DAYS_0000_03_01_TO_EPOCH = 719468;
+
     private static final byte[] sMonths = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
 }
@@ -16,6 +16,8 @@
 
 package net.whais.Client;
 
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -56,6 +58,24 @@ public abstract class Value
     @Override
     public abstract boolean equals( Object p);
 
+    /**
+     * Get the size of the value's representation in a stack update request
+     * (with no terminating zero).
+     */
+    int encodedLength()
+    {
+        return toString().getBytes( StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Write the value's representation in a stack update request (with no
+     * terminating zero), advancing the buffer's position.
+     */
+    void encode( ByteBuffer b)
+    {
+        b.put( toString().getBytes( StandardCharsets.UTF_8));
+    }
+
     /**
      * Check if it the value holds an array.
      *
@@ -448,7 +468,7 @@ public abstract class Value
      */
     public static Value createInt8 (long l) throws ConnException
     {
-        return createBasic (ValueType.int8Type (), Long.toString(l));
+        return new IntegerValue( ValueType.int8Type(), l);
     }
 
     /**
@@ -512,7 +532,7 @@ public abstract class Value
      */
     public static Value createInt16 (long l) throws ConnException
     {
-        return createBasic (ValueType.int16Type (), Long.toString(l));
+        return new IntegerValue( ValueType.int16Type(), l);
     }
 
     /**
@@ -575,7 +595,7 @@ public abstract class Value
      */
     public static Value createInt32 (long l) throws ConnException
     {
-        return createBasic (ValueType.int32Type (), Long.toString(l));
+        return new IntegerValue( ValueType.int32Type(), l);
     }
 
     /**
@@ -631,7 +651,7 @@ public abstract class Value
      */
     public static Value createInt64 (long l) throws ConnException
     {
-        return createBasic (ValueType.int64Type (), Long.toString(l));
+        return new IntegerValue( ValueType.int64Type(), l);
     }
 
     /**
@@ -694,7 +714,7 @@ public abstract class Value
      */
     public static Value createUInt8 (long l) throws ConnException
     {
-        return createBasic (ValueType.uint8Type (), Long.toString(l));
+        return new IntegerValue( ValueType.uint8Type(), l);
     }
 
     /**
@@ -756,7 +776,7 @@ public abstract class Value
      */
     public static Value createUInt16 (long l) throws ConnException
     {
-        return createBasic (ValueType.uint16Type (), Long.toString(l));
+        return new IntegerValue( ValueType.uint16Type(), l);
     }
 
     /**
@@ -819,7 +839,7 @@ public abstract class Value
      */
     public static Value createUInt32 (long l) throws ConnException
     {
-        return createBasic (ValueType.uint32Type (), Long.toString(l));
+        return new IntegerValue( ValueType.uint32Type(), l);
     }
 
     /**
@@ -866,6 +886,11 @@ public abstract class Value
 
     /**
      * Wrapper to create a Whais 64 bit unsigned integer value.
+     * <p>
+     * The argument holds the unsigned 64 bits representation of the value,
+     * so negative arguments stand for the values above
+     * {@link Long#MAX_VALUE} (e.g. {@code -1} creates
+     * {@code 18446744073709551615}).</p>
      *
      * @throws ConnException
      *
@@ -875,7 +900,7 @@ public abstract class Value
      */
     public static Value createUInt64 (long l) throws ConnException
     {
-        return createBasic (ValueType.uint64Type (), Long.toString(l));
+        return new IntegerValue( ValueType.uint64Type(), l);
     }
 
     /**
@@ -918,7 +943,7 @@ public abstract class Value
      */
     public static Value createReal (Double d) throws ConnException
     {
-        return createBasic (ValueType.realType (), d == null ? null : d.toString());
+        return (d == null) ? createReal () : new RealValue( ValueType.realType (), BigDecimal.valueOf( d));
     }
 
     /**
@@ -961,7 +986,7 @@ public abstract class Value
      */
     public static Value createRichReal (Double d) throws ConnException
     {
-        return createBasic (ValueType.richrealType (), d == null ?  null : d.toString());
+        return (d == null) ? createRichReal () : new RealValue( ValueType.richrealType (), BigDecimal.valueOf( d));
     }
 
     /**
@@ -1056,6 +1081,125 @@ public abstract class Value
         return createArray( type, "");
     }
 
+    /**
+     * Create an array of integers or reals from Java {@code long} values,
+     * with no intermediate value for each element.
+     *
+     * @param type
+     *            The type of the array to create (or of its elements).
+     * @param values
+     *            The elements' values. If this is not provided or has no
+     *            elements then this will be a null WHAIS array value.
+     *
+     * @throws ConnException
+     *            If the type is not an integer or a real one, or if a value
+     *            is out of the elements type range.
+     *
+     * @since 1.1
+     */
+    public static ArrayValue createArray( ValueType type, long[] values) throws ConnException
+    {
+        final ArrayValue result = createArray( type);
+        if (values != null)
+            result.setLongs( values);
+
+        return result;
+    }
+
+    /**
+     * Create an array of reals from Java {@code double} values, with no
+     * intermediate value for each element.
+     *
+     * @param type
+     *            The type of the array to create (or of its elements).
+     * @param values
+     *            The elements' values. If this is not provided or has no
+     *            elements then this will be a null WHAIS array value.
+     *
+     * @throws ConnException
+     *            If the type is not a real one, or if a value is not finite.
+     *
+     * @since 1.1
+     */
+    public static ArrayValue createArray( ValueType type, double[] values) throws ConnException
+    {
+        final ArrayValue result = createArray( type);
+        if (values != null)
+            result.setDoubles( values);
+
+        return result;
+    }
+
+    /**
+     * Create an array of booleans.
+     *
+     * @param values
+     *            The elements' values. If this is not provided or has no
+     *            elements then this will be a null WHAIS array value.
+     *
+     * @throws ConnException
+     *
+     * @since 1.1
+     */
+    public static ArrayValue createArray( boolean[] values) throws ConnException
+    {
+        final ArrayValue result = createArray( ValueType.boolType());
+        if (values != null)
+            result.setBooleans( values);
+
+        return result;
+    }
+
+    /**
+     * Create an array of characters from their Unicode code points.
+     *
+     * @param codePoints
+     *            The elements' values. If this is not provided or has no
+     *            elements then this will be a null WHAIS array value.
+     *
+     * @throws ConnException
+     *            If a value is not a valid (non zero) code point.
+     *
+     * @since 1.1
+     */
+    public static ArrayValue createCharArray( int[] codePoints) throws ConnException
+    {
+        final ArrayValue result = createArray( ValueType.charType());
+        if (codePoints != null)
+            result.setCodePoints( codePoints);
+
+        return result;
+    }
+
+    /**
+     * Create an array of dates or times from counts of microseconds since
+     * 1970/1/1 00:00:00 (in the proleptic Gregorian calendar, with no time
+     * zone).
+     *
+     * @param type
+     *            The type of the array to create (or of its elements). The
+     *            parts of the time that the type cannot hold are ignored.
+     * @param epochMicros
+     *            The elements' values. If this is not provided or has no
+     *            elements then this will be a null WHAIS array value.
+     *
+     * @throws ConnException
+     *            If the type is not a time related one.
+     *
+     * @see TimeValue#create(ValueType, long, long)
+     * @see ArrayValue#toEpochMicrosArray()
+     *
+     * @since 1.1
+     */
+    public static ArrayValue createTimeArray( ValueType type, long[] epochMicros) throws ConnException
+    {
+        final ArrayValue result = createArray( type);
+        if (epochMicros != null)
+            result.setEpochMicros( epochMicros);
+
+        return result;
+    }
+
     static FieldValue createField( ValueType type) throws ConnException
     {
         return new FieldValue( type);
@@ -1092,8 +1236,6 @@ public abstract class Value
             return Value.createBasic( type);
 
         long temp;
-        int year, month, day, hours, mins, secs, usecs;
-        int intSize;
         switch (type.getBaseType()) {
         case ValueType.BOOL:
             return new BoolValue( src[srcOffset] != '0');
@@ -1108,106 +1250,9 @@ public abstract class Value
 
             return new CharValue( new String( src, startOffset, srcOffset - startOffset, StandardCharsets.UTF_8));
         case ValueType.DATE:
-            year = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '/';
-            ++srcOffset;
-
-            month = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '/';
-            ++srcOffset;
-
-            day = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == 0;
-
-            return new TimeValue( ValueType.dateType(), year, month, day, 0, 0, 0, 0);
-
         case ValueType.DATETIME:
-            year = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '/';
-            ++srcOffset;
-
-            month = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '/';
-            ++srcOffset;
-
-            day = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == ' ';
-            ++srcOffset;
-
-            hours = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == ':';
-            ++srcOffset;
-
-            mins = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == ':';
-            ++srcOffset;
-
-            secs = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == 0;
-
-            return new TimeValue( ValueType.datetimeType(), year, month, day, hours, mins, secs, 0);
-
         case ValueType.HIRESTIME:
-            year = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '/';
-            ++srcOffset;
-
-            month = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '/';
-            ++srcOffset;
-
-            day = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == ' ';
-            ++srcOffset;
-
-            hours = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == ':';
-            ++srcOffset;
-
-            mins = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == ':';
-            ++srcOffset;
-
-            secs = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == '.';
-            ++srcOffset;
-
-            usecs = (int) getIntegerJavaWeirdWay( src, srcOffset);
-            srcOffset += getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset] == 0;
-
-            return new TimeValue( ValueType.hirestimeType(), year, month, day, hours, mins, secs, usecs);
+            return TimeValue.decode( type, src, srcOffset);
 
         case ValueType.INT8:
         case ValueType.INT16:
@@ -1217,66 +1262,24 @@ public abstract class Value
         case ValueType.UINT16:
         case ValueType.UINT32:
         case ValueType.UINT64:
-            intSize = getIntegerStringLength( src, srcOffset);
-
-            assert src[srcOffset + intSize] == 0;
-
-            return new IntegerValue( type, new String( src, srcOffset, intSize, StandardCharsets.UTF_8));
+            return IntegerValue.decode( type, src, srcOffset);
 
         case ValueType.REAL:
         case ValueType.RICHREAL:
-            intSize = getRealStringLength( src, srcOffset);
-
-            assert src[srcOffset + intSize] == 0;
-
-            return new RealValue( type, new String( src, srcOffset, intSize, StandardCharsets.UTF_8));
+            return RealValue.decode( type, src, srcOffset);
 
         case ValueType.TEXT:
             temp = srcOffset;
             while (src[srcOffset] != 0)
                 ++srcOffset;
 
-            return new TextValue( new String( src, srcOffset, (int) (srcOffset - temp), StandardCharsets.UTF_8));
+            return new TextValue( new String( src, (int) temp, (int) (srcOffset - temp), StandardCharsets.UTF_8));
         }
 
         throw new ConnException( CmdResult.INVALID_ARGS, "Unknown type to create a value!");
     }
 
-    private static long getIntegerJavaWeirdWay( byte[] src, int offset)
-    {
-        long result = 0;
-        boolean isNegative = false;
-
-        if (src[offset] == '-') {
-            ++offset;
-            isNegative = true;
-        }
-
-        while (('0' <= src[offset]) && (src[offset] <= '9')) {
-            result *= 10;
-            result += src[offset++] - '0';
-        }
-
-        if (isNegative)
-            result *= -1;
-
-        return result;
-    }
-
-    private static int getIntegerStringLength( byte[] src, int offset)
-    {
-        final int originalOffset = offset;
-
-        if (src[offset] == '-')
-            ++offset;
-
-        while (('0' <= src[offset]) && (src[offset] <= '9'))
-            ++offset;
-
-        return offset - originalOffset;
-    }
-
-    private static int getRealStringLength( byte[] src, int offset)
+    static int getRealStringLength( byte[] src, int offset)
     {
         final int originalOffset = offset;
 
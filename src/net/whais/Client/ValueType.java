@@ -416,9 +416,10 @@ public class ValueType
      * Get the fields of a WHAIS table.
      *
      * @return
-     *            The fields list. If the ValueType instance describes an
-     *            uncompleted table than returned array will have a 0
-     *            length.
+     *            A copy of the fields list, as type descriptors may be
+     *            shared (e.g. through a {@link MetadataCache}). If the
+     *            ValueType instance describes an uncompleted table than
+     *            returned array will have a 0 length.
      *
      * @see #create(TableFieldType[])
      *
@@ -426,10 +427,10 @@ public class ValueType
      */
     public final TableFieldType[] getFields()
     {
-        if (this.mFields == null)
+        if ((this.mFields == null) || (this.mFields.length == 0))
             return sNofields;
 
-        return this.mFields;
+        return this.mFields.clone();
     }
 
     /**
@@ -0,0 +1,18 @@
+#!/bin/bash
+
+# Builds the connector together with the JMH benchmarks from bench/ and
+# runs them. Any arguments are passed to the JMH runner (e.g. Frame to run
+# only the frame benchmarks, -p cipher=plain,3k, -f 1 -wi 2 -i 3, or -h for
+# the full list). The results are also saved in bench_output.txt so they
+# can be compared between connector versions.
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+
+(cd "${ROOT}" && mvn -q -B -pl bench -am -DskipTests package)
+if [ $? -ne 0 ]; then
+	echo "Failed to build the benchmarks."
+	exit 1
+fi
+
+java -jar "${ROOT}/bench/target/benchmarks.jar" "$@" | tee "${ROOT}/bench_output.txt"
+exit ${PIPESTATUS[0]}